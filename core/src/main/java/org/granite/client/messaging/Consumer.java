@@ -21,15 +21,24 @@
 package org.granite.client.messaging;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.granite.client.messaging.channel.MessagingChannel;
 import org.granite.client.messaging.channel.ResponseMessageFuture;
 import org.granite.client.messaging.events.IssueEvent;
 import org.granite.client.messaging.events.ResultEvent;
 import org.granite.client.messaging.events.TopicMessageEvent;
+import org.granite.client.messaging.flow.ConsumerPublisher;
 import org.granite.client.messaging.messages.push.TopicMessage;
 import org.granite.client.messaging.messages.requests.SubscribeMessage;
 import org.granite.client.messaging.messages.requests.UnsubscribeMessage;
+import org.granite.client.util.DispatchQueue;
+import org.granite.client.util.DispatchQueue.OverflowPolicy;
 import org.granite.logging.Logger;
 
 /**
@@ -44,6 +53,14 @@ public class Consumer extends AbstractTopicAgent {
 	private String subscriptionId = null;
 	private String selector = null;
 	
+	protected volatile int maxQueuedMessages = 0; // no queue.
+	protected volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	protected volatile String conflationHeader = null;
+	protected volatile Executor dispatchExecutor = null;
+	
+	private volatile DispatchQueue<TopicMessage> queue = null;
+	private volatile SubscriptionManager subscriptionManager = null;
+	
 	public Consumer(MessagingChannel channel, String destination, String topic) {
 		super(channel, destination, topic);
 	}
@@ -56,6 +73,114 @@ public class Consumer extends AbstractTopicAgent {
 		this.selector = selector;
 	}
 	
+	public int getMaxQueuedMessages() {
+		return maxQueuedMessages;
+	}
+
+	/**
+	 * Sets the capacity of the queue from which messages are passed to listeners by the dispatch
+	 * executor, so that slow listeners don't hold up the messaging channel. If 0 (default), listeners
+	 * are called by the thread receiving the messages. Must be set before the first message is queued.
+	 */
+	public void setMaxQueuedMessages(int maxQueuedMessages) {
+		if (maxQueuedMessages < 0)
+			throw new IllegalArgumentException("maxQueuedMessages cannot be negative");
+		synchronized (listeners) {
+			checkNoQueue();
+			this.maxQueuedMessages = maxQueuedMessages;
+		}
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Sets what happens when a message arrives and the queue is full (default is BLOCK, which holds
+	 * up the messaging channel until listeners catch up). With CONFLATE, only the latest pending
+	 * message for each conflation key is kept (see {@link #getConflationKey(TopicMessage)}).
+	 * Must be set before the first message is queued.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null)
+			throw new NullPointerException("overflowPolicy cannot be null");
+		synchronized (listeners) {
+			checkNoQueue();
+			this.overflowPolicy = overflowPolicy;
+		}
+	}
+
+	public String getConflationHeader() {
+		return conflationHeader;
+	}
+
+	/**
+	 * Sets the name of the message header (eg. an entity id) holding the conflation key.
+	 */
+	public void setConflationHeader(String conflationHeader) {
+		this.conflationHeader = conflationHeader;
+	}
+
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Sets the executor passing queued messages to listeners. If null (default), the pool returned
+	 * by {@link #getDefaultDispatchExecutor()} is used. Must be set before the first message is queued.
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		synchronized (listeners) {
+			checkNoQueue();
+			this.dispatchExecutor = dispatchExecutor;
+		}
+	}
+	
+	private void checkNoQueue() {
+		// Replacing the queue could dispatch messages out of order while the old one is draining.
+		if (queue != null)
+			throw new IllegalStateException("Consumer dispatch queue already created: " + this);
+	}
+	
+	public int getQueuedMessages() {
+		DispatchQueue<TopicMessage> queue = this.queue;
+		return (queue != null ? queue.size() : 0);
+	}
+	
+	public long getDroppedMessages() {
+		DispatchQueue<TopicMessage> queue = this.queue;
+		return (queue != null ? queue.getDropped() : 0L);
+	}
+	
+	public long getConflatedMessages() {
+		DispatchQueue<TopicMessage> queue = this.queue;
+		return (queue != null ? queue.getConflated() : 0L);
+	}
+	
+	/**
+	 * Returns the key used to conflate messages with the CONFLATE overflow policy, or null if the
+	 * message must not be conflated. Default implementation returns the value of the conflation
+	 * header, if any.
+	 */
+	protected Object getConflationKey(TopicMessage message) {
+		String conflationHeader = this.conflationHeader;
+		return (conflationHeader != null ? message.getHeader(conflationHeader) : null);
+	}
+
+	public SubscriptionManager getSubscriptionManager() {
+		return subscriptionManager;
+	}
+
+	/**
+	 * Makes this consumer share its server subscription with other consumers of the same manager
+	 * having the same destination, topic and selector. Must be set before subscribing.
+	 */
+	public void setSubscriptionManager(SubscriptionManager subscriptionManager) {
+		if (isSubscribed())
+			throw new IllegalStateException("Consumer already subscribed: " + this);
+		this.subscriptionManager = subscriptionManager;
+	}
+
 	public boolean isSubscribed() {
 		return subscriptionId != null;
 	}
@@ -63,8 +188,16 @@ public class Consumer extends AbstractTopicAgent {
 	public String getSubscriptionId() {
 		return subscriptionId;
 	}
+	
+	void setSubscriptionId(String subscriptionId) {
+		this.subscriptionId = subscriptionId;
+	}
 
 	public ResponseMessageFuture subscribe(ResponseListener...listeners) {
+		SubscriptionManager subscriptionManager = this.subscriptionManager;
+		if (subscriptionManager != null)
+			return subscriptionManager.subscribe(this, listeners);
+		
 		SubscribeMessage subscribeMessage = new SubscribeMessage(destination, topic, selector);
 		subscribeMessage.getHeaders().putAll(defaultHeaders);
 		
@@ -96,6 +229,10 @@ public class Consumer extends AbstractTopicAgent {
 	}
 
 	public ResponseMessageFuture unsubscribe(ResponseListener...listeners) {
+		SubscriptionManager subscriptionManager = this.subscriptionManager;
+		if (subscriptionManager != null)
+			return subscriptionManager.unsubscribe(this, listeners);
+		
 		UnsubscribeMessage unsubscribeMessage = new UnsubscribeMessage(destination, topic, subscriptionId);
 		unsubscribeMessage.getHeaders().putAll(defaultHeaders);
 		
@@ -134,11 +271,56 @@ public class Consumer extends AbstractTopicAgent {
 		return listeners.remove(listener) != null;
 	}
 	
+	/**
+	 * Returns a publisher of the messages received by this consumer, for subscribers signaling
+	 * their demand. Undelivered messages are buffered up to <code>maxBufferedMessages</code>
+	 * per subscriber.
+	 */
+	public ConsumerPublisher toPublisher(int maxBufferedMessages) {
+		return new ConsumerPublisher(this, maxBufferedMessages);
+	}
+	
 	public void onDisconnect() {
 		subscriptionId = null;
 	}
 
 	public void onMessage(TopicMessage message) {
+		if (maxQueuedMessages == 0) {
+			dispatchMessage(message);
+			return;
+		}
+		
+		DispatchQueue<TopicMessage> queue = this.queue;
+		if (queue == null) {
+			synchronized (listeners) {
+				queue = this.queue;
+				if (queue == null)
+					this.queue = queue = newDispatchQueue();
+			}
+		}
+		queue.offer(message);
+	}
+	
+	protected DispatchQueue<TopicMessage> newDispatchQueue() {
+		Executor executor = dispatchExecutor;
+		if (executor == null)
+			executor = getDefaultDispatchExecutor();
+		
+		return new DispatchQueue<TopicMessage>(executor, maxQueuedMessages, overflowPolicy) {
+			
+			@Override
+			protected Object getKey(TopicMessage message) {
+				return getConflationKey(message);
+			}
+
+			@Override
+			protected void dispatch(TopicMessage message) {
+				dispatchMessage(message);
+			}
+		};
+	}
+
+	protected void dispatchMessage(TopicMessage message) {
 		for (TopicMessageListener listener : listeners.keySet()) {
 			try {
 				listener.onMessage(new TopicMessageEvent(this, message));
@@ -149,6 +331,44 @@ public class Consumer extends AbstractTopicAgent {
 		}
 	}
 
+	/**
+	 * Returns the pool of daemon threads shared by consumers without a dispatch executor. It can't be
+	 * the channel dispatch executor: with the BLOCK policy, a thread offering a message to a full
+	 * queue waits for the queue to be drained by another thread. Idle threads time out, so the
+	 * pool is never shut down.
+	 */
+	public static Executor getDefaultDispatchExecutor() {
+		return DefaultDispatchExecutorHolder.EXECUTOR;
+	}
+	
+	private static class DefaultDispatchExecutorHolder {
+		
+		static final ThreadPoolExecutor EXECUTOR = newExecutor();
+		
+		private static ThreadPoolExecutor newExecutor() {
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new ConsumerThreadFactory()
+			);
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+	}
+
+	private static class ConsumerThreadFactory implements ThreadFactory {
+		
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "GraniteDS-consumer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	@Override
 	public String toString() {
 		return getClass().getName() + " {subscriptionId=" + subscriptionId +
@@ -0,0 +1,67 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging;
+
+import java.util.Arrays;
+
+/**
+ * Identifies invocations of the same service operation with equal parameters.
+ */
+final class InvocationKey {
+	
+	private final String serviceId;
+	private final String name;
+	private final Object[] parameters;
+	private final int hashCode;
+	
+	public InvocationKey(String serviceId, String name, Object[] parameters) {
+		this.serviceId = serviceId;
+		this.name = name;
+		this.parameters = parameters;
+		this.hashCode = (String.valueOf(serviceId).hashCode() * 31 + name.hashCode()) * 31 + Arrays.deepHashCode(parameters);
+	}
+	
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof InvocationKey))
+			return false;
+		InvocationKey key = (InvocationKey)obj;
+		return hashCode == key.hashCode &&
+			name.equals(key.name) &&
+			(serviceId == null ? key.serviceId == null : serviceId.equals(key.serviceId)) &&
+			Arrays.deepEquals(parameters, key.parameters);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public String toString() {
+		return serviceId + "." + name + Arrays.deepToString(parameters);
+	}
+}
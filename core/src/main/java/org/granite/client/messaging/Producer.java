@@ -27,17 +27,36 @@ import org.granite.client.messaging.channel.ResponseMessageFuture;
 import org.granite.client.messaging.messages.requests.PublishMessage;
 
 /**
+ * Publishes messages to a topic. Publish requests waiting for a connection are sent together
+ * when the channel coalesces requests (see <code>AbstractHTTPChannel.setMaxCoalescedRequests</code>
+ * and <code>setCoalescingLingerMillis</code>).
+ * 
  * @author Franck WOLFF
  */
 public class Producer extends AbstractTopicAgent {
+	
+	protected volatile boolean acknowledged = true;
 
 	public Producer(MessagingChannel channel, String destination, String topic) {
 		super(channel, destination, topic);
 	}
 
+	public boolean isAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * If false, futures returned by the publish methods complete as soon as messages are handed to
+	 * the transport, without waiting for the server acknowledge (a later failure is only logged).
+	 */
+	public void setAcknowledged(boolean acknowledged) {
+		this.acknowledged = acknowledged;
+	}
+
 	public ResponseMessageFuture publish(Object message, ResponseListener...listeners) {
 		PublishMessage publishMessage = new PublishMessage(destination, topic, message);
 		publishMessage.getHeaders().putAll(defaultHeaders);
+		publishMessage.setAcknowledged(acknowledged);
 		return channel.send(publishMessage, listeners);
 	}
 
@@ -45,6 +64,7 @@ public class Producer extends AbstractTopicAgent {
 		PublishMessage publishMessage = new PublishMessage(destination, topic, message);
 		publishMessage.getHeaders().putAll(defaultHeaders);
 		publishMessage.getHeaders().putAll(headers);
+		publishMessage.setAcknowledged(acknowledged);
 		return channel.send(publishMessage, listeners);
 	}
 }
@@ -22,12 +22,24 @@ package org.granite.client.messaging;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.granite.client.messaging.channel.AsyncToken;
 import org.granite.client.messaging.channel.Channel;
 import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.events.Event;
+import org.granite.client.messaging.events.FaultEvent;
+import org.granite.client.messaging.events.IssueEvent;
+import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.messages.RequestMessage.Priority;
 import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
 
 /**
  * @author Franck WOLFF
@@ -36,6 +48,12 @@ public class RemoteService {
 
 	private final Channel channel;
 	private final String id;
+	
+	private final Set<String> singleFlightMethods = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<InvocationKey, SingleFlight> singleFlights = new ConcurrentHashMap<InvocationKey, SingleFlight>();
+	private final AtomicLong singleFlightHits = new AtomicLong();
+	
+	private volatile ResultCache resultCache = null;
 
 	public RemoteService(Channel channel, String id) {
 		if (channel == null || id == null)
@@ -56,6 +74,153 @@ public class RemoteService {
 		return new RemoteServiceInvocation(this, method, parameters);
 	}
 	
+	/**
+	 * Enables single-flight mode for the given methods: an invocation of one of these methods with
+	 * parameters equal (see {@link Arrays#deepEquals(Object[], Object[])}) to those of a pending
+	 * invocation isn't sent, its listeners are notified of the pending invocation response instead.
+	 * Only use it with idempotent methods and note that cancelling any of the returned futures cancels
+	 * the shared invocation.
+	 */
+	public void addSingleFlightMethods(String... methods) {
+		singleFlightMethods.addAll(Arrays.asList(methods));
+	}
+	
+	public void removeSingleFlightMethods(String... methods) {
+		singleFlightMethods.removeAll(Arrays.asList(methods));
+	}
+	
+	public boolean isSingleFlightMethod(String method) {
+		return singleFlightMethods.contains(method);
+	}
+	
+	/**
+	 * Returns the number of invocations that were attached to a pending identical invocation.
+	 */
+	public long getSingleFlightHits() {
+		return singleFlightHits.get();
+	}
+	
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Sets the cache used to answer invocations of cacheable methods without sending them (see
+	 * {@link ResultCache#setTimeToLive(String, long, TimeUnit, Class...)}). Cache hits are dispatched to the
+	 * listeners of the invocation in the calling thread, with the same result data for all hits: it must not
+	 * be modified. A cache may be shared by several services.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	protected ResponseMessageFuture send(InvocationMessage request, ResponseListener[] listeners) {
+		final ResultCache resultCache = this.resultCache;
+		if (resultCache != null) {
+			final Object key = resultCache.getKey(id, request);
+			if (key != null) {
+				ResultMessage result = resultCache.get(key);
+				if (result != null) {
+					AsyncToken token = new AsyncToken(request, listeners);
+					token.dispatchResult((ResultMessage)result.copy(request.getId()));
+					return token;
+				}
+				
+				final long generation = resultCache.getGeneration();
+				ResponseListener[] allListeners = new ResponseListener[listeners.length + 1];
+				allListeners[0] = new ResultFaultIssuesResponseListener() {
+					@Override
+					public void onResult(ResultEvent event) {
+						resultCache.put(key, event.getResponse(), generation);
+					}
+
+					@Override
+					public void onFault(FaultEvent event) {
+					}
+
+					@Override
+					public void onIssue(IssueEvent event) {
+					}
+				};
+				System.arraycopy(listeners, 0, allListeners, 1, listeners.length);
+				listeners = allListeners;
+			}
+		}
+		
+		return sendSingleFlight(request, listeners);
+	}
+	
+	private ResponseMessageFuture sendSingleFlight(InvocationMessage request, ResponseListener[] listeners) {
+		if (request.getNext() != null || !isSingleFlightMethod(request.getMethod()))
+			return channel.send(request, listeners);
+		
+		final InvocationKey key = new InvocationKey(id, request.getMethod(), request.getParameters());
+		final SingleFlight flight = new SingleFlight();
+		
+		SingleFlight pending;
+		while ((pending = singleFlights.putIfAbsent(key, flight)) != null) {
+			AsyncToken token = pending.getToken();
+			if (token != null && token.addListeners(listeners)) {
+				singleFlightHits.incrementAndGet();
+				return token;
+			}
+			// The pending invocation is already done.
+			singleFlights.remove(key, pending);
+		}
+		
+		ResponseListener[] allListeners = new ResponseListener[listeners.length + 1];
+		allListeners[0] = new AllInOneResponseListener() {
+			@Override
+			public void onEvent(Event event) {
+				singleFlights.remove(key, flight);
+			}
+		};
+		System.arraycopy(listeners, 0, allListeners, 1, listeners.length);
+		
+		// Send without holding any lock: identical invocations wait for the token in SingleFlight.getToken().
+		ResponseMessageFuture future = null;
+		try {
+			future = channel.send(request, allListeners);
+		}
+		finally {
+			AsyncToken token = (future instanceof AsyncToken && !future.isDone() ? (AsyncToken)future : null);
+			flight.setToken(token);
+			if (token == null)
+				singleFlights.remove(key, flight);
+		}
+		return future;
+	}
+	
+	private static class SingleFlight {
+		
+		private boolean sent = false;
+		private AsyncToken token = null;
+		
+		public synchronized void setToken(AsyncToken token) {
+			this.token = token;
+			this.sent = true;
+			notifyAll();
+		}
+		
+		/**
+		 * Waits until the first invocation has been handed to the channel (not for its response).
+		 */
+		public synchronized AsyncToken getToken() {
+			boolean interrupted = false;
+			while (!sent) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+			return token;
+		}
+	}
+	
 	public static interface RemoteServiceInvocationChain {
 		
 		RemoteServiceInvocationChain appendInvocation(String method, Object...parameters);
@@ -102,6 +267,11 @@ public class RemoteService {
 			return this;
 		}
 		
+		public RemoteServiceInvocation setPriority(Priority priority) {
+			request.setPriority(priority);
+			return this;
+		}
+		
 		@Override
 		public RemoteServiceInvocationChain appendInvocation(String method, Object...parameters) {
 			InvocationMessage message = request;
@@ -114,7 +284,7 @@ public class RemoteService {
 		@Override
 		public ResponseMessageFuture invoke() {
 			request.setTimeToLive(timeToLive);
-			return remoteService.channel.send(request, listeners.toArray(new ResponseListener[listeners.size()]));
+			return remoteService.send(request, listeners.toArray(new ResponseListener[listeners.size()]));
 		}
 	}
 }
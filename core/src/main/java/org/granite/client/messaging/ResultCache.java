@@ -0,0 +1,279 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.persistence.Entity;
+
+/**
+ * Least recently used cache of invocation results, used by {@link RemoteService}s to answer
+ * invocations of idempotent methods without sending them. Only results of methods for which a time
+ * to live was set are cached, and results are invalidated when an entity class they depend on is
+ * modified: the entity classes declared with the time to live, and the entity classes of the result
+ * or of its elements. Results without any entity dependency (eg. an empty list or a count without
+ * declared dependencies) are never cached.
+ * 
+ * <p>A cached result is shared by all the invocations it answers: it must be treated as read-only.</p>
+ */
+public class ResultCache {
+
+	private final int maxEntries;
+	private final Map<String, Long> timesToLive = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Class<?>[]> declaredDependencies = new ConcurrentHashMap<String, Class<?>[]>();
+	private final LinkedHashMap<InvocationKey, CachedResult> entries;
+	
+	private long generation = 0L;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	
+	public ResultCache(int maxEntries) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be greater or equal to 1");
+		
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<InvocationKey, CachedResult>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InvocationKey, CachedResult> eldest) {
+				if (size() > ResultCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Enables caching of the results of the given method (or operation, see {@link #getName(InvocationMessage)}).
+	 * A time to live of 0 disables caching. The dependencies are the entity classes whose modification
+	 * invalidates these results, in addition to the entity classes found in the results.
+	 */
+	public void setTimeToLive(String name, long timeToLive, TimeUnit unit, Class<?>... dependencies) {
+		if (timeToLive < 0)
+			throw new IllegalArgumentException("timeToLive cannot be negative");
+		if (timeToLive == 0) {
+			timesToLive.remove(name);
+			declaredDependencies.remove(name);
+		}
+		else {
+			timesToLive.put(name, Long.valueOf(unit.toMillis(timeToLive)));
+			if (dependencies != null && dependencies.length > 0)
+				declaredDependencies.put(name, dependencies.clone());
+			else
+				declaredDependencies.remove(name);
+		}
+	}
+	
+	public long getTimeToLive(String name) {
+		Long timeToLive = timesToLive.get(name);
+		return (timeToLive != null ? timeToLive.longValue() : 0L);
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the cache key of the request, or null if its result can't be cached.
+	 */
+	public Object getKey(String serviceId, InvocationMessage request) {
+		if (request.getNext() != null)
+			return null;
+		String name = getName(request);
+		if (name == null || getTimeToLive(name) <= 0L)
+			return null;
+		return new InvocationKey(serviceId, name, getParameters(request));
+	}
+	
+	/**
+	 * Returns the cached result for this key, or null if there is no valid cached result.
+	 */
+	public ResultMessage get(Object key) {
+		synchronized (this) {
+			CachedResult entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiration > System.currentTimeMillis()) {
+					hits.incrementAndGet();
+					return entry.result;
+				}
+				entries.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Returns a token to be passed to {@link #put(Object, ResultMessage, long)} when the result is received:
+	 * results of invocations sent before an invalidation are ignored.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+	
+	public void put(Object key, ResultMessage result, long generation) {
+		if (!isCacheable(result))
+			return;
+		
+		InvocationKey invocationKey = (InvocationKey)key;
+		Set<Class<?>> dependencies = new HashSet<Class<?>>();
+		Class<?>[] declared = declaredDependencies.get(invocationKey.getName());
+		if (declared != null)
+			dependencies.addAll(Arrays.asList(declared));
+		collectDependencies(result.getData(), dependencies);
+		
+		// Nothing could ever invalidate this result.
+		if (dependencies.isEmpty())
+			return;
+		
+		long expiration = System.currentTimeMillis() + getTimeToLive(invocationKey.getName());
+		
+		synchronized (this) {
+			if (generation == this.generation)
+				entries.put(invocationKey, new CachedResult(result, dependencies, expiration));
+		}
+	}
+	
+	/**
+	 * Removes all results depending on the given class (or on one of its super classes or sub classes).
+	 */
+	public synchronized void invalidate(Class<?> entityClass) {
+		generation++;
+		
+		for (Iterator<CachedResult> i = entries.values().iterator(); i.hasNext(); ) {
+			for (Class<?> dependency : i.next().dependencies) {
+				if (dependency.isAssignableFrom(entityClass) || entityClass.isAssignableFrom(dependency)) {
+					i.remove();
+					invalidations.incrementAndGet();
+					break;
+				}
+			}
+		}
+	}
+	
+	public synchronized void clear() {
+		generation++;
+		
+		invalidations.addAndGet(entries.size());
+		entries.clear();
+	}
+	
+	/**
+	 * Returns the name under which results of this request are cached (the method name by default).
+	 */
+	protected String getName(InvocationMessage request) {
+		return request.getMethod();
+	}
+	
+	/**
+	 * Returns the parameters identifying the result of this request (the method parameters by default).
+	 */
+	protected Object[] getParameters(InvocationMessage request) {
+		return request.getParameters();
+	}
+	
+	protected boolean isCacheable(ResultMessage result) {
+		return true;
+	}
+	
+	/**
+	 * Collects the entity classes whose modification must invalidate a cached result: the class of the
+	 * result or, for collections, maps and arrays, the classes of their elements (values for maps).
+	 */
+	protected void collectDependencies(Object data, Set<Class<?>> dependencies) {
+		if (data == null)
+			return;
+		
+		if (data instanceof Collection<?>) {
+			for (Object element : (Collection<?>)data)
+				addDependency(element, dependencies);
+		}
+		else if (data instanceof Map<?, ?>) {
+			for (Object value : ((Map<?, ?>)data).values())
+				addDependency(value, dependencies);
+		}
+		else if (data instanceof Object[]) {
+			for (Object element : (Object[])data)
+				addDependency(element, dependencies);
+		}
+		else
+			addDependency(data, dependencies);
+	}
+	
+	private void addDependency(Object value, Set<Class<?>> dependencies) {
+		if (value != null && isEntity(value.getClass()))
+			dependencies.add(value.getClass());
+	}
+	
+	protected boolean isEntity(Class<?> cls) {
+		return cls.isAnnotationPresent(Entity.class);
+	}
+	
+	private static class CachedResult {
+		
+		public final ResultMessage result;
+		public final Set<Class<?>> dependencies;
+		public final long expiration;
+		
+		public CachedResult(ResultMessage result, Set<Class<?>> dependencies, long expiration) {
+			this.result = result;
+			this.dependencies = dependencies;
+			this.expiration = expiration;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.granite.client.messaging.channel.AsyncToken;
+import org.granite.client.messaging.channel.MessagingChannel;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.events.Event;
+import org.granite.client.messaging.events.FailureEvent;
+import org.granite.client.messaging.events.FaultEvent;
+import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.events.TimeoutEvent;
+import org.granite.client.messaging.messages.push.TopicMessage;
+import org.granite.client.messaging.messages.requests.SubscribeMessage;
+import org.granite.client.messaging.messages.requests.UnsubscribeMessage;
+import org.granite.client.messaging.messages.responses.FaultMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.logging.Logger;
+
+/**
+ * Shares server subscriptions between the consumers of a messaging channel: consumers with the
+ * same destination, topic, selector and default headers use a single server subscription, messages are passed to
+ * each of them locally and the server subscription is only removed when the last consumer
+ * unsubscribes. Consumers use the manager once it is set with
+ * {@link Consumer#setSubscriptionManager(SubscriptionManager)}.
+ */
+public class SubscriptionManager {
+	
+	private static final Logger log = Logger.getLogger(SubscriptionManager.class);
+
+	private final MessagingChannel channel;
+	private final Map<Object, SharedSubscription> subscriptions = new HashMap<Object, SharedSubscription>();
+	private final Map<Consumer, SharedSubscription> members = new IdentityHashMap<Consumer, SharedSubscription>();
+	
+	public SubscriptionManager(MessagingChannel channel) {
+		if (channel == null)
+			throw new NullPointerException("channel cannot be null");
+		this.channel = channel;
+	}
+
+	public MessagingChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * @return the number of server subscriptions in use.
+	 */
+	public synchronized int getServerSubscriptions() {
+		return subscriptions.size();
+	}
+	
+	/**
+	 * @return the number of consumers sharing server subscriptions.
+	 */
+	public synchronized int getLocalSubscriptions() {
+		return members.size();
+	}
+	
+	ResponseMessageFuture subscribe(Consumer consumer, ResponseListener...listeners) {
+		if (consumer.getChannel() != channel)
+			throw new IllegalArgumentException("Consumer doesn't use the channel of this manager: " + consumer);
+		
+		SubscribeMessage subscribeMessage = new SubscribeMessage(consumer.getDestination(), consumer.getTopic(), consumer.getSelector());
+		AsyncToken token = new AsyncToken(subscribeMessage, listeners);
+		
+		SharedSubscription subscription;
+		boolean subscribe = false;
+		
+		synchronized (this) {
+			if (members.containsKey(consumer))
+				throw new IllegalStateException("Consumer already subscribed: " + consumer);
+			
+			Object key = getKey(consumer);
+			subscription = subscriptions.get(key);
+			if (subscription == null) {
+				subscription = new SharedSubscription(key, consumer);
+				subscriptions.put(key, subscription);
+				subscribe = true;
+			}
+			members.put(consumer, subscription);
+			
+			subscription.consumers.add(consumer);
+			if (subscription.subscriptionId == null) {
+				subscription.pendingTokens.add(token);
+				subscription.closing = false;
+			}
+			else
+				consumer.setSubscriptionId(subscription.subscriptionId);
+		}
+		
+		if (subscribe)
+			subscription.master.subscribe(subscription);
+		else if (consumer.isSubscribed())
+			token.dispatchResult(new ResultMessage(null, token.getId(), consumer.getSubscriptionId()));
+		
+		return token;
+	}
+	
+	ResponseMessageFuture unsubscribe(Consumer consumer, ResponseListener...listeners) {
+		SharedSubscription subscription;
+		boolean unsubscribe = false;
+		
+		synchronized (this) {
+			subscription = members.remove(consumer);
+			if (subscription == null)
+				throw new IllegalStateException("Consumer not subscribed: " + consumer);
+			
+			subscription.consumers.remove(consumer);
+			consumer.setSubscriptionId(null);
+			
+			if (subscription.consumers.isEmpty()) {
+				if (subscription.subscriptionId != null) {
+					subscriptions.remove(subscription.key);
+					unsubscribe = true;
+				}
+				else // Unsubscribe when the pending subscription completes.
+					subscription.closing = true;
+			}
+		}
+		
+		if (unsubscribe)
+			return subscription.master.unsubscribe(listeners);
+		
+		AsyncToken token = new AsyncToken(new UnsubscribeMessage(consumer.getDestination(), consumer.getTopic(), null), listeners);
+		token.dispatchResult(new ResultMessage(null, token.getId(), null));
+		return token;
+	}
+	
+	/**
+	 * Returns the key of the server subscription of a consumer: consumers with equal keys share
+	 * the subscription of the first one, including its default headers.
+	 */
+	protected Object getKey(Consumer consumer) {
+		return Arrays.<Object>asList(
+			consumer.getDestination(),
+			consumer.getTopic(),
+			consumer.getSelector(),
+			new HashMap<String, Object>(consumer.getDefaultHeaders())
+		);
+	}
+	
+	private class SharedSubscription extends AllInOneResponseListener {
+		
+		final Object key;
+		final Consumer master;
+		final List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+		final List<AsyncToken> pendingTokens = new ArrayList<AsyncToken>();
+		String subscriptionId = null;
+		boolean closing = false;
+		
+		SharedSubscription(Object key, Consumer first) {
+			this.key = key;
+			this.master = new Consumer(channel, first.getDestination(), first.getTopic()) {
+				
+				@Override
+				public void onMessage(TopicMessage message) {
+					for (Consumer consumer : consumers)
+						consumer.onMessage(message);
+				}
+
+				@Override
+				public void onDisconnect() {
+					super.onDisconnect();
+					disconnected();
+				}
+			};
+			this.master.setSelector(first.getSelector());
+			this.master.getDefaultHeaders().putAll(first.getDefaultHeaders());
+		}
+
+		@Override
+		public void onEvent(Event event) {
+			List<AsyncToken> tokens;
+			boolean unsubscribe = false;
+			
+			synchronized (SubscriptionManager.this) {
+				tokens = new ArrayList<AsyncToken>(pendingTokens);
+				pendingTokens.clear();
+				
+				if (event.getType() == Event.Type.RESULT) {
+					subscriptionId = (String)((ResultEvent)event).getResult();
+					for (Consumer consumer : consumers)
+						consumer.setSubscriptionId(subscriptionId);
+					
+					if (closing && subscriptions.get(key) == this) {
+						subscriptions.remove(key);
+						unsubscribe = true;
+					}
+				}
+				else {
+					if (subscriptions.get(key) == this)
+						subscriptions.remove(key);
+					for (Consumer consumer : consumers)
+						members.remove(consumer);
+					consumers.clear();
+				}
+			}
+			
+			for (AsyncToken token : tokens) {
+				switch (event.getType()) {
+					case RESULT:
+						token.dispatchResult(new ResultMessage(null, token.getId(), subscriptionId));
+						break;
+					case FAULT:
+						token.dispatchFault((FaultMessage)((FaultEvent)event).getResponse().copy(token.getId()));
+						break;
+					case FAILURE:
+						token.dispatchFailure(((FailureEvent)event).getCause());
+						break;
+					case TIMEOUT:
+						token.dispatchTimeout(((TimeoutEvent)event).getTime());
+						break;
+					default:
+						token.dispatchCancelled();
+						break;
+				}
+			}
+			
+			if (unsubscribe)
+				master.unsubscribe();
+		}
+		
+		void disconnected() {
+			List<Consumer> disconnected;
+			
+			synchronized (SubscriptionManager.this) {
+				if (subscriptions.get(key) == this)
+					subscriptions.remove(key);
+				disconnected = new ArrayList<Consumer>(consumers);
+				for (Consumer consumer : disconnected)
+					members.remove(consumer);
+				consumers.clear();
+			}
+			
+			// Consumer listeners may call the manager back, don't hold its lock.
+			for (Consumer consumer : disconnected)
+				consumer.onDisconnect();
+			
+			log.debug("Shared subscription %s disconnected", key);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+/**
+ * Additive increase / multiplicative decrease concurrency limit: the limit grows by one after each
+ * successful call made while the channel was busy, and is multiplied by a backoff ratio after each
+ * dropped call.
+ */
+public class AIMDConcurrencyLimit implements ConcurrencyLimit {
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final double backoffRatio;
+	
+	private volatile int limit;
+	
+	public AIMDConcurrencyLimit() {
+		this(1, 1, 32, 0.9);
+	}
+	
+	public AIMDConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio) {
+		if (minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException("Illegal min/max limits: " + minLimit + "/" + maxLimit);
+		if (initialLimit < minLimit || initialLimit > maxLimit)
+			throw new IllegalArgumentException("initialLimit must be in [" + minLimit + ", " + maxLimit + "]");
+		if (backoffRatio <= 0.0 || backoffRatio >= 1.0)
+			throw new IllegalArgumentException("backoffRatio must be in ]0, 1[");
+		
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.backoffRatio = backoffRatio;
+		this.limit = initialLimit;
+	}
+
+	@Override
+	public int getLimit() {
+		return limit;
+	}
+
+	@Override
+	public void onSample(long rttNanos, int inFlight, boolean dropped) {
+		if (dropped)
+			limit = Math.max(minLimit, (int)(limit * backoffRatio));
+		else if (inFlight >= limit)
+			limit = Math.min(maxLimit, limit + 1);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "{limit=" + limit + ", min=" + minLimit + ", max=" + maxLimit + ", backoff=" + backoffRatio + "}";
+	}
+}
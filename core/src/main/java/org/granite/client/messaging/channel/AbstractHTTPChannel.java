@@ -22,37 +22,43 @@ package org.granite.client.messaging.channel;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.granite.client.messaging.AllInOneResponseListener;
 import org.granite.client.messaging.ResponseListener;
 import org.granite.client.messaging.ResponseListenerDispatcher;
+import org.granite.client.messaging.codec.MessagingCodec.ClientType;
+import org.granite.client.messaging.events.CancelledEvent;
 import org.granite.client.messaging.events.Event;
 import org.granite.client.messaging.events.Event.Type;
+import org.granite.client.messaging.events.FailureEvent;
+import org.granite.client.messaging.events.FaultEvent;
+import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.events.TimeoutEvent;
 import org.granite.client.messaging.messages.MessageChain;
 import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.RequestMessage.Priority;
 import org.granite.client.messaging.messages.ResponseMessage;
 import org.granite.client.messaging.messages.requests.LoginMessage;
 import org.granite.client.messaging.messages.requests.LogoutMessage;
 import org.granite.client.messaging.messages.requests.PingMessage;
 import org.granite.client.messaging.messages.responses.FaultMessage;
+import org.granite.client.messaging.messages.responses.FaultMessage.Code;
 import org.granite.client.messaging.messages.responses.ResultMessage;
 import org.granite.client.messaging.transport.Transport;
 import org.granite.client.messaging.transport.TransportFuture;
 import org.granite.client.messaging.transport.TransportMessage;
 import org.granite.client.messaging.transport.TransportStopListener;
+import org.granite.client.util.HashedWheelTimer;
 import org.granite.logging.Logger;
+import org.granite.util.PublicByteArrayOutputStream;
 
 /**
  * @author Franck WOLFF
@@ -61,18 +67,29 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 	
 	private static final Logger log = Logger.getLogger(AbstractHTTPChannel.class);
 	
-	private final BlockingQueue<AsyncToken> tokensQueue = new LinkedBlockingQueue<AsyncToken>();
+	private final PriorityTokenQueue tokensQueue = new PriorityTokenQueue();
 	private final ConcurrentMap<String, AsyncToken> tokensMap = new ConcurrentHashMap<String, AsyncToken>();
+	private final ConcurrentMap<String, AsyncToken[]> batchesMap = new ConcurrentHashMap<String, AsyncToken[]>();
+	private final ConcurrentMap<String, AsyncToken> writeFuturesMap = new ConcurrentHashMap<String, AsyncToken>();
 
 	private Thread senderThread = null;
-	private Semaphore connections;
-	private Timer timer = null;
+	private volatile ConcurrencyLimiter connections;
+	private final HashedWheelTimer timer = HashedWheelTimer.getDefault();
+	
+	// Ping or login request in progress.
+	private volatile Handshake handshake = null;
 	
 	protected volatile boolean pinged = false;
 	protected volatile boolean authenticated = false;
 	protected volatile int maxConcurrentRequests;
+	protected volatile ConcurrencyLimit concurrencyLimit = null;
+	protected volatile int interactiveReservedSlots = 0;
 	protected volatile long defaultTimeToLive = DEFAULT_TIME_TO_LIVE; // 1 mn.
 	
+	protected volatile int maxCoalescedRequests = 1; // no coalescing.
+	protected volatile int maxCoalescedBytes = 0; // no byte budget.
+	protected volatile long coalescingLingerMillis = 0L;
+	
 	public AbstractHTTPChannel(Transport transport, String id, URI uri, int maxConcurrentRequests) {
 		super(transport, id, uri);
 		
@@ -84,11 +101,32 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 	
 	protected abstract TransportMessage createTransportMessage(AsyncToken token) throws UnsupportedEncodingException;
 	
-	protected abstract ResponseMessage decodeResponse(InputStream is) throws IOException;
+	protected abstract ResponseMessage decodeResponse(TransportMessage message, InputStream is) throws IOException;
+	
+	/**
+	 * Returns true if the request held by this token may share a transport message with other
+	 * requests (see {@link #createTransportMessage(AsyncToken[])}).
+	 */
+	protected abstract boolean canCoalesce(AsyncToken token);
+	
+	/**
+	 * Creates a single transport message for several tokens. The id of the returned message must be
+	 * the id of the first token and responses must be returned in the same order as the tokens.
+	 */
+	protected abstract TransportMessage createTransportMessage(AsyncToken[] tokens) throws UnsupportedEncodingException;
 
-	protected boolean schedule(TimerTask timerTask, long delay) {
-		if (timer != null) {
-			timer.schedule(timerTask, delay);
+	/**
+	 * Returns true if the future returned for this request should complete as soon as the request
+	 * is handed to the transport, without waiting for the server response. The request still holds
+	 * its connection until the response arrives. Default implementation returns false.
+	 */
+	protected boolean completesOnWrite(RequestMessage request) {
+		return false;
+	}
+
+	protected boolean schedule(HashedWheelTimer.Task task, long delay) {
+		if (isStarted()) {
+			timer.schedule(task, delay);
 			return true;
 		}
 		return false;
@@ -110,6 +148,124 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 		return maxConcurrentRequests;
 	}
 
+	public ConcurrencyLimit getConcurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	/**
+	 * Sets the strategy deciding how many requests may be in flight (default is a fixed limit of
+	 * <code>maxConcurrentRequests</code>). The new strategy is used the next time the channel is started.
+	 */
+	public void setConcurrencyLimit(ConcurrencyLimit concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+	}
+	
+	/**
+	 * Returns the current concurrency limit, as adjusted by the concurrency limit strategy.
+	 */
+	public int getCurrentConcurrencyLimit() {
+		ConcurrencyLimiter connections = this.connections;
+		if (connections != null)
+			return connections.getLimit();
+		ConcurrencyLimit concurrencyLimit = this.concurrencyLimit;
+		return (concurrencyLimit != null ? concurrencyLimit.getLimit() : maxConcurrentRequests);
+	}
+	
+	/**
+	 * Returns the highest concurrency limit reached since the channel was started.
+	 */
+	public int getPeakConcurrencyLimit() {
+		ConcurrencyLimiter connections = this.connections;
+		return (connections != null ? connections.getPeakLimit() : getCurrentConcurrencyLimit());
+	}
+	
+	public int getInFlightRequests() {
+		ConcurrencyLimiter connections = this.connections;
+		return (connections != null ? connections.getInFlight() : 0);
+	}
+
+	public int getInteractiveReservedSlots() {
+		return interactiveReservedSlots;
+	}
+
+	/**
+	 * Sets the number of concurrency slots that only {@link Priority#INTERACTIVE} requests may use
+	 * (default is 0). At least one slot always remains available to other requests.
+	 */
+	public void setInteractiveReservedSlots(int interactiveReservedSlots) {
+		if (interactiveReservedSlots < 0)
+			throw new IllegalArgumentException("interactiveReservedSlots cannot be negative");
+		this.interactiveReservedSlots = interactiveReservedSlots;
+	}
+	
+	public int getPriorityWeight(Priority priority) {
+		return tokensQueue.getWeight(priority);
+	}
+
+	/**
+	 * Sets the share of queued requests of the given priority that are sent when requests of other
+	 * priorities are also waiting (defaults are 8 for interactive, 4 for normal and 1 for background).
+	 */
+	public void setPriorityWeight(Priority priority, int weight) {
+		tokensQueue.setWeight(priority, weight);
+	}
+	
+	public int getQueuedRequests(Priority priority) {
+		return tokensQueue.size(priority);
+	}
+	
+	public long getAverageQueueWaitMillis(Priority priority) {
+		return tokensQueue.getAverageWaitMillis(priority);
+	}
+	
+	public long getMaxQueueWaitMillis(Priority priority) {
+		return tokensQueue.getMaxWaitMillis(priority);
+	}
+
+	public int getMaxCoalescedRequests() {
+		return maxCoalescedRequests;
+	}
+
+	/**
+	 * Sets the maximum number of queued requests that can be sent together in a single transport
+	 * message. A value of 1 (the default) disables coalescing.
+	 */
+	public void setMaxCoalescedRequests(int maxCoalescedRequests) {
+		if (maxCoalescedRequests < 1)
+			throw new IllegalArgumentException("maxCoalescedRequests must be greater or equal to 1");
+		this.maxCoalescedRequests = maxCoalescedRequests;
+	}
+
+	public int getMaxCoalescedBytes() {
+		return maxCoalescedBytes;
+	}
+
+	/**
+	 * Sets the maximum encoded size of a coalesced transport message (0, the default, means no limit).
+	 * When this limit is set, a coalesced message is encoded by the sender thread and its content is
+	 * reused by the transport. It is only encoded again if it exceeds the limit, without the requests
+	 * put back in the queue.
+	 */
+	public void setMaxCoalescedBytes(int maxCoalescedBytes) {
+		if (maxCoalescedBytes < 0)
+			throw new IllegalArgumentException("maxCoalescedBytes cannot be negative");
+		this.maxCoalescedBytes = maxCoalescedBytes;
+	}
+
+	public long getCoalescingLingerMillis() {
+		return coalescingLingerMillis;
+	}
+
+	/**
+	 * Sets how long the sender may wait for other requests to join a coalesced transport message
+	 * (0, the default, means that only already queued requests are coalesced).
+	 */
+	public void setCoalescingLingerMillis(long coalescingLingerMillis) {
+		if (coalescingLingerMillis < 0L)
+			throw new IllegalArgumentException("coalescingLingerMillis cannot be negative");
+		this.coalescingLingerMillis = coalescingLingerMillis;
+	}
+
 	@Override
 	public void onStop(Transport transport) {
 		stop();
@@ -121,8 +277,10 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 			log.info("Starting channel %s...", id);
 			senderThread = new Thread(this);
 			try {
-				timer = new Timer(id + "_timer", true);
-				connections = new Semaphore(maxConcurrentRequests);
+				ConcurrencyLimit concurrencyLimit = this.concurrencyLimit;
+				if (concurrencyLimit == null)
+					concurrencyLimit = new FixedConcurrencyLimit(maxConcurrentRequests);
+				connections = new ConcurrencyLimiter(concurrencyLimit);
 				senderThread.start();
 				
 				transport.addStopListener(this);
@@ -130,10 +288,6 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 				log.info("Channel %s started.", id);
 			}
 			catch (Exception e) {
-				if (timer != null) {
-					timer.cancel();
-					timer = null;
-				}
 				connections = null;
 				senderThread = null;
 				log.error(e, "Channel %s failed to start.", id);
@@ -153,22 +307,13 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 		if (senderThread != null) {
 			log.info("Stopping channel %s...", id);
 			
-			if (timer != null) {
-				try {
-					timer.cancel();
-				}
-				catch (Exception e) {
-					log.error(e, "Channel %s timer failed to stop.", id);
-				}
-				finally {
-					timer = null;
-				}
-			}
-			
 			connections = null;
 			
 			tokensMap.clear();
+			batchesMap.clear();
+			writeFuturesMap.clear();
 			tokensQueue.clear();
+			handshake = null;
 			
 			Thread thread = this.senderThread;
 			senderThread = null;
@@ -188,30 +333,34 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 
 		while (!Thread.interrupted()) {
 			try {
-				AsyncToken token = tokensQueue.take();
+				AsyncToken token = tokensQueue.take(connections, interactiveReservedSlots);
+				
+				// A ping or login request is in progress: the token will be released (or will fail) with
+				// all other waiting tokens when the handshake completes.
+				Handshake handshake = this.handshake;
+				if (handshake != null && handshake.addDependentToken(token))
+					continue;
 				
 				if (token.isDone())
 					continue;
 
 				if (!pinged) {
-					ResultMessage result = sendBlockingToken(new PingMessage(clientId), token);
-					if (result == null)
-						continue;
-					clientId = result.getClientId();
-					pinged = true;
+					startHandshake(new PingMessage(clientId), token);
+					continue;
 				}
 
 				if (!authenticated) {
 					Credentials credentials = this.credentials;
 					if (credentials != null) {
-						ResultMessage result = sendBlockingToken(new LoginMessage(clientId, credentials), token);
-						if (result == null)
-							continue;
-						authenticated = true;
+						startHandshake(new LoginMessage(clientId, credentials), token);
+						continue;
 					}
 				}
 				
-				sendToken(token);
+				if (maxCoalescedRequests > 1 && canCoalesce(token))
+					sendCoalesced(token);
+				else
+					sendToken(token);
 			}
 			catch (InterruptedException e) {
 				log.info("Channel %s stopped.", id);
@@ -223,114 +372,191 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 		}
 	}
 	
-	private ResultMessage sendBlockingToken(RequestMessage request, AsyncToken dependentToken) {
+	private void startHandshake(RequestMessage request, AsyncToken dependentToken) {
 		
-		// Make this blocking request share the timeout/timeToLive values of the dependent token.
+		// Make this handshake request share the timeout/timeToLive values of the dependent token.
 		request.setTimestamp(dependentToken.getRequest().getTimestamp());
 		request.setTimeToLive(dependentToken.getRequest().getTimeToLive());
+		request.setPriority(Priority.INTERACTIVE);
+		
+		Handshake handshake = new Handshake(dependentToken);
+		AsyncToken handshakeToken = new AsyncToken(request, handshake);
+		this.handshake = handshake;
 		
-		// Create the blocking token and schedule it with the dependent token timeout.
-		AsyncToken blockingToken = new AsyncToken(request);
+		// Schedule the handshake token with the dependent token timeout.
 		try {
-			timer.schedule(blockingToken, blockingToken.getRequest().getRemainingTimeToLive());
+			timer.schedule(handshakeToken, handshakeToken.getRequest().getRemainingTimeToLive());
 		}
 		catch (IllegalArgumentException e) {
-			dependentToken.dispatchTimeout(System.currentTimeMillis());
-			return null;
+			handshakeToken.dispatchTimeout(System.currentTimeMillis());
+			return;
 		}
 		catch (Exception e) {
-			dependentToken.dispatchFailure(e);
-			return null;
+			handshakeToken.dispatchFailure(e);
+			return;
 		}
 		
-		// Try to send the blocking token (can block if the connections semaphore can't be acquired
-		// immediately).
-		try {
-			if (!sendToken(blockingToken))
-				return null;
-		}
-		catch (Exception e) {
-			dependentToken.dispatchFailure(e);
-			return null;
-		}
+		// Send the handshake token without waiting for the response (can block if the connections semaphore
+		// can't be acquired immediately). Any failure is reported to the handshake listener.
+		sendToken(handshakeToken);
+	}
+	
+	private void sendCoalesced(AsyncToken first) throws InterruptedException, UnsupportedEncodingException {
+		final int maxRequests = maxCoalescedRequests;
+		final int maxBytes = maxCoalescedBytes;
 		
-		// Block until we get a server response (result or fault), a cancellation (unlikely), a timeout
-		// or any other execution exception.
-		try {
-			ResponseMessage response = blockingToken.get();
+		List<AsyncToken> batch = new ArrayList<AsyncToken>(maxRequests);
+		batch.add(first);
+		
+		long deadline = System.currentTimeMillis() + coalescingLingerMillis;
+		
+		while (batch.size() < maxRequests) {
+			long linger = deadline - System.currentTimeMillis();
+			AsyncToken token = tokensQueue.poll(linger);
+			if (token == null)
+				break;
 			
-			// Request was successful, return a non-null result. 
-			if (response instanceof ResultMessage)
-				return (ResultMessage)response;
+			if (token.isDone())
+				continue;
 			
-			if (response instanceof FaultMessage) {
-				FaultMessage faultMessage = (FaultMessage)response.copy(dependentToken.getRequest().getId());
-				if (dependentToken.getRequest() instanceof MessageChain) {
-					ResponseMessage nextResponse = faultMessage;
-					for (MessageChain<?> nextRequest = ((MessageChain<?>)dependentToken.getRequest()).getNext(); nextRequest != null; nextRequest = nextRequest.getNext()) {
-						nextResponse.setNext(response.copy(nextRequest.getId()));
-						nextResponse = nextResponse.getNext();
-					}
-				}
-				dependentToken.dispatchFault(faultMessage);
+			// Put the token back in front of its lane if it can't join this batch.
+			if (!canCoalesce(token)) {
+				tokensQueue.addFirst(token);
+				break;
 			}
-			else
-				throw new RuntimeException("Unknow response message type: " + response);
 			
+			batch.add(token);
 		}
-		catch (InterruptedException e) {
-			dependentToken.dispatchFailure(e);
-		}
-		catch (TimeoutException e) {
-			dependentToken.dispatchTimeout(System.currentTimeMillis());
+		
+		EncodedTransportMessage encoded = null;
+		if (maxBytes > 0) {
+			while (batch.size() > 1) {
+				encoded = encode(batch);
+				if (encoded == null || encoded.size() <= maxBytes)
+					break;
+				
+				// Too large: keep the share of requests that should fit, put the others back in order.
+				int keep = Math.max(1, (int)((long)batch.size() * maxBytes / encoded.size()));
+				if (keep == batch.size())
+					keep--;
+				for (int i = batch.size() - 1; i >= keep; i--)
+					tokensQueue.addFirst(batch.remove(i));
+				encoded = null;
+			}
 		}
-		catch (ExecutionException e) {
-			if (e.getCause() instanceof Exception)
-				dependentToken.dispatchFailure((Exception)e.getCause());
-			else
-				dependentToken.dispatchFailure(e);
+		
+		sendTokens(batch.toArray(new AsyncToken[batch.size()]), encoded);
+	}
+	
+	private EncodedTransportMessage encode(List<AsyncToken> batch) throws UnsupportedEncodingException {
+		AsyncToken[] tokens = batch.toArray(new AsyncToken[batch.size()]);
+		for (AsyncToken token : tokens)
+			token.getRequest().setClientId(clientId);
+		
+		TransportMessage message = createTransportMessage(tokens);
+		PublicByteArrayOutputStream os = new PublicByteArrayOutputStream(512);
+		try {
+			message.encode(os);
 		}
-		catch (Exception e) {
-			dependentToken.dispatchFailure(e);
+		catch (IOException e) {
+			// Let the transport report the error when it encodes the message.
+			log.debug(e, "Could not encode coalesced message: %s", message.getId());
+			return null;
 		}
-		
-		return null;
+		return new EncodedTransportMessage(message, os);
 	}
 	
 	private boolean sendToken(final AsyncToken token) {
+		return sendTokens(new AsyncToken[]{token}, null);
+	}
+	
+	private boolean sendTokens(final AsyncToken[] tokens, TransportMessage encoded) {
 
+		// The channel may be stopped concurrently.
+		final ConcurrencyLimiter connections = this.connections;
+		
 		boolean releaseConnections = false;
+		AsyncToken[] sentTokens = null;
 		try {
-		    // Block until a connection is available.
-			if (!connections.tryAcquire(token.getRequest().getRemainingTimeToLive(), TimeUnit.MILLISECONDS)) {
-				token.dispatchTimeout(System.currentTimeMillis());
+			if (connections == null)
+				throw new IllegalStateException("Channel " + id + " is stopped");
+			
+			long timeToLive = 0L;
+			for (AsyncToken token : tokens)
+				timeToLive = Math.max(timeToLive, token.getRequest().getRemainingTimeToLive());
+			
+		    // Block until a connection is available (tokens are taken from the queue only when a slot is
+			// available for their priority, so this normally doesn't block).
+			int reservedSlots = (tokens[0].getRequest().getPriority() == Priority.INTERACTIVE ? 0 : interactiveReservedSlots);
+			int inFlight = connections.acquire(timeToLive, reservedSlots);
+			if (inFlight == 0) {
+				long millis = System.currentTimeMillis();
+				for (AsyncToken token : tokens)
+					token.dispatchTimeout(millis);
 				return false;
 			}
 
-			// Semaphore was successfully acquired, we must release it in the finally block unless we succeed in
+			// A connection was successfully acquired, we must release it in the finally block unless we succeed in
 			// sending the data (see below).
 			releaseConnections = true;
 
-		    // Check if the token has already received an event (likely a timeout or a cancellation).
-			if (token.isDone())
+		    // Check if the tokens have already received an event (likely a timeout or a cancellation).
+			List<AsyncToken> pendingTokens = new ArrayList<AsyncToken>(tokens.length);
+			for (AsyncToken token : tokens) {
+				if (token.isDone())
+					continue;
+				
+				// Don't send a request completing on write if its future was cancelled meanwhile.
+				AsyncToken writeFuture = writeFuturesMap.get(token.getId());
+				if (writeFuture != null && writeFuture.isDone()) {
+					token.dispatchCancelled();
+					continue;
+				}
+				
+				pendingTokens.add(token);
+			}
+			if (pendingTokens.isEmpty())
 				return false;
+			sentTokens = pendingTokens.toArray(new AsyncToken[pendingTokens.size()]);
 
-			// Make sure we have set a clientId (can be null for ping message).
-			token.getRequest().setClientId(clientId);
+			for (AsyncToken token : sentTokens) {
+				// Make sure we have set a clientId (can be null for ping message).
+				token.getRequest().setClientId(clientId);
+				
+			    // Add the token to active tokens map.
+			    if (tokensMap.putIfAbsent(token.getId(), token) != null)
+					throw new RuntimeException("MessageId isn't unique: " + token.getId());
+			}
 			
-		    // Add the token to active tokens map.
-		    if (tokensMap.putIfAbsent(token.getId(), token) != null)
-				throw new RuntimeException("MessageId isn't unique: " + token.getId());
+			// Transport errors and cancellations are reported with the id of the first token only.
+			if (sentTokens.length > 1)
+				batchesMap.put(sentTokens[0].getId(), sentTokens);
 
 	    	// Actually send the message content.
-		    TransportFuture transportFuture = transport.send(this, createTransportMessage(token));
+			long start = System.nanoTime();
+		    // The batch content may already be encoded (see sendCoalesced), unless some of its tokens are done.
+		    TransportMessage message = (encoded != null && sentTokens.length == tokens.length ? encoded : createTransportMessage(sentTokens));
+		    TransportFuture transportFuture = transport.send(this, message);
+		    
+		    // Create and try to set a channel listener for each token: if no event has been dispatched for this token
+		    // (tokenEvent == null), the listener will be called on the next event. Otherwise, we just call the listener
+		    // immediately. The connection is released when all tokens sharing the transport message are done.
+		    TransportCall call = new TransportCall(sentTokens[0].getId(), sentTokens.length, batchesMap, transportFuture, connections, tokensQueue, start, inFlight);
+		    for (AsyncToken token : sentTokens) {
+			    ResponseListener channelListener = new ChannelResponseListener(token.getId(), tokensMap, call);
+			    Event tokenEvent = token.setChannelListener(channelListener);
+			    if (tokenEvent != null)
+					ResponseListenerDispatcher.dispatch(channelListener, tokenEvent);
+		    }
 		    
-		    // Create and try to set a channel listener: if no event has been dispatched for this token (tokenEvent == null),
-		    // the listener will be called on the next event. Otherwise, we just call the listener immediately.
-		    ResponseListener channelListener = new ChannelResponseListener(token.getId(), tokensMap, transportFuture, connections);
-		    Event tokenEvent = token.setChannelListener(channelListener);
-		    if (tokenEvent != null)
-				ResponseListenerDispatcher.dispatch(channelListener, tokenEvent);
+		    // Complete the futures of requests that don't wait for the server response.
+		    if (!writeFuturesMap.isEmpty()) {
+			    for (AsyncToken token : sentTokens) {
+			    	AsyncToken writeFuture = writeFuturesMap.remove(token.getId());
+			    	if (writeFuture != null)
+			    		writeFuture.dispatchResult(new ResultMessage(clientId, token.getId(), null));
+			    }
+		    }
 		    
 		    // Message was sent and we were able to handle everything ourself.
 		    releaseConnections = false;
@@ -338,10 +564,12 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 		    return true;
 		}
 		catch (Exception e) {
-			tokensMap.remove(token.getId());
-			token.dispatchFailure(e);			
-			if (timer != null)
-				timer.purge();	// Must purge to cleanup timer references to AsyncToken
+			AsyncToken[] failedTokens = (sentTokens != null ? sentTokens : tokens);
+			batchesMap.remove(failedTokens[0].getId());
+			for (AsyncToken token : failedTokens) {
+				tokensMap.remove(token.getId());
+				token.dispatchFailure(e);
+			}
 			return false;
 		}
 		finally {
@@ -365,6 +593,13 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 			throw new RuntimeException("Channel not started");
 		
 		AsyncToken token = new AsyncToken(request, listeners);
+		AsyncToken future = token;
+		
+		// The returned future completes on write, the queued token follows the server response.
+		if (completesOnWrite(request)) {
+			token = new AsyncToken(request, new WriteFutureListener(future));
+			writeFuturesMap.put(token.getId(), future);
+		}
 
 		request.setTimestamp(System.currentTimeMillis());
 		if (request.getTimeToLive() <= 0L)
@@ -380,7 +615,7 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 			return new ImmediateFailureResponseMessageFuture(e);
 		}
 		
-		return token;
+		return future;
 	}
 	
     @Override
@@ -391,64 +626,322 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 	}
 
 	@Override
-	public void onMessage(InputStream is) {
+	public void onMessage(TransportMessage message, InputStream is) {
 		try {
-			ResponseMessage response = decodeResponse(is);
+			ResponseMessage response = decodeResponse(message, is);
 			
 			if (response != null) {
 				
-				AsyncToken token = tokensMap.remove(response.getCorrelationId());
-				if (token == null) {
-					log.warn("Unknown correlation id: %s", response.getCorrelationId());
-					return;
-				}
+				// A coalesced transport message gets one response chain for all its tokens, split it.
+				AsyncToken[] batch = batchesMap.remove(response.getCorrelationId());
 				
-				switch (response.getType()) {
-					case RESULT:
-						token.dispatchResult((ResultMessage)response);
-						break;
-					case FAULT:
-					    FaultMessage faultMessage = (FaultMessage)response;
-					    if (isAuthenticated() && faultMessage.getCode() == FaultMessage.Code.NOT_LOGGED_IN || faultMessage.getCode() == FaultMessage.Code.SESSION_EXPIRED) {
-					        authenticated = false;
-					        credentials = null;
-					    }
-					    
-						token.dispatchFault((FaultMessage)response);
-						break;
-					default:
-						token.dispatchFailure(new RuntimeException("Unknown message type: " + response));
-						break;
+				while (response != null) {
+					AsyncToken token = tokensMap.remove(response.getCorrelationId());
+					
+					ResponseMessage last = response;
+					if (token != null) {
+						for (int count = countRequests(token.getRequest()); count > 1 && last.getNext() != null; count--)
+							last = last.getNext();
+					}
+					else {
+						log.warn("Unknown correlation id: %s", response.getCorrelationId());
+						while (last.getNext() != null && !tokensMap.containsKey(last.getNext().getCorrelationId()))
+							last = last.getNext();
+					}
+					
+					ResponseMessage next = last.getNext();
+					if (next != null)
+						last.setNext(null);
+					
+					if (token != null)
+						dispatchResponse(token, response);
+					
+					response = next;
 				}
 				
-				if (timer != null)
-					timer.purge();	// Must purge to cleanup timer references to AsyncToken
+				if (batch != null) {
+					for (AsyncToken token : batch) {
+						if (tokensMap.remove(token.getId()) != null)
+							token.dispatchFailure(new RuntimeException("No response for coalesced request: " + token.getId()));
+					}
+				}
 			}
 		}
 		catch (Exception e) {
 			log.error(e, "Could not deserialize or dispatch incoming messages");
 		}
 	}
+	
+	private void dispatchResponse(AsyncToken token, ResponseMessage response) {
+		switch (response.getType()) {
+			case RESULT:
+				token.dispatchResult((ResultMessage)response);
+				break;
+			case FAULT:
+			    FaultMessage faultMessage = (FaultMessage)response;
+			    if (isAuthenticated() && faultMessage.getCode() == FaultMessage.Code.NOT_LOGGED_IN || faultMessage.getCode() == FaultMessage.Code.SESSION_EXPIRED) {
+			        authenticated = false;
+			        credentials = null;
+			    }
+			    
+				token.dispatchFault((FaultMessage)response);
+				break;
+			default:
+				token.dispatchFailure(new RuntimeException("Unknown message type: " + response));
+				break;
+		}
+	}
+	
+	private static int countRequests(RequestMessage request) {
+		if (!(request instanceof MessageChain))
+			return 1;
+		int count = 0;
+		for (MessageChain<?> next = (MessageChain<?>)request; next != null; next = next.getNext())
+			count++;
+		return count;
+	}
 
 	@Override
 	public void onError(TransportMessage message, Exception e) {
 		if (message != null) {
-			AsyncToken token = tokensMap.remove(message.getId());
-			if (token != null) {
-				token.dispatchFailure(e);
-				if (timer != null)
-					timer.purge();	// Must purge to cleanup timer references to AsyncToken
+			AsyncToken[] batch = batchesMap.remove(message.getId());
+			if (batch == null) {
+				AsyncToken token = tokensMap.get(message.getId());
+				batch = (token != null ? new AsyncToken[]{token} : new AsyncToken[0]);
+			}
+			
+			for (AsyncToken token : batch) {
+				if (tokensMap.remove(token.getId()) != null)
+					token.dispatchFailure(e);
 			}
 		}
 	}
 
 	@Override
 	public void onCancelled(TransportMessage message) {
-		AsyncToken token = tokensMap.remove(message.getId());
-		if (token != null) {
-			token.dispatchCancelled();
-			if (timer != null)
-				timer.purge();	// Must purge to cleanup timer references to AsyncToken
+		AsyncToken[] batch = batchesMap.remove(message.getId());
+		if (batch == null) {
+			AsyncToken token = tokensMap.get(message.getId());
+			batch = (token != null ? new AsyncToken[]{token} : new AsyncToken[0]);
+		}
+		
+		for (AsyncToken token : batch) {
+			if (tokensMap.remove(token.getId()) != null)
+				token.dispatchCancelled();
+		}
+	}
+	
+	private class Handshake implements ResponseListener {
+		
+		private List<AsyncToken> dependentTokens = new ArrayList<AsyncToken>();
+		private boolean released = false;
+		
+		public Handshake(AsyncToken dependentToken) {
+			dependentTokens.add(dependentToken);
+		}
+		
+		/**
+		 * Called by the sender thread only. Returns false if the token must be sent (or failed) by the caller.
+		 */
+		public synchronized boolean addDependentToken(AsyncToken token) {
+			if (dependentTokens == null)
+				return false;
+			
+			if (!released) {
+				dependentTokens.add(token);
+				return true;
+			}
+			
+			// The handshake succeeded: the first dependent token was put back in front of the queue and
+			// the sender thread, the only one taking tokens, puts the others back behind it. A token
+			// taken before the first one was put back goes after all dependent tokens.
+			List<AsyncToken> tokens = complete();
+			
+			if (token == tokens.get(0)) {
+				for (int i = tokens.size() - 1; i > 0; i--)
+					tokensQueue.addFirst(tokens.get(i));
+				return false;
+			}
+			
+			tokensQueue.remove(tokens.get(0));
+			tokensQueue.addFirst(token);
+			for (int i = tokens.size() - 1; i >= 0; i--)
+				tokensQueue.addFirst(tokens.get(i));
+			return true;
+		}
+		
+		private synchronized List<AsyncToken> complete() {
+			List<AsyncToken> tokens = dependentTokens;
+			dependentTokens = null;
+			if (handshake == this)
+				handshake = null;
+			return tokens;
+		}
+
+		@Override
+		public void onResult(ResultEvent event) {
+			switch (event.getRequest().getType()) {
+				case PING:
+					clientId = event.getResponse().getClientId();
+					pinged = true;
+					break;
+				case LOGIN:
+					authenticated = true;
+					break;
+				default:
+					break;
+			}
+			
+			// Only wake up the sender thread with the first dependent token: putting all of them back from
+			// here would let the sender thread take them out of order.
+			synchronized (this) {
+				if (dependentTokens != null && !released) {
+					released = true;
+					tokensQueue.addFirst(dependentTokens.get(0));
+				}
+			}
+		}
+
+		@Override
+		public void onFault(FaultEvent event) {
+			for (AsyncToken dependentToken : complete()) {
+				FaultMessage faultMessage = (FaultMessage)event.getResponse().copy(dependentToken.getRequest().getId());
+				if (dependentToken.getRequest() instanceof MessageChain) {
+					ResponseMessage nextResponse = faultMessage;
+					for (MessageChain<?> nextRequest = ((MessageChain<?>)dependentToken.getRequest()).getNext(); nextRequest != null; nextRequest = nextRequest.getNext()) {
+						nextResponse.setNext(event.getResponse().copy(nextRequest.getId()));
+						nextResponse = nextResponse.getNext();
+					}
+				}
+				dependentToken.dispatchFault(faultMessage);
+			}
+		}
+
+		@Override
+		public void onFailure(FailureEvent event) {
+			for (AsyncToken dependentToken : complete())
+				dependentToken.dispatchFailure(event.getCause());
+		}
+
+		@Override
+		public void onTimeout(TimeoutEvent event) {
+			long millis = System.currentTimeMillis();
+			for (AsyncToken dependentToken : complete())
+				dependentToken.dispatchTimeout(millis);
+		}
+
+		@Override
+		public void onCancelled(CancelledEvent event) {
+			for (AsyncToken dependentToken : complete())
+				dependentToken.dispatchFailure(new InterruptedException(event.toString()));
+		}
+	}
+	
+	private class WriteFutureListener extends AllInOneResponseListener {
+		
+		private final AsyncToken future;
+		
+		public WriteFutureListener(AsyncToken future) {
+			this.future = future;
+		}
+
+		@Override
+		public void onEvent(Event event) {
+			
+			// The future is still pending if the request couldn't be sent.
+			if (writeFuturesMap.remove(future.getId()) != null) {
+				switch (event.getType()) {
+					case RESULT:
+						future.dispatchResult(((ResultEvent)event).getResponse());
+						break;
+					case FAULT:
+						future.dispatchFault(((FaultEvent)event).getResponse());
+						break;
+					case FAILURE:
+						future.dispatchFailure(((FailureEvent)event).getCause());
+						break;
+					case TIMEOUT:
+						future.dispatchTimeout(((TimeoutEvent)event).getTime());
+						break;
+					default:
+						future.dispatchCancelled();
+						break;
+				}
+			}
+			else if (event.getType() != Type.RESULT)
+				log.warn("Request completed on write got: %s", event);
+		}
+	}
+	
+	private static class TransportCall {
+		
+		private final String id;
+		private final AtomicInteger pendingTokens;
+		private final ConcurrentMap<String, AsyncToken[]> batchesMap;
+		private final TransportFuture transportFuture;
+		private final ConcurrencyLimiter connections;
+		private final PriorityTokenQueue tokensQueue;
+		private final long start;
+		private final int inFlight;
+		
+		private volatile boolean dropped = false;
+		private volatile boolean cancelled = false;
+		
+		public TransportCall(
+			String id,
+			int tokensCount,
+			ConcurrentMap<String, AsyncToken[]> batchesMap,
+			TransportFuture transportFuture,
+			ConcurrencyLimiter connections,
+			PriorityTokenQueue tokensQueue,
+			long start,
+			int inFlight) {
+			
+			this.id = id;
+			this.pendingTokens = new AtomicInteger(tokensCount);
+			this.batchesMap = batchesMap;
+			this.transportFuture = transportFuture;
+			this.connections = connections;
+			this.tokensQueue = tokensQueue;
+			this.start = start;
+			this.inFlight = inFlight;
+		}
+		
+		public void onTokenDone(Event event) {
+			switch (event.getType()) {
+				case TIMEOUT:
+				case FAILURE:
+					dropped = true;
+					break;
+				case FAULT:
+					if (((FaultEvent)event).getCode() == Code.SERVER_CALL_FAILED)
+						dropped = true;
+					break;
+				case CANCELLED:
+					cancelled = true;
+					break;
+				default:
+					break;
+			}
+			
+			if (pendingTokens.decrementAndGet() > 0)
+				return;
+			
+			try {
+				batchesMap.remove(id);
+				if (event.getType() == Type.TIMEOUT || event.getType() == Type.CANCELLED) {
+					if (transportFuture != null)
+						transportFuture.cancel();
+				}
+			}
+			finally {
+				// Cancellations tell nothing about the server load.
+				if (cancelled && !dropped)
+					connections.release();
+				else
+					connections.release(System.nanoTime() - start, inFlight, dropped);
+				tokensQueue.signal();
+			}
 		}
 	}
 	
@@ -456,33 +949,76 @@ public abstract class AbstractHTTPChannel extends AbstractChannel<Transport> imp
 		
 		private final String tokenId;
 		private final ConcurrentMap<String, AsyncToken> tokensMap;
-		private final TransportFuture transportFuture;
-		private final Semaphore connections;
+		private final TransportCall call;
 		
 		public ChannelResponseListener(
 			String tokenId,
 			ConcurrentMap<String, AsyncToken> tokensMap,
-			TransportFuture transportFuture,
-			Semaphore connections) {
+			TransportCall call) {
 
 			this.tokenId = tokenId;
 			this.tokensMap = tokensMap;
-			this.transportFuture = transportFuture;
-			this.connections = connections;
+			this.call = call;
 		}
 
 		@Override
 		public void onEvent(Event event) {
 			try {
 				tokensMap.remove(tokenId);
-				if (event.getType() == Type.TIMEOUT || event.getType() == Type.CANCELLED) {
-					if (transportFuture != null)
-						transportFuture.cancel();
-				}
 			}
 			finally {
-				connections.release();
+				call.onTokenDone(event);
 			}
 		}
-	} 
+	}
+	
+	private static class EncodedTransportMessage implements TransportMessage {
+		
+		private final TransportMessage message;
+		private final PublicByteArrayOutputStream content;
+		
+		public EncodedTransportMessage(TransportMessage message, PublicByteArrayOutputStream content) {
+			this.message = message;
+			this.content = content;
+		}
+		
+		public int size() {
+			return content.size();
+		}
+
+		@Override
+		public ClientType getClientType() {
+			return message.getClientType();
+		}
+
+		@Override
+		public String getId() {
+			return message.getId();
+		}
+
+		@Override
+		public boolean isConnect() {
+			return message.isConnect();
+		}
+
+		@Override
+		public String getClientId() {
+			return message.getClientId();
+		}
+
+		@Override
+		public String getSessionId() {
+			return message.getSessionId();
+		}
+
+		@Override
+		public String getContentType() {
+			return message.getContentType();
+		}
+
+		@Override
+		public void encode(OutputStream os) throws IOException {
+			os.write(content.getBytes(), 0, content.size());
+		}
+	}
 }
@@ -22,10 +22,12 @@ package org.granite.client.messaging.channel;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import org.granite.client.messaging.AllInOneResponseListener;
 import org.granite.client.messaging.ResponseListener;
 import org.granite.client.messaging.ResponseListenerDispatcher;
 import org.granite.client.messaging.events.CancelledEvent;
@@ -38,16 +40,18 @@ import org.granite.client.messaging.messages.RequestMessage;
 import org.granite.client.messaging.messages.ResponseMessage;
 import org.granite.client.messaging.messages.responses.FaultMessage;
 import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.util.HashedWheelTimer;
 
 /**
  * @author Franck WOLFF
  */
-public class AsyncToken extends TimerTask implements ResponseMessageFuture {
+public class AsyncToken extends HashedWheelTimer.Task implements ResponseMessageFuture {
 	
 	private final RequestMessage request;
 	private final List<ResponseListener> listeners = new ArrayList<ResponseListener>();
 	
 	private Event event = null;
+	private int stages = 0;
 	
 	private ResponseListener channelListener = null;
 	
@@ -81,6 +85,22 @@ public class AsyncToken extends TimerTask implements ResponseMessageFuture {
 		return request;
 	}
 	
+	/**
+	 * Adds listeners to this token, unless it has already received an event.
+	 * 
+	 * @return true if the listeners were added, false if this token is done.
+	 */
+	public synchronized boolean addListeners(ResponseListener... listeners) {
+		if (event != null)
+			return false;
+		for (ResponseListener listener : listeners) {
+			if (listener == null)
+				throw new NullPointerException("listeners cannot contain null values");
+			this.listeners.add(listener);
+		}
+		return true;
+	}
+	
 	public synchronized Event setChannelListener(ResponseListener channelListener) {
 		if (event == null)
 			this.channelListener = channelListener;
@@ -101,21 +121,81 @@ public class AsyncToken extends TimerTask implements ResponseMessageFuture {
 
 	@Override
 	public ResponseMessage get() throws InterruptedException, ExecutionException, TimeoutException {
+		Event event;
 		synchronized (this) {
-			if (event == null) {
-				try {
+			try {
+				while (this.event == null)
 					wait();
-				}
-				catch (InterruptedException e) {
-					if (dispatchCancelled())
-						throw e;
+			}
+			catch (InterruptedException e) {
+				if (dispatchCancelled())
+					throw e;
+			}
+			event = this.event;
+		}
+		
+		return ResponseListenerDispatcher.getResponseMessage(event);
+	}
+
+	@Override
+	public ResponseMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		Event event;
+		synchronized (this) {
+			long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+			try {
+				while (this.event == null) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0L)
+						throw new TimeoutException("No response after " + timeout + " " + unit + ": " + request.getId());
+					wait(wait);
 				}
 			}
+			catch (InterruptedException e) {
+				if (dispatchCancelled())
+					throw e;
+			}
+			event = this.event;
 		}
 		
 		return ResponseListenerDispatcher.getResponseMessage(event);
 	}
 
+	@Override
+	public ResponseStage<ResponseMessage> toStage() {
+		return toStage(null);
+	}
+
+	@Override
+	public ResponseStage<ResponseMessage> toStage(Executor executor) {
+		final DefaultResponseStage<ResponseMessage> stage = new DefaultResponseStage<ResponseMessage>(executor, this);
+		
+		Event event;
+		synchronized (this) {
+			stages++;
+			event = this.event;
+			if (event == null) {
+				listeners.add(new AllInOneResponseListener() {
+					@Override
+					public void onEvent(Event event) {
+						DefaultResponseStage.complete(stage, event);
+					}
+				});
+			}
+		}
+		
+		if (event != null)
+			DefaultResponseStage.complete(stage, event);
+		
+		return stage;
+	}
+	
+	/**
+	 * Returns true if the cancelled stage was the last one returned by {@link #toStage(Executor)}.
+	 */
+	synchronized boolean removeStage() {
+		return --stages <= 0;
+	}
+
 	@Override
 	public synchronized boolean isCancelled() {
 		return event instanceof CancelledEvent;
@@ -148,9 +228,10 @@ public class AsyncToken extends TimerTask implements ResponseMessageFuture {
 	
 	private boolean dispatch(Event event) {
 		
-		// Cancel this TimerTask.
+		// Cancel this timer task.
 		super.cancel();
 		
+		ResponseListener[] listeners;
 		synchronized (this) {
 			
 			// Make sure we didn't dispatch a previous event.
@@ -165,16 +246,17 @@ public class AsyncToken extends TimerTask implements ResponseMessageFuture {
 			
 			// Wake up all threads waiting on the get() method.
 			notifyAll();
+			
+			// Release references on listeners to help gc (listeners can't be added anymore).
+			channelListener = null;
+			listeners = this.listeners.toArray(new ResponseListener[this.listeners.size()]);
+			this.listeners.clear();
 		}
 
 		// Call all listeners.
 		for (ResponseListener listener : listeners)
 			ResponseListenerDispatcher.dispatch(listener, event);
 		
-		// Release references on listeners to help gc
-		channelListener = null;
-		listeners.clear();
-		
 		return true;
 	}
 
@@ -63,7 +63,7 @@ public interface Channel {
 	<D> D getTransportData();
 	void setTransportData(Object data);
 
-	void onMessage(InputStream is);
+	void onMessage(TransportMessage message, InputStream is);
 	void onError(TransportMessage message, Exception e);
 	void onCancelled(TransportMessage message);
 }
@@ -0,0 +1,42 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+/**
+ * Strategy deciding how many requests an {@link AbstractHTTPChannel} may have in flight.
+ * Implementations are notified of each completed call by a {@link ConcurrencyLimiter}, always
+ * with the limiter lock held, and may adjust their limit accordingly.
+ */
+public interface ConcurrencyLimit {
+
+	/**
+	 * Returns the current limit (always greater or equal to 1).
+	 */
+	int getLimit();
+	
+	/**
+	 * Called when a call completes.
+	 * 
+	 * @param rttNanos the round trip time of the call.
+	 * @param inFlight the number of calls in flight when this call was started (including itself).
+	 * @param dropped true if the call timed out, failed or got a <code>SERVER_CALL_FAILED</code> fault.
+	 */
+	void onSample(long rttNanos, int inFlight, boolean dropped);
+}
@@ -0,0 +1,110 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+/**
+ * Blocking gate on top of a {@link ConcurrencyLimit}: callers acquire a permit before sending a
+ * transport message and release it, with a latency sample, when all its responses are received.
+ */
+public class ConcurrencyLimiter {
+
+	private final ConcurrencyLimit limit;
+	
+	private int inFlight = 0;
+	private int peakLimit;
+	private int peakInFlight = 0;
+	
+	public ConcurrencyLimiter(ConcurrencyLimit limit) {
+		if (limit == null)
+			throw new NullPointerException("limit cannot be null");
+		this.limit = limit;
+		this.peakLimit = limit.getLimit();
+	}
+	
+	public ConcurrencyLimit getConcurrencyLimit() {
+		return limit;
+	}
+	
+	public int getLimit() {
+		return limit.getLimit();
+	}
+	
+	public synchronized int getPeakLimit() {
+		return peakLimit;
+	}
+	
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	public synchronized int getPeakInFlight() {
+		return peakInFlight;
+	}
+
+	/**
+	 * Waits at most <code>timeoutMillis</code> for a permit and returns the number of calls in flight
+	 * (including this one), or 0 if no permit could be acquired.
+	 */
+	public int acquire(long timeoutMillis) throws InterruptedException {
+		return acquire(timeoutMillis, 0);
+	}
+
+	/**
+	 * Same as {@link #acquire(long)}, but leaves <code>reservedSlots</code> permits available for other
+	 * callers (at least one permit can always be acquired).
+	 */
+	public synchronized int acquire(long timeoutMillis, int reservedSlots) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (inFlight >= Math.max(1, limit.getLimit() - reservedSlots)) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0L)
+				return 0;
+			wait(wait);
+		}
+		inFlight++;
+		if (inFlight > peakInFlight)
+			peakInFlight = inFlight;
+		return inFlight;
+	}
+	
+	/**
+	 * Releases a permit and updates the limit with the outcome of the call.
+	 */
+	public synchronized void release(long rttNanos, int inFlight, boolean dropped) {
+		limit.onSample(rttNanos, inFlight, dropped);
+		int newLimit = limit.getLimit();
+		if (newLimit > peakLimit)
+			peakLimit = newLimit;
+		release();
+	}
+	
+	/**
+	 * Releases a permit without updating the limit (eg. cancelled or unsent call).
+	 */
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "{limit=" + limit + ", inFlight=" + getInFlight() + ", peakLimit=" + getPeakLimit() + "}";
+	}
+}
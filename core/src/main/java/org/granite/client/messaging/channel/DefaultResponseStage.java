@@ -0,0 +1,354 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.granite.client.messaging.events.Event;
+import org.granite.client.messaging.events.FailureEvent;
+import org.granite.client.messaging.events.FaultEvent;
+import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.messages.ResponseMessage;
+import org.granite.logging.Logger;
+
+public class DefaultResponseStage<T> implements ResponseStage<T> {
+	
+	private static final Logger log = Logger.getLogger(DefaultResponseStage.class);
+
+	private final Executor executor;
+	private final Object source;
+	
+	private List<Runnable> callbacks = new ArrayList<Runnable>();
+	private boolean done = false;
+	private T value = null;
+	private Throwable error = null;
+	private int dependents = 0;
+	
+	private volatile ResponseStage<?> composed = null;
+	
+	public DefaultResponseStage() {
+		this(null, null);
+	}
+	
+	public DefaultResponseStage(Executor executor) {
+		this(executor, null);
+	}
+	
+	/**
+	 * @param source a {@link ResponseMessageFuture} or a {@link ResponseStage} cancelled with this stage,
+	 * 		unless other stages depend on it (may be null).
+	 */
+	protected DefaultResponseStage(Executor executor, Object source) {
+		this.executor = executor;
+		this.source = source;
+		
+		if (source instanceof DefaultResponseStage<?>)
+			((DefaultResponseStage<?>)source).addDependent();
+	}
+	
+	public Executor getExecutor() {
+		return executor;
+	}
+	
+	public boolean complete(T value) {
+		return setResult(value, null);
+	}
+	
+	public boolean completeExceptionally(Throwable error) {
+		if (error == null)
+			throw new NullPointerException("error cannot be null");
+		return setResult(null, error);
+	}
+	
+	static boolean complete(DefaultResponseStage<ResponseMessage> stage, Event event) {
+		switch (event.getType()) {
+			case RESULT:
+				return stage.complete(((ResultEvent)event).getResponse());
+			case FAULT:
+				return stage.completeExceptionally(new FaultMessageException(((FaultEvent)event).getResponse()));
+			case FAILURE:
+				return stage.completeExceptionally(((FailureEvent)event).getCause());
+			case TIMEOUT:
+				return stage.completeExceptionally(new TimeoutException(event.toString()));
+			case CANCELLED:
+				return stage.completeExceptionally(new CancellationException(event.toString()));
+			default:
+				return stage.completeExceptionally(new RuntimeException("Unknown event type: " + event));
+		}
+	}
+	
+	private boolean setResult(T value, Throwable error) {
+		List<Runnable> callbacks;
+		synchronized (this) {
+			if (done)
+				return false;
+			
+			this.done = true;
+			this.value = value;
+			this.error = error;
+			
+			callbacks = this.callbacks;
+			this.callbacks = null;
+			
+			notifyAll();
+		}
+		
+		for (Runnable callback : callbacks)
+			execute(callback);
+		
+		return true;
+	}
+	
+	private void onDone(Runnable callback) {
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return;
+			}
+		}
+		execute(callback);
+	}
+	
+	private void execute(Runnable callback) {
+		if (executor != null) {
+			try {
+				executor.execute(callback);
+				return;
+			}
+			catch (RejectedExecutionException e) {
+				log.warn(e, "Executor %s rejected callback, running it in the current thread", executor);
+			}
+		}
+		callback.run();
+	}
+	
+	private synchronized void addDependent() {
+		dependents++;
+	}
+	
+	/**
+	 * Returns true if the cancelled dependent stage was the last one.
+	 */
+	private synchronized boolean removeDependent() {
+		return --dependents <= 0;
+	}
+	
+	private synchronized T getValue() {
+		return value;
+	}
+	
+	private synchronized Throwable getError() {
+		return error;
+	}
+
+	@Override
+	public <U> ResponseStage<U> thenApply(final Function<? super T, ? extends U> function) {
+		final DefaultResponseStage<U> next = new DefaultResponseStage<U>(executor, this);
+		onDone(new Runnable() {
+			@Override
+			public void run() {
+				Throwable error = getError();
+				if (error != null) {
+					next.completeExceptionally(error);
+					return;
+				}
+				try {
+					next.complete(function.apply(getValue()));
+				}
+				catch (Throwable t) {
+					next.completeExceptionally(t);
+				}
+			}
+		});
+		return next;
+	}
+
+	@Override
+	public <U> ResponseStage<U> thenCompose(final Function<? super T, ? extends ResponseStage<U>> function) {
+		final DefaultResponseStage<U> next = new DefaultResponseStage<U>(executor, this);
+		onDone(new Runnable() {
+			@Override
+			public void run() {
+				Throwable error = getError();
+				if (error != null) {
+					next.completeExceptionally(error);
+					return;
+				}
+				try {
+					ResponseStage<U> stage = function.apply(getValue());
+					if (stage == null)
+						throw new NullPointerException("Composed stage cannot be null");
+					
+					next.composed = stage;
+					stage.whenComplete(new Callback<U>() {
+						@Override
+						public void onComplete(U value, Throwable error) {
+							if (error != null)
+								next.completeExceptionally(error);
+							else
+								next.complete(value);
+						}
+					});
+					
+					// The next stage may have been cancelled before the composed stage was set.
+					if (next.isCancelled())
+						stage.cancel();
+				}
+				catch (Throwable t) {
+					next.completeExceptionally(t);
+				}
+			}
+		});
+		return next;
+	}
+
+	@Override
+	public ResponseStage<T> exceptionally(final Function<Throwable, ? extends T> function) {
+		final DefaultResponseStage<T> next = new DefaultResponseStage<T>(executor, this);
+		onDone(new Runnable() {
+			@Override
+			public void run() {
+				Throwable error = getError();
+				if (error == null) {
+					next.complete(getValue());
+					return;
+				}
+				try {
+					next.complete(function.apply(error));
+				}
+				catch (Throwable t) {
+					next.completeExceptionally(t);
+				}
+			}
+		});
+		return next;
+	}
+
+	@Override
+	public ResponseStage<T> whenComplete(final Callback<? super T> callback) {
+		final DefaultResponseStage<T> next = new DefaultResponseStage<T>(executor, this);
+		onDone(new Runnable() {
+			@Override
+			public void run() {
+				Throwable error = getError();
+				try {
+					callback.onComplete(getValue(), error);
+				}
+				catch (Throwable t) {
+					if (error == null)
+						error = t;
+					else
+						log.error(t, "Callback %s threw an exception", callback);
+				}
+				if (error != null)
+					next.completeExceptionally(error);
+				else
+					next.complete(getValue());
+			}
+		});
+		return next;
+	}
+
+	@Override
+	public boolean cancel() {
+		if (!completeExceptionally(new CancellationException("Stage cancelled")))
+			return false;
+		
+		// Don't cancel a source that other stages still depend on.
+		if (source instanceof AsyncToken) {
+			if (((AsyncToken)source).removeStage())
+				((AsyncToken)source).cancel();
+		}
+		else if (source instanceof DefaultResponseStage<?>) {
+			if (((DefaultResponseStage<?>)source).removeDependent())
+				((DefaultResponseStage<?>)source).cancel();
+		}
+		else if (source instanceof ResponseMessageFuture)
+			((ResponseMessageFuture)source).cancel();
+		else if (source instanceof ResponseStage<?>)
+			((ResponseStage<?>)source).cancel();
+		
+		ResponseStage<?> composed = this.composed;
+		if (composed != null)
+			composed.cancel();
+		
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return error instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized boolean isCompletedExceptionally() {
+		return error != null;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while (!done)
+			wait();
+		return report();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		while (!done) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0L)
+				throw new TimeoutException("Stage not completed after " + timeout + " " + unit);
+			wait(wait);
+		}
+		return report();
+	}
+	
+	private T report() throws ExecutionException {
+		if (error == null)
+			return value;
+		if (error instanceof CancellationException)
+			throw (CancellationException)error;
+		throw new ExecutionException(error);
+	}
+
+	@Override
+	public String toString() {
+		synchronized (this) {
+			if (!done)
+				return getClass().getName() + " {pending}";
+			if (error != null)
+				return getClass().getName() + " {error=" + error + "}";
+			return getClass().getName() + " {value=" + value + "}";
+		}
+	}
+}
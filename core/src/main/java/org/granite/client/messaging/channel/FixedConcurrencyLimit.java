@@ -0,0 +1,48 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+/**
+ * A constant concurrency limit (the historical behavior of channels).
+ */
+public class FixedConcurrencyLimit implements ConcurrencyLimit {
+
+	private final int limit;
+	
+	public FixedConcurrencyLimit(int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("limit must be greater or equal to 1");
+		this.limit = limit;
+	}
+
+	@Override
+	public int getLimit() {
+		return limit;
+	}
+
+	@Override
+	public void onSample(long rttNanos, int inFlight, boolean dropped) {
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "{limit=" + limit + "}";
+	}
+}
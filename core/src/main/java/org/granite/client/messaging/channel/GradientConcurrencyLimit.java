@@ -0,0 +1,105 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+/**
+ * Latency based concurrency limit: the ratio between a long term average of round trip times and the
+ * last observed round trip time (the gradient) is used to shrink the limit when requests start queuing
+ * on the server side. When latency is stable, the limit grows by roughly its square root (the allowed
+ * queue size) and dropped calls multiply the limit by a backoff ratio.
+ */
+public class GradientConcurrencyLimit implements ConcurrencyLimit {
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final double smoothing;
+	private final double backoffRatio;
+	private final int longWindow;
+	
+	private double estimatedLimit;
+	private double longRtt = 0.0;
+	
+	private volatile int limit;
+	
+	public GradientConcurrencyLimit() {
+		this(1, 1, 32, 0.2, 0.9, 100);
+	}
+	
+	public GradientConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double smoothing, double backoffRatio, int longWindow) {
+		if (minLimit < 1 || maxLimit < minLimit)
+			throw new IllegalArgumentException("Illegal min/max limits: " + minLimit + "/" + maxLimit);
+		if (initialLimit < minLimit || initialLimit > maxLimit)
+			throw new IllegalArgumentException("initialLimit must be in [" + minLimit + ", " + maxLimit + "]");
+		if (smoothing <= 0.0 || smoothing > 1.0)
+			throw new IllegalArgumentException("smoothing must be in ]0, 1]");
+		if (backoffRatio <= 0.0 || backoffRatio >= 1.0)
+			throw new IllegalArgumentException("backoffRatio must be in ]0, 1[");
+		if (longWindow < 1)
+			throw new IllegalArgumentException("longWindow must be greater or equal to 1");
+		
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.smoothing = smoothing;
+		this.backoffRatio = backoffRatio;
+		this.longWindow = longWindow;
+		this.estimatedLimit = initialLimit;
+		this.limit = initialLimit;
+	}
+
+	@Override
+	public int getLimit() {
+		return limit;
+	}
+
+	@Override
+	public void onSample(long rttNanos, int inFlight, boolean dropped) {
+		if (dropped)
+			estimatedLimit *= backoffRatio;
+		else if (rttNanos > 0L) {
+			double rtt = rttNanos;
+			
+			if (longRtt == 0.0)
+				longRtt = rtt;
+			else
+				longRtt += (rtt - longRtt) / longWindow;
+			
+			// Let the long term average recover quickly when the latency drops.
+			if (longRtt > rtt * 2.0)
+				longRtt = rtt * 2.0;
+			
+			double gradient = Math.max(0.5, Math.min(1.0, longRtt / rtt));
+			double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+			
+			// Don't grow if the channel isn't busy: we wouldn't learn anything from the next calls.
+			if (newLimit > estimatedLimit && inFlight < estimatedLimit / 2.0)
+				return;
+			
+			estimatedLimit = (1.0 - smoothing) * estimatedLimit + smoothing * newLimit;
+		}
+		
+		estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+		limit = (int)estimatedLimit;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "{limit=" + limit + ", min=" + minLimit + ", max=" + maxLimit + ", longRtt=" + (long)longRtt + "ns}";
+	}
+}
@@ -21,6 +21,8 @@
 package org.granite.client.messaging.channel;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.granite.client.messaging.messages.ResponseMessage;
@@ -48,6 +50,23 @@ public class ImmediateFailureResponseMessageFuture implements ResponseMessageFut
 		throw new ExecutionException(cause);
 	}
 
+	@Override
+	public ResponseMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		throw new ExecutionException(cause);
+	}
+
+	@Override
+	public ResponseStage<ResponseMessage> toStage() {
+		return toStage(null);
+	}
+
+	@Override
+	public ResponseStage<ResponseMessage> toStage(Executor executor) {
+		DefaultResponseStage<ResponseMessage> stage = new DefaultResponseStage<ResponseMessage>(executor);
+		stage.completeExceptionally(cause);
+		return stage;
+	}
+
 	@Override
 	public boolean isCancelled() {
 		return false;
@@ -0,0 +1,262 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.granite.client.messaging.messages.RequestMessage.Priority;
+
+/**
+ * Queue of tokens waiting to be sent, with one lane per request priority. Lanes are served with a
+ * smooth weighted round robin when a concurrency slot is available, and non interactive lanes are
+ * skipped while only the slots reserved to interactive requests are available.
+ */
+class PriorityTokenQueue {
+
+	private static final Priority[] PRIORITIES = Priority.values();
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Lane[] lanes = new Lane[PRIORITIES.length];
+	
+	// Tokens put back in the queue: their wait was recorded when they were first taken.
+	private final Set<AsyncToken> requeued = new HashSet<AsyncToken>();
+	
+	public PriorityTokenQueue() {
+		for (Priority priority : PRIORITIES) {
+			switch (priority) {
+				case INTERACTIVE:
+					lanes[priority.ordinal()] = new Lane(8);
+					break;
+				case BACKGROUND:
+					lanes[priority.ordinal()] = new Lane(1);
+					break;
+				default:
+					lanes[priority.ordinal()] = new Lane(4);
+					break;
+			}
+		}
+	}
+	
+	public int getWeight(Priority priority) {
+		return lanes[priority.ordinal()].weight;
+	}
+	
+	public void setWeight(Priority priority, int weight) {
+		if (weight < 1)
+			throw new IllegalArgumentException("weight must be greater or equal to 1");
+		lanes[priority.ordinal()].weight = weight;
+	}
+	
+	public void add(AsyncToken token) {
+		lock.lock();
+		try {
+			lane(token).tokens.addLast(token);
+			changed.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Puts the token back in front of its lane (eg. after a handshake).
+	 */
+	public void addFirst(AsyncToken token) {
+		lock.lock();
+		try {
+			lane(token).tokens.addFirst(token);
+			requeued.add(token);
+			changed.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Removes a token waiting to be sent.
+	 */
+	public boolean remove(AsyncToken token) {
+		lock.lock();
+		try {
+			requeued.remove(token);
+			return lane(token).tokens.remove(token);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for a token that can be sent given the current number of requests in flight.
+	 */
+	public AsyncToken take(ConcurrencyLimiter connections, int reservedSlots) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			AsyncToken token;
+			while (true) {
+				int inFlight = (connections != null ? connections.getInFlight() : 0);
+				int limit = (connections != null ? connections.getLimit() : Integer.MAX_VALUE);
+				
+				if (inFlight < limit && (token = next(inFlight < Math.max(1, limit - reservedSlots))) != null)
+					break;
+				changed.await();
+			}
+			return token;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits at most <code>timeoutMillis</code> for any token.
+	 */
+	public AsyncToken poll(long timeoutMillis) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		lock.lockInterruptibly();
+		try {
+			AsyncToken token;
+			while ((token = next(true)) == null) {
+				if (nanos <= 0L)
+					return null;
+				nanos = changed.awaitNanos(nanos);
+			}
+			return token;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Wakes up the sender thread after a concurrency slot has been released.
+	 */
+	public void signal() {
+		lock.lock();
+		try {
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public void clear() {
+		lock.lock();
+		try {
+			for (Lane lane : lanes) {
+				lane.tokens.clear();
+				lane.credit = 0;
+			}
+			requeued.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public int size(Priority priority) {
+		lock.lock();
+		try {
+			return lanes[priority.ordinal()].tokens.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getAverageWaitMillis(Priority priority) {
+		lock.lock();
+		try {
+			Lane lane = lanes[priority.ordinal()];
+			return (lane.taken > 0L ? lane.totalWait / lane.taken : 0L);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getMaxWaitMillis(Priority priority) {
+		lock.lock();
+		try {
+			return lanes[priority.ordinal()].maxWait;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	private Lane lane(AsyncToken token) {
+		return lanes[token.getRequest().getPriority().ordinal()];
+	}
+	
+	private AsyncToken next(boolean nonInteractiveAllowed) {
+		Lane selected = null;
+		int totalWeight = 0;
+		for (Priority priority : PRIORITIES) {
+			Lane lane = lanes[priority.ordinal()];
+			if (lane.tokens.isEmpty() || (priority != Priority.INTERACTIVE && !nonInteractiveAllowed))
+				continue;
+			lane.credit += lane.weight;
+			totalWeight += lane.weight;
+			if (selected == null || lane.credit > selected.credit)
+				selected = lane;
+		}
+		if (selected == null)
+			return null;
+		
+		selected.credit -= totalWeight;
+		AsyncToken token = selected.tokens.removeFirst();
+		if (selected.tokens.isEmpty())
+			selected.credit = 0;
+		
+		if (!requeued.remove(token)) {
+			long wait = System.currentTimeMillis() - token.getRequest().getTimestamp();
+			selected.taken++;
+			selected.totalWait += wait;
+			if (wait > selected.maxWait)
+				selected.maxWait = wait;
+		}
+		
+		return token;
+	}
+	
+	private static class Lane {
+		
+		public final LinkedList<AsyncToken> tokens = new LinkedList<AsyncToken>();
+		public volatile int weight;
+		public int credit = 0;
+		
+		public long taken = 0L;
+		public long totalWait = 0L;
+		public long maxWait = 0L;
+		
+		public Lane(int weight) {
+			this.weight = weight;
+		}
+	}
+}
@@ -21,6 +21,8 @@
 package org.granite.client.messaging.channel;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.granite.client.messaging.messages.ResponseMessage;
@@ -34,6 +36,24 @@ public interface ResponseMessageFuture {
 
 	public ResponseMessage get() throws InterruptedException, ExecutionException, TimeoutException;
 
+	/**
+	 * Waits at most for the given time for the response. Unlike request timeouts, a
+	 * <code>TimeoutException</code> thrown because this delay elapsed doesn't cancel the request.
+	 */
+	public ResponseMessage get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException;
+	
+	/**
+	 * Returns a stage completed with the response (see {@link ResponseStage}). Cancelling the stage
+	 * cancels the request, once all stages returned by this method are cancelled.
+	 */
+	public ResponseStage<ResponseMessage> toStage();
+	
+	/**
+	 * Same as {@link #toStage()}, but all callbacks of the stage and of its derived stages are
+	 * executed with the given executor.
+	 */
+	public ResponseStage<ResponseMessage> toStage(Executor executor);
+
 	public boolean isCancelled();
 
 	public boolean isDone();
@@ -0,0 +1,89 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pending result that can be composed with other results without blocking. Callbacks registered
+ * on a stage are executed with the executor of the stage (see {@link ResponseMessageFuture#toStage(java.util.concurrent.Executor)})
+ * or, when there is no executor, in the thread that completes the stage (or in the calling thread
+ * if the stage is already complete). Derived stages share the executor of their parent.
+ * <br>
+ * A response stage completes exceptionally with a {@link FaultMessageException} on faults, with the
+ * cause of the failure on failures, with a {@link TimeoutException} on timeouts and with a
+ * {@link CancellationException} on cancellations.
+ */
+public interface ResponseStage<T> {
+	
+	public static interface Function<T, U> {
+		
+		U apply(T value) throws Exception;
+	}
+	
+	public static interface Callback<T> {
+		
+		/**
+		 * Called with the value of the stage (<code>error</code> is null) or with the error that
+		 * completed it exceptionally.
+		 */
+		void onComplete(T value, Throwable error);
+	}
+
+	/**
+	 * Returns a new stage completed with the result of the function applied to the value of this stage.
+	 */
+	<U> ResponseStage<U> thenApply(Function<? super T, ? extends U> function);
+	
+	/**
+	 * Returns a new stage completed with the stage returned by the function (eg. a dependent remote call).
+	 */
+	<U> ResponseStage<U> thenCompose(Function<? super T, ? extends ResponseStage<U>> function);
+	
+	/**
+	 * Returns a new stage completed with the result of the function applied to the error of this
+	 * stage, or with the value of this stage if it completes normally.
+	 */
+	ResponseStage<T> exceptionally(Function<Throwable, ? extends T> function);
+	
+	/**
+	 * Returns a new stage completed like this stage once the callback has been called.
+	 */
+	ResponseStage<T> whenComplete(Callback<? super T> callback);
+
+	/**
+	 * Cancels this stage and the call(s) it depends on, unless other stages derived from them are
+	 * not cancelled.
+	 */
+	boolean cancel();
+
+	boolean isCancelled();
+
+	boolean isDone();
+	
+	boolean isCompletedExceptionally();
+	
+	T get() throws InterruptedException, ExecutionException;
+	
+	T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException;
+}
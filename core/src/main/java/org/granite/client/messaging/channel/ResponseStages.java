@@ -0,0 +1,90 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.channel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class ResponseStages {
+
+	private ResponseStages() {
+		throw new RuntimeException("Not instanciable");
+	}
+	
+	public static <T> ResponseStage<T> completed(T value) {
+		DefaultResponseStage<T> stage = new DefaultResponseStage<T>();
+		stage.complete(value);
+		return stage;
+	}
+	
+	public static <T> ResponseStage<T> failed(Throwable error) {
+		DefaultResponseStage<T> stage = new DefaultResponseStage<T>();
+		stage.completeExceptionally(error);
+		return stage;
+	}
+	
+	/**
+	 * Returns a stage completed with the values of all given stages (in the same order) or with
+	 * the first error. Cancelling the returned stage cancels all given stages.
+	 */
+	public static <T> ResponseStage<List<T>> allOf(final List<? extends ResponseStage<? extends T>> stages) {
+		final DefaultResponseStage<List<T>> all = new DefaultResponseStage<List<T>>() {
+			@Override
+			public boolean cancel() {
+				if (!super.cancel())
+					return false;
+				for (ResponseStage<? extends T> stage : stages)
+					stage.cancel();
+				return true;
+			}
+		};
+		
+		if (stages.isEmpty()) {
+			all.complete(Collections.<T>emptyList());
+			return all;
+		}
+		
+		final List<T> values = new ArrayList<T>(Collections.<T>nCopies(stages.size(), null));
+		final AtomicInteger pending = new AtomicInteger(stages.size());
+		for (int i = 0; i < stages.size(); i++) {
+			final int index = i;
+			stages.get(i).whenComplete(new ResponseStage.Callback<T>() {
+				@Override
+				public void onComplete(T value, Throwable error) {
+					if (error != null) {
+						all.completeExceptionally(error);
+						return;
+					}
+					synchronized (values) {
+						values.set(index, value);
+					}
+					if (pending.decrementAndGet() == 0) {
+						synchronized (values) {
+							all.complete(values);
+						}
+					}
+				}
+			});
+		}
+		return all;
+	}
+}
@@ -30,6 +30,7 @@ import org.granite.client.messaging.channel.AsyncToken;
 import org.granite.client.messaging.channel.RemotingChannel;
 import org.granite.client.messaging.codec.AMF0MessagingCodec;
 import org.granite.client.messaging.codec.MessagingCodec;
+import org.granite.client.messaging.messages.Message.Type;
 import org.granite.client.messaging.messages.ResponseMessage;
 import org.granite.client.messaging.messages.responses.AbstractResponseMessage;
 import org.granite.client.messaging.transport.DefaultTransportMessage;
@@ -58,17 +59,29 @@ public class AMFRemotingChannel extends AbstractAMFChannel implements RemotingCh
 
 	@Override
 	protected TransportMessage createTransportMessage(AsyncToken token) throws UnsupportedEncodingException {
+		return createTransportMessage(new AsyncToken[]{token});
+	}
+
+	@Override
+	protected boolean canCoalesce(AsyncToken token) {
+		return token.getRequest().getType() == Type.INVOCATION;
+	}
+
+	@Override
+	protected TransportMessage createTransportMessage(AsyncToken[] tokens) throws UnsupportedEncodingException {
 		AMF0Message amf0Message = new AMF0Message();
-		for (Message message : convertToAmf(token.getRequest())) {
-			AMF3Object data = new AMF3Object(message);
-		    AMF0Body body = new AMF0Body("", "/" + (index++), new Object[]{data}, AMF0Body.DATA_TYPE_AMF3_OBJECT);
-		    amf0Message.addBody(body);
+		for (AsyncToken token : tokens) {
+			for (Message message : convertToAmf(token.getRequest())) {
+				AMF3Object data = new AMF3Object(message);
+			    AMF0Body body = new AMF0Body("", "/" + (index++), new Object[]{data}, AMF0Body.DATA_TYPE_AMF3_OBJECT);
+			    amf0Message.addBody(body);
+			}
 		}
-		return new DefaultTransportMessage<AMF0Message>(token.getId(), false, clientId, null, amf0Message, codec);
+		return new DefaultTransportMessage<AMF0Message>(tokens[0].getId(), false, clientId, null, amf0Message, codec);
 	}
 
 	@Override
-	protected ResponseMessage decodeResponse(InputStream is) throws IOException {
+	protected ResponseMessage decodeResponse(TransportMessage transportMessage, InputStream is) throws IOException {
 		final AMF0Message amf0Message = codec.decode(is);
 		final int messagesCount = amf0Message.getBodyCount();
 		
@@ -22,13 +22,25 @@ package org.granite.client.messaging.channel.amf;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.granite.client.messaging.Consumer;
@@ -40,12 +52,17 @@ import org.granite.client.messaging.channel.ResponseMessageFuture;
 import org.granite.client.messaging.codec.MessagingCodec;
 import org.granite.client.messaging.messages.RequestMessage;
 import org.granite.client.messaging.messages.ResponseMessage;
+import org.granite.client.messaging.messages.push.TopicMessage;
 import org.granite.client.messaging.messages.requests.DisconnectMessage;
+import org.granite.client.messaging.messages.requests.PublishMessage;
 import org.granite.client.messaging.messages.responses.AbstractResponseMessage;
 import org.granite.client.messaging.messages.responses.ResultMessage;
 import org.granite.client.messaging.transport.DefaultTransportMessage;
+import org.granite.client.messaging.transport.MessageStream;
 import org.granite.client.messaging.transport.Transport;
 import org.granite.client.messaging.transport.TransportMessage;
+import org.granite.client.util.HashedWheelTimer;
+import org.granite.client.util.KeyedSerialExecutor;
 import org.granite.logging.Logger;
 import org.granite.util.UUIDUtil;
 
@@ -61,16 +78,33 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 	
 	private static final Logger log = Logger.getLogger(AbstractAMFMessagingChannel.class);
 	
+	public static final String STREAMING_HEADER = "GDSStreaming";
+	
 	protected final MessagingCodec<Message[]> codec;
 	
 	protected String sessionId = null;
 	protected final ConcurrentMap<String, Consumer> consumersMap = new ConcurrentHashMap<String, Consumer>();	
-	protected final AtomicReference<String> connectMessageId = new AtomicReference<String>(null);
+	protected final Set<String> connectMessageIds = new HashSet<String>();
 	protected final AtomicReference<ReconnectTimerTask> reconnectTimerTask = new AtomicReference<ReconnectTimerTask>();
 	
 	protected volatile long reconnectIntervalMillis = TimeUnit.SECONDS.toMillis(30L);
 	protected volatile long reconnectMaxAttempts = 60L;
 	protected volatile long reconnectAttempts = 0L;
+	
+	protected volatile boolean streaming = false;
+	
+	protected volatile int maxOutstandingConnects = 1;
+	protected volatile boolean asyncDispatch = false;
+	protected volatile Executor dispatchExecutor = null;
+	
+	private ThreadPoolExecutor defaultDispatchExecutor = null;
+	private volatile KeyedSerialExecutor dispatcher = null;
+	
+	// Start of the current period without any outstanding connect (0 when not measured).
+	private long connectGapStart = 0L;
+	private final AtomicLong connectGapNanos = new AtomicLong();
+	private final AtomicLong maxConnectGapNanos = new AtomicLong();
+	private final AtomicLong connectGaps = new AtomicLong();
 
 	protected AbstractAMFMessagingChannel(MessagingCodec<Message[]> codec, Transport transport, String id, URI uri) {
 		super(transport, id, uri, 1);
@@ -85,7 +119,139 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 		}				
 	}
 
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Asks the server to keep connect responses open and to stream pushed messages through them
+	 * (see {@link MessageStream}), instead of answering each connect with one batch. The channel
+	 * then only reconnects when the server closes the stream or when it fails. The transport
+	 * must deliver responses as they arrive (eg. an {@link org.granite.client.messaging.transport.apache.ApacheAsyncTransport}
+	 * in streaming mode). Takes effect at the next connect.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public int getMaxOutstandingConnects() {
+		return maxOutstandingConnects;
+	}
+
+	/**
+	 * Sets the number of connect requests that may wait for pushed messages at the same time
+	 * (default is 1). With 2, a connect is always outstanding on the server while the response to
+	 * the other one is decoded, at the cost of one more pending request and of a possible reordering
+	 * of messages pushed through different connects.
+	 */
+	public void setMaxOutstandingConnects(int maxOutstandingConnects) {
+		if (maxOutstandingConnects < 1)
+			throw new IllegalArgumentException("maxOutstandingConnects must be greater or equal to 1");
+		this.maxOutstandingConnects = maxOutstandingConnects;
+	}
+
+	public boolean isAsyncDispatch() {
+		return asyncDispatch;
+	}
+
+	/**
+	 * When true, pushed messages are passed to consumers by a dispatch executor instead of the
+	 * transport thread, in order for each consumer. When false (default), consumers are called by
+	 * the transport thread. Takes effect at the next start.
+	 */
+	public void setAsyncDispatch(boolean asyncDispatch) {
+		this.asyncDispatch = asyncDispatch;
+	}
+
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Sets the executor running consumer callbacks when async dispatch is enabled. If null (default),
+	 * the channel uses its own single daemon thread. Takes effect at the next start.
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+	
+	/**
+	 * @return the number of pushed messages waiting to be passed to their consumers.
+	 */
+	public int getDispatchQueueDepth() {
+		KeyedSerialExecutor dispatcher = this.dispatcher;
+		return (dispatcher != null ? dispatcher.getQueueDepth() : 0);
+	}
+	
+	/**
+	 * @return the total time spent without any outstanding connect between a connect response and
+	 * the next connect request.
+	 */
+	public long getConnectGapMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(connectGapNanos.get());
+	}
+	
+	public long getMaxConnectGapMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxConnectGapNanos.get());
+	}
+	
+	public long getConnectGaps() {
+		return connectGaps.get();
+	}
+
+	@Override
+	public synchronized boolean start() {
+		if (!super.start())
+			return false;
+		
+		if (dispatcher == null && asyncDispatch) {
+			Executor executor = dispatchExecutor;
+			if (executor == null)
+				executor = defaultDispatchExecutor = newDefaultDispatchExecutor();
+			dispatcher = new KeyedSerialExecutor(executor);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean stop() {
+		dispatcher = null;
+		if (defaultDispatchExecutor != null) {
+			defaultDispatchExecutor.shutdown();
+			defaultDispatchExecutor = null;
+		}
+		
+		synchronized (connectMessageIds) {
+			connectMessageIds.clear();
+			connectGapStart = 0L;
+		}
+		
+		return super.stop();
+	}
+	
+	protected ThreadPoolExecutor newDefaultDispatchExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			1, 1, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new DispatchThreadFactory(id)
+		);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Sends connect requests until <code>maxOutstandingConnects</code> are waiting for pushed messages.
+	 * 
+	 * @return true if at least one connect request was sent.
+	 */
 	protected boolean connect() {
+		boolean connected = false;
+		while (connectOnce())
+			connected = true;
+		return connected;
+	}
+
+	private boolean connectOnce() {
 		
 		// Connecting: make sure we don't have an active reconnect timer task.
 		cancelReconnectTimerTask();
@@ -94,9 +260,9 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 		if (consumersMap.isEmpty())
 			return false;
 		
-		// We are already waiting for a connection/answer.
+		// We are already waiting for enough connections/answers.
 		final String id = UUIDUtil.randomUUID();
-		if (!connectMessageId.compareAndSet(null, id))
+		if (!acquireConnect(id))
 			return false;
 		
 		log.debug("Connecting channel with clientId %s", clientId);
@@ -107,6 +273,8 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 		connectMessage.setMessageId(id);
 		connectMessage.setTimestamp(System.currentTimeMillis());
 		connectMessage.setClientId(clientId);
+		if (streaming)
+			connectMessage.setHeader(STREAMING_HEADER, Boolean.TRUE);
 
 		try {
 			transport.send(this, new DefaultTransportMessage<Message[]>(id, true, clientId, sessionId, new Message[]{connectMessage}, codec));
@@ -115,7 +283,7 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 		}
 		catch (Exception e) {
 			// Connect immediately failed, release the message id and schedule a reconnect.
-			connectMessageId.set(null);
+			releaseConnect(id, false);
 			scheduleReconnectTimerTask();
 			
 			return false;
@@ -137,7 +305,10 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 	public synchronized ResponseMessageFuture disconnect(ResponseListener...listeners) {
 		cancelReconnectTimerTask();
 		
-		connectMessageId.set(null);
+		synchronized (connectMessageIds) {
+			connectMessageIds.clear();
+			connectGapStart = 0L;
+		}
 		reconnectAttempts = 0L;
 		
 		for (Consumer consumer : consumersMap.values())
@@ -148,19 +319,112 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 		return send(new DisconnectMessage(clientId), listeners);
 	}
 
+	private boolean acquireConnect(String id) {
+		synchronized (connectMessageIds) {
+			if (connectMessageIds.size() >= maxOutstandingConnects)
+				return false;
+			
+			if (connectMessageIds.isEmpty() && connectGapStart != 0L) {
+				long gap = System.nanoTime() - connectGapStart;
+				connectGapStart = 0L;
+				
+				connectGapNanos.addAndGet(gap);
+				connectGaps.incrementAndGet();
+				for (long max = maxConnectGapNanos.get(); gap > max; max = maxConnectGapNanos.get()) {
+					if (maxConnectGapNanos.compareAndSet(max, gap))
+						break;
+				}
+			}
+			
+			connectMessageIds.add(id);
+			return true;
+		}
+	}
+	
+	/**
+	 * Releases an outstanding connect. A null id (response from a transport which doesn't tell the
+	 * request it answers) releases any of them. The time until the next connect is only measured
+	 * as a gap after a response.
+	 */
+	private boolean releaseConnect(String id, boolean measureGap) {
+		synchronized (connectMessageIds) {
+			boolean released;
+			if (id != null)
+				released = connectMessageIds.remove(id);
+			else {
+				Iterator<String> ids = connectMessageIds.iterator();
+				released = ids.hasNext();
+				if (released) {
+					ids.next();
+					ids.remove();
+				}
+			}
+			
+			if (released && connectMessageIds.isEmpty())
+				connectGapStart = (measureGap ? System.nanoTime() : 0L);
+			
+			return released;
+		}
+	}
+
 	@Override
 	protected TransportMessage createTransportMessage(AsyncToken token) throws UnsupportedEncodingException {
 		Message[] messages = convertToAmf(token.getRequest());
 		return new DefaultTransportMessage<Message[]>(token.getId(), false, clientId, sessionId, messages, codec);
 	}
 
+	/**
+	 * Publish requests may be sent together (see <code>maxCoalescedRequests</code> and
+	 * <code>coalescingLingerMillis</code>): the server acknowledges them in order.
+	 */
+	@Override
+	protected boolean canCoalesce(AsyncToken token) {
+		return token.getRequest().getType() == RequestMessage.Type.PUBLISH;
+	}
+
+	@Override
+	protected TransportMessage createTransportMessage(AsyncToken[] tokens) throws UnsupportedEncodingException {
+		if (tokens.length == 1)
+			return createTransportMessage(tokens[0]);
+		
+		List<Message> messages = new ArrayList<Message>(tokens.length);
+		for (AsyncToken token : tokens)
+			messages.addAll(Arrays.asList(convertToAmf(token.getRequest())));
+		return new DefaultTransportMessage<Message[]>(tokens[0].getId(), false, clientId, sessionId, messages.toArray(new Message[messages.size()]), codec);
+	}
+
+	@Override
+	protected boolean completesOnWrite(RequestMessage request) {
+		return request instanceof PublishMessage && !((PublishMessage)request).isAcknowledged();
+	}
+
 	@Override
-	protected ResponseMessage decodeResponse(InputStream is) throws IOException {
-		boolean reconnect = true;
+	protected ResponseMessage decodeResponse(TransportMessage transportMessage, InputStream is) throws IOException {
+		final String id = (transportMessage != null ? transportMessage.getId() : null);
+		
+		// Don't rely on available(): a streamed response may have no content yet.
+		PushbackInputStream pis = new PushbackInputStream(is, 4);
+		if (MessageStream.readMagic(pis)) {
+			decodeStream(id, new MessageStream(pis));
+			return null;
+		}
+		
+		// A connect is answered: poll again before its content is decoded and dispatched.
+		boolean connectAnswered = (transportMessage != null && transportMessage.isConnect());
+		if (connectAnswered) {
+			releaseConnect(id, true);
+			connect();
+		}
+		
+		// Otherwise, an unknown response may still answer a connect.
+		boolean reconnect = !connectAnswered;
 		
 		try {
-			if (is.available() > 0) {
-				final Message[] messages = codec.decode(is);
+			int first = pis.read();
+			if (first != -1) {
+				pis.unread(first);
+				
+				final Message[] messages = codec.decode(pis);
 				
 				if (messages.length > 0 && messages[0] instanceof AcknowledgeMessage) {
 					
@@ -209,34 +473,97 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 					return response;
 				}
 				
-				for (Message message : messages) {
-					if (!(message instanceof AsyncMessage))
-						throw new RuntimeException("Message should be an AsyncMessage: " + message);
-					
-					String subscriptionId = (String)message.getHeader(AsyncMessage.DESTINATION_CLIENT_ID_HEADER);
-					Consumer consumer = consumersMap.get(subscriptionId);
-					if (consumer != null)
-						consumer.onMessage(convertFromAmf((AsyncMessage)message));
-					else
-						log.warn("No consumer for subscriptionId: %s", subscriptionId);
+				// Pushed messages answering an unknown request: poll again before they are dispatched.
+				if (reconnect) {
+					reconnect = false;
+					releaseConnect(id, true);
+					connect();
 				}
+				
+				dispatchMessages(messages);
 			}
 		}
 		finally {
 			if (reconnect) {
-				connectMessageId.set(null);
+				releaseConnect(id, true);
 				connect();
 			}
 		}
 		
 		return null;
 	}
+	
+	/**
+	 * Decodes and dispatches message batches as they arrive, until the server closes the stream
+	 * (then reconnects immediately) or the connection fails (then schedules a reconnect).
+	 * 
+	 * @param id the id of the connect message which opened the stream (null if unknown).
+	 */
+	protected void decodeStream(String id, MessageStream stream) {
+		log.debug("Streaming connection opened for clientId %s", clientId);
+		
+		try {
+			InputStream frame;
+			while ((frame = stream.nextFrame()) != null) {
+				try {
+					dispatchMessages(codec.decode(frame));
+				}
+				catch (RuntimeException e) {
+					log.error(e, "Could not dispatch streamed messages");
+				}
+			}
+		}
+		catch (IOException e) {
+			log.warn(e, "Streaming connection failed for clientId %s", clientId);
+			
+			releaseConnect(id, false);
+			scheduleReconnectTimerTask();
+			return;
+		}
+		
+		log.debug("Streaming connection closed by the server for clientId %s", clientId);
+		
+		releaseConnect(id, true);
+		connect();
+	}
+	
+	/**
+	 * Passes pushed messages to their consumers, through the dispatch executor if async dispatch
+	 * is enabled (messages for the same consumer are kept in order).
+	 */
+	protected void dispatchMessages(Message[] messages) {
+		KeyedSerialExecutor dispatcher = this.dispatcher;
+		
+		for (Message message : messages) {
+			if (!(message instanceof AsyncMessage))
+				throw new RuntimeException("Message should be an AsyncMessage: " + message);
+			
+			String subscriptionId = (String)message.getHeader(AsyncMessage.DESTINATION_CLIENT_ID_HEADER);
+			final Consumer consumer = consumersMap.get(subscriptionId);
+			if (consumer == null) {
+				log.warn("No consumer for subscriptionId: %s", subscriptionId);
+				continue;
+			}
+			
+			final TopicMessage topicMessage = convertFromAmf((AsyncMessage)message);
+			if (dispatcher == null)
+				consumer.onMessage(topicMessage);
+			else {
+				dispatcher.execute(consumer, new Runnable() {
+					@Override
+					public void run() {
+						consumer.onMessage(topicMessage);
+					}
+				});
+			}
+		}
+	}
 
 	@Override
 	public void onError(TransportMessage message, Exception e) {
 		super.onError(message, e);
 		
-		if (message != null && connectMessageId.compareAndSet(message.getId(), null))
+		if (message != null && releaseConnect(message.getId(), false))
 			scheduleReconnectTimerTask();
 	}
 
@@ -259,12 +586,30 @@ public class AbstractAMFMessagingChannel extends AbstractAMFChannel implements M
 		}
 	}
 	
-	class ReconnectTimerTask extends TimerTask {
+	class ReconnectTimerTask extends HashedWheelTimer.Task {
 
 		@Override
 		public void run() {
 			connect();
 		}
 	}
+	
+	private static class DispatchThreadFactory implements ThreadFactory {
+		
+		private static final AtomicInteger count = new AtomicInteger();
+		
+		private final String channelId;
+		
+		DispatchThreadFactory(String channelId) {
+			this.channelId = channelId;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "GraniteDS-" + channelId + "-dispatch-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 
 }
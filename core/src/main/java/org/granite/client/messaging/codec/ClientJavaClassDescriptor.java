@@ -22,50 +22,108 @@ package org.granite.client.messaging.codec;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
-import java.util.concurrent.ConcurrentHashMap;
 
+import org.granite.logging.Logger;
 import org.granite.messaging.amf.io.util.DefaultActionScriptClassDescriptor;
 import org.granite.util.TypeUtil;
 
 /**
+ * Class descriptor that can instantiate classes without a no-arg constructor (using a
+ * serialization constructor). The way instances are created is resolved on the first
+ * instantiation and kept by the descriptor, which serves every instance of its type in a stream.
+ * 
  * @author Franck WOLFF
  */
 public class ClientJavaClassDescriptor extends DefaultActionScriptClassDescriptor {
+	
+	private static final Logger log = Logger.getLogger(ClientJavaClassDescriptor.class);
 
-	private static final SunConstructorFactory factory = new SunConstructorFactory();
-    private static final ConcurrentHashMap<String, Constructor<?>> constructors =
-        new ConcurrentHashMap<String, Constructor<?>>();
-    
-    
+	private static final SunConstructorFactory factory = newSunConstructorFactory();
+	
+	private static final Instantiator SUPER_INSTANTIATOR = new Instantiator(null);
+	
+	// Constructor used for this type (no-arg or serialization constructor), or SUPER_INSTANTIATOR
+	// when instances must be created by DefaultActionScriptClassDescriptor. Not shared between
+	// descriptors, so that classes of the same name loaded by other class loaders are never mixed up.
+	private volatile Instantiator instantiator = null;
+	
 	public ClientJavaClassDescriptor(String type, byte encoding) {
 		super(type, encoding);
 	}
 	
+	private static SunConstructorFactory newSunConstructorFactory() {
+		try {
+			return new SunConstructorFactory();
+		}
+		catch (Exception e) {
+			log.warn(e, "sun.reflect.ReflectionFactory not available, classes without a no-arg constructor cannot be instantiated");
+			return null;
+		}
+	}
+	
 	@Override
 	public Object newJavaInstance() {
-		try {
+		Instantiator instantiator = this.instantiator;
+		if (instantiator == null)
+			return newFirstJavaInstance();
+		if (instantiator == SUPER_INSTANTIATOR)
 			return super.newJavaInstance();
+		
+		try {
+			return instantiator.constructor.newInstance();
 		}
-		catch (RuntimeException e) {
-			if (e.getCause() instanceof InstantiationException)
-				return findDefaultConstructor();
-			throw e;
+		catch (Exception e) {
+			throw new RuntimeException("Could not create instance of: " + type, e);
 		}
 	}
 	
-	private Object findDefaultConstructor() {
+	private Object newFirstJavaInstance() {
+		Object instance;
+		Instantiator instantiator;
+		
 		try {
-			Constructor<?> defaultContructor = constructors.get(type);
-			if (defaultContructor == null) {
-				defaultContructor = factory.findDefaultConstructor(TypeUtil.forName(type));
-	            Constructor<?> previousConstructor = constructors.putIfAbsent(type, defaultContructor);
-	            if (previousConstructor != null)
-	            	defaultContructor = previousConstructor; // Should be the same instance, anyway...
+			instance = super.newJavaInstance();
+			instantiator = SUPER_INSTANTIATOR;
+			
+			// Plain no-arg constructor call: cache the constructor.
+			if (instance.getClass().getName().equals(type)) {
+				try {
+					Constructor<?> constructor = instance.getClass().getDeclaredConstructor();
+					constructor.setAccessible(true);
+					instantiator = new Instantiator(constructor);
+				}
+				catch (Exception e) {
+					// Keep using super.newJavaInstance().
+				}
 			}
-			return defaultContructor.newInstance();
 		}
-		catch (Exception e) {
-			throw new RuntimeException("Could not create Proxy for: " + type);
+		catch (RuntimeException e) {
+			if (!(e.getCause() instanceof InstantiationException))
+				throw e;
+			
+			if (factory == null)
+				throw new RuntimeException("Could not create instance of: " + type + " (no no-arg constructor and sun.reflect.ReflectionFactory is not available)", e);
+			
+			try {
+				Constructor<?> constructor = factory.findDefaultConstructor(TypeUtil.forName(type));
+				instance = constructor.newInstance();
+				instantiator = new Instantiator(constructor);
+			}
+			catch (Exception f) {
+				throw new RuntimeException("Could not create Proxy for: " + type, f);
+			}
+		}
+		
+		this.instantiator = instantiator;
+		return instance;
+	}
+	
+	private static final class Instantiator {
+		
+		public final Constructor<?> constructor;
+		
+		public Instantiator(Constructor<?> constructor) {
+			this.constructor = constructor;
 		}
 	}
 }
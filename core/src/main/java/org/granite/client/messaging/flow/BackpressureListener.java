@@ -0,0 +1,34 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.messaging.flow;
+
+/**
+ * Notified when a subscriber of a {@link ConsumerPublisher} doesn't keep up and messages start
+ * to be dropped.
+ */
+public interface BackpressureListener {
+
+	/**
+	 * Called once each time the buffer of a subscription overflows after it was not full.
+	 * Implementations may cancel the subscription, unsubscribe the consumer or resubscribe it
+	 * with a more selective selector.
+	 */
+	void onBackpressure(ConsumerPublisher publisher, Subscription subscription, long droppedMessages);
+}
@@ -0,0 +1,238 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.flow;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.granite.client.messaging.Consumer;
+import org.granite.client.messaging.TopicMessageListener;
+import org.granite.client.messaging.events.TopicMessageEvent;
+import org.granite.client.messaging.messages.push.TopicMessage;
+import org.granite.logging.Logger;
+
+/**
+ * Exposes the messages received by a {@link Consumer} as a demand driven {@link Publisher}. Each
+ * subscriber gets the messages received after it subscribed, as long as it requests them. Messages
+ * that are not requested yet are buffered, up to <code>maxBufferedMessages</code> per subscriber;
+ * beyond that limit the oldest buffered message is dropped and the {@link BackpressureListener},
+ * if any, is notified.
+ */
+public class ConsumerPublisher implements Publisher<TopicMessage> {
+	
+	private static final Logger log = Logger.getLogger(ConsumerPublisher.class);
+
+	private final Consumer consumer;
+	private final int maxBufferedMessages;
+	
+	private volatile BackpressureListener backpressureListener = null;
+	
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicLong backpressureEvents = new AtomicLong();
+	
+	public ConsumerPublisher(Consumer consumer, int maxBufferedMessages) {
+		if (consumer == null)
+			throw new NullPointerException("consumer cannot be null");
+		if (maxBufferedMessages < 1)
+			throw new IllegalArgumentException("maxBufferedMessages must be greater or equal to 1");
+		
+		this.consumer = consumer;
+		this.maxBufferedMessages = maxBufferedMessages;
+	}
+
+	public Consumer getConsumer() {
+		return consumer;
+	}
+
+	public int getMaxBufferedMessages() {
+		return maxBufferedMessages;
+	}
+
+	public BackpressureListener getBackpressureListener() {
+		return backpressureListener;
+	}
+
+	public void setBackpressureListener(BackpressureListener backpressureListener) {
+		this.backpressureListener = backpressureListener;
+	}
+	
+	/**
+	 * @return the number of messages dropped because a subscriber didn't request them in time.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+	
+	/**
+	 * @return the number of times a subscription buffer overflowed after it was not full.
+	 */
+	public long getBackpressureEvents() {
+		return backpressureEvents.get();
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super TopicMessage> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("subscriber cannot be null");
+		
+		ConsumerSubscription subscription = new ConsumerSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		subscription.start();
+	}
+	
+	private class ConsumerSubscription implements Subscription, TopicMessageListener {
+		
+		private final Subscriber<? super TopicMessage> subscriber;
+		private final LinkedList<TopicMessage> buffer = new LinkedList<TopicMessage>();
+		
+		private long requested = 0L;
+		private boolean cancelled = false;
+		private boolean draining = false;
+		private boolean overflowing = false;
+		private Throwable error = null;
+		
+		public ConsumerSubscription(Subscriber<? super TopicMessage> subscriber) {
+			this.subscriber = subscriber;
+		}
+		
+		void start() {
+			synchronized (this) {
+				if (cancelled)
+					return;
+			}
+			consumer.addMessageListener(this);
+		}
+
+		@Override
+		public void onMessage(TopicMessageEvent event) {
+			boolean overflow = false;
+			
+			synchronized (this) {
+				if (cancelled)
+					return;
+				
+				if (buffer.size() >= maxBufferedMessages) {
+					buffer.removeFirst();
+					droppedMessages.incrementAndGet();
+					if (!overflowing) {
+						overflowing = true;
+						overflow = true;
+					}
+				}
+				buffer.addLast(event.getMessage());
+			}
+			
+			if (overflow) {
+				backpressureEvents.incrementAndGet();
+				
+				BackpressureListener listener = backpressureListener;
+				if (listener != null) {
+					try {
+						listener.onBackpressure(ConsumerPublisher.this, this, droppedMessages.get());
+					}
+					catch (Exception e) {
+						log.error(e, "Backpressure listener threw an exception: %s", listener);
+					}
+				}
+			}
+			
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				
+				if (n <= 0L) {
+					if (error == null)
+						error = new IllegalArgumentException("Requested items must be positive: " + n);
+				}
+				else {
+					requested += n;
+					if (requested < 0L)
+						requested = Long.MAX_VALUE;
+				}
+			}
+			
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (cancelled)
+					return;
+				cancelled = true;
+				buffer.clear();
+			}
+			consumer.removeMessageListener(this);
+		}
+		
+		private void drain() {
+			synchronized (this) {
+				if (draining)
+					return;
+				draining = true;
+			}
+			
+			for (;;) {
+				TopicMessage message;
+				Throwable error = null;
+				
+				synchronized (this) {
+					if (this.error != null && !cancelled) {
+						error = this.error;
+						message = null;
+					}
+					else if (cancelled || requested == 0L || buffer.isEmpty()) {
+						draining = false;
+						return;
+					}
+					else {
+						message = buffer.removeFirst();
+						if (requested != Long.MAX_VALUE)
+							requested--;
+						overflowing = false;
+					}
+				}
+				
+				if (error != null) {
+					cancel();
+					synchronized (this) {
+						draining = false;
+					}
+					subscriber.onError(error);
+					return;
+				}
+				
+				try {
+					subscriber.onNext(message);
+				}
+				catch (Throwable t) {
+					log.error(t, "Subscriber threw an exception, cancelling subscription: %s", subscriber);
+					cancel();
+				}
+			}
+		}
+	}
+}
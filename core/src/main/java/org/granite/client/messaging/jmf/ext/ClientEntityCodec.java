@@ -24,22 +24,59 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.granite.client.persistence.Entity;
+import org.granite.client.persistence.EntityDescriptor;
 import org.granite.client.persistence.Persistence;
 import org.granite.client.platform.Platform;
 import org.granite.messaging.jmf.ExtendedObjectInput;
 import org.granite.messaging.jmf.ExtendedObjectOutput;
 import org.granite.messaging.jmf.codec.ExtendedObjectCodec;
 import org.granite.messaging.reflect.Property;
+import org.granite.messaging.reflect.Reflection;
 
 /**
  * @author Franck WOLFF
  */
 public class ClientEntityCodec implements ExtendedObjectCodec {
+	
+	private final Persistence persistence;
+	
+	// Plans per stream reflection, then per class.
+	private final ConcurrentMap<Reflection, ConcurrentMap<Class<?>, CodecPlan>> plans = new ConcurrentHashMap<Reflection, ConcurrentMap<Class<?>, CodecPlan>>();
+	private final ConcurrentMap<String, Boolean> decodables = new ConcurrentHashMap<String, Boolean>();
+	
+	public ClientEntityCodec() {
+		this(Platform.persistence());
+	}
+	
+	public ClientEntityCodec(Persistence persistence) {
+		if (persistence == null)
+			throw new NullPointerException("persistence cannot be null");
+		
+		this.persistence = persistence;
+	}
+	
+	private CodecPlan getCodecPlan(Reflection reflection, Class<?> cls) {
+		ConcurrentMap<Class<?>, CodecPlan> reflectionPlans = plans.get(reflection);
+		if (reflectionPlans == null) {
+			reflectionPlans = new ConcurrentHashMap<Class<?>, CodecPlan>();
+			ConcurrentMap<Class<?>, CodecPlan> previous = plans.putIfAbsent(reflection, reflectionPlans);
+			if (previous != null)
+				reflectionPlans = previous;
+		}
+		
+		CodecPlan plan = reflectionPlans.get(cls);
+		if (plan == null) {
+			plan = new CodecPlan(reflection, cls, persistence.getEntityDescriptor(cls));
+			reflectionPlans.putIfAbsent(cls, plan);
+		}
+		return plan;
+	}
 
 	public boolean canEncode(ExtendedObjectOutput out, Object v) {
-		return v.getClass().isAnnotationPresent(Entity.class);
+		return persistence.isEntity(v.getClass());
 	}
 
 	public String getEncodedClassName(ExtendedObjectOutput out, Object v) {
@@ -48,29 +85,30 @@ public class ClientEntityCodec implements ExtendedObjectCodec {
 
 	public void encode(ExtendedObjectOutput out, Object v) throws IOException, IllegalAccessException, InvocationTargetException {
 		
-		Persistence persistence = Platform.persistence();
+		CodecPlan plan = getCodecPlan(out.getReflection(), v.getClass());
 		
-		boolean initialized = persistence.isInitialized(v);
+		boolean initialized = (plan.initializedProperty == null || plan.initializedProperty.getBoolean(v));
 		
 		out.writeBoolean(initialized);
-		out.writeUTF(persistence.getDetachedState(v));
+		out.writeUTF(plan.detachedStateProperty != null ? (String)plan.detachedStateProperty.getObject(v) : persistence.getDetachedState(v));
 		
 		if (!initialized)
-			out.writeObject(persistence.getId(v));
+			out.writeObject(plan.idProperty != null ? plan.idProperty.getObject(v) : persistence.getId(v));
 		else {
-			List<Property> properties = new ArrayList<Property>(out.getReflection().findSerializableProperties(v.getClass()));
-			properties.remove(persistence.getInitializedProperty(v.getClass()));
-			properties.remove(persistence.getDetachedStateProperty(v.getClass()));
-
-			for (Property property : properties)
+			for (Property property : plan.properties)
 				out.getAndWriteProperty(v, property);
 		}
 	}
 
 	public boolean canDecode(ExtendedObjectInput in, String className) throws ClassNotFoundException {
-		String alias = in.getAlias(className);
-		Class<?> cls = in.getReflection().loadClass(alias);
-		return cls.isAnnotationPresent(Entity.class);
+		Boolean decodable = decodables.get(className);
+		if (decodable == null) {
+			String alias = in.getAlias(className);
+			Class<?> cls = in.getReflection().loadClass(alias);
+			decodable = Boolean.valueOf(persistence.isEntity(cls));
+			decodables.putIfAbsent(className, decodable);
+		}
+		return decodable.booleanValue();
 	}
 
 	public String getDecodedClassName(ExtendedObjectInput in, String className) {
@@ -87,23 +125,62 @@ public class ClientEntityCodec implements ExtendedObjectCodec {
 
 	public void decode(ExtendedObjectInput in, Object v) throws IOException, ClassNotFoundException, IllegalAccessException, InvocationTargetException {
 		
-		Persistence persistence = Platform.persistence();
+		CodecPlan plan = getCodecPlan(in.getReflection(), v.getClass());
 		
 		boolean initialized = in.readBoolean();
 		String detachedState = in.readUTF();
 		
-		persistence.setInitialized(v, initialized);
-		persistence.setDetachedState(v, detachedState);
+		if (plan.initializedProperty != null)
+			plan.initializedProperty.setBoolean(v, initialized);
+		else
+			persistence.setInitialized(v, initialized);
 		
-		if (!initialized)
-			persistence.setId(v, in.readObject());
+		if (plan.detachedStateProperty != null)
+			plan.detachedStateProperty.setObject(v, detachedState);
+		else
+			persistence.setDetachedState(v, detachedState);
+		
+		if (!initialized) {
+			Object id = in.readObject();
+			if (plan.idProperty != null)
+				plan.idProperty.setObject(v, id);
+			else
+				persistence.setId(v, id);
+		}
 		else {
-			List<Property> properties = new ArrayList<Property>(in.getReflection().findSerializableProperties(v.getClass()));
-			properties.remove(persistence.getInitializedProperty(v.getClass()));
-			properties.remove(persistence.getDetachedStateProperty(v.getClass()));
-
-			for (Property property : properties)
+			for (Property property : plan.properties)
 				in.readAndSetProperty(v, property);
 		}
 	}
+	
+	/**
+	 * Properties used to encode / decode entities of a given class: the serializable properties
+	 * found by the stream reflection, without the internal ones. Missing internal properties are
+	 * null: the Persistence methods are then called to report the error.
+	 */
+	private static final class CodecPlan {
+		
+		public final Property initializedProperty;
+		public final Property detachedStateProperty;
+		public final Property idProperty;
+		public final Property[] properties;
+		
+		public CodecPlan(Reflection reflection, Class<?> cls, EntityDescriptor descriptor) {
+			if (descriptor != null) {
+				this.initializedProperty = descriptor.getInitializedProperty();
+				this.detachedStateProperty = descriptor.getDetachedStateProperty();
+				this.idProperty = descriptor.getIdProperty();
+			}
+			else {
+				this.initializedProperty = null;
+				this.detachedStateProperty = null;
+				this.idProperty = null;
+			}
+			
+			List<Property> properties = new ArrayList<Property>(reflection.findSerializableProperties(cls));
+			properties.remove(initializedProperty);
+			properties.remove(detachedStateProperty);
+			this.properties = properties.toArray(new Property[properties.size()]);
+		}
+	}
 }
@@ -25,4 +25,15 @@ package org.granite.client.messaging.messages;
  */
 public interface RequestMessage extends Message {
 
+	/**
+	 * Client side scheduling hint (never sent to the server).
+	 */
+	public static enum Priority {
+		INTERACTIVE,
+		NORMAL,
+		BACKGROUND
+	}
+	
+	Priority getPriority();
+	void setPriority(Priority priority);
 }
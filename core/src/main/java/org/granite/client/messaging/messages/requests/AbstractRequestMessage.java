@@ -29,6 +29,8 @@ import org.granite.client.messaging.messages.RequestMessage;
  * @author Franck WOLFF
  */
 public abstract class AbstractRequestMessage extends AbstractMessage implements RequestMessage {
+	
+	private Priority priority = Priority.NORMAL;
 
 	public AbstractRequestMessage() {
 	}
@@ -46,4 +48,24 @@ public abstract class AbstractRequestMessage extends AbstractMessage implements
 		
 		super(id, clientId, timestamp, timeToLive, headers);
 	}
+
+	@Override
+	public Priority getPriority() {
+		return priority;
+	}
+
+	@Override
+	public void setPriority(Priority priority) {
+		if (priority == null)
+			throw new NullPointerException("priority cannot be null");
+		this.priority = priority;
+	}
+
+	@Override
+	protected void copy(AbstractMessage message) {
+		super.copy(message);
+		
+		if (message instanceof AbstractRequestMessage)
+			((AbstractRequestMessage)message).priority = priority;
+	}
 }
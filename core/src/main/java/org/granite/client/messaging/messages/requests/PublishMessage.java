@@ -30,6 +30,7 @@ import org.granite.client.messaging.messages.Message;
 public final class PublishMessage extends AbstractTopicRequestMessage {
 
 	private Object body = null;
+	private boolean acknowledged = true;
 
 	public PublishMessage() {
 	}
@@ -72,11 +73,25 @@ public final class PublishMessage extends AbstractTopicRequestMessage {
 		this.body = body;
 	}
 
+	public boolean isAcknowledged() {
+		return acknowledged;
+	}
+
+	/**
+	 * Client side hint (never sent to the server): if false, the future returned by the channel
+	 * completes as soon as the message is handed to the transport instead of waiting for the
+	 * server acknowledge.
+	 */
+	public void setAcknowledged(boolean acknowledged) {
+		this.acknowledged = acknowledged;
+	}
+
 	@Override
 	public Message copy() {
 		PublishMessage message = new PublishMessage();
 		
 		copy(message);
+		message.acknowledged = acknowledged;
 		
 		return message;
 	}
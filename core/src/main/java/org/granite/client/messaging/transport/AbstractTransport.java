@@ -22,10 +22,13 @@ package org.granite.client.messaging.transport;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.granite.client.configuration.Configuration;
+import org.granite.client.messaging.channel.Channel;
 import org.granite.client.messaging.transport.TransportStatusHandler.LogEngineStatusHandler;
 import org.granite.client.messaging.transport.TransportStatusHandler.NoopEngineStatusHandler;
+import org.granite.client.util.WeakIdentityHashMap;
 
 /**
  * @author Franck WOLFF
@@ -38,6 +41,9 @@ public abstract class AbstractTransport<C> implements Transport {
 	
 	protected final List<TransportStopListener> stopListeners = new ArrayList<TransportStopListener>();
 	
+	protected volatile int compressionThreshold = -1;
+	private final Map<Channel, CompressionStats> compressionStats = new WeakIdentityHashMap<Channel, CompressionStats>();
+	
 	@SuppressWarnings("unchecked")
 	@Override
 	public void setContext(Object context) {
@@ -71,6 +77,34 @@ public abstract class AbstractTransport<C> implements Transport {
 		return statusHandler;
 	}
 
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * Enables compression of sent messages whose encoded size exceeds the given threshold (in
+	 * bytes), and asks servers for compressed responses. A negative value (the default) disables
+	 * compression. Compressed responses are always decompressed, whatever this setting.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	public boolean isCompressionEnabled() {
+		return compressionThreshold >= 0;
+	}
+	
+	public CompressionStats getCompressionStats(Channel channel) {
+		synchronized (compressionStats) {
+			CompressionStats stats = compressionStats.get(channel);
+			if (stats == null) {
+				stats = new CompressionStats();
+				compressionStats.put(channel, stats);
+			}
+			return stats;
+		}
+	}
+
 	@Override
 	public void addStopListener(TransportStopListener listener) {
 		synchronized (stopListeners) {
@@ -0,0 +1,151 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes its content uncompressed if it doesn't exceed a threshold, gzipped otherwise. Only the
+ * bytes up to the threshold are buffered: once it is exceeded, the content is compressed on the
+ * fly into the target stream.
+ * 
+ * <p>{@link #finish()} must be called when the content is complete (it is called by {@link #close()}).</p>
+ */
+public class CompressingOutputStream extends OutputStream {
+	
+	private final OutputStream out;
+	private final int threshold;
+	private final CompressionStats stats;
+	
+	private byte[] head;
+	private int headSize = 0;
+	
+	private CountingOutputStream counter = null;
+	private GZIPOutputStream gzip = null;
+	private long size = 0L;
+	private long nanos = 0L;
+	private boolean finished = false;
+
+	public CompressingOutputStream(OutputStream out, int threshold, CompressionStats stats) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("threshold cannot be negative: " + threshold);
+		
+		this.out = out;
+		this.threshold = threshold;
+		this.stats = stats;
+		this.head = new byte[Math.min(threshold, 256)];
+	}
+	
+	public boolean isCompressed() {
+		return gzip != null;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished)
+			throw new IOException("Stream finished");
+		
+		size += len;
+		
+		if (gzip == null) {
+			if (headSize + len <= threshold) {
+				if (headSize + len > head.length) {
+					byte[] newHead = new byte[Math.min(threshold, Math.max(head.length * 2, headSize + len))];
+					System.arraycopy(head, 0, newHead, 0, headSize);
+					head = newHead;
+				}
+				System.arraycopy(b, off, head, headSize, len);
+				headSize += len;
+				return;
+			}
+			
+			long start = System.nanoTime();
+			counter = new CountingOutputStream(out);
+			gzip = new GZIPOutputStream(counter, 4096);
+			gzip.write(head, 0, headSize);
+			head = null;
+			nanos += System.nanoTime() - start;
+		}
+		
+		long start = System.nanoTime();
+		gzip.write(b, off, len);
+		nanos += System.nanoTime() - start;
+	}
+	
+	public void finish() throws IOException {
+		if (finished)
+			return;
+		finished = true;
+		
+		if (gzip == null) {
+			out.write(head, 0, headSize);
+			head = null;
+			return;
+		}
+		
+		long start = System.nanoTime();
+		gzip.finish();
+		nanos += System.nanoTime() - start;
+		
+		if (stats != null)
+			stats.compressed(size, counter.count, nanos);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// Flushing a partially compressed stream would degrade the compression ratio.
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		out.close();
+	}
+	
+	private static class CountingOutputStream extends OutputStream {
+		
+		private final OutputStream out;
+		long count = 0L;
+		
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content encoding helpers shared by transports. Compressed content is always gzipped: over HTTP
+ * it is flagged by a <tt>Content-Encoding</tt> header, over WebSocket each compressed message is
+ * recognized by the gzip magic number (the server must then be configured accordingly).
+ */
+public class Compression {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+	
+	private static final int GZIP_MAGIC_0 = 0x1f;
+	private static final int GZIP_MAGIC_1 = 0x8b;
+	
+	public static boolean isGzip(byte[] data, int offset, int length) {
+		return length >= 2 && (data[offset] & 0xff) == GZIP_MAGIC_0 && (data[offset + 1] & 0xff) == GZIP_MAGIC_1;
+	}
+	
+	/**
+	 * Wraps a response body according to its content encoding (<tt>null</tt> or unknown encodings
+	 * leave the stream untouched). Decompression is streamed.
+	 */
+	public static InputStream decompress(InputStream in, String contentEncoding, CompressionStats stats) throws IOException {
+		if (contentEncoding == null)
+			return in;
+		
+		contentEncoding = contentEncoding.trim();
+		if (GZIP.equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+			CountingInputStream counter = new CountingInputStream(in);
+			return new DecompressingInputStream(new GZIPInputStream(counter, 4096), counter, stats);
+		}
+		if (DEFLATE.equalsIgnoreCase(contentEncoding)) {
+			CountingInputStream counter = new CountingInputStream(in);
+			return new DecompressingInputStream(new InflaterInputStream(counter), counter, stats);
+		}
+		return in;
+	}
+	
+	private static class CountingInputStream extends FilterInputStream {
+		
+		long count = 0L;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count += read;
+			return read;
+		}
+	}
+	
+	private static class DecompressingInputStream extends FilterInputStream {
+		
+		private final CountingInputStream counter;
+		private final CompressionStats stats;
+		private long size = 0L;
+		private long nanos = 0L;
+		private boolean recorded = false;
+
+		DecompressingInputStream(InputStream in, CountingInputStream counter, CompressionStats stats) {
+			super(in);
+			this.counter = counter;
+			this.stats = stats;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = super.read();
+			nanos += System.nanoTime() - start;
+			
+			if (b == -1)
+				record();
+			else
+				size++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			int read = super.read(b, off, len);
+			nanos += System.nanoTime() - start;
+			
+			if (read == -1)
+				record();
+			else
+				size += read;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			record();
+			super.close();
+		}
+		
+		private void record() {
+			if (!recorded && stats != null)
+				stats.decompressed(counter.count, size, nanos);
+			recorded = true;
+		}
+	}
+}
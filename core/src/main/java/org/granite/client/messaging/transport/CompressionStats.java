@@ -0,0 +1,95 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compression counters of a channel: bytes before and after compression of sent messages (and the
+ * other way around for received ones) and the time spent compressing and decompressing them.
+ */
+public class CompressionStats {
+	
+	private final AtomicLong compressedMessages = new AtomicLong();
+	private final AtomicLong uncompressedOutBytes = new AtomicLong();
+	private final AtomicLong compressedOutBytes = new AtomicLong();
+	private final AtomicLong compressionNanos = new AtomicLong();
+	
+	private final AtomicLong decompressedMessages = new AtomicLong();
+	private final AtomicLong compressedInBytes = new AtomicLong();
+	private final AtomicLong uncompressedInBytes = new AtomicLong();
+	private final AtomicLong decompressionNanos = new AtomicLong();
+	
+	public void compressed(long uncompressedSize, long compressedSize, long nanos) {
+		compressedMessages.incrementAndGet();
+		uncompressedOutBytes.addAndGet(uncompressedSize);
+		compressedOutBytes.addAndGet(compressedSize);
+		compressionNanos.addAndGet(nanos);
+	}
+	
+	public void decompressed(long compressedSize, long uncompressedSize, long nanos) {
+		decompressedMessages.incrementAndGet();
+		compressedInBytes.addAndGet(compressedSize);
+		uncompressedInBytes.addAndGet(uncompressedSize);
+		decompressionNanos.addAndGet(nanos);
+	}
+
+	public long getCompressedMessages() {
+		return compressedMessages.get();
+	}
+
+	public long getDecompressedMessages() {
+		return decompressedMessages.get();
+	}
+	
+	/**
+	 * @return uncompressed size / compressed size of all compressed messages, or 0 if none.
+	 */
+	public double getCompressionRatio() {
+		return ratio(uncompressedOutBytes.get(), compressedOutBytes.get());
+	}
+	
+	/**
+	 * @return uncompressed size / compressed size of all decompressed messages, or 0 if none.
+	 */
+	public double getDecompressionRatio() {
+		return ratio(uncompressedInBytes.get(), compressedInBytes.get());
+	}
+	
+	public long getCompressionMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(compressionNanos.get());
+	}
+	
+	public long getDecompressionMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(decompressionNanos.get());
+	}
+	
+	private static double ratio(long uncompressed, long compressed) {
+		return (compressed == 0L ? 0.0 : ((double)uncompressed) / compressed);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " {compressed=" + compressedMessages + " (ratio " + getCompressionRatio() + ", " + getCompressionMillis() + "ms)" +
+			", decompressed=" + decompressedMessages + " (ratio " + getDecompressionRatio() + ", " + getDecompressionMillis() + "ms)}";
+	}
+}
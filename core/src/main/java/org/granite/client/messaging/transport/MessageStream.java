@@ -0,0 +1,129 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Long-lived response holding a stream of encoded message batches (HTTP streaming):
+ * 
+ * <pre>
+ * 'G' 'D' 'S' 'S' | length (int32) | batch bytes | length (int32) | batch bytes ...
+ * </pre>
+ * 
+ * Integers are big-endian. Empty frames are heartbeats and are skipped. The stream ends when the
+ * server closes the response (eg. after an idle timeout).
+ */
+public class MessageStream {
+	
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+	
+	private static final byte[] MAGIC = {'G', 'D', 'S', 'S'};
+
+	private final InputStream in;
+	private final int maxFrameSize;
+	
+	public MessageStream(InputStream in) {
+		this(in, DEFAULT_MAX_FRAME_SIZE);
+	}
+	
+	public MessageStream(InputStream in, int maxFrameSize) {
+		this.in = in;
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/**
+	 * Reads the magic bytes of a message stream. If they are not found, the bytes read are pushed
+	 * back (<code>in</code> must have a pushback buffer of at least 4 bytes).
+	 */
+	public static boolean readMagic(PushbackInputStream in) throws IOException {
+		byte[] head = new byte[MAGIC.length];
+		int length = 0;
+		while (length < head.length) {
+			int read = in.read(head, length, head.length - length);
+			if (read == -1)
+				break;
+			length += read;
+		}
+		
+		boolean magic = (length == MAGIC.length);
+		for (int i = 0; magic && i < MAGIC.length; i++)
+			magic = (head[i] == MAGIC[i]);
+		
+		if (!magic && length > 0)
+			in.unread(head, 0, length);
+		return magic;
+	}
+	
+	public static void writeMagic(OutputStream os) throws IOException {
+		os.write(MAGIC);
+	}
+	
+	public static void writeFrame(OutputStream os, byte[] data, int offset, int length) throws IOException {
+		os.write(length >>> 24);
+		os.write(length >>> 16);
+		os.write(length >>> 8);
+		os.write(length);
+		os.write(data, offset, length);
+	}
+	
+	/**
+	 * Blocks until the next batch is fully received.
+	 * 
+	 * @return the batch content, or null if the stream was closed by the server.
+	 * @throws IOException if the stream is truncated or broken.
+	 */
+	public InputStream nextFrame() throws IOException {
+		for (;;) {
+			int b0 = in.read();
+			if (b0 == -1)
+				return null;
+			
+			int length = (b0 << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+			if (length < 0 || length > maxFrameSize)
+				throw new IOException("Illegal frame length: " + length);
+			if (length == 0)
+				continue;
+			
+			byte[] frame = new byte[length];
+			int position = 0;
+			while (position < length) {
+				int read = in.read(frame, position, length - position);
+				if (read == -1)
+					throw new EOFException("Truncated frame");
+				position += read;
+			}
+			return new ByteArrayInputStream(frame);
+		}
+	}
+	
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b == -1)
+			throw new EOFException("Truncated frame length");
+		return b;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Envelope packing several encoded messages in a single WebSocket binary frame:
+ * 
+ * <pre>
+ * 'G' 'D' 'S' 'E' | count (int32) | length (int32) | message bytes | length (int32) | message bytes ...
+ * </pre>
+ * 
+ * All integers are big-endian. Frames that don't start with the magic bytes hold a single message.
+ */
+public class WebSocketEnvelope {
+	
+	public static final int HEADER_SIZE = 8;
+	
+	private static final byte[] MAGIC = {'G', 'D', 'S', 'E'};
+	
+	public static boolean isEnvelope(byte[] data, int offset, int length) {
+		if (length < HEADER_SIZE)
+			return false;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (data[offset + i] != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the magic bytes and a message count placeholder, to be set with {@link #setInt(byte[], int, int)}
+	 * at the offset where the header starts plus 4.
+	 */
+	public static void writeHeader(OutputStream os) throws IOException {
+		os.write(MAGIC);
+		writeInt(os, 0);
+	}
+	
+	public static void writeInt(OutputStream os, int value) throws IOException {
+		os.write(value >>> 24);
+		os.write(value >>> 16);
+		os.write(value >>> 8);
+		os.write(value);
+	}
+	
+	public static void setInt(byte[] data, int offset, int value) {
+		data[offset] = (byte)(value >>> 24);
+		data[offset + 1] = (byte)(value >>> 16);
+		data[offset + 2] = (byte)(value >>> 8);
+		data[offset + 3] = (byte)value;
+	}
+	
+	public static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+	
+	/**
+	 * Splits an envelope.
+	 * 
+	 * @return the offsets and lengths of the packed messages (offset0, length0, offset1, length1...).
+	 * @throws IOException if the envelope is truncated.
+	 */
+	public static int[] split(byte[] data, int offset, int length) throws IOException {
+		if (!isEnvelope(data, offset, length))
+			throw new IOException("Not an envelope");
+		
+		int end = offset + length;
+		int count = getInt(data, offset + MAGIC.length);
+		if (count < 0 || count > (length - HEADER_SIZE) / 4)
+			throw new IOException("Illegal message count: " + count);
+		
+		int[] messages = new int[count * 2];
+		int position = offset + HEADER_SIZE;
+		for (int i = 0; i < count; i++) {
+			if (position + 4 > end)
+				throw new IOException("Truncated envelope");
+			int messageLength = getInt(data, position);
+			position += 4;
+			if (messageLength < 0 || position + messageLength > end)
+				throw new IOException("Truncated envelope");
+			messages[i * 2] = position;
+			messages[i * 2 + 1] = messageLength;
+			position += messageLength;
+		}
+		return messages;
+	}
+}
@@ -22,21 +22,38 @@ package org.granite.client.messaging.transport.apache;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
 import org.granite.client.messaging.channel.Channel;
+import org.granite.client.messaging.channel.MessagingChannel;
 import org.granite.client.messaging.transport.AbstractTransport;
+import org.granite.client.messaging.transport.CompressingOutputStream;
+import org.granite.client.messaging.transport.Compression;
 import org.granite.client.messaging.transport.HTTPTransport;
 import org.granite.client.messaging.transport.TransportException;
 import org.granite.client.messaging.transport.TransportFuture;
@@ -44,10 +61,25 @@ import org.granite.client.messaging.transport.TransportHttpStatusException;
 import org.granite.client.messaging.transport.TransportIOException;
 import org.granite.client.messaging.transport.TransportMessage;
 import org.granite.client.messaging.transport.TransportStateException;
+import org.granite.client.util.ChunkedOutputStream;
+import org.granite.client.util.KeyedSerialExecutor;
 import org.granite.logging.Logger;
 import org.granite.util.PublicByteArrayOutputStream;
 
 /**
+ * Apache HttpAsyncClient based transport.
+ * 
+ * <p>Message encoding, response decoding and listener dispatch are done by a dispatch executor
+ * instead of the caller and I/O reactor threads, so that a slow codec or listener doesn't stall
+ * other connections. Responses are dispatched in order per correlation (per channel for messaging
+ * channels, except for connect requests, per request otherwise). By default, a daemon pool of
+ * {@link #getDispatchThreads()} threads is created at start; setting a zero thread count and no
+ * executor restores the former behavior (everything runs in the reactor threads).</p>
+ * 
+ * <p>In streaming mode, a connect response is read as long as the server keeps it open: these
+ * exchanges are dispatched to a separate unbounded pool so that they never hold a dispatch
+ * thread.</p>
+ * 
  * @author Franck WOLFF
  */
 public class ApacheAsyncTransport extends AbstractTransport<Object> implements HTTPTransport {
@@ -57,6 +89,20 @@ public class ApacheAsyncTransport extends AbstractTransport<Object> implements H
 	private CloseableHttpAsyncClient httpClient = null;
 	private RequestConfig defaultRequestConfig = null;
 	
+	protected volatile Executor dispatchExecutor = null;
+	protected volatile int dispatchThreads = Runtime.getRuntime().availableProcessors();
+	
+	private ThreadPoolExecutor defaultDispatchExecutor = null;
+	private volatile KeyedSerialExecutor dispatcher = null;
+	private ThreadPoolExecutor streamExecutor = null;
+	private volatile KeyedSerialExecutor streamDispatcher = null;
+	
+	protected volatile boolean streaming = false;
+	protected volatile int streamingBufferSize = 16384;
+	
+	private final AtomicLong reactorBusyNanos = new AtomicLong();
+	private final AtomicLong reactorCallbacks = new AtomicLong();
+	
 	public ApacheAsyncTransport() {
 	}
 
@@ -72,6 +118,79 @@ public class ApacheAsyncTransport extends AbstractTransport<Object> implements H
 		this.defaultRequestConfig = defaultRequestConfig;
 	}
 
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+
+	/**
+	 * Sets the executor used for encoding, decoding and listener dispatch (eg. a bounded pool
+	 * shared between several transports). It is not shut down when this transport is stopped.
+	 * Takes effect at the next start.
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Enables streaming mode: messages are encoded into pooled chunks written as the connection
+	 * becomes writable (instead of a single growing array) and, when a dispatch executor is used,
+	 * successful responses are decoded while their content is still arriving.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public int getStreamingBufferSize() {
+		return streamingBufferSize;
+	}
+
+	/**
+	 * Sets the size of the buffer between the I/O reactor and a streamed response decoder.
+	 */
+	public void setStreamingBufferSize(int streamingBufferSize) {
+		if (streamingBufferSize <= 0)
+			throw new IllegalArgumentException("streamingBufferSize must be positive: " + streamingBufferSize);
+		this.streamingBufferSize = streamingBufferSize;
+	}
+
+	public int getDispatchThreads() {
+		return dispatchThreads;
+	}
+
+	/**
+	 * Sets the thread count of the default dispatch pool, used when no dispatch executor is set.
+	 * Zero means that responses are decoded and dispatched in the I/O reactor threads and
+	 * messages are encoded in the caller thread. Takes effect at the next start.
+	 */
+	public void setDispatchThreads(int dispatchThreads) {
+		if (dispatchThreads < 0)
+			throw new IllegalArgumentException("dispatchThreads cannot be negative: " + dispatchThreads);
+		this.dispatchThreads = dispatchThreads;
+	}
+	
+	/**
+	 * @return the number of encoding and dispatch tasks waiting for a thread.
+	 */
+	public int getDispatchQueueDepth() {
+		KeyedSerialExecutor dispatcher = this.dispatcher;
+		return (dispatcher != null ? dispatcher.getQueueDepth() : 0);
+	}
+	
+	/**
+	 * @return the cumulated time spent by the I/O reactor threads in response callbacks.
+	 */
+	public long getReactorBusyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(reactorBusyNanos.get());
+	}
+	
+	public long getReactorCallbacks() {
+		return reactorCallbacks.get();
+	}
+
 	protected synchronized CloseableHttpAsyncClient getCloseableHttpAsyncClient() {
 		return httpClient;
 	}
@@ -95,11 +214,21 @@ public class ApacheAsyncTransport extends AbstractTransport<Object> implements H
 			
 			httpClient.start();
 			
+			Executor executor = dispatchExecutor;
+			if (executor == null && dispatchThreads > 0)
+				executor = defaultDispatchExecutor = newDefaultDispatchExecutor(dispatchThreads);
+			dispatcher = (executor != null ? new KeyedSerialExecutor(executor) : null);
+			if (executor != null) {
+				streamExecutor = newStreamExecutor();
+				streamDispatcher = new KeyedSerialExecutor(streamExecutor);
+			}
+			
 			log.info("Apache HttpAsyncClient transport started.");
 			return true;
 		}
 		catch (Exception e) {
 			httpClient = null;
+			shutdownDispatcher();
 			getStatusHandler().handleException(new TransportException("Could not start Apache HttpAsyncClient", e));
 
 			log.error(e, "Apache HttpAsyncClient failed to start.");
@@ -124,91 +253,304 @@ public class ApacheAsyncTransport extends AbstractTransport<Object> implements H
 		if (!message.isConnect())
 			getStatusHandler().handleIO(true);
 		
-		try {
-		    HttpPost request = new HttpPost(channel.getUri());
-			request.setHeader("Content-Type", message.getContentType());
-			request.setHeader("GDSClientType", message.getClientType().toString());
-			
-			PublicByteArrayOutputStream os = new PublicByteArrayOutputStream(512);
+		final KeyedSerialExecutor dispatcher = this.dispatcher;
+		if (dispatcher == null) {
 			try {
-				message.encode(os);
+				return new DeferredTransportFuture(execute(httpClient, channel, message, null));
 			}
-			catch (IOException e) {
-				throw new TransportException("Message serialization failed: " + message.getId(), e);
+			catch (Exception e) {
+				throw requestFailed(message, e);
 			}
-			request.setEntity(new ByteArrayEntity(os.getBytes(), 0, os.size()));
-			
-			final Future<HttpResponse> future = httpClient.execute(request, new FutureCallback<HttpResponse>() {
-	
-	            public void completed(HttpResponse response) {
-	            	if (!message.isConnect())
-	            		getStatusHandler().handleIO(false);
-	            	
-	            	if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-	            		channel.onError(message, new TransportHttpStatusException(
-	            			response.getStatusLine().getStatusCode(),
-	            			response.getStatusLine().getReasonPhrase())
-	            		);
-	            		return;
-	            	}
-	            	
-	        		InputStream is = null;
-	        		try {
-	        			is = response.getEntity().getContent();
-	        			channel.onMessage(is);
-	        		}
-	        		catch (Exception e) {
-		            	getStatusHandler().handleException(new TransportIOException(message, "Could not deserialize message", e));
-					}
-	        		finally {
-	        			if (is != null) try {
-	        				is.close();
-	        			}
-	        			catch (Exception e) {
-	        			}
-	        		}
-	            }
-	
-	            public void failed(Exception e) {
+		}
+		
+		final CloseableHttpAsyncClient client = httpClient;
+		final Object key = getDispatchKey(channel, message);
+		final DeferredTransportFuture transportFuture = new DeferredTransportFuture(null);
+		
+		dispatcher.execute(key, new Runnable() {
+			@Override
+			public void run() {
+				if (transportFuture.isCancelled()) {
 	            	if (!message.isConnect())
 	            		getStatusHandler().handleIO(false);
+	            	return;
+				}
+				
+				try {
+					transportFuture.setFuture(execute(client, channel, message, dispatcher));
+				}
+				catch (Exception e) {
+					channel.onError(message, requestFailed(message, e));
+				}
+			}
+		});
+		
+		return transportFuture;
+	}
 	
-	            	channel.onError(message, e);
-	            	getStatusHandler().handleException(new TransportIOException(message, "Request failed", e));
-	            }
+	protected Object getDispatchKey(Channel channel, TransportMessage message) {
+		// A streamed connect response may stay open indefinitely: it must not hold up other responses.
+		return (channel instanceof MessagingChannel && !message.isConnect() ? channel : message.getId());
+	}
 	
-	            public void cancelled() {
-	            	if (!message.isConnect())
-	            		getStatusHandler().handleIO(false);
-	            	
-	            	channel.onCancelled(message);
-	            }
-	        });
+	protected ThreadPoolExecutor newDefaultDispatchExecutor(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			threads, threads, 60L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new DispatchThreadFactory("GraniteDS-dispatch-")
+		);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	protected ThreadPoolExecutor newStreamExecutor() {
+		return new ThreadPoolExecutor(
+			0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(),
+			new DispatchThreadFactory("GraniteDS-stream-")
+		);
+	}
+	
+	private Future<HttpResponse> execute(CloseableHttpAsyncClient httpClient, final Channel channel, final TransportMessage message, KeyedSerialExecutor dispatcher)
+		throws TransportException {
+		
+		boolean streaming = this.streaming;
+		
+		// A streamed connect response blocks its reader until the server closes it.
+		if (streaming && dispatcher != null && message.isConnect()) {
+			KeyedSerialExecutor streamDispatcher = this.streamDispatcher;
+			if (streamDispatcher != null)
+				dispatcher = streamDispatcher;
+		}
+		
+	    HttpPost request = new HttpPost(channel.getUri());
+		request.setHeader("Content-Type", message.getContentType());
+		request.setHeader("GDSClientType", message.getClientType().toString());
+		
+		if (isCompressionEnabled())
+			request.setHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+		
+		final ExchangeCallback callback = new ExchangeCallback(channel, message, dispatcher);
+		
+		if (!streaming) {
+			PublicByteArrayOutputStream os = new PublicByteArrayOutputStream(512);
+			try {
+				if (encode(channel, message, os))
+					request.setHeader("Content-Encoding", Compression.GZIP);
+			}
+			catch (IOException e) {
+				throw new TransportException("Message serialization failed: " + message.getId(), e);
+			}
+			request.setEntity(new ByteArrayEntity(os.getBytes(), 0, os.size()));
 			
-			return new TransportFuture() {
+			return httpClient.execute(request, callback);
+		}
+		
+		ChunkedOutputStream os = new ChunkedOutputStream();
+		try {
+			if (encode(channel, message, os))
+				request.setHeader("Content-Encoding", Compression.GZIP);
+		}
+		catch (IOException e) {
+			os.release();
+			throw new TransportException("Message serialization failed: " + message.getId(), e);
+		}
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentLength(os.size());
+		entity.setContentType(message.getContentType());
+		request.setEntity(entity);
+		
+		callback.producer = new ChunkedContentProducer(os);
+		HttpAsyncRequestProducer requestProducer = new StreamingRequestProducer(request, callback.producer);
+		
+		// Decoding a stream blocks until data arrives: this can't be done in the I/O reactor.
+		HttpAsyncResponseConsumer<HttpResponse> responseConsumer;
+		if (dispatcher != null) {
+			responseConsumer = callback.consumer = new StreamingResponseConsumer(streamingBufferSize) {
 				@Override
-				public boolean cancel() {
-					boolean cancelled = false;
-					try {
-						cancelled = future.cancel(true);
-					}
-					catch (Exception e) {
-						log.error(e, "Cancel request failed");
-					}
-					return cancelled;
+				protected void onStream(final HttpResponse response, final InputStream content) {
+					callback.dispatch(new Runnable() {
+						@Override
+						public void run() {
+							onStreamed(channel, message, response, content);
+						}
+					});
 				}
 			};
 		}
+		else
+			responseConsumer = HttpAsyncMethods.createConsumer();
+		
+		return httpClient.execute(requestProducer, responseConsumer, callback);
+	}
+	
+	private boolean encode(Channel channel, TransportMessage message, OutputStream os) throws IOException {
+		int threshold = compressionThreshold;
+		if (threshold < 0) {
+			message.encode(os);
+			return false;
+		}
+		
+		CompressingOutputStream cos = new CompressingOutputStream(os, threshold, getCompressionStats(channel));
+		message.encode(cos);
+		cos.finish();
+		return cos.isCompressed();
+	}
+	
+	private InputStream decode(Channel channel, HttpResponse response, InputStream is) throws IOException {
+		Header contentEncoding = response.getFirstHeader("Content-Encoding");
+		if (contentEncoding == null)
+			return is;
+		return Compression.decompress(is, contentEncoding.getValue(), getCompressionStats(channel));
+	}
+	
+	private class ExchangeCallback implements FutureCallback<HttpResponse> {
+		
+		private final Channel channel;
+		private final TransportMessage message;
+		private final KeyedSerialExecutor dispatcher;
+		private final Object key;
+		
+		ChunkedContentProducer producer = null;
+		StreamingResponseConsumer consumer = null;
+		
+		public ExchangeCallback(Channel channel, TransportMessage message, KeyedSerialExecutor dispatcher) {
+			this.channel = channel;
+			this.message = message;
+			this.dispatcher = dispatcher;
+			this.key = (dispatcher != null ? getDispatchKey(channel, message) : null);
+		}
+
+        public void completed(final HttpResponse response) {
+        	release();
+        	
+        	if (consumer != null && consumer.isStreamed()) {
+        		// Content already dispatched to the channel by onStreamed.
+            	if (!message.isConnect())
+            		getStatusHandler().handleIO(false);
+            	return;
+        	}
+        	
+        	dispatch(new Runnable() {
+        		@Override
+        		public void run() {
+        			onCompleted(channel, message, response);
+        		}
+        	});
+        }
+
+        public void failed(final Exception e) {
+        	release();
+        	
+        	dispatch(new Runnable() {
+        		@Override
+        		public void run() {
+        			onFailed(channel, message, e);
+        		}
+        	});
+        }
+
+        public void cancelled() {
+        	release();
+        	
+        	dispatch(new Runnable() {
+        		@Override
+        		public void run() {
+        			onCancelled(channel, message);
+        		}
+        	});
+        }
+        
+        private void release() {
+        	if (producer != null)
+        		producer.release();
+        }
+        
+        void dispatch(Runnable task) {
+        	long start = System.nanoTime();
+        	try {
+        		if (dispatcher != null)
+        			dispatcher.execute(key, task);
+        		else
+        			task.run();
+        	}
+        	finally {
+        		reactorBusyNanos.addAndGet(System.nanoTime() - start);
+        		reactorCallbacks.incrementAndGet();
+        	}
+        }
+	}
+	
+	private void onStreamed(Channel channel, TransportMessage message, HttpResponse response, InputStream is) {
+		try {
+			is = decode(channel, response, is);
+			channel.onMessage(message, is);
+		}
 		catch (Exception e) {
-        	if (!message.isConnect())
-        		getStatusHandler().handleIO(false);
-			
-			TransportIOException f = new TransportIOException(message, "Request failed", e);
-        	getStatusHandler().handleException(f);
-			throw f;
+        	getStatusHandler().handleException(new TransportIOException(message, "Could not deserialize message", e));
+		}
+		finally {
+			try {
+				is.close();
+			}
+			catch (Exception e) {
+			}
+		}
+	}
+	
+	private void onCompleted(Channel channel, TransportMessage message, HttpResponse response) {
+    	if (!message.isConnect())
+    		getStatusHandler().handleIO(false);
+    	
+    	if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+    		channel.onError(message, new TransportHttpStatusException(
+    			response.getStatusLine().getStatusCode(),
+    			response.getStatusLine().getReasonPhrase())
+    		);
+    		return;
+    	}
+    	
+		InputStream is = null;
+		try {
+			is = decode(channel, response, response.getEntity().getContent());
+			channel.onMessage(message, is);
+		}
+		catch (Exception e) {
+        	getStatusHandler().handleException(new TransportIOException(message, "Could not deserialize message", e));
+		}
+		finally {
+			if (is != null) try {
+				is.close();
+			}
+			catch (Exception e) {
+			}
 		}
 	}
 	
+	private void onFailed(Channel channel, TransportMessage message, Exception e) {
+    	if (!message.isConnect())
+    		getStatusHandler().handleIO(false);
+
+    	channel.onError(message, e);
+    	getStatusHandler().handleException(new TransportIOException(message, "Request failed", e));
+	}
+	
+	private void onCancelled(Channel channel, TransportMessage message) {
+    	if (!message.isConnect())
+    		getStatusHandler().handleIO(false);
+    	
+    	channel.onCancelled(message);
+	}
+	
+	private TransportIOException requestFailed(TransportMessage message, Exception e) {
+    	if (!message.isConnect())
+    		getStatusHandler().handleIO(false);
+		
+		TransportIOException f = new TransportIOException(message, "Request failed", e);
+    	getStatusHandler().handleException(f);
+		return f;
+	}
+	
 	public synchronized void poll(final Channel channel, final TransportMessage message) throws TransportException {
 		throw new TransportException("Not implemented");
 	}
@@ -232,8 +574,78 @@ public class ApacheAsyncTransport extends AbstractTransport<Object> implements H
 		}
 		finally {
 			httpClient = null;
+			shutdownDispatcher();
 		}
 		
 		log.info("Apache HttpAsyncClient transport stopped.");
 	}
+	
+	private void shutdownDispatcher() {
+		dispatcher = null;
+		streamDispatcher = null;
+		if (defaultDispatchExecutor != null) {
+			defaultDispatchExecutor.shutdown();
+			defaultDispatchExecutor = null;
+		}
+		if (streamExecutor != null) {
+			streamExecutor.shutdown();
+			streamExecutor = null;
+		}
+	}
+	
+	private static class DeferredTransportFuture implements TransportFuture {
+		
+		private Future<HttpResponse> future;
+		private boolean cancelled = false;
+		
+		public DeferredTransportFuture(Future<HttpResponse> future) {
+			this.future = future;
+		}
+		
+		public synchronized void setFuture(Future<HttpResponse> future) {
+			if (cancelled)
+				future.cancel(true);
+			else
+				this.future = future;
+		}
+		
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public synchronized boolean cancel() {
+			if (future == null) {
+				// Not sent yet (waiting for the dispatch executor).
+				cancelled = true;
+				return true;
+			}
+			
+			try {
+				cancelled = future.cancel(true);
+			}
+			catch (Exception e) {
+				log.error(e, "Cancel request failed");
+			}
+			return cancelled;
+		}
+	}
+	
+	private static class DispatchThreadFactory implements ThreadFactory {
+		
+		private static final AtomicInteger count = new AtomicInteger();
+		
+		private final String prefix;
+		
+		public DispatchThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
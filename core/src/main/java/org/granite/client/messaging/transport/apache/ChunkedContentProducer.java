@@ -0,0 +1,80 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport.apache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.granite.client.util.ChunkedOutputStream;
+
+/**
+ * Writes the chunks of an encoded message to the connection as it becomes writable, without
+ * copying them into a single array. The chunks go back to their pool when the producer is closed.
+ */
+public class ChunkedContentProducer implements HttpAsyncContentProducer {
+	
+	private final ChunkedOutputStream content;
+	private int index = 0;
+	private ByteBuffer chunk = null;
+	
+	public ChunkedContentProducer(ChunkedOutputStream content) {
+		this.content = content;
+	}
+	
+	public long getContentLength() {
+		return content.size();
+	}
+
+	@Override
+	public synchronized void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+		for (;;) {
+			if (chunk == null || !chunk.hasRemaining()) {
+				if (index >= content.getChunkCount()) {
+					encoder.complete();
+					return;
+				}
+				chunk = content.getChunk(index++);
+			}
+			
+			encoder.write(chunk);
+			if (chunk.hasRemaining())
+				return; // Channel is full, wait for the next write event.
+		}
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		index = 0;
+		chunk = null;
+	}
+	
+	public synchronized void release() {
+		content.release();
+	}
+}
@@ -0,0 +1,37 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport.apache;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+
+/**
+ * Sends a POST request whose content is written by a {@link ChunkedContentProducer}. This subclass
+ * only exists to reach the protected {@link BasicAsyncRequestProducer} constructor that takes a
+ * content producer.
+ */
+public class StreamingRequestProducer extends BasicAsyncRequestProducer {
+
+	public StreamingRequestProducer(HttpPost request, ChunkedContentProducer producer) {
+		super(URIUtils.extractHost(request.getURI()), request, producer);
+	}
+}
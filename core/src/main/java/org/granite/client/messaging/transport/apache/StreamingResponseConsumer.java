@@ -0,0 +1,115 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.messaging.transport.apache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.util.HeapByteBufferAllocator;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Exposes the body of a successful response as an input stream as soon as its headers are received,
+ * so that it can be decoded while the rest of the content arrives. The stream must be read from
+ * another thread than the I/O reactor: the reactor suspends input when the buffer is full and
+ * reading resumes it.
+ * 
+ * <p>Bodies of non successful responses are discarded.</p>
+ */
+public abstract class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+	
+	private final int bufferSize;
+	
+	private volatile HttpResponse response = null;
+	private volatile SharedInputBuffer buffer = null;
+	private ByteBuffer discard = null;
+	private boolean completed = false;
+	
+	public StreamingResponseConsumer(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Called in the I/O reactor thread when the headers of a successful response are received.
+	 * Implementations must hand the stream off to another thread.
+	 */
+	protected abstract void onStream(HttpResponse response, InputStream content);
+	
+	public boolean isStreamed() {
+		return buffer != null;
+	}
+	
+	@Override
+	protected void onResponseReceived(HttpResponse response) {
+		this.response = response;
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+			return;
+		
+		SharedInputBuffer buffer = new SharedInputBuffer(bufferSize, HeapByteBufferAllocator.INSTANCE);
+		this.buffer = buffer;
+		onStream(response, new ContentInputStream(buffer));
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		SharedInputBuffer buffer = this.buffer;
+		if (buffer != null) {
+			buffer.consumeContent(decoder, ioctrl);
+			return;
+		}
+		
+		if (discard == null)
+			discard = ByteBuffer.allocate(2048);
+		do {
+			discard.clear();
+		}
+		while (decoder.read(discard) > 0);
+	}
+
+	@Override
+	protected HttpResponse buildResult(HttpContext context) {
+		completed = true;
+		return response;
+	}
+
+	@Override
+	protected void releaseResources() {
+		// Unblocks the reader if the exchange failed or was cancelled before the end of the content.
+		SharedInputBuffer buffer = this.buffer;
+		if (buffer != null && !completed)
+			buffer.shutdown();
+		discard = null;
+	}
+}
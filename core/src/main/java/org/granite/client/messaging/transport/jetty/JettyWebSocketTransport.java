@@ -22,9 +22,18 @@ package org.granite.client.messaging.transport.jetty;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jetty.websocket.WebSocket.Connection;
@@ -33,10 +42,15 @@ import org.eclipse.jetty.websocket.WebSocketClient;
 import org.eclipse.jetty.websocket.WebSocketClientFactory;
 import org.granite.client.messaging.channel.Channel;
 import org.granite.client.messaging.transport.AbstractTransport;
+import org.granite.client.messaging.transport.CompressingOutputStream;
+import org.granite.client.messaging.transport.Compression;
 import org.granite.client.messaging.transport.TransportException;
 import org.granite.client.messaging.transport.TransportFuture;
+import org.granite.client.messaging.transport.TransportIOException;
 import org.granite.client.messaging.transport.TransportMessage;
+import org.granite.client.messaging.transport.WebSocketEnvelope;
 import org.granite.client.messaging.transport.WebSocketTransport;
+import org.granite.client.util.HashedWheelTimer;
 import org.granite.logging.Logger;
 import org.granite.util.PublicByteArrayOutputStream;
 
@@ -54,17 +68,117 @@ public class JettyWebSocketTransport extends AbstractTransport<Object> implement
 	
 	private WebSocketClientFactory webSocketClientFactory = null;
 
-	private Future<Connection> connectionFuture = null;
-	private boolean connected = false;
+	private final Random random = new Random();
 	
 	private int maxIdleTime = 3000000;
-	private int reconnectMaxAttempts = 5;
-	private int reconnectIntervalMillis = 60000;
+	private volatile int reconnectMaxAttempts = 10;
+	private volatile long reconnectIntervalMillis = 1000L;
+	private volatile long reconnectMaxIntervalMillis = 60000L;
+	private volatile int maxPendingMessages = 1000;
+	
+	private static final int WRITE_BUFFER_SIZE = 4096;
+	
+	private volatile ExecutorService writer = null;
+	private PublicByteArrayOutputStream writeBuffer = new PublicByteArrayOutputStream(WRITE_BUFFER_SIZE);
+	
+	protected volatile boolean writeCoalescing = false;
+	protected volatile int maxBatchMessages = 64;
+	protected volatile int maxFrameSize = 65536;
 	
 	public void setMaxIdleTime(int maxIdleTime) {
 		this.maxIdleTime = maxIdleTime;
 	}
 	
+	public int getReconnectMaxAttempts() {
+		return reconnectMaxAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of reconnect attempts (10 by default, 5 in previous versions, which
+	 * waited a fixed 60s between attempts). With the default delays, the last attempt still happens
+	 * at most about five minutes after the disconnection.
+	 */
+	public void setReconnectMaxAttempts(int reconnectMaxAttempts) {
+		if (reconnectMaxAttempts < 0)
+			throw new IllegalArgumentException("reconnectMaxAttempts cannot be negative: " + reconnectMaxAttempts);
+		this.reconnectMaxAttempts = reconnectMaxAttempts;
+	}
+
+	public long getReconnectIntervalMillis() {
+		return reconnectIntervalMillis;
+	}
+
+	/**
+	 * Sets the base reconnect delay (1s by default), doubled after each failed attempt up to the
+	 * maximum interval (60s by default). Each actual delay is a random value between 0 and this
+	 * exponential delay.
+	 */
+	public void setReconnectIntervalMillis(long reconnectIntervalMillis) {
+		if (reconnectIntervalMillis < 0L)
+			throw new IllegalArgumentException("reconnectIntervalMillis cannot be negative: " + reconnectIntervalMillis);
+		this.reconnectIntervalMillis = reconnectIntervalMillis;
+	}
+
+	public long getReconnectMaxIntervalMillis() {
+		return reconnectMaxIntervalMillis;
+	}
+
+	public void setReconnectMaxIntervalMillis(long reconnectMaxIntervalMillis) {
+		if (reconnectMaxIntervalMillis < 0L)
+			throw new IllegalArgumentException("reconnectMaxIntervalMillis cannot be negative: " + reconnectMaxIntervalMillis);
+		this.reconnectMaxIntervalMillis = reconnectMaxIntervalMillis;
+	}
+
+	public int getMaxPendingMessages() {
+		return maxPendingMessages;
+	}
+
+	/**
+	 * Sets the maximum number of messages buffered while the connection is not open. Messages
+	 * sent when this limit is reached fail immediately.
+	 */
+	public void setMaxPendingMessages(int maxPendingMessages) {
+		if (maxPendingMessages <= 0)
+			throw new IllegalArgumentException("maxPendingMessages must be positive: " + maxPendingMessages);
+		this.maxPendingMessages = maxPendingMessages;
+	}
+
+	public boolean isWriteCoalescing() {
+		return writeCoalescing;
+	}
+
+	/**
+	 * Enables packing of pending messages in a single frame (see {@link WebSocketEnvelope}). The
+	 * server must be able to split these envelopes.
+	 */
+	public void setWriteCoalescing(boolean writeCoalescing) {
+		this.writeCoalescing = writeCoalescing;
+	}
+
+	public int getMaxBatchMessages() {
+		return maxBatchMessages;
+	}
+
+	public void setMaxBatchMessages(int maxBatchMessages) {
+		if (maxBatchMessages <= 0)
+			throw new IllegalArgumentException("maxBatchMessages must be positive: " + maxBatchMessages);
+		this.maxBatchMessages = maxBatchMessages;
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	/**
+	 * Sets the size above which no more messages are packed in a frame (a single message may
+	 * still exceed it).
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0)
+			throw new IllegalArgumentException("maxFrameSize must be positive: " + maxFrameSize);
+		this.maxFrameSize = maxFrameSize;
+	}
+	
 	@Override
 	public synchronized boolean start() {
 		if (isStarted())
@@ -77,6 +191,15 @@ public class JettyWebSocketTransport extends AbstractTransport<Object> implement
 			webSocketClientFactory.setBufferSize(4096);
 			webSocketClientFactory.start();
 			
+			writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "GraniteDS-websocket-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			
 			final long timeout = System.currentTimeMillis() + 10000L; // 10sec.
 			while (!webSocketClientFactory.isStarted()) {
 				if (System.currentTimeMillis() > timeout)
@@ -89,6 +212,10 @@ public class JettyWebSocketTransport extends AbstractTransport<Object> implement
 		}
 		catch (Exception e) {
 			webSocketClientFactory = null;
+			if (writer != null) {
+				writer.shutdown();
+				writer = null;
+			}
 			getStatusHandler().handleException(new TransportException("Could not start Jetty WebSocketFactory", e));
 			
 			log.error(e, "Jetty WebSocketClient transport failed to start.");
@@ -105,41 +232,128 @@ public class JettyWebSocketTransport extends AbstractTransport<Object> implement
 
 		synchronized (channel) {
 
-			TransportData transportData = channel.getTransportData();
-			if (transportData == null) {
-				transportData = new TransportData();
-				channel.setTransportData(transportData);
-			}
+			TransportData transportData = getTransportData(channel);
 			
 			if (message != null) {
 				if (message.isConnect())
-					connectMessage = message;
+					transportData.connectMessage = message;
+				else if (transportData.pendingMessages.size() >= maxPendingMessages) {
+					// Don't block the caller (nor buffer without limit) while the connection is down.
+					channel.onError(message, new TransportException("Too many pending messages: " + maxPendingMessages));
+					return null;
+				}
 				else
 					transportData.pendingMessages.addLast(message);
 			}
 			
 			if (transportData.connection == null) {
-				connect(channel, message);
+				// Reconnection is driven by the reconnect timer while backing off.
+				if (transportData.state != ConnectionState.BACKOFF)
+					connect(channel, message);
 				return null;
 			}
 
-			while (!transportData.pendingMessages.isEmpty()) {
-				TransportMessage pendingMessage = transportData.pendingMessages.removeFirst();
-				try {
-					PublicByteArrayOutputStream os = new PublicByteArrayOutputStream(256);
-					pendingMessage.encode(os);
-					byte[] data = os.getBytes();
-					transportData.connection.sendMessage(data, 0, os.size());
+			// Encoding and socket writes are done by the writer thread, outside of the channel monitor.
+			if (!transportData.pendingMessages.isEmpty() && !transportData.writing) {
+				transportData.writing = true;
+				scheduleWrite(channel, transportData);
+			}
+		}
+		
+		return null;
+	}
+	
+	private void scheduleWrite(final Channel channel, final TransportData transportData) {
+		ExecutorService writer = this.writer;
+		try {
+			if (writer == null)
+				throw new RejectedExecutionException("Transport stopped");
+			
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					write(channel, transportData);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			transportData.writing = false;
+		}
+	}
+	
+	private void write(Channel channel, TransportData transportData) {
+		for (;;) {
+			Connection connection;
+			List<TransportMessage> batch = new ArrayList<TransportMessage>();
+			
+			synchronized (channel) {
+				connection = transportData.connection;
+				if (connection == null || transportData.pendingMessages.isEmpty()) {
+					transportData.writing = false;
+					return;
+				}
+				
+				int max = (writeCoalescing ? maxBatchMessages : 1);
+				while (batch.size() < max && !transportData.pendingMessages.isEmpty())
+					batch.add(transportData.pendingMessages.removeFirst());
+			}
+			
+			try {
+				writeBatch(channel, connection, batch);
+			}
+			catch (IOException e) {
+				synchronized (channel) {
+					transportData.pendingMessages.addAll(0, batch);
+					transportData.writing = false;
 				}
-				catch (IOException e) {
-					transportData.pendingMessages.addFirst(pendingMessage);
-					// report error...
-					break;
+				getStatusHandler().handleException(new TransportIOException(batch.get(0), "Could not send message", e));
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Sends a batch of messages, packing them in envelopes when write coalescing is enabled.
+	 * Messages are removed from the batch as they are sent.
+	 */
+	private void writeBatch(Channel channel, Connection connection, List<TransportMessage> batch) throws IOException {
+		PublicByteArrayOutputStream os = writeBuffer;
+		
+		while (!batch.isEmpty()) {
+			os.reset();
+			
+			int count = 0;
+			if (batch.size() == 1)
+				encode(channel, batch.get(count++), os);
+			else {
+				WebSocketEnvelope.writeHeader(os);
+				while (count < batch.size() && (count == 0 || os.size() < maxFrameSize)) {
+					int lengthOffset = os.size();
+					WebSocketEnvelope.writeInt(os, 0);
+					encode(channel, batch.get(count++), os);
+					WebSocketEnvelope.setInt(os.getBytes(), lengthOffset, os.size() - lengthOffset - 4);
 				}
+				WebSocketEnvelope.setInt(os.getBytes(), 4, count);
 			}
+			
+			connection.sendMessage(os.getBytes(), 0, os.size());
+			batch.subList(0, count).clear();
 		}
 		
-		return null;
+		// Don't keep an oversized buffer after an unusually large message.
+		if (os.getBytes().length > maxFrameSize * 2)
+			writeBuffer = new PublicByteArrayOutputStream(WRITE_BUFFER_SIZE);
+	}
+	
+	private void encode(Channel channel, TransportMessage message, OutputStream os) throws IOException {
+		int threshold = compressionThreshold;
+		if (threshold < 0)
+			message.encode(os);
+		else {
+			CompressingOutputStream cos = new CompressingOutputStream(os, threshold, getCompressionStats(channel));
+			message.encode(cos);
+			cos.finish();
+		}
 	}
 	
 	@Override
@@ -147,115 +361,235 @@ public class JettyWebSocketTransport extends AbstractTransport<Object> implement
 		send(channel, message);
 	}
 	
-	private int reconnectAttempts = 0;
-	private TransportMessage connectMessage = null;
-
-	public Future<Connection> connect(final Channel channel, final TransportMessage transportMessage) {
-		if (connectionFuture != null)
-			return connectionFuture;
+	public Future<Connection> connect(final Channel channel, TransportMessage transportMessage) {
+		Exception error;
 		
-		connected = true;
-		
-		URI uri = channel.getUri();
-		
-		try {		
-			WebSocketClient webSocketClient = webSocketClientFactory.newWebSocketClient();
-			webSocketClient.setMaxIdleTime(maxIdleTime);
-			webSocketClient.setMaxTextMessageSize(1024);
-			webSocketClient.setProtocol("org.granite.gravity");
+		synchronized (channel) {
+			final TransportData transportData = getTransportData(channel);
 			
-			if (transportMessage.getSessionId() != null)
-				webSocketClient.getCookies().put("JSESSIONID", transportMessage.getSessionId());
+			if (transportData.connectionFuture != null)
+				return transportData.connectionFuture;
 			
-			String u = uri.toString();
-			u += "?connectId=" + transportMessage.getId() + "&GDSClientType=" + transportMessage.getClientType();
-			if (transportMessage.getClientId() != null)
-				u += "&GDSClientId=" + transportMessage.getClientId();
-			else if (channel.getClientId() != null)
-				u += "&GDSClientId=" + channel.getClientId();
+			if (transportMessage == null)
+				transportMessage = transportData.connectMessage;
+			if (transportMessage == null)
+				return null;
+			if (transportData.connectMessage == null)
+				transportData.connectMessage = transportMessage;
 			
-			connectionFuture = webSocketClient.open(new URI(u), new OnBinaryMessage() {
+			cancelReconnect(transportData);
+			transportData.state = ConnectionState.CONNECTING;
+			
+			URI uri = channel.getUri();
+			
+			try {		
+				WebSocketClient webSocketClient = webSocketClientFactory.newWebSocketClient();
+				webSocketClient.setMaxIdleTime(maxIdleTime);
+				webSocketClient.setMaxTextMessageSize(1024);
+				webSocketClient.setProtocol("org.granite.gravity");
 				
-				@Override
-				public void onOpen(Connection connection) {
-					synchronized (channel) {
-						connectionFuture = null;
-						reconnectAttempts = 0;
-						((TransportData)channel.getTransportData()).connection = connection;
-						send(channel, null);
-					}
-				}
+				if (transportMessage.getSessionId() != null)
+					webSocketClient.getCookies().put("JSESSIONID", transportMessage.getSessionId());
 				
-				@Override
-				public void onMessage(byte[] data, int offset, int length) {
-					channel.onMessage(new ByteArrayInputStream(data, offset, length));
-				}
-	
-				@Override
-				public void onClose(int closeCode, String message) {
-					boolean waitBeforeReconnect = !(closeCode == CLOSE_NORMAL && message.startsWith("Idle"));
+				String u = uri.toString();
+				u += "?connectId=" + transportMessage.getId() + "&GDSClientType=" + transportMessage.getClientType();
+				if (transportMessage.getClientId() != null)
+					u += "&GDSClientId=" + transportMessage.getClientId();
+				else if (channel.getClientId() != null)
+					u += "&GDSClientId=" + channel.getClientId();
+				
+				final TransportMessage connectMessage = transportMessage;
+				transportData.connectionFuture = webSocketClient.open(new URI(u), new OnBinaryMessage() {
 					
-					synchronized (channel) {
-						// Mark the connection as close, the channel should reopen a connection for the next message
-						((TransportData)channel.getTransportData()).connection = null;
-						connectionFuture = null;
-						
-						if (!isStarted())
-							connected = false;
-						
-						if (closeCode == CLOSE_SHUTDOWN) {
-							connected = false;
-							return;
+					@Override
+					public void onOpen(Connection connection) {
+						synchronized (channel) {
+							transportData.connectionFuture = null;
+							transportData.reconnectAttempts = 0;
+							transportData.connection = connection;
+							transportData.state = ConnectionState.OPEN;
+							send(channel, null);
 						}
-						
-						if (channel.getClientId() == null) {
-							getStatusHandler().handleException(new TransportException("Transport could not connect code: " + closeCode + " " + message));
+					}
+					
+					@Override
+					public void onMessage(byte[] data, int offset, int length) {
+						if (!WebSocketEnvelope.isEnvelope(data, offset, length)) {
+							dispatchMessage(channel, data, offset, length);
 							return;
 						}
 						
-						if (connected) {
-							if (reconnectAttempts >= reconnectMaxAttempts) {
-								connected = false;
-								if (isStarted())
-									stop();
-								
-								channel.onError(transportMessage, new RuntimeException(message + " (code=" + closeCode + ")"));
-								getStatusHandler().handleException(new TransportException("Transport disconnected"));
-								return;
-							}
-							
-							if (waitBeforeReconnect) {
-								try {
-									waitBeforeReconnect = false;
-									Thread.sleep(reconnectIntervalMillis);
-								}
-								catch (InterruptedException e) {
-								}
-							}
-							
-							reconnectAttempts++;
-							
-							// If the channel should be connected, try to reconnect
-							log.info("Connection lost (code %d, msg %s), reconnect channel (retry #%d)", closeCode, message, reconnectAttempts);
-							connect(channel, connectMessage);
+						int[] messages;
+						try {
+							messages = WebSocketEnvelope.split(data, offset, length);
+						}
+						catch (IOException e) {
+							getStatusHandler().handleException(new TransportIOException(null, "Could not split messages", e));
+							return;
 						}
+						for (int i = 0; i < messages.length; i += 2)
+							dispatchMessage(channel, data, messages[i], messages[i + 1]);
 					}
-				}
-			});
-			
-			return connectionFuture;
+		
+					@Override
+					public void onClose(int closeCode, String message) {
+						onConnectionClosed(channel, transportData, connectMessage, closeCode, message);
+					}
+				});
+				
+				return transportData.connectionFuture;
+			}
+			catch (Exception e) {
+				transportData.connectionFuture = null;
+				getStatusHandler().handleException(new TransportException("Could not connect to uri " + channel.getUri(), e));
+				
+				if (scheduleReconnect(channel, transportData, false))
+					return null;
+				error = e;
+			}
 		}
-		catch (Exception e) {
-			getStatusHandler().handleException(new TransportException("Could not connect to uri " + channel.getUri(), e));
+		
+		// Maximum number of attempts reached, give up as when an open connection is lost
+		giveUp(channel, transportMessage, error);
+		return null;
+	}
+	
+	private void onConnectionClosed(Channel channel, TransportData transportData, TransportMessage connectMessage, int closeCode, String message) {
+		boolean idle = (closeCode == CLOSE_NORMAL && message != null && message.startsWith("Idle"));
+		boolean giveUp = false;
+		
+		synchronized (channel) {
+			// Mark the connection as closed, the channel should reopen a connection for the next message
+			transportData.connection = null;
+			transportData.connectionFuture = null;
+			
+			if (!isStarted() || closeCode == CLOSE_SHUTDOWN || transportData.state == ConnectionState.CLOSED) {
+				transportData.state = ConnectionState.CLOSED;
+				return;
+			}
+			
+			if (channel.getClientId() == null) {
+				transportData.state = ConnectionState.CLOSED;
+				getStatusHandler().handleException(new TransportException("Transport could not connect code: " + closeCode + " " + message));
+				return;
+			}
 			
-			return null;
+			log.info("Connection lost (code %d, msg %s), reconnect channel", closeCode, message);
+			giveUp = !scheduleReconnect(channel, transportData, idle);
 		}
+		
+		if (giveUp)
+			giveUp(channel, connectMessage, new RuntimeException(message + " (code=" + closeCode + ")"));
+	}
+	
+	private void giveUp(Channel channel, TransportMessage connectMessage, Exception cause) {
+		if (isStarted())
+			stop();
+		
+		channel.onError(connectMessage, cause);
+		getStatusHandler().handleException(new TransportException("Transport disconnected"));
+	}
+	
+	/**
+	 * Schedules the next connection attempt, after an exponential backoff delay with jitter (so that
+	 * clients disconnected at the same time by a server restart don't all come back at the same
+	 * time). Must be called while holding the channel monitor.
+	 * 
+	 * @return false if the maximum number of attempts is reached (the channel is then closed).
+	 */
+	private boolean scheduleReconnect(final Channel channel, final TransportData transportData, boolean immediate) {
+		if (transportData.reconnectAttempts >= reconnectMaxAttempts) {
+			transportData.state = ConnectionState.CLOSED;
+			return false;
+		}
+		
+		long delay = (immediate ? 0L : getReconnectDelay(transportData.reconnectAttempts));
+		transportData.reconnectAttempts++;
+		transportData.state = ConnectionState.BACKOFF;
+		
+		log.debug("Reconnect attempt #%d in %dms", transportData.reconnectAttempts, delay);
+		
+		HashedWheelTimer.Task task = new HashedWheelTimer.Task() {
+			@Override
+			public void run() {
+				synchronized (channel) {
+					if (transportData.reconnectTask != this || transportData.state != ConnectionState.BACKOFF)
+						return;
+					transportData.reconnectTask = null;
+				}
+				if (isStarted())
+					connect(channel, null);
+			}
+		};
+		transportData.reconnectTask = task;
+		HashedWheelTimer.getDefault().schedule(task, delay);
+		return true;
+	}
+	
+	private void cancelReconnect(TransportData transportData) {
+		if (transportData.reconnectTask != null) {
+			transportData.reconnectTask.cancel();
+			transportData.reconnectTask = null;
+		}
+	}
+	
+	protected long getReconnectDelay(int attempts) {
+		long delay = reconnectIntervalMillis << Math.min(attempts, 20);
+		if (delay <= 0L || delay > reconnectMaxIntervalMillis)
+			delay = reconnectMaxIntervalMillis;
+		
+		// "Full jitter": clients dropped together spread their attempts over the whole window.
+		return (long)(random.nextDouble() * delay);
+	}
+	
+	public ConnectionState getConnectionState(Channel channel) {
+		synchronized (channel) {
+			TransportData transportData = channel.getTransportData();
+			return (transportData != null ? transportData.state : ConnectionState.CLOSED);
+		}
+	}
+	
+	private TransportData getTransportData(Channel channel) {
+		TransportData transportData = channel.getTransportData();
+		if (transportData == null) {
+			transportData = new TransportData();
+			channel.setTransportData(transportData);
+		}
+		return transportData;
+	}
+	
+	private void dispatchMessage(Channel channel, byte[] data, int offset, int length) {
+		InputStream is = new ByteArrayInputStream(data, offset, length);
+		if (Compression.isGzip(data, offset, length)) {
+			try {
+				is = Compression.decompress(is, Compression.GZIP, getCompressionStats(channel));
+			}
+			catch (IOException e) {
+				getStatusHandler().handleException(new TransportIOException(null, "Could not decompress message", e));
+				return;
+			}
+		}
+		channel.onMessage(null, is);
+	}
+	
+	public static enum ConnectionState {
+		CONNECTING,
+		OPEN,
+		BACKOFF,
+		CLOSED
 	}
 	
 	private static class TransportData {
 		
 		private final LinkedList<TransportMessage> pendingMessages = new LinkedList<TransportMessage>();
 		private Connection connection = null;
+		private boolean writing = false;
+		
+		private ConnectionState state = ConnectionState.CLOSED;
+		private TransportMessage connectMessage = null;
+		private Future<Connection> connectionFuture = null;
+		private int reconnectAttempts = 0;
+		private HashedWheelTimer.Task reconnectTask = null;
 	}
 
 	@Override
@@ -277,6 +611,10 @@ public class JettyWebSocketTransport extends AbstractTransport<Object> implement
 		}
 		finally {
 			webSocketClientFactory = null;
+			if (writer != null) {
+				writer.shutdown();
+				writer = null;
+			}
 		}
 		
 		log.info("Jetty WebSocketClient transport stopped.");
@@ -0,0 +1,168 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2013 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.granite.messaging.reflect.Property;
+
+/**
+ * Immutable description of the persistence related properties of an entity class, computed once
+ * by {@link Persistence#getEntityDescriptor(Class)}. Special properties are null when the class
+ * doesn't have them.
+ */
+public final class EntityDescriptor {
+	
+	private final Class<?> type;
+	
+	private final Property idProperty;
+	private final Property uidProperty;
+	private final Property versionProperty;
+	private final Property initializedProperty;
+	private final Property detachedStateProperty;
+	
+	private final List<Property> properties;
+	private final List<Property> stateProperties;
+	private final List<Property> lazyProperties;
+	private final Map<String, Property> propertiesByName;
+	
+	// Properties returned by getPropertyValues, indexed by exclusion flags.
+	private final Property[][] valueProperties = new Property[8][];
+
+	EntityDescriptor(
+		Class<?> type,
+		Property idProperty,
+		Property uidProperty,
+		Property versionProperty,
+		Property initializedProperty,
+		Property detachedStateProperty,
+		List<Property> properties) {
+		
+		this.type = type;
+		this.idProperty = idProperty;
+		this.uidProperty = uidProperty;
+		this.versionProperty = versionProperty;
+		this.initializedProperty = initializedProperty;
+		this.detachedStateProperty = detachedStateProperty;
+		
+		List<Property> stateProperties = new ArrayList<Property>(properties.size());
+		List<Property> lazyProperties = new ArrayList<Property>();
+		Map<String, Property> propertiesByName = new HashMap<String, Property>(properties.size() * 2);
+		for (Property property : properties) {
+			propertiesByName.put(property.getName(), property);
+			if (property.equals(initializedProperty) || property.equals(detachedStateProperty))
+				continue;
+			stateProperties.add(property);
+			if (property.isAnnotationPresent(Lazy.class))
+				lazyProperties.add(property);
+		}
+		
+		this.properties = Collections.unmodifiableList(new ArrayList<Property>(properties));
+		this.stateProperties = Collections.unmodifiableList(stateProperties);
+		this.lazyProperties = Collections.unmodifiableList(lazyProperties);
+		this.propertiesByName = Collections.unmodifiableMap(propertiesByName);
+		
+		for (int flags = 0; flags < valueProperties.length; flags++)
+			valueProperties[flags] = computeValueProperties((flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0);
+	}
+	
+	private Property[] computeValueProperties(boolean excludeIdUid, boolean excludeVersion, boolean includeReadOnly) {
+		List<Property> valueProperties = new ArrayList<Property>(stateProperties.size());
+		for (Property property : stateProperties) {
+			if (excludeIdUid && (property.equals(idProperty) || property.equals(uidProperty)))
+				continue;
+			if (excludeVersion && property.equals(versionProperty))
+				continue;
+			if (!includeReadOnly && !property.isWritable())
+				continue;
+			valueProperties.add(property);
+		}
+		return valueProperties.toArray(new Property[valueProperties.size()]);
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public Property getIdProperty() {
+		return idProperty;
+	}
+
+	public Property getUidProperty() {
+		return uidProperty;
+	}
+
+	public Property getVersionProperty() {
+		return versionProperty;
+	}
+
+	public Property getInitializedProperty() {
+		return initializedProperty;
+	}
+
+	public Property getDetachedStateProperty() {
+		return detachedStateProperty;
+	}
+
+	/**
+	 * @return all serializable properties, in serialization order.
+	 */
+	public List<Property> getProperties() {
+		return properties;
+	}
+
+	/**
+	 * @return serializable properties without the initialized and detached state properties, in
+	 * serialization order.
+	 */
+	public List<Property> getStateProperties() {
+		return stateProperties;
+	}
+
+	public List<Property> getLazyProperties() {
+		return lazyProperties;
+	}
+	
+	/**
+	 * @return the serializable property with the given name, or null.
+	 */
+	public Property getProperty(String name) {
+		return propertiesByName.get(name);
+	}
+	
+	/**
+	 * @return the state properties selected by the given flags (see
+	 * {@link Persistence#getPropertyValues(Object, boolean, boolean, boolean, boolean)}). The
+	 * returned array must not be modified.
+	 */
+	Property[] getValueProperties(boolean excludeIdUid, boolean excludeVersion, boolean includeReadOnly) {
+		return valueProperties[(excludeIdUid ? 1 : 0) | (excludeVersion ? 2 : 0) | (includeReadOnly ? 4 : 0)];
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " {type=" + type.getName() + "}";
+	}
+}
@@ -21,9 +21,13 @@
 package org.granite.client.persistence;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.granite.client.persistence.collection.PersistentCollection;
 import org.granite.messaging.reflect.Property;
@@ -38,8 +42,14 @@ public class Persistence {
 
 	private static final String INITIALIZED_FIELD_NAME = "__initialized__";
 	private static final String DETACHED_STATE_FIELD_NAME = "__detachedState__";
+	
+	// Cached for classes which aren't entities, so that their properties are never scanned.
+	private static final EntityDescriptor NOT_AN_ENTITY = new EntityDescriptor(
+		Object.class, null, null, null, null, null, Collections.<Property>emptyList()
+	);
 
 	private final Reflection reflection;
+	private final ConcurrentMap<Class<?>, EntityDescriptor> descriptors = new ConcurrentHashMap<Class<?>, EntityDescriptor>();
 	
 	///////////////////////////////////////////////////////////////////////////
 	// Constructor
@@ -48,25 +58,59 @@ public class Persistence {
 		this.reflection = reflection;
 	}
 	
+	///////////////////////////////////////////////////////////////////////////
+	// Descriptors
+	
+	/**
+	 * Returns the cached descriptor of the given entity class, or null if the class isn't annotated
+	 * with {@link Entity}.
+	 */
+	public EntityDescriptor getEntityDescriptor(Class<?> cls) {
+		EntityDescriptor descriptor = descriptors.get(cls);
+		if (descriptor == null) {
+			descriptor = (cls.isAnnotationPresent(Entity.class) ? newEntityDescriptor(cls) : NOT_AN_ENTITY);
+			EntityDescriptor previous = descriptors.putIfAbsent(cls, descriptor);
+			if (previous != null)
+				descriptor = previous;
+		}
+		return (descriptor != NOT_AN_ENTITY ? descriptor : null);
+	}
+	
+	protected EntityDescriptor newEntityDescriptor(Class<?> entityClass) {
+		return new EntityDescriptor(
+			entityClass,
+			reflection.findProperty(entityClass, Id.class),
+			reflection.findProperty(entityClass, Uid.class),
+			reflection.findProperty(entityClass, Version.class),
+			reflection.findProperty(entityClass, INITIALIZED_FIELD_NAME, Boolean.TYPE),
+			reflection.findProperty(entityClass, DETACHED_STATE_FIELD_NAME, String.class),
+			reflection.findSerializableProperties(entityClass)
+		);
+	}
+	
 	///////////////////////////////////////////////////////////////////////////
 	// Entity
 	
 	public boolean isEntity(Class<?> cls) {
-		return cls != null && cls.isAnnotationPresent(Entity.class);
+		return cls != null && getEntityDescriptor(cls) != null;
 	}
 	
 	protected void checkEntity(Class<?> entityClass) {
-		if (!isEntity(entityClass))
+		getCheckedEntityDescriptor(entityClass);
+	}
+	
+	private EntityDescriptor getCheckedEntityDescriptor(Class<?> entityClass) {
+		EntityDescriptor descriptor = (entityClass != null ? getEntityDescriptor(entityClass) : null);
+		if (descriptor == null)
 			throw new PropertyNotFoundException("Not annotated with @" + Entity.class.getName() + ": " + entityClass);
+		return descriptor;
 	}
 	
 	///////////////////////////////////////////////////////////////////////////
 	// Initialized
 	
 	protected Property getInitializedProperty(Class<?> entityClass, boolean throwIfNotFound) {
-		checkEntity(entityClass);
-		
-		Property property = reflection.findProperty(entityClass, INITIALIZED_FIELD_NAME, Boolean.TYPE);
+		Property property = getCheckedEntityDescriptor(entityClass).getInitializedProperty();
 		if (property == null && throwIfNotFound)
 			throw new PropertyNotFoundException("No boolean " + INITIALIZED_FIELD_NAME + " property in " + entityClass);
 		return property;
@@ -84,11 +128,11 @@ public class Persistence {
 		if (o instanceof PersistentCollection)
 			return ((PersistentCollection)o).wasInitialized();
 		
-		Class<?> cls = o.getClass();
-		if (!isEntity(cls))
+		EntityDescriptor descriptor = getEntityDescriptor(o.getClass());
+		if (descriptor == null)
 			return true;
-
-		Property property = getInitializedProperty(cls, false);
+		
+		Property property = descriptor.getInitializedProperty();
 		if (property == null)
 			return true;
 		
@@ -114,9 +158,7 @@ public class Persistence {
 	// Detached state
 	
 	protected Property getDetachedStateProperty(Class<?> entityClass, boolean throwIfNotFound) {
-		checkEntity(entityClass);
-		
-		Property property = reflection.findProperty(entityClass, DETACHED_STATE_FIELD_NAME, String.class);
+		Property property = getCheckedEntityDescriptor(entityClass).getDetachedStateProperty();
 		if (property == null && throwIfNotFound)
 			throw new PropertyNotFoundException("No String " + DETACHED_STATE_FIELD_NAME + " property in " + entityClass);
 		return property;
@@ -154,9 +196,7 @@ public class Persistence {
 	// Id
 	
 	protected Property getIdProperty(Class<?> entityClass, boolean throwIfNotFound) {
-		checkEntity(entityClass);
-		
-		Property property = reflection.findProperty(entityClass, Id.class);
+		Property property = getCheckedEntityDescriptor(entityClass).getIdProperty();
 		if (property == null && throwIfNotFound)
 			throw new PropertyNotFoundException("No property annotated with " + Id.class.getName() + " in " + entityClass);
 		return property;
@@ -195,9 +235,7 @@ public class Persistence {
 	// Uid
 	
 	protected Property getUidProperty(Class<?> entityClass, boolean throwIfNotFound) {
-		checkEntity(entityClass);
-		
-		Property property = reflection.findProperty(entityClass, Uid.class);
+		Property property = getCheckedEntityDescriptor(entityClass).getUidProperty();
 		if (property == null && throwIfNotFound)
 			throw new PropertyNotFoundException("No property annotated with " + Uid.class.getName() + " in " + entityClass);
 		return property;
@@ -235,9 +273,7 @@ public class Persistence {
 	// Version
 	
 	protected Property getVersionProperty(Class<?> entityClass, boolean throwIfNotFound) {
-		checkEntity(entityClass);
-		
-		Property property = reflection.findProperty(entityClass, Version.class);
+		Property property = getCheckedEntityDescriptor(entityClass).getVersionProperty();
 		if (property == null && throwIfNotFound)
 			throw new PropertyNotFoundException("No property annotated with " + Version.class.getName() + " in " + entityClass);
 		return property;
@@ -263,6 +299,10 @@ public class Persistence {
 	}
 	
 	public List<Property> getLazyProperties(Class<?> entityClass) {
+		EntityDescriptor descriptor = getEntityDescriptor(entityClass);
+		if (descriptor != null)
+			return descriptor.getLazyProperties();
+		
 		List<Property> properties = reflection.findSerializableProperties(entityClass);
 		List<Property> lazyProperties = new ArrayList<Property>();
 		for (Property property : properties) {
@@ -274,11 +314,18 @@ public class Persistence {
 
 	
 	public List<Property> getProperties(Class<?> entityClass) {
-		return reflection.findSerializableProperties(entityClass);
+		EntityDescriptor descriptor = getEntityDescriptor(entityClass);
+		return (descriptor != null ? descriptor.getProperties() : reflection.findSerializableProperties(entityClass));
+	}
+	
+	protected Property getSerializableProperty(Class<?> cls, String name) {
+		EntityDescriptor descriptor = getEntityDescriptor(cls);
+		Property property = (descriptor != null ? descriptor.getProperty(name) : null);
+		return (property != null ? property : reflection.findSerializableProperty(cls, name));
 	}
 	
 	public Object getPropertyValue(Object entity, String name, boolean raw) {
-		Property property = reflection.findSerializableProperty(entity.getClass(), name);
+		Property property = getSerializableProperty(entity.getClass(), name);
 		try {
 			return raw ? property.getRawObject(entity) : property.getObject(entity);
         }
@@ -288,7 +335,7 @@ public class Persistence {
 	}
 	
 	public void setPropertyValue(Object entity, String name, Object value) {
-		Property property = reflection.findSerializableProperty(entity.getClass(), name);
+		Property property = getSerializableProperty(entity.getClass(), name);
 		try {
 			property.setObject(entity, value);
         }
@@ -298,27 +345,17 @@ public class Persistence {
 	}
 	
     public Map<String, Object> getPropertyValues(Object entity, boolean raw, boolean excludeIdUid, boolean excludeVersion, boolean includeReadOnly) {
-        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        EntityDescriptor descriptor = getEntityDescriptor(entity.getClass());
         
-        List<Property> properties = reflection.findSerializableProperties(entity.getClass());
-        
-        List<Property> excludedProperties = new ArrayList<Property>();
-        if (isEntity(entity.getClass())) {
-            excludedProperties.add(getInitializedProperty(entity.getClass()));
-            excludedProperties.add(getDetachedStateProperty(entity.getClass()));
-	        if (excludeIdUid && hasIdProperty(entity.getClass()))
-	        	excludedProperties.add(getIdProperty(entity.getClass()));
-	        if (excludeIdUid && hasUidProperty(entity.getClass()))
-	        	excludedProperties.add(getUidProperty(entity.getClass()));
-	        if (excludeVersion && hasVersionProperty(entity.getClass()))
-	        	excludedProperties.add(getVersionProperty(entity.getClass()));
-        }
+        List<Property> properties;
+        if (descriptor != null)
+        	properties = Arrays.asList(descriptor.getValueProperties(excludeIdUid, excludeVersion, includeReadOnly));
+        else
+        	properties = reflection.findSerializableProperties(entity.getClass());
         
+        Map<String, Object> values = new LinkedHashMap<String, Object>(properties.size() * 4 / 3 + 1);
         for (Property property : properties) {
-            if (excludedProperties.contains(property))
-                continue;
-            
-            if (!includeReadOnly && !property.isWritable())
+            if (descriptor == null && !includeReadOnly && !property.isWritable())
             	continue;
             
             try {
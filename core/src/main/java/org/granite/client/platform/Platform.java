@@ -30,6 +30,7 @@ import org.granite.client.messaging.StandardRemoteAliasScanner;
 import org.granite.client.messaging.transport.Transport;
 import org.granite.client.messaging.transport.apache.ApacheAsyncTransport;
 import org.granite.client.persistence.Persistence;
+import org.granite.client.platform.reflect.ClientReflection;
 import org.granite.logging.Logger;
 import org.granite.messaging.reflect.Reflection;
 import org.granite.scan.ServiceLoader;
@@ -127,11 +128,11 @@ public class Platform {
 	}
 	
 	public Platform() {
-		this(new Reflection(null));
+		this(new ClientReflection(null));
 	}
 	
 	public Platform(ClassLoader reflectionClassLoader) {
-		this(new Reflection(reflectionClassLoader));
+		this(new ClientReflection(reflectionClassLoader));
 	}
 	
 	public Platform(Reflection reflection) {
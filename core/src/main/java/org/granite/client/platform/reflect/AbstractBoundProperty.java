@@ -0,0 +1,203 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2013 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.platform.reflect;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+
+import org.granite.messaging.reflect.Property;
+
+/**
+ * Base class of properties with optimized accessors. Every method delegates to the wrapped
+ * reflective property, subclasses override the accessors they can handle faster and fall back
+ * to the reflective property otherwise.
+ */
+public abstract class AbstractBoundProperty implements Property {
+
+	protected final Property property;
+
+	protected AbstractBoundProperty(Property property) {
+		if (property == null)
+			throw new NullPointerException("property cannot be null");
+		
+		this.property = property;
+	}
+
+	@Override
+	public String getName() {
+		return property.getName();
+	}
+
+	@Override
+	public Class<?> getType() {
+		return property.getType();
+	}
+
+	@Override
+	public boolean isAnnotationPresent(Class<? extends Annotation> annotationClass) {
+		return property.isAnnotationPresent(annotationClass);
+	}
+
+	@Override
+	public boolean isReadable() {
+		return property.isReadable();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return property.isWritable();
+	}
+
+	@Override
+	public boolean getBoolean(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getBoolean(holder);
+	}
+
+	@Override
+	public char getChar(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getChar(holder);
+	}
+
+	@Override
+	public byte getByte(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getByte(holder);
+	}
+
+	@Override
+	public short getShort(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getShort(holder);
+	}
+
+	@Override
+	public int getInt(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getInt(holder);
+	}
+
+	@Override
+	public long getLong(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getLong(holder);
+	}
+
+	@Override
+	public float getFloat(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getFloat(holder);
+	}
+
+	@Override
+	public double getDouble(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getDouble(holder);
+	}
+
+	@Override
+	public Object getObject(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getObject(holder);
+	}
+
+	@Override
+	public Object getRawObject(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		return property.getRawObject(holder);
+	}
+
+	@Override
+	public void setBoolean(Object holder, boolean value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setBoolean(holder, value);
+	}
+
+	@Override
+	public void setChar(Object holder, char value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setChar(holder, value);
+	}
+
+	@Override
+	public void setByte(Object holder, byte value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setByte(holder, value);
+	}
+
+	@Override
+	public void setShort(Object holder, short value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setShort(holder, value);
+	}
+
+	@Override
+	public void setInt(Object holder, int value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setInt(holder, value);
+	}
+
+	@Override
+	public void setLong(Object holder, long value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setLong(holder, value);
+	}
+
+	@Override
+	public void setFloat(Object holder, float value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setFloat(holder, value);
+	}
+
+	@Override
+	public void setDouble(Object holder, double value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setDouble(holder, value);
+	}
+
+	@Override
+	public void setObject(Object holder, Object value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		property.setObject(holder, value);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj instanceof AbstractBoundProperty)
+			obj = ((AbstractBoundProperty)obj).property;
+		return property.equals(obj);
+	}
+
+	@Override
+	public int hashCode() {
+		return property.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return property.toString();
+	}
+	
+	/**
+	 * @return the wrapper class of the given primitive type, or null if the type isn't primitive.
+	 */
+	static Class<?> wrapperType(Class<?> type) {
+		if (!type.isPrimitive())
+			return null;
+		if (type == Integer.TYPE)
+			return Integer.class;
+		if (type == Long.TYPE)
+			return Long.class;
+		if (type == Boolean.TYPE)
+			return Boolean.class;
+		if (type == Double.TYPE)
+			return Double.class;
+		if (type == Float.TYPE)
+			return Float.class;
+		if (type == Short.TYPE)
+			return Short.class;
+		if (type == Byte.TYPE)
+			return Byte.class;
+		return Character.class;
+	}
+}
@@ -0,0 +1,198 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2013 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.platform.reflect;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.messaging.reflect.MethodProperty;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates {@link GeneratedMethodProperty} subclasses with ASM. Only public getters and setters
+ * of public classes can be called from generated classes (see {@link #isSupported(MethodProperty)}).
+ */
+public class MethodPropertyGenerator implements Opcodes {
+	
+	private static final String SUPER_NAME = Type.getInternalName(GeneratedMethodProperty.class);
+	private static final String CONSTRUCTOR_DESC = "(" + Type.getDescriptor(MethodProperty.class) + ")V";
+	private static final String OBJECT_NAME = Type.getInternalName(Object.class);
+	
+	private final AtomicInteger count = new AtomicInteger();
+	
+	// One loader per declaring class loader. Values are weak: a loader references its parent key.
+	private final Map<ClassLoader, WeakReference<GeneratedClassLoader>> loaders = new WeakHashMap<ClassLoader, WeakReference<GeneratedClassLoader>>();
+	
+	public static boolean isSupported(MethodProperty property) {
+		Method getter = property.getGetter();
+		return getter != null && isAccessible(getter) && (property.getSetter() == null || isAccessible(property.getSetter()));
+	}
+	
+	private static boolean isAccessible(Method method) {
+		return
+			Modifier.isPublic(method.getModifiers()) &&
+			!Modifier.isStatic(method.getModifiers()) &&
+			Modifier.isPublic(method.getDeclaringClass().getModifiers());
+	}
+	
+	public MethodProperty generate(MethodProperty property) throws Exception {
+		if (!isSupported(property))
+			throw new IllegalArgumentException("Unsupported property: " + property);
+		
+		Method getter = property.getGetter();
+		Method setter = property.getSetter();
+		Class<?> type = getter.getReturnType();
+		
+		// Setter with a different type than the getter: let the reflective property convert values.
+		if (setter != null && (setter.getParameterTypes().length != 1 || setter.getParameterTypes()[0] != type))
+			setter = null;
+		
+		String name = GeneratedMethodProperty.class.getName() + "$" + getter.getDeclaringClass().getSimpleName() + "$" + property.getName() + "$" + count.incrementAndGet();
+		byte[] bytes = generate(name.replace('.', '/'), getter, setter, type);
+		
+		ClassLoader parent = getter.getDeclaringClass().getClassLoader();
+		if (parent == null)
+			parent = GeneratedMethodProperty.class.getClassLoader();
+		Class<?> cls = getClassLoader(parent).define(name, bytes);
+		return (MethodProperty)cls.getConstructor(MethodProperty.class).newInstance(property);
+	}
+	
+	private GeneratedClassLoader getClassLoader(ClassLoader parent) {
+		synchronized (loaders) {
+			WeakReference<GeneratedClassLoader> reference = loaders.get(parent);
+			GeneratedClassLoader loader = (reference != null ? reference.get() : null);
+			if (loader == null) {
+				loader = new GeneratedClassLoader(parent);
+				loaders.put(parent, new WeakReference<GeneratedClassLoader>(loader));
+			}
+			return loader;
+		}
+	}
+	
+	private byte[] generate(String className, Method getter, Method setter, Class<?> type) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, className, null, SUPER_NAME, null);
+		
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", CONSTRUCTOR_DESC, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESPECIAL, SUPER_NAME, "<init>", CONSTRUCTOR_DESC);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		
+		Type valueType = Type.getType(type);
+		
+		generateGetter(cw, "getObject", getter, true);
+		generateGetter(cw, "getRawObject", getter, true);
+		if (type.isPrimitive())
+			generateGetter(cw, "get" + capitalize(type.getName()), getter, false);
+		
+		if (setter != null) {
+			if (type.isPrimitive())
+				generateSetter(cw, "set" + capitalize(type.getName()), valueType.getDescriptor(), setter);
+			else
+				generateSetter(cw, "setObject", Type.getDescriptor(Object.class), setter);
+		}
+		
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+	
+	private static void generateGetter(ClassWriter cw, String name, Method getter, boolean box) {
+		Type valueType = Type.getType(getter.getReturnType());
+		Type returnType = (box ? Type.getType(Object.class) : valueType);
+		
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, "(Ljava/lang/Object;)" + returnType.getDescriptor(), null, null);
+		mv.visitCode();
+		loadHolder(mv, getter);
+		invoke(mv, getter);
+		if (box && getter.getReturnType().isPrimitive()) {
+			Type wrapperType = Type.getType(AbstractBoundProperty.wrapperType(getter.getReturnType()));
+			mv.visitMethodInsn(INVOKESTATIC, wrapperType.getInternalName(), "valueOf", "(" + valueType.getDescriptor() + ")" + wrapperType.getDescriptor());
+		}
+		mv.visitInsn(returnType.getOpcode(IRETURN));
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+	
+	private static void generateSetter(ClassWriter cw, String name, String valueDesc, Method setter) {
+		Class<?> type = setter.getParameterTypes()[0];
+		
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, name, "(Ljava/lang/Object;" + valueDesc + ")V", null, null);
+		mv.visitCode();
+		loadHolder(mv, setter);
+		mv.visitVarInsn(Type.getType(type).getOpcode(ILOAD), 2);
+		if (!type.isPrimitive() && type != Object.class)
+			mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+		invoke(mv, setter);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+	
+	private static void loadHolder(MethodVisitor mv, Method method) {
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitTypeInsn(CHECKCAST, Type.getInternalName(method.getDeclaringClass()));
+	}
+	
+	private static void invoke(MethodVisitor mv, Method method) {
+		Class<?> owner = method.getDeclaringClass();
+		int opcode = (owner.isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL);
+		mv.visitMethodInsn(opcode, Type.getInternalName(owner), method.getName(), Type.getMethodDescriptor(method));
+	}
+	
+	private static String capitalize(String name) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+	
+	/**
+	 * Child loader of the declaring class loader, which resolves the generated class superclass
+	 * from this library.
+	 */
+	private static class GeneratedClassLoader extends ClassLoader {
+		
+		public GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.equals(GeneratedMethodProperty.class.getName()))
+				return GeneratedMethodProperty.class;
+			if (name.equals(MethodProperty.class.getName()))
+				return MethodProperty.class;
+			return super.loadClass(name, resolve);
+		}
+		
+		public synchronized Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2013 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.platform.reflect;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.granite.logging.Logger;
+import org.granite.messaging.reflect.FieldProperty;
+import org.granite.messaging.reflect.MethodProperty;
+import org.granite.messaging.reflect.SimpleFieldProperty;
+import org.granite.messaging.reflect.SimpleMethodProperty;
+
+/**
+ * Creates properties with optimized accessors: fields are accessed at their offset
+ * ({@link UnsafeFieldProperty}) and getters / setters are called from generated classes
+ * ({@link MethodPropertyGenerator}). Falls back to reflective properties when an optimized
+ * accessor can't be created (no <tt>sun.misc.Unsafe</tt> or no ASM, non public methods, etc.)
+ */
+public class PropertyAccessorFactory {
+	
+	private static final Logger log = Logger.getLogger(PropertyAccessorFactory.class);
+
+	protected volatile boolean bindFields = true;
+	protected volatile boolean generateMethods = true;
+	
+	private final MethodPropertyGenerator generator;
+	
+	public PropertyAccessorFactory() {
+		MethodPropertyGenerator generator = null;
+		try {
+			generator = new MethodPropertyGenerator();
+		}
+		catch (Throwable t) {
+			log.debug(t, "ASM not available, using reflective method properties");
+		}
+		this.generator = generator;
+		
+		if (!UnsafeFieldProperty.isAvailable())
+			log.debug("sun.misc.Unsafe or ASM not available, using reflective field properties");
+	}
+
+	public boolean isBindFields() {
+		return bindFields;
+	}
+
+	public void setBindFields(boolean bindFields) {
+		this.bindFields = bindFields;
+	}
+
+	public boolean isGenerateMethods() {
+		return generateMethods;
+	}
+
+	public void setGenerateMethods(boolean generateMethods) {
+		this.generateMethods = generateMethods;
+	}
+	
+	public FieldProperty newFieldProperty(Field field) {
+		FieldProperty property = new SimpleFieldProperty(field);
+		
+		if (bindFields && UnsafeFieldProperty.isSupported(field)) {
+			try {
+				return new UnsafeFieldProperty(property);
+			}
+			catch (Throwable t) {
+				log.debug(t, "Could not bind field property: %s", field);
+			}
+		}
+		
+		return property;
+	}
+	
+	public MethodProperty newMethodProperty(Method getter, Method setter, String name) {
+		MethodProperty property = new SimpleMethodProperty(getter, setter, name);
+		
+		if (generateMethods && generator != null && MethodPropertyGenerator.isSupported(property)) {
+			try {
+				return generator.generate(property);
+			}
+			catch (Throwable t) {
+				log.debug(t, "Could not generate method property: %s", property);
+			}
+		}
+		
+		return property;
+	}
+}
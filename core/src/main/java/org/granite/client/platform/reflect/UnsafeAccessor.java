@@ -0,0 +1,188 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2013 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.platform.reflect;
+
+import java.lang.reflect.Field;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Field offset accessors of <tt>sun.misc.Unsafe</tt>. The source never references
+ * <tt>sun.misc.Unsafe</tt>: the instance is looked up reflectively and the subclass calling it
+ * is generated with ASM, so that this class (and {@link UnsafeFieldProperty}) stays loadable,
+ * without proprietary API warnings, when <tt>sun.misc.Unsafe</tt> or ASM is missing.
+ */
+public abstract class UnsafeAccessor {
+	
+	protected UnsafeAccessor() {
+	}
+	
+	/**
+	 * Returns a new accessor, or <tt>null</tt> if <tt>sun.misc.Unsafe</tt> or ASM isn't available.
+	 */
+	static UnsafeAccessor newInstance() {
+		try {
+			Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			if (unsafe == null)
+				return null;
+			
+			UnsafeAccessor accessor = Generator.generate(unsafe);
+			accessor.objectFieldOffset(UnsafeAccessor.class.getDeclaredField("count"));
+			return accessor;
+		}
+		catch (Throwable t) {
+			return null;
+		}
+	}
+	
+	// Only used to check that offsets can be computed.
+	@SuppressWarnings("unused")
+	private int count;
+
+	public abstract long objectFieldOffset(Field field);
+
+	public abstract boolean getBoolean(Object holder, long offset);
+	public abstract char getChar(Object holder, long offset);
+	public abstract byte getByte(Object holder, long offset);
+	public abstract short getShort(Object holder, long offset);
+	public abstract int getInt(Object holder, long offset);
+	public abstract long getLong(Object holder, long offset);
+	public abstract float getFloat(Object holder, long offset);
+	public abstract double getDouble(Object holder, long offset);
+	public abstract Object getObject(Object holder, long offset);
+
+	public abstract void putBoolean(Object holder, long offset, boolean value);
+	public abstract void putChar(Object holder, long offset, char value);
+	public abstract void putByte(Object holder, long offset, byte value);
+	public abstract void putShort(Object holder, long offset, short value);
+	public abstract void putInt(Object holder, long offset, int value);
+	public abstract void putLong(Object holder, long offset, long value);
+	public abstract void putFloat(Object holder, long offset, float value);
+	public abstract void putDouble(Object holder, long offset, double value);
+	public abstract void putObject(Object holder, long offset, Object value);
+	
+	/**
+	 * Generates the subclass delegating each accessor to the same <tt>sun.misc.Unsafe</tt> method.
+	 * Kept apart so that ASM classes are only loaded here.
+	 */
+	private static class Generator extends ClassLoader implements Opcodes {
+		
+		private static final String NAME = UnsafeAccessor.class.getName() + "$Generated";
+		private static final String INTERNAL_NAME = NAME.replace('.', '/');
+		private static final String SUPER_NAME = Type.getInternalName(UnsafeAccessor.class);
+		private static final String UNSAFE_NAME = "sun/misc/Unsafe";
+		private static final String UNSAFE_DESC = "L" + UNSAFE_NAME + ";";
+		
+		private static final Class<?>[] TYPES = {
+			Boolean.TYPE, Character.TYPE, Byte.TYPE, Short.TYPE, Integer.TYPE,
+			Long.TYPE, Float.TYPE, Double.TYPE, Object.class
+		};
+		
+		public Generator() {
+			super(UnsafeAccessor.class.getClassLoader());
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.equals(UnsafeAccessor.class.getName()))
+				return UnsafeAccessor.class;
+			return super.loadClass(name, resolve);
+		}
+		
+		public static UnsafeAccessor generate(Object unsafe) throws Exception {
+			byte[] bytes = generate();
+			Class<?> cls = new Generator().defineClass(NAME, bytes, 0, bytes.length);
+			return (UnsafeAccessor)cls.getConstructor(Object.class).newInstance(unsafe);
+		}
+		
+		private static byte[] generate() {
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+			cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, INTERNAL_NAME, null, SUPER_NAME, null);
+			cw.visitField(ACC_PRIVATE + ACC_FINAL, "unsafe", UNSAFE_DESC, null, null).visitEnd();
+			
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(Ljava/lang/Object;)V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitMethodInsn(INVOKESPECIAL, SUPER_NAME, "<init>", "()V");
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitTypeInsn(CHECKCAST, UNSAFE_NAME);
+			mv.visitFieldInsn(PUTFIELD, INTERNAL_NAME, "unsafe", UNSAFE_DESC);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			
+			mv = cw.visitMethod(ACC_PUBLIC, "objectFieldOffset", "(Ljava/lang/reflect/Field;)J", null, null);
+			mv.visitCode();
+			loadUnsafe(mv);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE_NAME, "objectFieldOffset", "(Ljava/lang/reflect/Field;)J");
+			mv.visitInsn(LRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			
+			for (Class<?> type : TYPES) {
+				Type valueType = Type.getType(type);
+				String suffix = (type.isPrimitive() ? capitalize(type.getName()) : "Object");
+				
+				String desc = "(Ljava/lang/Object;J)" + valueType.getDescriptor();
+				mv = cw.visitMethod(ACC_PUBLIC, "get" + suffix, desc, null, null);
+				mv.visitCode();
+				loadUnsafe(mv);
+				mv.visitVarInsn(ALOAD, 1);
+				mv.visitVarInsn(LLOAD, 2);
+				mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE_NAME, "get" + suffix, desc);
+				mv.visitInsn(valueType.getOpcode(IRETURN));
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+				
+				desc = "(Ljava/lang/Object;J" + valueType.getDescriptor() + ")V";
+				mv = cw.visitMethod(ACC_PUBLIC, "put" + suffix, desc, null, null);
+				mv.visitCode();
+				loadUnsafe(mv);
+				mv.visitVarInsn(ALOAD, 1);
+				mv.visitVarInsn(LLOAD, 2);
+				mv.visitVarInsn(valueType.getOpcode(ILOAD), 4);
+				mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE_NAME, "put" + suffix, desc);
+				mv.visitInsn(RETURN);
+				mv.visitMaxs(0, 0);
+				mv.visitEnd();
+			}
+			
+			cw.visitEnd();
+			return cw.toByteArray();
+		}
+		
+		private static void loadUnsafe(MethodVisitor mv) {
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, INTERNAL_NAME, "unsafe", UNSAFE_DESC);
+		}
+		
+		private static String capitalize(String name) {
+			return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2013 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.platform.reflect;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+
+import org.granite.messaging.reflect.FieldProperty;
+
+/**
+ * Field property that reads and writes the field at its offset, computed once, instead of going
+ * through {@link Field} on each access (see {@link UnsafeAccessor}). Primitive accessors don't box. Static and volatile
+ * fields aren't supported (see {@link #isSupported(Field)}), final fields are only read this way.
+ * Accesses that don't match the field type exactly (widening conversions, wrong holder or value
+ * type) are delegated to the reflective property, which handles conversions and errors.
+ */
+public class UnsafeFieldProperty extends AbstractBoundProperty implements FieldProperty {
+
+	private static final UnsafeAccessor unsafe = UnsafeAccessor.newInstance();
+	
+	private final Class<?> holderType;
+	private final Class<?> type;
+	private final Class<?> setType;
+	private final Class<?> wrapperType;
+	private final long offset;
+
+	public UnsafeFieldProperty(FieldProperty property) {
+		super(property);
+		
+		Field field = property.getField();
+		if (!isSupported(field))
+			throw new IllegalArgumentException("Unsupported field: " + field);
+		
+		this.holderType = field.getDeclaringClass();
+		this.type = field.getType();
+		this.setType = (Modifier.isFinal(field.getModifiers()) ? null : type);
+		this.wrapperType = wrapperType(type);
+		this.offset = unsafe.objectFieldOffset(field);
+	}
+	
+	public static boolean isAvailable() {
+		return unsafe != null;
+	}
+	
+	public static boolean isSupported(Field field) {
+		int modifiers = field.getModifiers();
+		return unsafe != null && !Modifier.isStatic(modifiers) && !Modifier.isVolatile(modifiers);
+	}
+
+	@Override
+	public Field getField() {
+		return ((FieldProperty)property).getField();
+	}
+
+	@Override
+	public boolean getBoolean(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Boolean.TYPE && holderType.isInstance(holder))
+			return unsafe.getBoolean(holder, offset);
+		return property.getBoolean(holder);
+	}
+
+	@Override
+	public char getChar(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Character.TYPE && holderType.isInstance(holder))
+			return unsafe.getChar(holder, offset);
+		return property.getChar(holder);
+	}
+
+	@Override
+	public byte getByte(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Byte.TYPE && holderType.isInstance(holder))
+			return unsafe.getByte(holder, offset);
+		return property.getByte(holder);
+	}
+
+	@Override
+	public short getShort(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Short.TYPE && holderType.isInstance(holder))
+			return unsafe.getShort(holder, offset);
+		return property.getShort(holder);
+	}
+
+	@Override
+	public int getInt(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Integer.TYPE && holderType.isInstance(holder))
+			return unsafe.getInt(holder, offset);
+		return property.getInt(holder);
+	}
+
+	@Override
+	public long getLong(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Long.TYPE && holderType.isInstance(holder))
+			return unsafe.getLong(holder, offset);
+		return property.getLong(holder);
+	}
+
+	@Override
+	public float getFloat(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Float.TYPE && holderType.isInstance(holder))
+			return unsafe.getFloat(holder, offset);
+		return property.getFloat(holder);
+	}
+
+	@Override
+	public double getDouble(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (type == Double.TYPE && holderType.isInstance(holder))
+			return unsafe.getDouble(holder, offset);
+		return property.getDouble(holder);
+	}
+
+	@Override
+	public Object getObject(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (!holderType.isInstance(holder))
+			return property.getObject(holder);
+		return get(holder);
+	}
+
+	@Override
+	public Object getRawObject(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (!holderType.isInstance(holder))
+			return property.getRawObject(holder);
+		return get(holder);
+	}
+	
+	private Object get(Object holder) {
+		if (!type.isPrimitive())
+			return unsafe.getObject(holder, offset);
+		if (type == Integer.TYPE)
+			return Integer.valueOf(unsafe.getInt(holder, offset));
+		if (type == Long.TYPE)
+			return Long.valueOf(unsafe.getLong(holder, offset));
+		if (type == Boolean.TYPE)
+			return Boolean.valueOf(unsafe.getBoolean(holder, offset));
+		if (type == Double.TYPE)
+			return Double.valueOf(unsafe.getDouble(holder, offset));
+		if (type == Float.TYPE)
+			return Float.valueOf(unsafe.getFloat(holder, offset));
+		if (type == Short.TYPE)
+			return Short.valueOf(unsafe.getShort(holder, offset));
+		if (type == Byte.TYPE)
+			return Byte.valueOf(unsafe.getByte(holder, offset));
+		return Character.valueOf(unsafe.getChar(holder, offset));
+	}
+
+	@Override
+	public void setBoolean(Object holder, boolean value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Boolean.TYPE && holderType.isInstance(holder))
+			unsafe.putBoolean(holder, offset, value);
+		else
+			property.setBoolean(holder, value);
+	}
+
+	@Override
+	public void setChar(Object holder, char value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Character.TYPE && holderType.isInstance(holder))
+			unsafe.putChar(holder, offset, value);
+		else
+			property.setChar(holder, value);
+	}
+
+	@Override
+	public void setByte(Object holder, byte value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Byte.TYPE && holderType.isInstance(holder))
+			unsafe.putByte(holder, offset, value);
+		else
+			property.setByte(holder, value);
+	}
+
+	@Override
+	public void setShort(Object holder, short value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Short.TYPE && holderType.isInstance(holder))
+			unsafe.putShort(holder, offset, value);
+		else
+			property.setShort(holder, value);
+	}
+
+	@Override
+	public void setInt(Object holder, int value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Integer.TYPE && holderType.isInstance(holder))
+			unsafe.putInt(holder, offset, value);
+		else
+			property.setInt(holder, value);
+	}
+
+	@Override
+	public void setLong(Object holder, long value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Long.TYPE && holderType.isInstance(holder))
+			unsafe.putLong(holder, offset, value);
+		else
+			property.setLong(holder, value);
+	}
+
+	@Override
+	public void setFloat(Object holder, float value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Float.TYPE && holderType.isInstance(holder))
+			unsafe.putFloat(holder, offset, value);
+		else
+			property.setFloat(holder, value);
+	}
+
+	@Override
+	public void setDouble(Object holder, double value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == Double.TYPE && holderType.isInstance(holder))
+			unsafe.putDouble(holder, offset, value);
+		else
+			property.setDouble(holder, value);
+	}
+
+	@Override
+	public void setObject(Object holder, Object value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+		if (setType == null || !holderType.isInstance(holder))
+			property.setObject(holder, value);
+		else if (!type.isPrimitive()) {
+			if (value == null || type.isInstance(value))
+				unsafe.putObject(holder, offset, value);
+			else
+				property.setObject(holder, value);
+		}
+		else if (value == null || value.getClass() != wrapperType)
+			property.setObject(holder, value);
+		else if (type == Integer.TYPE)
+			unsafe.putInt(holder, offset, ((Integer)value).intValue());
+		else if (type == Long.TYPE)
+			unsafe.putLong(holder, offset, ((Long)value).longValue());
+		else if (type == Boolean.TYPE)
+			unsafe.putBoolean(holder, offset, ((Boolean)value).booleanValue());
+		else if (type == Double.TYPE)
+			unsafe.putDouble(holder, offset, ((Double)value).doubleValue());
+		else if (type == Float.TYPE)
+			unsafe.putFloat(holder, offset, ((Float)value).floatValue());
+		else if (type == Short.TYPE)
+			unsafe.putShort(holder, offset, ((Short)value).shortValue());
+		else if (type == Byte.TYPE)
+			unsafe.putByte(holder, offset, ((Byte)value).byteValue());
+		else
+			unsafe.putChar(holder, offset, ((Character)value).charValue());
+	}
+}
@@ -0,0 +1,87 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of fixed size byte arrays. Arrays released when the pool is full (or with a
+ * wrong size) are simply left to the garbage collector.
+ */
+public class BufferPool {
+	
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	public static final int DEFAULT_MAX_POOLED = 256;
+	
+	private static final BufferPool defaultPool = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+	
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	
+	public static BufferPool getDefault() {
+		return defaultPool;
+	}
+	
+	public BufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		if (maxPooled < 0)
+			throw new IllegalArgumentException("maxPooled cannot be negative: " + maxPooled);
+		
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getMaxPooled() {
+		return maxPooled;
+	}
+	
+	public int getPooled() {
+		return pooled.get();
+	}
+	
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer == null)
+			return new byte[bufferSize];
+		pooled.decrementAndGet();
+		return buffer;
+	}
+	
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize)
+			return;
+		
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+}
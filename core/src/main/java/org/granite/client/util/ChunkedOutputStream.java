@@ -0,0 +1,127 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream that writes into a list of pooled chunks instead of a single growing array:
+ * growing never copies already written bytes. Chunks must be given back to the pool with
+ * {@link #release()} once the content has been consumed.
+ */
+public class ChunkedOutputStream extends OutputStream {
+	
+	private final BufferPool pool;
+	private final List<byte[]> chunks = new ArrayList<byte[]>();
+	private byte[] current = null;
+	private int position = 0;
+	private int size = 0;
+	
+	public ChunkedOutputStream() {
+		this(BufferPool.getDefault());
+	}
+	
+	public ChunkedOutputStream(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (current == null || position == current.length)
+			nextChunk();
+		current[position++] = (byte)b;
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length)
+			throw new IndexOutOfBoundsException();
+		
+		while (len > 0) {
+			if (current == null || position == current.length)
+				nextChunk();
+			int length = Math.min(len, current.length - position);
+			System.arraycopy(b, off, current, position, length);
+			position += length;
+			size += length;
+			off += length;
+			len -= length;
+		}
+	}
+	
+	private void nextChunk() {
+		current = pool.acquire();
+		position = 0;
+		chunks.add(current);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getChunkCount() {
+		return chunks.size();
+	}
+	
+	/**
+	 * @return a read-only view of the written bytes of the chunk at the given index.
+	 */
+	public ByteBuffer getChunk(int index) {
+		byte[] chunk = chunks.get(index);
+		int length = (index == chunks.size() - 1 ? position : chunk.length);
+		return ByteBuffer.wrap(chunk, 0, length).asReadOnlyBuffer();
+	}
+	
+	public void writeTo(OutputStream os) throws IOException {
+		int last = chunks.size() - 1;
+		for (int i = 0; i <= last; i++)
+			os.write(chunks.get(i), 0, (i == last ? position : chunks.get(i).length));
+	}
+	
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[size];
+		int offset = 0;
+		int last = chunks.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			int length = (i == last ? position : chunks.get(i).length);
+			System.arraycopy(chunks.get(i), 0, bytes, offset, length);
+			offset += length;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Gives all chunks back to the pool. The stream is empty (and reusable) afterwards.
+	 */
+	public void release() {
+		for (byte[] chunk : chunks)
+			pool.release(chunk);
+		chunks.clear();
+		current = null;
+		position = 0;
+		size = 0;
+	}
+}
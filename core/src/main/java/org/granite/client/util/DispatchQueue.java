@@ -0,0 +1,197 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.granite.logging.Logger;
+
+/**
+ * Bounded queue of items dispatched in order by a single task at a time on an underlying executor.
+ * Items with the same non null key (see {@link #getKey(Object)}) are delivered in order; with the
+ * {@link OverflowPolicy#CONFLATE} policy, a pending item is replaced by a newer item with the same
+ * key, which keeps its place in the queue.
+ */
+public abstract class DispatchQueue<T> {
+	
+	private static final Logger log = Logger.getLogger(DispatchQueue.class);
+	
+	public static enum OverflowPolicy {
+		/** Wait until there is room in the queue. */
+		BLOCK,
+		/** Drop the oldest pending item. */
+		DROP_OLDEST,
+		/** Always keep only the latest pending item for each key, wait if the queue is full of distinct keys. */
+		CONFLATE
+	}
+
+	private final Executor executor;
+	private final int capacity;
+	private final OverflowPolicy overflowPolicy;
+	
+	private final LinkedHashMap<Object, T> pending = new LinkedHashMap<Object, T>();
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+	private Thread drainer = null;
+	private boolean scheduled = false;
+	
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+
+	public DispatchQueue(Executor executor, int capacity, OverflowPolicy overflowPolicy) {
+		if (executor == null || overflowPolicy == null)
+			throw new NullPointerException("executor and overflowPolicy cannot be null");
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be greater or equal to 1");
+		
+		this.executor = executor;
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	/**
+	 * Returns the conflation key of an item, or null if the item cannot be conflated. Default
+	 * implementation returns null.
+	 */
+	protected Object getKey(T item) {
+		return null;
+	}
+	
+	protected abstract void dispatch(T item);
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+	
+	public synchronized int size() {
+		return pending.size();
+	}
+	
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	public long getConflated() {
+		return conflated.get();
+	}
+	
+	/**
+	 * Queues an item for dispatch. With the BLOCK and CONFLATE policies, may wait until there is room
+	 * in the queue, except when called from a dispatched item (the queue then grows beyond its
+	 * capacity instead of deadlocking).
+	 * 
+	 * @return false if the item was dropped because the calling thread was interrupted while waiting.
+	 */
+	public boolean offer(T item) {
+		Object key = (overflowPolicy == OverflowPolicy.CONFLATE ? getKey(item) : null);
+		
+		synchronized (this) {
+			if (key != null && pending.containsKey(key)) {
+				pending.put(key, item);
+				conflated.incrementAndGet();
+				return true;
+			}
+			
+			if (pending.size() >= capacity) {
+				if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+					Iterator<T> oldest = pending.values().iterator();
+					oldest.next();
+					oldest.remove();
+					dropped.incrementAndGet();
+				}
+				else if (drainer != Thread.currentThread()) {
+					try {
+						while (pending.size() >= capacity)
+							wait();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped.incrementAndGet();
+						return false;
+					}
+					
+					// Another item with the same key may have been queued meanwhile.
+					if (key != null && pending.containsKey(key)) {
+						pending.put(key, item);
+						conflated.incrementAndGet();
+						return true;
+					}
+				}
+			}
+			
+			pending.put(key != null ? key : new Object(), item);
+			
+			if (scheduled)
+				return true;
+			scheduled = true;
+		}
+		
+		try {
+			executor.execute(drain);
+		}
+		catch (RejectedExecutionException e) {
+			// Executor shut down or saturated: drain in the calling thread.
+			drain();
+		}
+		return true;
+	}
+	
+	private void drain() {
+		synchronized (this) {
+			drainer = Thread.currentThread();
+		}
+		
+		for (;;) {
+			T item;
+			synchronized (this) {
+				Iterator<Map.Entry<Object, T>> first = pending.entrySet().iterator();
+				if (!first.hasNext()) {
+					drainer = null;
+					scheduled = false;
+					return;
+				}
+				item = first.next().getValue();
+				first.remove();
+				notifyAll();
+			}
+			
+			try {
+				dispatch(item);
+			}
+			catch (Throwable t) {
+				log.error(t, "Could not dispatch item: %s", item);
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.granite.logging.Logger;
+
+/**
+ * Hashed wheel timer: scheduling and cancelling a task is O(1) and all tasks are run by a single
+ * daemon thread, with a precision of one tick. Cancelled tasks are unlinked from the wheel at the
+ * next tick, there is no need to purge anything.
+ * 
+ * <p>A single timer, see {@link #getDefault()}, is shared by all channels.</p>
+ */
+public class HashedWheelTimer {
+	
+	private static final Logger log = Logger.getLogger(HashedWheelTimer.class);
+
+	public static final long DEFAULT_TICK_MILLIS = 100L;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+	
+	private static HashedWheelTimer defaultTimer = null;
+	
+	private final String name;
+	private final long tickNanos;
+	private final Task[] wheel;
+	private final int mask;
+	
+	private final Queue<Task> scheduledTasks = new ConcurrentLinkedQueue<Task>();
+	private final Queue<Task> cancelledTasks = new ConcurrentLinkedQueue<Task>();
+	
+	private Thread worker = null;
+	private volatile boolean stopped = false;
+	private volatile long startTime = 0L;
+	
+	public static synchronized HashedWheelTimer getDefault() {
+		if (defaultTimer == null)
+			defaultTimer = new HashedWheelTimer("GraniteDS-timer", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+		return defaultTimer;
+	}
+	
+	public HashedWheelTimer(String name, long tickMillis, int wheelSize) {
+		if (name == null)
+			throw new NullPointerException("name cannot be null");
+		if (tickMillis <= 0L)
+			throw new IllegalArgumentException("tickMillis must be greater than 0");
+		if (wheelSize <= 0 || wheelSize > (1 << 30))
+			throw new IllegalArgumentException("wheelSize must be in [1, 2^30]");
+		
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+		
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.wheel = new Task[size];
+		this.mask = size - 1;
+	}
+	
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Schedules the task to be run once after the delay. A task can only be scheduled once.
+	 * 
+	 * @throws IllegalArgumentException if delay is negative.
+	 * @throws IllegalStateException if the task was already scheduled or cancelled, or if the timer was stopped.
+	 */
+	public void schedule(Task task, long delayMillis) {
+		if (task == null)
+			throw new NullPointerException("task cannot be null");
+		if (delayMillis < 0L)
+			throw new IllegalArgumentException("Negative delay: " + delayMillis);
+		
+		start();
+		
+		if (task.state != Task.ST_INIT)
+			throw new IllegalStateException("Task already scheduled or cancelled");
+		
+		task.timer = this;
+		task.deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+		if (!Task.STATE.compareAndSet(task, Task.ST_INIT, Task.ST_SCHEDULED))
+			throw new IllegalStateException("Task already scheduled or cancelled");
+		
+		scheduledTasks.add(task);
+	}
+	
+	private synchronized void start() {
+		if (stopped)
+			throw new IllegalStateException("Timer " + name + " stopped");
+		
+		if (worker == null) {
+			startTime = System.nanoTime();
+			worker = new Thread(new Worker(), name);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+	
+	public synchronized void stop() {
+		stopped = true;
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+	
+	private void onCancelled(Task task) {
+		cancelledTasks.add(task);
+	}
+	
+	private class Worker implements Runnable {
+		
+		private long tick = 0L;
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				long deadline = waitForNextTick();
+				if (deadline < 0L)
+					break;
+				
+				unlinkCancelledTasks();
+				linkScheduledTasks();
+				expireTasks((int)(tick & mask), deadline);
+				
+				tick++;
+			}
+			
+			log.debug("Timer %s stopped.", name);
+		}
+		
+		private long waitForNextTick() {
+			long deadline = tickNanos * (tick + 1);
+			
+			for (;;) {
+				long current = System.nanoTime() - startTime;
+				long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - current + 999999L);
+				if (sleepMillis <= 0L)
+					return current;
+				
+				try {
+					Thread.sleep(sleepMillis);
+				}
+				catch (InterruptedException e) {
+					if (stopped)
+						return -1L;
+				}
+			}
+		}
+		
+		private void linkScheduledTasks() {
+			// Bounded, so a thread scheduling tasks in a loop can't prevent this tick from completing.
+			for (int i = 0; i < 100000; i++) {
+				Task task = scheduledTasks.poll();
+				if (task == null)
+					break;
+				if (task.state != Task.ST_SCHEDULED)
+					continue;
+				
+				long ticks = task.deadline / tickNanos;
+				task.remainingRounds = (ticks - tick) / wheel.length;
+				
+				// Don't schedule in the past.
+				int index = (int)(Math.max(ticks, tick) & mask);
+				task.bucket = index;
+				task.next = wheel[index];
+				if (wheel[index] != null)
+					wheel[index].prev = task;
+				wheel[index] = task;
+			}
+		}
+		
+		private void unlinkCancelledTasks() {
+			for (;;) {
+				Task task = cancelledTasks.poll();
+				if (task == null)
+					break;
+				unlink(task);
+			}
+		}
+		
+		private void expireTasks(int index, long deadline) {
+			Task task = wheel[index];
+			while (task != null) {
+				Task next = task.next;
+				
+				if (task.state != Task.ST_SCHEDULED)
+					unlink(task);
+				else if (task.remainingRounds <= 0L && task.deadline <= deadline) {
+					unlink(task);
+					task.expire();
+				}
+				else
+					task.remainingRounds--;
+				
+				task = next;
+			}
+		}
+		
+		private void unlink(Task task) {
+			if (task.bucket < 0)
+				return;
+			
+			if (task.prev != null)
+				task.prev.next = task.next;
+			else
+				wheel[task.bucket] = task.next;
+			if (task.next != null)
+				task.next.prev = task.prev;
+			
+			task.bucket = -1;
+			task.prev = null;
+			task.next = null;
+		}
+	}
+
+	/**
+	 * Base class for tasks scheduled with a {@link HashedWheelTimer}.
+	 */
+	public static abstract class Task implements Runnable {
+		
+		private static final int ST_INIT = 0;
+		private static final int ST_SCHEDULED = 1;
+		private static final int ST_CANCELLED = 2;
+		private static final int ST_EXPIRED = 3;
+		
+		private static final AtomicIntegerFieldUpdater<Task> STATE = AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+		
+		private volatile int state = ST_INIT;
+		private volatile HashedWheelTimer timer = null;
+		
+		// Only accessed by the timer worker thread (deadline is safely published by the scheduled tasks queue).
+		private long deadline;
+		private long remainingRounds;
+		private int bucket = -1;
+		private Task prev;
+		private Task next;
+		
+		/**
+		 * Cancels this task. Returns true if the task was scheduled and will never run, false otherwise.
+		 */
+		public boolean cancel() {
+			if (STATE.compareAndSet(this, ST_SCHEDULED, ST_CANCELLED)) {
+				timer.onCancelled(this);
+				return true;
+			}
+			STATE.compareAndSet(this, ST_INIT, ST_CANCELLED);
+			return false;
+		}
+		
+		private void expire() {
+			if (!STATE.compareAndSet(this, ST_SCHEDULED, ST_EXPIRED))
+				return;
+			
+			try {
+				run();
+			}
+			catch (Throwable t) {
+				log.error(t, "Timer task %s threw an exception", this);
+			}
+		}
+	}
+}
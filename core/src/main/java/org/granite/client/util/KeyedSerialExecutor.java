@@ -0,0 +1,122 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.util;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.logging.Logger;
+
+/**
+ * Runs tasks on an underlying executor while keeping tasks submitted with the same key in
+ * submission order: at most one task per key is running at any time, tasks with different keys
+ * may run in parallel.
+ */
+public class KeyedSerialExecutor {
+	
+	private static final Logger log = Logger.getLogger(KeyedSerialExecutor.class);
+
+	private final Executor executor;
+	private final Map<Object, SerialQueue> queues = new HashMap<Object, SerialQueue>();
+	private final AtomicInteger pending = new AtomicInteger();
+	
+	public KeyedSerialExecutor(Executor executor) {
+		if (executor == null)
+			throw new NullPointerException("executor cannot be null");
+		this.executor = executor;
+	}
+	
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return the number of submitted tasks that are not yet running.
+	 */
+	public int getQueueDepth() {
+		return pending.get();
+	}
+	
+	public void execute(Object key, Runnable task) {
+		if (key == null || task == null)
+			throw new NullPointerException("key and task cannot be null");
+		
+		SerialQueue queue;
+		boolean schedule = false;
+		
+		pending.incrementAndGet();
+		synchronized (queues) {
+			queue = queues.get(key);
+			if (queue == null) {
+				queue = new SerialQueue(key);
+				queues.put(key, queue);
+				schedule = true;
+			}
+			queue.tasks.add(task);
+		}
+		
+		if (schedule) {
+			try {
+				executor.execute(queue);
+			}
+			catch (RejectedExecutionException e) {
+				// Executor shut down or saturated: drain in the calling thread.
+				queue.run();
+			}
+		}
+	}
+	
+	private class SerialQueue implements Runnable {
+		
+		final Object key;
+		final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+		
+		SerialQueue(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				Runnable task;
+				synchronized (queues) {
+					task = tasks.poll();
+					if (task == null) {
+						queues.remove(key);
+						return;
+					}
+				}
+				pending.decrementAndGet();
+				
+				try {
+					task.run();
+				}
+				catch (Throwable t) {
+					log.error(t, "Task failed: %s", task);
+				}
+			}
+		}
+	}
+}
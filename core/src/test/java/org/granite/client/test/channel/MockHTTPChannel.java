@@ -0,0 +1,153 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.client.messaging.channel.AbstractHTTPChannel;
+import org.granite.client.messaging.channel.AsyncToken;
+import org.granite.client.messaging.codec.MessagingCodec.ClientType;
+import org.granite.client.messaging.messages.Message.Type;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.ResponseMessage;
+import org.granite.client.messaging.transport.TransportMessage;
+
+/**
+ * Channel without codec: transport messages hold the sent requests and responses are pushed
+ * by the test with {@link #respond(ResponseMessage)}.
+ */
+public class MockHTTPChannel extends AbstractHTTPChannel {
+	
+	private ResponseMessage nextResponse = null;
+
+	public MockHTTPChannel(MockHTTPTransport transport, int maxConcurrentRequests) {
+		this(transport, maxConcurrentRequests, true);
+	}
+
+	public MockHTTPChannel(MockHTTPTransport transport, int maxConcurrentRequests, boolean pinged) {
+		super(transport, "mock", URI.create("/mock"), maxConcurrentRequests);
+		
+		// Skip the ping handshake if pinged is true.
+		this.pinged = pinged;
+	}
+	
+	public synchronized void respond(ResponseMessage response) {
+		nextResponse = response;
+		onMessage(null, new InputStream() {
+			@Override
+			public int read() throws IOException {
+				return -1;
+			}
+		});
+	}
+
+	@Override
+	protected boolean canCoalesce(AsyncToken token) {
+		return token.getRequest().getType() == Type.INVOCATION;
+	}
+
+	@Override
+	protected TransportMessage createTransportMessage(AsyncToken token) throws UnsupportedEncodingException {
+		return new MockTransportMessage(token.getId(), Collections.singletonList(token.getRequest()));
+	}
+
+	@Override
+	protected TransportMessage createTransportMessage(AsyncToken[] tokens) throws UnsupportedEncodingException {
+		List<RequestMessage> requests = new ArrayList<RequestMessage>(tokens.length);
+		for (AsyncToken token : tokens)
+			requests.add(token.getRequest());
+		return new MockTransportMessage(tokens[0].getId(), requests);
+	}
+
+	@Override
+	protected ResponseMessage decodeResponse(TransportMessage message, InputStream is) throws IOException {
+		ResponseMessage response = nextResponse;
+		nextResponse = null;
+		return response;
+	}
+	
+	public static class MockTransportMessage implements TransportMessage {
+		
+		// Number of encode calls, across all instances.
+		private static final AtomicInteger encodings = new AtomicInteger();
+		
+		private final String id;
+		private final List<RequestMessage> requests;
+		
+		public MockTransportMessage(String id, List<RequestMessage> requests) {
+			this.id = id;
+			this.requests = requests;
+		}
+		
+		public List<RequestMessage> getRequests() {
+			return requests;
+		}
+		
+		public static int getEncodings() {
+			return encodings.get();
+		}
+
+		@Override
+		public ClientType getClientType() {
+			return ClientType.JAVA;
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public boolean isConnect() {
+			return false;
+		}
+
+		@Override
+		public String getClientId() {
+			return null;
+		}
+
+		@Override
+		public String getSessionId() {
+			return null;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/x-mock";
+		}
+
+		@Override
+		public void encode(OutputStream os) throws IOException {
+			encodings.incrementAndGet();
+			os.write(Arrays.toString(requests.toArray()).getBytes("UTF-8"));
+		}
+	}
+}
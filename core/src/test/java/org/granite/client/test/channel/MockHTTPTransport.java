@@ -0,0 +1,69 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.channel;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.channel.Channel;
+import org.granite.client.messaging.transport.AbstractTransport;
+import org.granite.client.messaging.transport.TransportException;
+import org.granite.client.messaging.transport.TransportFuture;
+import org.granite.client.messaging.transport.TransportMessage;
+
+/**
+ * Transport that only records sent messages.
+ */
+public class MockHTTPTransport extends AbstractTransport<Object> {
+	
+	private final BlockingQueue<TransportMessage> sentMessages = new LinkedBlockingQueue<TransportMessage>();
+	
+	public TransportMessage nextSentMessage(long timeoutMillis) throws InterruptedException {
+		return sentMessages.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public boolean start() {
+		return true;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return true;
+	}
+
+	@Override
+	public TransportFuture send(Channel channel, TransportMessage message) throws TransportException {
+		sentMessages.add(message);
+		return new TransportFuture() {
+			@Override
+			public boolean cancel() {
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public void poll(Channel channel, TransportMessage message) throws TransportException {
+		throw new TransportException("Not implemented");
+	}
+}
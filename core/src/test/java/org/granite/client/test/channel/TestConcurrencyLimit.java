@@ -0,0 +1,146 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.util.HashMap;
+
+import org.granite.client.messaging.channel.AIMDConcurrencyLimit;
+import org.granite.client.messaging.channel.ConcurrencyLimiter;
+import org.granite.client.messaging.channel.GradientConcurrencyLimit;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.FaultMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConcurrencyLimit {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockHTTPChannel(transport, 1);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testAIMD() {
+		AIMDConcurrencyLimit limit = new AIMDConcurrencyLimit(1, 1, 4, 0.5);
+		
+		limit.onSample(1000L, 1, false);
+		Assert.assertEquals(2, limit.getLimit());
+		
+		limit.onSample(1000L, 1, false);
+		Assert.assertEquals("No growth when the limit isn't reached", 2, limit.getLimit());
+		
+		for (int i = 0; i < 10; i++)
+			limit.onSample(1000L, limit.getLimit(), false);
+		Assert.assertEquals("Bounded by max", 4, limit.getLimit());
+		
+		limit.onSample(1000L, 4, true);
+		Assert.assertEquals(2, limit.getLimit());
+		limit.onSample(1000L, 2, true);
+		limit.onSample(1000L, 1, true);
+		Assert.assertEquals("Bounded by min", 1, limit.getLimit());
+	}
+
+	@Test
+	public void testGradient() {
+		GradientConcurrencyLimit limit = new GradientConcurrencyLimit(4, 1, 64, 0.5, 0.5, 10);
+		
+		for (int i = 0; i < 50; i++)
+			limit.onSample(10000000L, limit.getLimit(), false);
+		int grown = limit.getLimit();
+		Assert.assertTrue("Grows with stable latency: " + grown, grown > 4);
+		
+		for (int i = 0; i < 5; i++)
+			limit.onSample(50000000L, limit.getLimit(), false);
+		Assert.assertTrue("Shrinks when latency increases: " + limit.getLimit(), limit.getLimit() < grown);
+		
+		int beforeDrop = limit.getLimit();
+		limit.onSample(10000000L, limit.getLimit(), true);
+		Assert.assertTrue("Backs off on drops", limit.getLimit() < beforeDrop);
+	}
+	
+	@Test
+	public void testLimiterTimeout() throws Exception {
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter(new AIMDConcurrencyLimit(1, 1, 2, 0.5));
+		
+		Assert.assertEquals(1, limiter.acquire(0L));
+		Assert.assertEquals("Limit reached", 0, limiter.acquire(50L));
+		
+		limiter.release(1000L, 1, false);
+		Assert.assertEquals(2, limiter.getLimit());
+		Assert.assertEquals(2, limiter.getPeakLimit());
+		Assert.assertEquals(1, limiter.acquire(0L));
+		Assert.assertEquals(2, limiter.acquire(0L));
+		Assert.assertEquals(2, limiter.getInFlight());
+	}
+
+	@Test
+	public void testChannelGrowsAndBacksOff() throws Exception {
+		channel.stop();
+		channel.setConcurrencyLimit(new AIMDConcurrencyLimit(1, 1, 8, 0.5));
+		
+		ResponseMessageFuture future1 = channel.send(new InvocationMessage("service", "method1", null));
+		ResponseMessageFuture future2 = channel.send(new InvocationMessage("service", "method2", null));
+		
+		RequestMessage request1 = nextRequest();
+		Assert.assertNull("Limited to one request in flight", transport.nextSentMessage(100L));
+		Assert.assertEquals(1, channel.getInFlightRequests());
+		
+		channel.respond(new ResultMessage(null, request1.getId(), "result1"));
+		Assert.assertEquals("result1", future1.get().getData());
+		Assert.assertEquals(2, channel.getCurrentConcurrencyLimit());
+		
+		RequestMessage request2 = nextRequest();
+		ResponseMessageFuture future3 = channel.send(new InvocationMessage("service", "method3", null));
+		RequestMessage request3 = nextRequest();
+		Assert.assertEquals(2, channel.getInFlightRequests());
+		
+		channel.respond(new FaultMessage(null, request2.getId(), FaultMessage.Code.SERVER_CALL_FAILED, "Failed", null, null, new HashMap<String, Object>()));
+		Assert.assertTrue(future2.get() instanceof FaultMessage);
+		Assert.assertEquals("Backs off on SERVER_CALL_FAILED", 1, channel.getCurrentConcurrencyLimit());
+		
+		channel.respond(new ResultMessage(null, request3.getId(), "result3"));
+		Assert.assertEquals("result3", future3.get().getData());
+		Assert.assertEquals(2, channel.getCurrentConcurrencyLimit());
+		Assert.assertEquals(2, channel.getPeakConcurrencyLimit());
+		Assert.assertEquals(0, channel.getInFlightRequests());
+	}
+	
+	private RequestMessage nextRequest() throws InterruptedException {
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals(1, message.getRequests().size());
+		return message.getRequests().get(0);
+	}
+}
@@ -0,0 +1,366 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.Consumer;
+import org.granite.client.messaging.channel.MessagingChannel;
+import org.granite.client.messaging.channel.amf.AbstractAMFMessagingChannel;
+import org.granite.client.messaging.codec.MessagingCodec;
+import org.granite.client.messaging.messages.push.TopicMessage;
+import org.granite.client.messaging.transport.DefaultTransportMessage;
+import org.granite.client.messaging.transport.TransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.Message;
+
+public class TestConnectPipelining {
+	
+	private MockHTTPTransport transport;
+	private MockMessagingChannel channel;
+	private ExecutorService executor;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockMessagingChannel(transport);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	@Test
+	public void testPipelinedConnects() throws Exception {
+		channel.setMaxOutstandingConnects(2);
+		channel.start();
+		channel.addConsumer(new RecordingConsumer(channel, "A"));
+		
+		TransportMessage connect1 = nextConnect();
+		TransportMessage connect2 = nextConnect();
+		Assert.assertNull("At most 2 outstanding connects", transport.nextSentMessage(100L));
+		
+		// Pushed messages release their own connect and another one is sent right away.
+		channel.respond(connect2, push("A", 1));
+		TransportMessage connect3 = nextConnect();
+		Assert.assertNull("At most 2 outstanding connects", transport.nextSentMessage(100L));
+		
+		channel.respond(connect1, push("A", 2));
+		Assert.assertNotNull(nextConnect());
+		
+		channel.respond(connect3, push("A", 3));
+		Assert.assertNotNull(nextConnect());
+	}
+
+	@Test
+	public void testResponseOnlyReleasesItsConnect() throws Exception {
+		channel.start();
+		channel.addConsumer(new RecordingConsumer(channel, "A"));
+		TransportMessage connect = nextConnect();
+		
+		// An empty response to another request must not be taken for the connect response.
+		channel.respond(newTransportMessage("other", false));
+		Assert.assertNull("Connect still outstanding", transport.nextSentMessage(100L));
+		
+		// A response to an already released connect doesn't release the new one.
+		channel.respond(connect);
+		TransportMessage next = nextConnect();
+		channel.respond(connect);
+		Assert.assertNull("Connect still outstanding", transport.nextSentMessage(100L));
+		
+		channel.respond(next);
+		Assert.assertNotNull(nextConnect());
+	}
+
+	@Test
+	public void testNextConnectIsSentBeforeDecoding() throws Exception {
+		final List<TransportMessage> sentBeforeDecoding = new ArrayList<TransportMessage>();
+		channel.pushCodec.onDecode = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sentBeforeDecoding.add(transport.nextSentMessage(0L));
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		
+		channel.start();
+		channel.addConsumer(new RecordingConsumer(channel, "A"));
+		channel.respond(nextConnect(), push("A", 1));
+		
+		Assert.assertEquals(1, sentBeforeDecoding.size());
+		Assert.assertNotNull("Connect sent before decoding", sentBeforeDecoding.get(0));
+		Assert.assertTrue(sentBeforeDecoding.get(0).isConnect());
+	}
+
+	@Test
+	public void testDispatchIsSynchronousByDefault() throws Exception {
+		Assert.assertFalse(channel.isAsyncDispatch());
+		
+		channel.start();
+		RecordingConsumer consumer = new RecordingConsumer(channel, "A");
+		channel.addConsumer(consumer);
+		
+		channel.respond(nextConnect(), push("A", 1, 2));
+		Assert.assertEquals(2, consumer.getMessages().size());
+		Assert.assertEquals(Thread.currentThread(), consumer.getThread());
+	}
+
+	@Test
+	public void testNextConnectIsSentBeforeAsyncDispatch() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(1);
+		RecordingConsumer consumer = new RecordingConsumer(channel, "A") {
+			@Override
+			public void onMessage(TopicMessage message) {
+				entered.countDown();
+				try {
+					blocked.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.onMessage(message);
+			}
+		};
+		
+		channel.setAsyncDispatch(true);
+		channel.start();
+		channel.addConsumer(consumer);
+		
+		channel.respond(nextConnect(), push("A", 1, 2));
+		Assert.assertNotNull("Polling while the consumer is busy", nextConnect());
+		
+		Assert.assertTrue(entered.await(1000L, TimeUnit.MILLISECONDS));
+		Assert.assertEquals("Second message waiting", 1, channel.getDispatchQueueDepth());
+		
+		blocked.countDown();
+		consumer.await(2, 1000L);
+		Assert.assertNotSame(Thread.currentThread(), consumer.getThread());
+	}
+
+	@Test
+	public void testAsyncDispatchKeepsOrderPerConsumer() throws Exception {
+		final int batches = 200;
+		
+		executor = Executors.newFixedThreadPool(4);
+		channel.setAsyncDispatch(true);
+		channel.setDispatchExecutor(executor);
+		channel.start();
+		
+		RecordingConsumer consumerA = new RecordingConsumer(channel, "A");
+		RecordingConsumer consumerB = new RecordingConsumer(channel, "B");
+		channel.addConsumer(consumerA);
+		channel.addConsumer(consumerB);
+		
+		for (int i = 0; i < batches; i++) {
+			Message[] messages = new Message[4];
+			messages[0] = newPushedMessage("A", 2 * i);
+			messages[1] = newPushedMessage("B", 2 * i);
+			messages[2] = newPushedMessage("A", 2 * i + 1);
+			messages[3] = newPushedMessage("B", 2 * i + 1);
+			channel.respond(nextConnect(), messages);
+		}
+		
+		for (RecordingConsumer consumer : new RecordingConsumer[]{ consumerA, consumerB }) {
+			consumer.await(2 * batches, 5000L);
+			
+			List<Object> messages = consumer.getMessages();
+			for (int i = 0; i < messages.size(); i++)
+				Assert.assertEquals(consumer.getSubscriptionId() + " message #" + i, Integer.valueOf(i), messages.get(i));
+		}
+	}
+
+	@Test
+	public void testConnectGapMetrics() throws Exception {
+		channel.start();
+		RecordingConsumer consumer = new RecordingConsumer(channel, "A");
+		channel.addConsumer(consumer);
+		
+		// The next connect is sent at once: no time without outstanding connect.
+		channel.respond(nextConnect(), push("A", 1));
+		TransportMessage connect = nextConnect();
+		Assert.assertEquals(1L, channel.getConnectGaps());
+		
+		// Without consumer, no connect is sent after the response until a new consumer is added.
+		channel.removeConsumer(consumer);
+		channel.respond(connect, push("A", 2));
+		Assert.assertNull(transport.nextSentMessage(100L));
+		
+		Thread.sleep(50L);
+		channel.addConsumer(consumer);
+		connect = nextConnect();
+		
+		Assert.assertEquals(2L, channel.getConnectGaps());
+		Assert.assertTrue("Gap: " + channel.getMaxConnectGapMillis(), channel.getMaxConnectGapMillis() >= 50L);
+		Assert.assertTrue("Total gaps: " + channel.getConnectGapMillis(), channel.getConnectGapMillis() >= channel.getMaxConnectGapMillis());
+		
+		// A failed connect isn't followed by a gap.
+		channel.onError(connect, new IOException("Connection reset"));
+		channel.addConsumer(consumer);
+		Assert.assertNotNull(nextConnect());
+		Assert.assertEquals(2L, channel.getConnectGaps());
+	}
+	
+	private TransportMessage nextConnect() throws InterruptedException {
+		TransportMessage message = transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Connect sent", message);
+		Assert.assertTrue("Connect sent", message.isConnect());
+		return message;
+	}
+	
+	private static Message[] push(String subscriptionId, int... values) {
+		Message[] messages = new Message[values.length];
+		for (int i = 0; i < values.length; i++)
+			messages[i] = newPushedMessage(subscriptionId, values[i]);
+		return messages;
+	}
+	
+	private static Message newPushedMessage(String subscriptionId, int value) {
+		AsyncMessage message = new AsyncMessage();
+		message.setMessageId(subscriptionId + "-" + value);
+		message.setHeader(AsyncMessage.DESTINATION_CLIENT_ID_HEADER, subscriptionId);
+		message.setBody(Integer.valueOf(value));
+		return message;
+	}
+	
+	private static TransportMessage newTransportMessage(String id, boolean connect) {
+		return new DefaultTransportMessage<Message[]>(id, connect, null, null, new Message[0], new PushCodec());
+	}
+	
+	private static class RecordingConsumer extends Consumer {
+		
+		private final String subscriptionId;
+		private final List<Object> messages = new ArrayList<Object>();
+		private Thread thread = null;
+
+		public RecordingConsumer(MessagingChannel channel, String subscriptionId) {
+			super(channel, "destination", null);
+			
+			this.subscriptionId = subscriptionId;
+		}
+
+		@Override
+		public String getSubscriptionId() {
+			return subscriptionId;
+		}
+
+		@Override
+		public void onMessage(TopicMessage message) {
+			synchronized (messages) {
+				thread = Thread.currentThread();
+				messages.add(message.getData());
+				messages.notifyAll();
+			}
+		}
+		
+		public List<Object> getMessages() {
+			synchronized (messages) {
+				return new ArrayList<Object>(messages);
+			}
+		}
+		
+		public Thread getThread() {
+			synchronized (messages) {
+				return thread;
+			}
+		}
+		
+		public void await(int count, long timeoutMillis) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeoutMillis;
+			synchronized (messages) {
+				for (long wait = timeoutMillis; messages.size() < count && wait > 0L; wait = end - System.currentTimeMillis())
+					messages.wait(wait);
+				Assert.assertEquals("Dispatched messages", count, messages.size());
+			}
+		}
+	}
+	
+	/**
+	 * Messaging channel decoding each response as the messages passed to {@link #respond(TransportMessage, Message...)}.
+	 */
+	private static class MockMessagingChannel extends AbstractAMFMessagingChannel {
+		
+		private final PushCodec pushCodec;
+		
+		public MockMessagingChannel(MockHTTPTransport transport) {
+			this(transport, new PushCodec());
+		}
+		
+		private MockMessagingChannel(MockHTTPTransport transport, PushCodec pushCodec) {
+			super(pushCodec, transport, "mock", URI.create("/mock"));
+			
+			this.pushCodec = pushCodec;
+		}
+		
+		public synchronized void respond(TransportMessage message, Message... messages) {
+			pushCodec.next = messages;
+			onMessage(message, new ByteArrayInputStream(new byte[messages.length > 0 ? 1 : 0]));
+		}
+	}
+	
+	private static class PushCodec implements MessagingCodec<Message[]> {
+		
+		private Message[] next = new Message[0];
+		private Runnable onDecode = null;
+
+		@Override
+		public ClientType getClientType() {
+			return ClientType.JAVA;
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/x-test";
+		}
+
+		@Override
+		public void encode(Message[] message, OutputStream output) throws IOException {
+		}
+
+		@Override
+		public Message[] decode(InputStream input) throws IOException {
+			if (onDecode != null)
+				onDecode.run();
+			return next;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.Consumer;
+import org.granite.client.messaging.TopicMessageListener;
+import org.granite.client.messaging.channel.MessagingChannel;
+import org.granite.client.messaging.events.TopicMessageEvent;
+import org.granite.client.messaging.messages.push.TopicMessage;
+import org.granite.client.util.DispatchQueue.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConsumerQueue {
+	
+	private Consumer consumer;
+	private final List<Object> received = new ArrayList<Object>();
+	
+	@Before
+	public void setUp() {
+		MessagingChannel channel = (MessagingChannel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MessagingChannel.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return null;
+			}
+		});
+		
+		consumer = new Consumer(channel, "destination", "topic");
+		consumer.addMessageListener(new TopicMessageListener() {
+			@Override
+			public void onMessage(TopicMessageEvent event) {
+				received.add(event.getData());
+			}
+		});
+	}
+
+	@Test
+	public void testReconfigurationIsRejectedOnceQueued() {
+		ManualExecutor executor1 = new ManualExecutor();
+		ManualExecutor executor2 = new ManualExecutor();
+		
+		// Free to change until a message is queued.
+		consumer.setMaxQueuedMessages(1);
+		consumer.setMaxQueuedMessages(10);
+		consumer.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		consumer.setDispatchExecutor(executor2);
+		consumer.setDispatchExecutor(executor1);
+		
+		consumer.onMessage(new TopicMessage(null, "m1"));
+		consumer.onMessage(new TopicMessage(null, "m2"));
+		Assert.assertEquals(2, consumer.getQueuedMessages());
+		
+		try {
+			consumer.setMaxQueuedMessages(0);
+			Assert.fail("Should not change the queue capacity");
+		}
+		catch (IllegalStateException e) {
+		}
+		try {
+			consumer.setOverflowPolicy(OverflowPolicy.BLOCK);
+			Assert.fail("Should not change the overflow policy");
+		}
+		catch (IllegalStateException e) {
+		}
+		try {
+			consumer.setDispatchExecutor(executor2);
+			Assert.fail("Should not change the dispatch executor");
+		}
+		catch (IllegalStateException e) {
+		}
+		
+		Assert.assertEquals(10, consumer.getMaxQueuedMessages());
+		Assert.assertEquals(OverflowPolicy.DROP_OLDEST, consumer.getOverflowPolicy());
+		Assert.assertSame(executor1, consumer.getDispatchExecutor());
+		
+		// Later messages still go through the same queue, after the pending ones.
+		consumer.onMessage(new TopicMessage(null, "m3"));
+		Assert.assertTrue(executor2.tasks.isEmpty());
+		executor1.runAll();
+		Assert.assertEquals(Arrays.<Object>asList("m1", "m2", "m3"), received);
+	}
+
+	@Test
+	public void testUnqueuedConsumerCanBeReconfigured() {
+		consumer.onMessage(new TopicMessage(null, "m1"));
+		Assert.assertEquals(Arrays.<Object>asList("m1"), received);
+		
+		ManualExecutor executor = new ManualExecutor();
+		consumer.setDispatchExecutor(executor);
+		consumer.setMaxQueuedMessages(10);
+		
+		consumer.onMessage(new TopicMessage(null, "m2"));
+		Assert.assertEquals(1, consumer.getQueuedMessages());
+		executor.runAll();
+		Assert.assertEquals(Arrays.<Object>asList("m1", "m2"), received);
+	}
+	
+	@Test
+	public void testDefaultExecutorUsesConsumerThreads() throws Exception {
+		final List<String> threads = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(3);
+		consumer.addMessageListener(new TopicMessageListener() {
+			@Override
+			public void onMessage(TopicMessageEvent event) {
+				synchronized (threads) {
+					threads.add(Thread.currentThread().getName());
+				}
+				done.countDown();
+			}
+		});
+		consumer.setMaxQueuedMessages(1);
+		
+		// With the BLOCK policy, the offering thread waits for the shared pool to drain the queue.
+		for (int i = 0; i < 3; i++)
+			consumer.onMessage(new TopicMessage(null, "m" + i));
+		
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertNull(consumer.getDispatchExecutor());
+		synchronized (threads) {
+			for (String thread : threads)
+				Assert.assertTrue(thread, thread.startsWith("GraniteDS-consumer-"));
+		}
+	}
+	
+	private static class ManualExecutor implements Executor {
+		
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+		
+		public void runAll() {
+			while (!tasks.isEmpty())
+				tasks.remove(0).run();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.channel;
+
+import java.util.HashMap;
+
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.channel.UsernamePasswordCredentials;
+import org.granite.client.messaging.messages.Message.Type;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.FaultMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHandshake {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockHTTPChannel(transport, 5, false);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testRequestsWaitForPingAndLogin() throws Exception {
+		channel.setCredentials(new UsernamePasswordCredentials("user", "password"));
+		
+		ResponseMessageFuture future1 = channel.send(new InvocationMessage("service", "method1", null));
+		ResponseMessageFuture future2 = channel.send(new InvocationMessage("service", "method2", null));
+		
+		RequestMessage ping = nextRequest();
+		Assert.assertEquals(Type.PING, ping.getType());
+		Assert.assertNull("Requests wait for the ping", transport.nextSentMessage(100L));
+		Assert.assertFalse(future1.isDone());
+		
+		channel.respond(new ResultMessage("client-1", ping.getId(), null));
+		
+		RequestMessage login = nextRequest();
+		Assert.assertEquals(Type.LOGIN, login.getType());
+		Assert.assertEquals("client-1", login.getClientId());
+		Assert.assertNull("Requests wait for the login", transport.nextSentMessage(100L));
+		
+		channel.respond(new ResultMessage("client-1", login.getId(), null));
+		Assert.assertTrue(channel.isAuthenticated());
+		
+		RequestMessage request1 = nextRequest();
+		RequestMessage request2 = nextRequest();
+		Assert.assertEquals("Order preserved", "method1", ((InvocationMessage)request1).getMethod());
+		Assert.assertEquals("Order preserved", "method2", ((InvocationMessage)request2).getMethod());
+		Assert.assertEquals("client-1", request1.getClientId());
+		
+		channel.respond(new ResultMessage("client-1", request1.getId(), "result1"));
+		channel.respond(new ResultMessage("client-1", request2.getId(), "result2"));
+		Assert.assertEquals("result1", future1.get().getData());
+		Assert.assertEquals("result2", future2.get().getData());
+	}
+
+	@Test
+	public void testPingFaultIsDispatchedToAllWaitingRequests() throws Exception {
+		InvocationMessage request2 = new InvocationMessage("service", "method2", null);
+		ResponseMessageFuture future1 = channel.send(new InvocationMessage("service", "method1", null));
+		ResponseMessageFuture future2 = channel.send(request2);
+		
+		RequestMessage ping = nextRequest();
+		Assert.assertEquals(Type.PING, ping.getType());
+		
+		// Make sure the second request is waiting for the handshake.
+		Thread.sleep(100L);
+		
+		channel.respond(new FaultMessage(null, ping.getId(), FaultMessage.Code.SERVER_CALL_FAILED, "Ping failed", null, null, new HashMap<String, Object>()));
+		
+		Assert.assertEquals(FaultMessage.Code.SERVER_CALL_FAILED, ((FaultMessage)future1.get()).getCode());
+		Assert.assertEquals(FaultMessage.Code.SERVER_CALL_FAILED, ((FaultMessage)future2.get()).getCode());
+		Assert.assertEquals(request2.getId(), future2.get().getCorrelationId());
+		
+		// Next request starts a new handshake.
+		channel.send(new InvocationMessage("service", "method3", null));
+		Assert.assertEquals(Type.PING, nextRequest().getType());
+	}
+	
+	@Test
+	public void testOrderIsKeptWhenRequestsAreSentDuringHandshakeCompletion() throws Exception {
+		channel.stop();
+		channel = new MockHTTPChannel(transport, 1000, false);
+		
+		final int count = 500;
+		channel.send(new InvocationMessage("service", "method0", null));
+		RequestMessage ping = nextRequest();
+		
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 1; i < count; i++)
+					channel.send(new InvocationMessage("service", "method" + i, null));
+			}
+		};
+		sender.start();
+		Thread.sleep(1L);
+		channel.respond(new ResultMessage("client-1", ping.getId(), null));
+		sender.join();
+		
+		for (int i = 0; i < count; i++)
+			Assert.assertEquals("Order preserved", "method" + i, ((InvocationMessage)nextRequest()).getMethod());
+	}
+	
+	private RequestMessage nextRequest() throws InterruptedException {
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals(1, message.getRequests().size());
+		return message.getRequests().get(0);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.RequestMessage.Priority;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPriorityLanes {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testWeightedLanes() throws Exception {
+		channel = new MockHTTPChannel(transport, 1);
+		
+		channel.send(invocation("first", Priority.NORMAL));
+		RequestMessage first = nextRequest();
+		
+		for (int i = 0; i < 3; i++)
+			channel.send(invocation("background" + i, Priority.BACKGROUND));
+		for (int i = 0; i < 2; i++)
+			channel.send(invocation("interactive" + i, Priority.INTERACTIVE));
+		
+		Thread.sleep(100L);
+		Assert.assertEquals(3, channel.getQueuedRequests(Priority.BACKGROUND));
+		Assert.assertEquals(2, channel.getQueuedRequests(Priority.INTERACTIVE));
+		
+		List<String> methods = new ArrayList<String>();
+		RequestMessage request = first;
+		for (int i = 0; i < 5; i++) {
+			channel.respond(new ResultMessage(null, request.getId(), null));
+			request = nextRequest();
+			methods.add(((InvocationMessage)request).getMethod());
+		}
+		channel.respond(new ResultMessage(null, request.getId(), null));
+		
+		Assert.assertEquals("[interactive0, interactive1, background0, background1, background2]", methods.toString());
+		Assert.assertEquals(0, channel.getQueuedRequests(Priority.BACKGROUND));
+		Assert.assertTrue(channel.getMaxQueueWaitMillis(Priority.BACKGROUND) >= 100L);
+		Assert.assertTrue(channel.getAverageQueueWaitMillis(Priority.INTERACTIVE) >= 100L);
+	}
+
+	@Test
+	public void testReservedInteractiveSlot() throws Exception {
+		channel = new MockHTTPChannel(transport, 2);
+		channel.setInteractiveReservedSlots(1);
+		
+		channel.send(invocation("background0", Priority.BACKGROUND));
+		channel.send(invocation("background1", Priority.BACKGROUND));
+		
+		RequestMessage background0 = nextRequest();
+		Assert.assertNull("Second slot is reserved", transport.nextSentMessage(100L));
+		
+		ResponseMessageFuture future = channel.send(invocation("interactive", Priority.INTERACTIVE));
+		RequestMessage interactive = nextRequest();
+		Assert.assertEquals("interactive", ((InvocationMessage)interactive).getMethod());
+		Assert.assertEquals(2, channel.getInFlightRequests());
+		
+		channel.respond(new ResultMessage(null, interactive.getId(), "result"));
+		Assert.assertEquals("result", future.get().getData());
+		Assert.assertNull("Second slot is still reserved", transport.nextSentMessage(100L));
+		
+		channel.respond(new ResultMessage(null, background0.getId(), null));
+		Assert.assertEquals("background1", ((InvocationMessage)nextRequest()).getMethod());
+	}
+	
+	@Test
+	public void testRequeuedWaitIsRecordedOnce() throws Exception {
+		channel = new MockHTTPChannel(transport, 1, false);
+		
+		channel.send(invocation("method", Priority.NORMAL));
+		RequestMessage ping = nextRequest();
+		
+		// The request is parked during the handshake and put back in the queue afterwards.
+		Thread.sleep(200L);
+		channel.respond(new ResultMessage("client-1", ping.getId(), null));
+		RequestMessage request = nextRequest();
+		Assert.assertEquals("method", ((InvocationMessage)request).getMethod());
+		
+		Assert.assertTrue(channel.getMaxQueueWaitMillis(Priority.NORMAL) < 200L);
+		channel.respond(new ResultMessage("client-1", request.getId(), null));
+	}
+	
+	private static InvocationMessage invocation(String method, Priority priority) {
+		InvocationMessage request = new InvocationMessage("service", method, null);
+		request.setPriority(priority);
+		return request;
+	}
+	
+	private RequestMessage nextRequest() throws InterruptedException {
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals(1, message.getRequests().size());
+		return message.getRequests().get(0);
+	}
+}
@@ -0,0 +1,152 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.client.messaging.channel.AsyncToken;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.messages.Message.Type;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.requests.PublishMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPublishBatching {
+	
+	private MockHTTPTransport transport;
+	private MockPublishChannel channel;
+	private final AtomicInteger sentMessages = new AtomicInteger();
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockPublishChannel(transport);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testUnacknowledgedPublishCompletesOnWrite() throws Exception {
+		ResponseMessageFuture future1 = channel.send(newPublishMessage(1, false));
+		ResponseMessageFuture future2 = channel.send(newPublishMessage(2, false));
+		
+		MockTransportMessage message1 = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message1);
+		Assert.assertNotNull("Completed on write", future1.get(1000L, TimeUnit.MILLISECONDS));
+		Assert.assertFalse(future2.isDone());
+		
+		// The connection is held until the server acknowledges the first message.
+		Assert.assertNull("Single connection in use", transport.nextSentMessage(100L));
+		channel.respond(new ResultMessage(null, message1.getId(), null));
+		
+		Assert.assertNotNull("Message sent", transport.nextSentMessage(1000L));
+		Assert.assertNotNull("Completed on write", future2.get(1000L, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testAcknowledgedPublishesAreCoalesced() throws Exception {
+		final int count = 1000;
+		
+		publish(count, 1, 0L);
+		Assert.assertEquals("One request per publish", count, sentMessages.getAndSet(0));
+		
+		publish(count, 100, 1L);
+		Assert.assertTrue("Publish requests coalesced", sentMessages.getAndSet(0) < count / 5);
+	}
+	
+	private void publish(int count, int maxCoalescedRequests, long lingerMillis) throws Exception {
+		channel.setMaxCoalescedRequests(maxCoalescedRequests);
+		channel.setCoalescingLingerMillis(lingerMillis);
+		
+		final int expected = count;
+		Thread responder = new Thread() {
+			@Override
+			public void run() {
+				int acknowledged = 0;
+				try {
+					while (acknowledged < expected) {
+						MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(5000L);
+						if (message == null)
+							return;
+						sentMessages.incrementAndGet();
+						
+						ResultMessage first = null, last = null;
+						for (RequestMessage request : message.getRequests()) {
+							ResultMessage response = new ResultMessage(null, request.getId(), null);
+							if (first == null)
+								first = response;
+							else
+								last.setNext(response);
+							last = response;
+							acknowledged++;
+						}
+						channel.respond(first);
+					}
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		responder.start();
+		
+		List<ResponseMessageFuture> futures = new ArrayList<ResponseMessageFuture>(count);
+		for (int i = 0; i < count; i++)
+			futures.add(channel.send(newPublishMessage(i, true)));
+		for (ResponseMessageFuture future : futures)
+			Assert.assertNotNull(future.get(5000L, TimeUnit.MILLISECONDS));
+		
+		responder.join(5000L);
+	}
+	
+	private static PublishMessage newPublishMessage(int i, boolean acknowledged) {
+		PublishMessage message = new PublishMessage("destination", "topic", Integer.valueOf(i));
+		message.setAcknowledged(acknowledged);
+		return message;
+	}
+	
+	static class MockPublishChannel extends MockHTTPChannel {
+
+		public MockPublishChannel(MockHTTPTransport transport) {
+			super(transport, 1);
+		}
+
+		@Override
+		protected boolean canCoalesce(AsyncToken token) {
+			return token.getRequest().getType() == Type.PUBLISH;
+		}
+
+		@Override
+		protected boolean completesOnWrite(RequestMessage request) {
+			return request instanceof PublishMessage && !((PublishMessage)request).isAcknowledged();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.channel;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.messaging.transport.TransportMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRequestCoalescing {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockHTTPChannel(transport, 1);
+		channel.setMaxCoalescedRequests(10);
+		channel.setCoalescingLingerMillis(200L);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testCoalescedResponsesAreRouted() throws Exception {
+		InvocationMessage request1 = new InvocationMessage("service", "method1", null);
+		InvocationMessage request2 = new InvocationMessage("service", "method2", null);
+		request2.setNext(new InvocationMessage("service", "method2bis", null));
+		InvocationMessage request3 = new InvocationMessage("service", "method3", null);
+		
+		ResponseMessageFuture future1 = channel.send(request1);
+		ResponseMessageFuture future2 = channel.send(request2);
+		ResponseMessageFuture future3 = channel.send(request3);
+		
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals("Coalesced requests", 3, message.getRequests().size());
+		Assert.assertEquals("Message id", request1.getId(), message.getId());
+		Assert.assertNull("No other message", transport.nextSentMessage(100L));
+		
+		ResultMessage response = new ResultMessage(null, request1.getId(), "result1");
+		ResultMessage response2 = new ResultMessage(null, request2.getId(), "result2");
+		ResultMessage response2bis = new ResultMessage(null, request2.getNext().getId(), "result2bis");
+		ResultMessage response3 = new ResultMessage(null, request3.getId(), "result3");
+		response.setNext(response2);
+		response2.setNext(response2bis);
+		response2bis.setNext(response3);
+		channel.respond(response);
+		
+		Assert.assertEquals("result1", future1.get().getData());
+		Assert.assertNull("Chain split", future1.get().getNext());
+		Assert.assertEquals("result2", future2.get().getData());
+		Assert.assertEquals("result2bis", future2.get().getNext().getData());
+		Assert.assertNull("Chain split", future2.get().getNext().getNext());
+		Assert.assertEquals("result3", future3.get().getData());
+	}
+
+	@Test
+	public void testCoalescedErrorIsDispatchedToAllTokens() throws Exception {
+		ResponseMessageFuture future1 = channel.send(new InvocationMessage("service", "method1", null));
+		ResponseMessageFuture future2 = channel.send(new InvocationMessage("service", "method2", null));
+		
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertEquals("Coalesced requests", 2, message.getRequests().size());
+		
+		channel.onError(message, new RuntimeException("Network error"));
+		
+		for (ResponseMessageFuture future : new ResponseMessageFuture[]{ future1, future2 }) {
+			try {
+				future.get();
+				Assert.fail("Failure expected");
+			}
+			catch (ExecutionException e) {
+				Assert.assertEquals("Network error", e.getCause().getMessage());
+			}
+		}
+		
+		// The connection must have been released.
+		ResponseMessageFuture future3 = channel.send(new InvocationMessage("service", "method3", null));
+		message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		channel.respond(new ResultMessage(null, message.getId(), "result3"));
+		Assert.assertEquals("result3", future3.get().getData());
+	}
+
+	@Test
+	public void testByteBudgetEncodesBatchOnce() throws Exception {
+		channel.setMaxCoalescedBytes(Integer.MAX_VALUE);
+		
+		InvocationMessage request1 = new InvocationMessage("service", "method1", null);
+		InvocationMessage request2 = new InvocationMessage("service", "method2", null);
+		int encodings = MockTransportMessage.getEncodings();
+		channel.send(request1);
+		channel.send(request2);
+		
+		TransportMessage message = transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals("Message id", request1.getId(), message.getId());
+		Assert.assertEquals("Coalesced requests", content(request1, request2), content(message));
+		Assert.assertEquals("Encoded once", encodings + 1, MockTransportMessage.getEncodings());
+	}
+
+	@Test
+	public void testByteBudgetSplitsBatch() throws Exception {
+		InvocationMessage request1 = new InvocationMessage("service", "method1", null);
+		InvocationMessage request2 = new InvocationMessage("service", "method2", null);
+		InvocationMessage request3 = new InvocationMessage("service", "method3", null);
+		
+		// Room for the timestamp and time to live set when sending, but not for a third request.
+		channel.setMaxCoalescedBytes(content(request1, request2).length() + 64);
+		
+		ResponseMessageFuture future1 = channel.send(request1);
+		ResponseMessageFuture future2 = channel.send(request2);
+		ResponseMessageFuture future3 = channel.send(request3);
+		
+		TransportMessage message = transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals("Requests within budget", content(request1, request2), content(message));
+		Assert.assertNull("One connection", transport.nextSentMessage(100L));
+		
+		ResultMessage response = new ResultMessage(null, request1.getId(), "result1");
+		response.setNext(new ResultMessage(null, request2.getId(), "result2"));
+		channel.respond(response);
+		Assert.assertEquals("result1", future1.get().getData());
+		Assert.assertEquals("result2", future2.get().getData());
+		
+		// The request put back in the queue is sent next.
+		MockTransportMessage message3 = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message3);
+		Assert.assertEquals(Arrays.asList(request3), message3.getRequests());
+		channel.respond(new ResultMessage(null, request3.getId(), "result3"));
+		Assert.assertEquals("result3", future3.get().getData());
+	}
+	
+	private static String content(RequestMessage... requests) {
+		return Arrays.toString(requests);
+	}
+	
+	private static String content(TransportMessage message) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		message.encode(os);
+		return os.toString("UTF-8");
+	}
+}
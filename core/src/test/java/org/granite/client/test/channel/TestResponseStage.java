@@ -0,0 +1,218 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.granite.client.messaging.channel.FaultMessageException;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.channel.ResponseStage;
+import org.granite.client.messaging.channel.ResponseStage.Function;
+import org.granite.client.messaging.channel.ResponseStages;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.ResponseMessage;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.FaultMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestResponseStage {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockHTTPChannel(transport, 5);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testTimedGet() throws Exception {
+		ResponseMessageFuture future = channel.send(new InvocationMessage("service", "method", null));
+		RequestMessage request = nextRequest();
+		try {
+			future.get(50L, TimeUnit.MILLISECONDS);
+			Assert.fail("Expected TimeoutException");
+		}
+		catch (TimeoutException e) {
+		}
+		Assert.assertFalse("Not cancelled by a timed get", future.isDone());
+		
+		channel.respond(new ResultMessage(null, request.getId(), "result"));
+		Assert.assertEquals("result", future.get(1L, TimeUnit.SECONDS).getData());
+	}
+
+	@Test
+	public void testCompose() throws Exception {
+		ResponseStage<Object> stage = channel.send(new InvocationMessage("service", "findId", null)).toStage()
+			.thenCompose(new Function<ResponseMessage, ResponseStage<ResponseMessage>>() {
+				@Override
+				public ResponseStage<ResponseMessage> apply(ResponseMessage response) {
+					return channel.send(new InvocationMessage("service", "load", new Object[]{ response.getData() })).toStage();
+				}
+			})
+			.thenApply(new Function<ResponseMessage, Object>() {
+				@Override
+				public Object apply(ResponseMessage response) {
+					return response.getData();
+				}
+			});
+		
+		channel.respond(new ResultMessage(null, nextRequest().getId(), 42));
+		InvocationMessage load = (InvocationMessage)nextRequest();
+		Assert.assertEquals(42, load.getParameters()[0]);
+		Assert.assertFalse(stage.isDone());
+		
+		channel.respond(new ResultMessage(null, load.getId(), "entity42"));
+		Assert.assertEquals("entity42", stage.get(1L, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testFault() throws Exception {
+		ResponseStage<ResponseMessage> stage = channel.send(new InvocationMessage("service", "method", null)).toStage();
+		ResponseStage<Object> recovered = stage.thenApply(new Function<ResponseMessage, Object>() {
+			@Override
+			public Object apply(ResponseMessage response) {
+				return response.getData();
+			}
+		})
+		.exceptionally(new Function<Throwable, Object>() {
+			@Override
+			public Object apply(Throwable error) {
+				return ((FaultMessageException)error).getFaultMessage().getCode();
+			}
+		});
+		
+		channel.respond(new FaultMessage(null, nextRequest().getId(), FaultMessage.Code.ACCESS_DENIED, "Denied", null, null, new HashMap<String, Object>()));
+		
+		Assert.assertTrue(stage.isCompletedExceptionally());
+		try {
+			stage.get();
+			Assert.fail("Expected ExecutionException");
+		}
+		catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof FaultMessageException);
+		}
+		Assert.assertEquals(FaultMessage.Code.ACCESS_DENIED, recovered.get());
+	}
+
+	@Test
+	public void testCancelPropagatesToRequest() throws Exception {
+		ResponseMessageFuture future = channel.send(new InvocationMessage("service", "method", null));
+		ResponseStage<Object> stage = future.toStage().thenApply(new Function<ResponseMessage, Object>() {
+			@Override
+			public Object apply(ResponseMessage response) {
+				return response.getData();
+			}
+		});
+		
+		Assert.assertTrue(stage.cancel());
+		Assert.assertTrue(stage.isCancelled());
+		Assert.assertTrue(future.isCancelled());
+	}
+
+	@Test
+	public void testCancelDoesNotPropagateToSharedSource() throws Exception {
+		Function<ResponseMessage, Object> data = new Function<ResponseMessage, Object>() {
+			@Override
+			public Object apply(ResponseMessage response) {
+				return response.getData();
+			}
+		};
+		
+		ResponseMessageFuture future = channel.send(new InvocationMessage("service", "method", null));
+		ResponseStage<ResponseMessage> source = future.toStage();
+		ResponseStage<Object> stage1 = source.thenApply(data);
+		ResponseStage<Object> stage2 = source.thenApply(data);
+		ResponseStage<Object> other = future.toStage().thenApply(data);
+		
+		Assert.assertTrue(stage1.cancel());
+		Assert.assertFalse("Sibling not cancelled", stage2.isDone());
+		Assert.assertFalse(source.isDone());
+		
+		Assert.assertTrue(stage2.cancel());
+		Assert.assertTrue("Last dependent cancelled", source.isCancelled());
+		Assert.assertFalse("Other stage of the request not cancelled", future.isDone());
+		
+		Assert.assertTrue(other.cancel());
+		Assert.assertTrue(future.isCancelled());
+	}
+
+	@Test
+	public void testAllOfWithExecutor() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "stage-executor");
+			}
+		});
+		try {
+			Function<ResponseMessage, String> threadName = new Function<ResponseMessage, String>() {
+				@Override
+				public String apply(ResponseMessage response) {
+					return response.getData() + "@" + Thread.currentThread().getName();
+				}
+			};
+			
+			ResponseStage<String> stage1 = channel.send(new InvocationMessage("service", "method1", null)).toStage(executor).thenApply(threadName);
+			ResponseStage<String> stage2 = channel.send(new InvocationMessage("service", "method2", null)).toStage(executor).thenApply(threadName);
+			List<ResponseStage<String>> stages = new ArrayList<ResponseStage<String>>();
+			stages.add(stage1);
+			stages.add(stage2);
+			ResponseStage<List<String>> all = ResponseStages.allOf(stages);
+			
+			RequestMessage request1 = nextRequest();
+			RequestMessage request2 = nextRequest();
+			channel.respond(new ResultMessage(null, request2.getId(), "result2"));
+			Assert.assertFalse(all.isDone());
+			channel.respond(new ResultMessage(null, request1.getId(), "result1"));
+			
+			Assert.assertEquals("[result1@stage-executor, result2@stage-executor]", all.get(1L, TimeUnit.SECONDS).toString());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	private RequestMessage nextRequest() throws InterruptedException {
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals(1, message.getRequests().size());
+		return message.getRequests().get(0);
+	}
+}
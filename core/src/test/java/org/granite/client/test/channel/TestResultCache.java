@@ -0,0 +1,177 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.RemoteService;
+import org.granite.client.messaging.ResultCache;
+import org.granite.client.messaging.ResultFaultIssuesResponseListener;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.events.FaultEvent;
+import org.granite.client.messaging.events.IssueEvent;
+import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.persistence.Entity;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestResultCache {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	private RemoteService remoteService;
+	private ResultCache resultCache;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockHTTPChannel(transport, 5);
+		remoteService = new RemoteService(channel, "service");
+		resultCache = new ResultCache(2);
+		resultCache.setTimeToLive("findAll", 1L, TimeUnit.MINUTES, Country.class);
+		resultCache.setTimeToLive("find", 200L, TimeUnit.MILLISECONDS, Country.class);
+		resultCache.setTimeToLive("findAllCities", 1L, TimeUnit.MINUTES);
+		remoteService.setResultCache(resultCache);
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testHitIsSynchronous() throws Exception {
+		Assert.assertEquals("countries", call("findAll", "Country").get().getData());
+		Assert.assertEquals(1, resultCache.getMisses());
+		
+		final Object[] received = new Object[1];
+		ResponseMessageFuture future = remoteService.newInvocation("findAll", "Country").addListener(new ResultFaultIssuesResponseListener() {
+			@Override
+			public void onResult(ResultEvent event) {
+				received[0] = event.getResult();
+			}
+			@Override
+			public void onFault(FaultEvent event) {
+			}
+			@Override
+			public void onIssue(IssueEvent event) {
+			}
+		}).invoke();
+		
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals("countries", received[0]);
+		Assert.assertEquals(1, resultCache.getHits());
+		Assert.assertNull("Not sent", transport.nextSentMessage(100L));
+		
+		// Methods without time to live aren't cached.
+		call("save", "Country").get();
+		call("save", "Country").get();
+		Assert.assertEquals(1, resultCache.getHits());
+	}
+
+	@Test
+	public void testExpirationAndEviction() throws Exception {
+		call("find", 1).get();
+		Thread.sleep(300L);
+		call("find", 1).get();
+		Assert.assertEquals("Expired", 2, resultCache.getMisses());
+		
+		call("find", 2).get();
+		call("findAll", "Country").get();
+		Assert.assertEquals(1, resultCache.getEvictions());
+		Assert.assertEquals(2, resultCache.size());
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		ResponseMessageFuture future = remoteService.newInvocation("findAllCities").invoke();
+		RequestMessage request = nextRequest();
+		
+		// Invalidation while the call is in flight: its result isn't cached.
+		resultCache.invalidate(Country.class);
+		channel.respond(new ResultMessage(null, request.getId(), Arrays.asList(new City(), new City())));
+		future.get();
+		Assert.assertEquals(0, resultCache.size());
+		
+		respond("findAllCities", Arrays.asList(new City(), new City())).get();
+		Assert.assertEquals(1, resultCache.size());
+		
+		resultCache.invalidate(Country.class);
+		Assert.assertEquals(1, resultCache.size());
+		resultCache.invalidate(City.class);
+		Assert.assertEquals(0, resultCache.size());
+		Assert.assertEquals(1, resultCache.getInvalidations());
+	}
+
+	@Test
+	public void testResultsWithoutEntityDependencies() throws Exception {
+		resultCache.setTimeToLive("count", 1L, TimeUnit.MINUTES);
+		resultCache.setTimeToLive("countCities", 1L, TimeUnit.MINUTES, City.class);
+		
+		// Nothing could invalidate these results: they aren't cached.
+		respond("findAllCities", Collections.emptyList()).get();
+		respond("count", Long.valueOf(2L)).get();
+		Assert.assertEquals(0, resultCache.size());
+		
+		// Declared dependencies apply to empty and scalar results.
+		respond("countCities", Long.valueOf(0L)).get();
+		Assert.assertEquals(1, resultCache.size());
+		resultCache.invalidate(City.class);
+		Assert.assertEquals(0, resultCache.size());
+	}
+	
+	private ResponseMessageFuture respond(String method, Object result) throws InterruptedException {
+		ResponseMessageFuture future = remoteService.newInvocation(method).invoke();
+		Assert.assertFalse("Not cached", future.isDone());
+		channel.respond(new ResultMessage(null, nextRequest().getId(), result));
+		return future;
+	}
+	
+	private ResponseMessageFuture call(String method, Object... parameters) throws InterruptedException {
+		ResponseMessageFuture future = remoteService.newInvocation(method, parameters).invoke();
+		if (!future.isDone()) {
+			RequestMessage request = nextRequest();
+			channel.respond(new ResultMessage(null, request.getId(), "findAll".equals(method) ? "countries" : "result"));
+		}
+		return future;
+	}
+	
+	private RequestMessage nextRequest() throws InterruptedException {
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals(1, message.getRequests().size());
+		return message.getRequests().get(0);
+	}
+	
+	@Entity
+	public static class Country {
+	}
+	
+	@Entity
+	public static class City {
+	}
+}
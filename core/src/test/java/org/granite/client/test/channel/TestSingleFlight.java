@@ -0,0 +1,180 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.test.channel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.RemoteService;
+import org.granite.client.messaging.ResponseListener;
+import org.granite.client.messaging.ResultFaultIssuesResponseListener;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.events.FaultEvent;
+import org.granite.client.messaging.events.IssueEvent;
+import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.client.test.channel.MockHTTPChannel.MockTransportMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSingleFlight {
+	
+	private MockHTTPTransport transport;
+	private MockHTTPChannel channel;
+	private RemoteService remoteService;
+	
+	@Before
+	public void setUp() {
+		transport = new MockHTTPTransport();
+		channel = new MockHTTPChannel(transport, 5);
+		remoteService = new RemoteService(channel, "service");
+		remoteService.addSingleFlightMethods("findAll");
+	}
+	
+	@After
+	public void tearDown() {
+		channel.stop();
+	}
+
+	@Test
+	public void testIdenticalInvocationsShareOneRequest() throws Exception {
+		CountDownLatch results = new CountDownLatch(3);
+		
+		ResponseMessageFuture future1 = remoteService.newInvocation("findAll", "type", new Object[]{ 1 }).addListener(new CountingListener(results)).invoke();
+		ResponseMessageFuture future2 = remoteService.newInvocation("findAll", "type", new Object[]{ 1 }).addListener(new CountingListener(results)).invoke();
+		ResponseMessageFuture future3 = remoteService.newInvocation("findAll", "type", new Object[]{ 1 }).addListener(new CountingListener(results)).invoke();
+		ResponseMessageFuture other = remoteService.newInvocation("findAll", "type", new Object[]{ 2 }).invoke();
+		
+		RequestMessage request = nextRequest();
+		RequestMessage otherRequest = nextRequest();
+		Assert.assertNull("Duplicates not sent", transport.nextSentMessage(100L));
+		Assert.assertEquals(2, remoteService.getSingleFlightHits());
+		
+		channel.respond(new ResultMessage(null, request.getId(), "shared"));
+		Assert.assertTrue("All listeners notified", results.await(1L, TimeUnit.SECONDS));
+		Assert.assertEquals("shared", future1.get().getData());
+		Assert.assertEquals("shared", future2.get().getData());
+		Assert.assertEquals("shared", future3.get().getData());
+		Assert.assertFalse(other.isDone());
+		
+		channel.respond(new ResultMessage(null, otherRequest.getId(), "other"));
+		Assert.assertEquals("other", other.get().getData());
+		
+		// The first invocation is complete: a new identical one is sent.
+		remoteService.newInvocation("findAll", "type", new Object[]{ 1 }).invoke();
+		nextRequest();
+	}
+
+	@Test
+	public void testOtherMethodsAreNotShared() throws Exception {
+		remoteService.newInvocation("save", "entity").invoke();
+		remoteService.newInvocation("save", "entity").invoke();
+		
+		Assert.assertEquals("save", ((InvocationMessage)nextRequest()).getMethod());
+		Assert.assertEquals("save", ((InvocationMessage)nextRequest()).getMethod());
+		Assert.assertEquals(0, remoteService.getSingleFlightHits());
+	}
+	
+	@Test(timeout = 5000L)
+	public void testPendingSendDoesNotBlockOtherInvocations() throws Exception {
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		channel.stop();
+		channel = new MockHTTPChannel(transport, 5) {
+			@Override
+			public ResponseMessageFuture send(RequestMessage request, ResponseListener... listeners) {
+				if ("slow".equals(((InvocationMessage)request).getParameters()[0])) {
+					sending.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				return super.send(request, listeners);
+			}
+		};
+		remoteService = new RemoteService(channel, "service");
+		remoteService.addSingleFlightMethods("findAll");
+		
+		final ResponseMessageFuture[] futures = new ResponseMessageFuture[2];
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				futures[0] = remoteService.newInvocation("findAll", "slow").invoke();
+			}
+		};
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				futures[1] = remoteService.newInvocation("findAll", "slow").invoke();
+			}
+		};
+		first.start();
+		Assert.assertTrue(sending.await(1L, TimeUnit.SECONDS));
+		second.start();
+		
+		remoteService.newInvocation("findAll", "fast").invoke();
+		Assert.assertEquals("fast", ((InvocationMessage)nextRequest()).getParameters()[0]);
+		
+		release.countDown();
+		first.join(1000L);
+		second.join(1000L);
+		Assert.assertEquals("slow", ((InvocationMessage)nextRequest()).getParameters()[0]);
+		Assert.assertNull("Duplicate not sent", transport.nextSentMessage(100L));
+		Assert.assertSame(futures[0], futures[1]);
+		Assert.assertEquals(1, remoteService.getSingleFlightHits());
+	}
+	
+	private RequestMessage nextRequest() throws InterruptedException {
+		MockTransportMessage message = (MockTransportMessage)transport.nextSentMessage(1000L);
+		Assert.assertNotNull("Message sent", message);
+		Assert.assertEquals(1, message.getRequests().size());
+		return message.getRequests().get(0);
+	}
+	
+	private static class CountingListener extends ResultFaultIssuesResponseListener {
+		
+		private final CountDownLatch latch;
+		
+		public CountingListener(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		public void onResult(ResultEvent event) {
+			latch.countDown();
+		}
+
+		@Override
+		public void onFault(FaultEvent event) {
+		}
+
+		@Override
+		public void onIssue(IssueEvent event) {
+		}
+	}
+}
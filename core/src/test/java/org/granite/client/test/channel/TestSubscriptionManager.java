@@ -0,0 +1,198 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.channel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.Consumer;
+import org.granite.client.messaging.ResponseListener;
+import org.granite.client.messaging.SubscriptionManager;
+import org.granite.client.messaging.TopicMessageListener;
+import org.granite.client.messaging.channel.AsyncToken;
+import org.granite.client.messaging.channel.MessagingChannel;
+import org.granite.client.messaging.channel.ResponseMessageFuture;
+import org.granite.client.messaging.events.TopicMessageEvent;
+import org.granite.client.messaging.messages.RequestMessage;
+import org.granite.client.messaging.messages.push.TopicMessage;
+import org.granite.client.messaging.messages.requests.SubscribeMessage;
+import org.granite.client.messaging.messages.requests.UnsubscribeMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSubscriptionManager {
+	
+	private final List<AsyncToken> sent = new ArrayList<AsyncToken>();
+	private final List<Consumer> channelConsumers = new ArrayList<Consumer>();
+	private MessagingChannel channel;
+	private SubscriptionManager manager;
+	
+	@Before
+	public void setUp() {
+		channel = (MessagingChannel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MessagingChannel.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("send".equals(name)) {
+					AsyncToken token = new AsyncToken((RequestMessage)args[0], (ResponseListener[])args[1]);
+					sent.add(token);
+					return token;
+				}
+				if ("addConsumer".equals(name))
+					channelConsumers.add((Consumer)args[0]);
+				else if ("removeConsumer".equals(name))
+					return channelConsumers.remove(args[0]);
+				return null;
+			}
+		});
+		manager = new SubscriptionManager(channel);
+	}
+
+	@Test
+	public void testConsumersShareSubscription() throws Exception {
+		Consumer consumer1 = newConsumer("topic", null);
+		Consumer consumer2 = newConsumer("topic", null);
+		List<Object> received1 = listen(consumer1);
+		List<Object> received2 = listen(consumer2);
+		
+		ResponseMessageFuture future1 = consumer1.subscribe();
+		ResponseMessageFuture future2 = consumer2.subscribe();
+		Assert.assertEquals("Single server subscription", 1, sent.size());
+		Assert.assertFalse("Pending until the server answers", future2.isDone());
+		
+		acknowledge(0, "sub1");
+		Assert.assertEquals("sub1", future1.get(1, TimeUnit.SECONDS).getData());
+		Assert.assertEquals("sub1", future2.get(1, TimeUnit.SECONDS).getData());
+		Assert.assertEquals("sub1", consumer1.getSubscriptionId());
+		Assert.assertEquals("sub1", consumer2.getSubscriptionId());
+		Assert.assertEquals(1, channelConsumers.size());
+		
+		channelConsumers.get(0).onMessage(new TopicMessage("client", "data"));
+		Assert.assertEquals(1, received1.size());
+		Assert.assertEquals(1, received2.size());
+		
+		Consumer consumer3 = newConsumer("topic", null);
+		Assert.assertEquals("sub1", consumer3.subscribe().get(1, TimeUnit.SECONDS).getData());
+		Assert.assertEquals("Already subscribed", 1, sent.size());
+		Assert.assertEquals(3, manager.getLocalSubscriptions());
+	}
+
+	@Test
+	public void testLastConsumerUnsubscribes() throws Exception {
+		Consumer consumer1 = newConsumer("topic", null);
+		Consumer consumer2 = newConsumer("topic", null);
+		consumer1.subscribe();
+		consumer2.subscribe();
+		acknowledge(0, "sub1");
+		
+		consumer1.unsubscribe().get(1, TimeUnit.SECONDS);
+		Assert.assertFalse(consumer1.isSubscribed());
+		Assert.assertEquals("No server request", 1, sent.size());
+		
+		channelConsumers.get(0).onMessage(new TopicMessage("client", "data"));
+		
+		ResponseMessageFuture future = consumer2.unsubscribe();
+		Assert.assertEquals(2, sent.size());
+		UnsubscribeMessage unsubscribe = (UnsubscribeMessage)sent.get(1).getRequest();
+		Assert.assertEquals("sub1", unsubscribe.getSubscriptionId());
+		
+		acknowledge(1, null);
+		Assert.assertNotNull(future.get(1, TimeUnit.SECONDS));
+		Assert.assertTrue(channelConsumers.isEmpty());
+		Assert.assertEquals(0, manager.getServerSubscriptions());
+	}
+
+	@Test
+	public void testSelectorsAreNotShared() {
+		newConsumer("topic", "a = 1").subscribe();
+		newConsumer("topic", "a = 2").subscribe();
+		newConsumer("other", "a = 1").subscribe();
+		
+		Assert.assertEquals(3, sent.size());
+		Assert.assertEquals("a = 2", ((SubscribeMessage)sent.get(1).getRequest()).getSelector());
+		Assert.assertEquals(3, manager.getServerSubscriptions());
+	}
+
+	@Test
+	public void testDefaultHeadersAreNotShared() {
+		newConsumer("topic", null).subscribe();
+		Consumer consumer = newConsumer("topic", null);
+		consumer.getDefaultHeaders().put("header", "value");
+		consumer.subscribe();
+		
+		Assert.assertEquals(2, sent.size());
+		Assert.assertEquals("value", sent.get(1).getRequest().getHeaders().get("header"));
+		Assert.assertEquals(2, manager.getServerSubscriptions());
+	}
+
+	@Test
+	public void testDisconnectOutsideOfLock() {
+		final List<Boolean> locked = new ArrayList<Boolean>();
+		for (int i = 0; i < 2; i++) {
+			Consumer consumer = new Consumer(channel, "destination", "topic") {
+				@Override
+				public void onDisconnect() {
+					locked.add(Boolean.valueOf(Thread.holdsLock(manager)));
+					super.onDisconnect();
+				}
+			};
+			consumer.setSubscriptionManager(manager);
+			consumer.subscribe();
+		}
+		acknowledge(0, "sub1");
+		
+		channelConsumers.get(0).onDisconnect();
+		Assert.assertEquals(Arrays.asList(Boolean.FALSE, Boolean.FALSE), locked);
+		Assert.assertEquals(0, manager.getLocalSubscriptions());
+		Assert.assertEquals(0, manager.getServerSubscriptions());
+	}
+	
+	private Consumer newConsumer(String topic, String selector) {
+		Consumer consumer = new Consumer(channel, "destination", topic);
+		consumer.setSelector(selector);
+		consumer.setSubscriptionManager(manager);
+		return consumer;
+	}
+	
+	private static List<Object> listen(Consumer consumer) {
+		final List<Object> received = new CopyOnWriteArrayList<Object>();
+		consumer.addMessageListener(new TopicMessageListener() {
+			@Override
+			public void onMessage(TopicMessageEvent event) {
+				received.add(event.getData());
+			}
+		});
+		return received;
+	}
+	
+	private void acknowledge(int index, Object result) {
+		AsyncToken token = sent.get(index);
+		token.dispatchResult(new ResultMessage(null, token.getId(), result));
+	}
+}
@@ -0,0 +1,298 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.granite.client.test.codec;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.granite.client.messaging.jmf.ext.ClientEntityCodec;
+import org.granite.client.persistence.Entity;
+import org.granite.client.persistence.Id;
+import org.granite.client.persistence.Persistence;
+import org.granite.client.test.model.Person;
+import org.granite.client.test.model.embed.Document;
+import org.granite.messaging.jmf.ExtendedObjectInput;
+import org.granite.messaging.jmf.ExtendedObjectOutput;
+import org.granite.messaging.reflect.Property;
+import org.granite.messaging.reflect.PropertyNotFoundException;
+import org.granite.messaging.reflect.Reflection;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClientEntityCodec {
+	
+	@Entity
+	public static class BareEntity {
+		
+		@Id
+		private Integer id;
+		private String name;
+		
+		public Integer getId() {
+			return id;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+	
+	private Reflection reflection;
+	private Persistence persistence;
+	private ClientEntityCodec codec;
+	
+	@Before
+	public void before() {
+		reflection = new Reflection(null);
+		persistence = new Persistence(reflection);
+		codec = new ClientEntityCodec(persistence);
+	}
+	
+	@Test(expected=NullPointerException.class)
+	public void testNullPersistence() {
+		new ClientEntityCodec(null);
+	}
+	
+	@Test
+	public void testInitializedRoundTrip() throws Exception {
+		Person person = new Person();
+		person.setFirstName("John");
+		person.setLastName("Doe");
+		persistence.setId(person, 12);
+		persistence.setDetachedState(person, "state");
+		
+		Assert.assertTrue(codec.canEncode(output(new LinkedList<Object>()), person));
+		Assert.assertFalse(codec.canEncode(output(new LinkedList<Object>()), new Document()));
+		
+		LinkedList<Object> values = new LinkedList<Object>();
+		codec.encode(output(values), person);
+		Assert.assertEquals(Boolean.TRUE, values.get(0));
+		Assert.assertEquals("state", values.get(1));
+		
+		// Internal properties are only written in the header.
+		int count = 0;
+		for (Property property : reflection.findSerializableProperties(Person.class)) {
+			if (!property.getName().startsWith("__"))
+				count++;
+		}
+		Assert.assertEquals(2 + count, values.size());
+		
+		Person read = new Person();
+		codec.decode(input(values), read);
+		Assert.assertTrue(values.isEmpty());
+		Assert.assertTrue(persistence.isInitialized(read));
+		Assert.assertEquals("state", persistence.getDetachedState(read));
+		Assert.assertEquals(Integer.valueOf(12), read.getId());
+		Assert.assertEquals("John", read.getFirstName());
+		Assert.assertEquals("Doe", read.getLastName());
+	}
+	
+	@Test
+	public void testUninitializedRoundTrip() throws Exception {
+		Person person = new Person();
+		person.setFirstName("John");
+		persistence.setId(person, 12);
+		persistence.setInitialized(person, false);
+		persistence.setDetachedState(person, "state");
+		
+		LinkedList<Object> values = new LinkedList<Object>();
+		codec.encode(output(values), person);
+		Assert.assertEquals(3, values.size());
+		Assert.assertEquals(Boolean.FALSE, values.get(0));
+		Assert.assertEquals("state", values.get(1));
+		Assert.assertEquals(12, values.get(2));
+		
+		Person read = new Person();
+		codec.decode(input(values), read);
+		Assert.assertTrue(values.isEmpty());
+		Assert.assertFalse(persistence.isInitialized(read));
+		Assert.assertEquals("state", persistence.getDetachedState(read));
+		Assert.assertEquals(Integer.valueOf(12), read.getId());
+		Assert.assertNull(read.getFirstName());
+	}
+	
+	@Test
+	public void testPlanIsCachedPerClassAndReflection() throws Exception {
+		final List<Class<?>> scanned = new ArrayList<Class<?>>();
+		Reflection counting = new Reflection(null) {
+			@Override
+			public List<Property> findSerializableProperties(Class<?> cls) {
+				scanned.add(cls);
+				return super.findSerializableProperties(cls);
+			}
+		};
+		
+		Person person = new Person();
+		persistence.setDetachedState(person, "state");
+		
+		codec.encode(output(new LinkedList<Object>(), counting), person);
+		Assert.assertEquals(1, scanned.size());
+		
+		LinkedList<Object> values = new LinkedList<Object>();
+		codec.encode(output(values, counting), person);
+		codec.decode(input(values, counting), new Person());
+		Assert.assertEquals(1, scanned.size());
+		
+		// Streams using another reflection get their own plan, without replacing this one.
+		codec.encode(output(new LinkedList<Object>()), person);
+		codec.encode(output(new LinkedList<Object>(), counting), person);
+		Assert.assertEquals(1, scanned.size());
+	}
+	
+	@Test
+	public void testCanDecodeIsCached() throws Exception {
+		final List<String> loaded = new ArrayList<String>();
+		Reflection counting = new Reflection(null) {
+			@Override
+			public Class<?> loadClass(String className) throws ClassNotFoundException {
+				loaded.add(className);
+				return super.loadClass(className);
+			}
+		};
+		
+		ExtendedObjectInput in = input(new LinkedList<Object>(), counting);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(codec.canDecode(in, Person.class.getName()));
+			Assert.assertFalse(codec.canDecode(in, Document.class.getName()));
+		}
+		Assert.assertEquals(2, loaded.size());
+	}
+	
+	@Test
+	public void testMissingInternalPropertiesUsePersistence() throws Exception {
+		BareEntity entity = new BareEntity();
+		entity.setName("bare");
+		
+		try {
+			codec.encode(output(new LinkedList<Object>()), entity);
+			Assert.fail("Expected a PropertyNotFoundException");
+		}
+		catch (PropertyNotFoundException e) {
+			// No __detachedState__ property.
+		}
+		
+		final List<String> calls = new ArrayList<String>();
+		codec = new ClientEntityCodec(new Persistence(reflection) {
+			@Override
+			public String getDetachedState(Object entity) {
+				calls.add("getDetachedState");
+				return "state";
+			}
+			@Override
+			public void setDetachedState(Object entity, String value) {
+				calls.add("setDetachedState " + value);
+			}
+			@Override
+			public void setInitialized(Object entity, boolean value) {
+				calls.add("setInitialized " + value);
+			}
+		});
+		
+		LinkedList<Object> values = new LinkedList<Object>();
+		codec.encode(output(values), entity);
+		Assert.assertEquals(Boolean.TRUE, values.get(0));
+		Assert.assertEquals("state", values.get(1));
+		
+		BareEntity read = new BareEntity();
+		codec.decode(input(values), read);
+		Assert.assertEquals("bare", read.getName());
+		
+		List<String> expected = new ArrayList<String>();
+		expected.add("getDetachedState");
+		expected.add("setInitialized true");
+		expected.add("setDetachedState state");
+		Assert.assertEquals(expected, calls);
+	}
+	
+	private ExtendedObjectOutput output(LinkedList<Object> values) {
+		return output(values, reflection);
+	}
+	
+	private ExtendedObjectOutput output(LinkedList<Object> values, Reflection reflection) {
+		return (ExtendedObjectOutput)Proxy.newProxyInstance(
+			getClass().getClassLoader(),
+			new Class<?>[] { ExtendedObjectOutput.class },
+			new StreamHandler(values, reflection)
+		);
+	}
+	
+	private ExtendedObjectInput input(LinkedList<Object> values) {
+		return input(values, reflection);
+	}
+	
+	private ExtendedObjectInput input(LinkedList<Object> values, Reflection reflection) {
+		return (ExtendedObjectInput)Proxy.newProxyInstance(
+			getClass().getClassLoader(),
+			new Class<?>[] { ExtendedObjectInput.class },
+			new StreamHandler(values, reflection)
+		);
+	}
+	
+	/**
+	 * Minimal stream: written values are queued as is and read back in the same order.
+	 */
+	private static class StreamHandler implements InvocationHandler {
+		
+		private final LinkedList<Object> values;
+		private final Reflection reflection;
+		
+		public StreamHandler(LinkedList<Object> values, Reflection reflection) {
+			this.values = values;
+			this.reflection = reflection;
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			
+			if (name.equals("getReflection"))
+				return reflection;
+			if (name.equals("getAlias"))
+				return args[0];
+			
+			if (name.equals("writeBoolean") || name.equals("writeUTF") || name.equals("writeObject")) {
+				values.add(args[0]);
+				return null;
+			}
+			if (name.equals("getAndWriteProperty")) {
+				values.add(((Property)args[1]).getObject(args[0]));
+				return null;
+			}
+			
+			if (name.equals("readBoolean") || name.equals("readUTF") || name.equals("readObject"))
+				return values.removeFirst();
+			if (name.equals("readAndSetProperty")) {
+				((Property)args[1]).setObject(args[0], values.removeFirst());
+				return null;
+			}
+			
+			throw new UnsupportedOperationException(method.toString());
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.granite.client.configuration.Configuration;
+import org.granite.client.configuration.SimpleConfiguration;
+import org.granite.context.GraniteContext;
+import org.granite.context.SimpleGraniteContext;
+import org.granite.messaging.amf.io.AMF3Deserializer;
+import org.granite.messaging.amf.io.AMF3Serializer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClientJavaClassDescriptor {
+	
+	public static class DefaultConstructorBean implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+		
+		private String name;
+		private int value;
+		
+		public DefaultConstructorBean() {
+		}
+		
+		public DefaultConstructorBean(String name, int value) {
+			this.name = name;
+			this.value = value;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public int getValue() {
+			return value;
+		}
+	}
+	
+	public static class NoDefaultConstructorBean implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+		
+		private String name;
+		private int value;
+		
+		public NoDefaultConstructorBean(String name, int value) {
+			this.name = name;
+			this.value = value;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public int getValue() {
+			return value;
+		}
+	}
+	
+	private Configuration configuration;
+	
+	@Before
+	public void before() {
+		configuration = new SimpleConfiguration();
+		configuration.load();
+		SimpleGraniteContext.createThreadInstance(configuration.getGraniteConfig(), configuration.getServicesConfig(), new HashMap<String, Object>(), configuration.getClientType().toString());
+	}
+	
+	@After
+	public void after() {
+		GraniteContext.release();
+	}
+	
+	private byte[] encode(Object o) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(1000000);
+		AMF3Serializer serializer = new AMF3Serializer(baos);
+		serializer.writeObject(o);
+		serializer.close();
+		return baos.toByteArray();
+	}
+	
+	private Object decode(byte[] buf) throws Exception {
+		AMF3Deserializer deserializer = new AMF3Deserializer(new ByteArrayInputStream(buf));
+		Object o = deserializer.readObject();
+		deserializer.close();
+		return o;
+	}
+	
+	@Test
+	public void testDecode() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			DefaultConstructorBean bean1 = (DefaultConstructorBean)decode(encode(new DefaultConstructorBean("bean1", i)));
+			Assert.assertEquals("bean1", bean1.getName());
+			Assert.assertEquals(i, bean1.getValue());
+			
+			NoDefaultConstructorBean bean2 = (NoDefaultConstructorBean)decode(encode(new NoDefaultConstructorBean("bean2", i)));
+			Assert.assertEquals("bean2", bean2.getName());
+			Assert.assertEquals(i, bean2.getValue());
+		}
+	}
+	
+	@Test
+	public void testDecodeList() throws Exception {
+		// All instances but the first are created by the instantiator cached in their class descriptor.
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 100; i++) {
+			list.add(new DefaultConstructorBean("bean1-" + i, i));
+			list.add(new NoDefaultConstructorBean("bean2-" + i, i));
+		}
+		
+		List<?> read = (List<?>)decode(encode(list));
+		Assert.assertEquals(list.size(), read.size());
+		
+		for (int i = 0; i < 100; i++) {
+			DefaultConstructorBean bean1 = (DefaultConstructorBean)read.get(2 * i);
+			Assert.assertEquals("bean1-" + i, bean1.getName());
+			Assert.assertEquals(i, bean1.getValue());
+			
+			NoDefaultConstructorBean bean2 = (NoDefaultConstructorBean)read.get(2 * i + 1);
+			Assert.assertEquals("bean2-" + i, bean2.getName());
+			Assert.assertEquals(i, bean2.getValue());
+			
+			if (i > 0) {
+				Assert.assertNotSame(read.get(2 * i - 2), bean1);
+				Assert.assertNotSame(read.get(2 * i - 1), bean2);
+			}
+		}
+	}
+}
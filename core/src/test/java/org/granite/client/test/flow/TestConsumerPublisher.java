@@ -0,0 +1,163 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.flow;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.client.messaging.Consumer;
+import org.granite.client.messaging.channel.MessagingChannel;
+import org.granite.client.messaging.flow.BackpressureListener;
+import org.granite.client.messaging.flow.ConsumerPublisher;
+import org.granite.client.messaging.flow.Subscriber;
+import org.granite.client.messaging.flow.Subscription;
+import org.granite.client.messaging.messages.push.TopicMessage;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConsumerPublisher {
+	
+	private Consumer consumer;
+	private int nextValue = 0;
+	
+	@Before
+	public void setUp() {
+		MessagingChannel channel = (MessagingChannel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MessagingChannel.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				return null;
+			}
+		});
+		consumer = new Consumer(channel, "destination", "topic");
+	}
+
+	@Test
+	public void testDeliversOnDemand() {
+		ConsumerPublisher publisher = consumer.toPublisher(10);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		
+		subscriber.subscription.request(2);
+		push(5);
+		Assert.assertEquals(2, subscriber.received.size());
+		
+		subscriber.subscription.request(10);
+		Assert.assertEquals(5, subscriber.received.size());
+		for (int i = 0; i < 5; i++)
+			Assert.assertEquals(Integer.valueOf(i), subscriber.received.get(i).getData());
+		
+		push(1);
+		Assert.assertEquals(6, subscriber.received.size());
+		Assert.assertEquals(0, publisher.getDroppedMessages());
+	}
+
+	@Test
+	public void testOverflowDropsOldestAndSignalsBackpressure() {
+		ConsumerPublisher publisher = consumer.toPublisher(2);
+		final AtomicInteger events = new AtomicInteger();
+		publisher.setBackpressureListener(new BackpressureListener() {
+			@Override
+			public void onBackpressure(ConsumerPublisher publisher, Subscription subscription, long droppedMessages) {
+				events.incrementAndGet();
+			}
+		});
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		
+		push(4);
+		Assert.assertEquals(2, publisher.getDroppedMessages());
+		Assert.assertEquals("One event per overflow episode", 1, events.get());
+		
+		subscriber.subscription.request(2);
+		Assert.assertEquals(2, subscriber.received.size());
+		Assert.assertEquals(2, subscriber.received.get(0).getData());
+		Assert.assertEquals(3, subscriber.received.get(1).getData());
+		
+		push(3);
+		Assert.assertEquals(3, publisher.getDroppedMessages());
+		Assert.assertEquals(2, events.get());
+		Assert.assertEquals(2, publisher.getBackpressureEvents());
+	}
+
+	@Test
+	public void testInvalidRequestSignalsError() {
+		ConsumerPublisher publisher = consumer.toPublisher(10);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		
+		subscriber.subscription.request(0);
+		Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+		
+		subscriber.subscription.request(5);
+		push(2);
+		Assert.assertTrue(subscriber.received.isEmpty());
+	}
+
+	@Test
+	public void testCancelStopsDelivery() {
+		ConsumerPublisher publisher = consumer.toPublisher(10);
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		publisher.subscribe(subscriber);
+		
+		subscriber.subscription.request(Long.MAX_VALUE);
+		push(2);
+		subscriber.subscription.cancel();
+		push(2);
+		
+		Assert.assertEquals(2, subscriber.received.size());
+	}
+	
+	private void push(int count) {
+		for (int i = 0; i < count; i++)
+			consumer.onMessage(new TopicMessage("client", Integer.valueOf(nextValue++)));
+	}
+	
+	private static class RecordingSubscriber implements Subscriber<TopicMessage> {
+		
+		Subscription subscription;
+		final List<TopicMessage> received = new ArrayList<TopicMessage>();
+		Throwable error;
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(TopicMessage item) {
+			received.add(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+}
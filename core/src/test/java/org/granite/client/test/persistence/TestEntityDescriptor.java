@@ -0,0 +1,152 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.persistence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.granite.client.persistence.EntityDescriptor;
+import org.granite.client.persistence.Id;
+import org.granite.client.persistence.Persistence;
+import org.granite.client.persistence.Uid;
+import org.granite.client.persistence.Version;
+import org.granite.client.test.model.Person;
+import org.granite.client.test.model.embed.Document;
+import org.granite.messaging.reflect.Property;
+import org.granite.messaging.reflect.Reflection;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestEntityDescriptor {
+	
+	private Reflection reflection;
+	private Persistence persistence;
+	
+	@Before
+	public void before() {
+		reflection = new Reflection(null);
+		persistence = new Persistence(reflection);
+	}
+	
+	@Test
+	public void testDescriptor() {
+		EntityDescriptor descriptor = persistence.getEntityDescriptor(Person.class);
+		Assert.assertSame(descriptor, persistence.getEntityDescriptor(Person.class));
+		Assert.assertTrue(persistence.isEntity(Person.class));
+		Assert.assertEquals("id", descriptor.getIdProperty().getName());
+		Assert.assertEquals("uid", descriptor.getUidProperty().getName());
+		Assert.assertEquals("version", descriptor.getVersionProperty().getName());
+		Assert.assertEquals(reflection.findSerializableProperties(Person.class), descriptor.getProperties());
+	}
+	
+	@Test
+	public void testNonEntityIsNotScanned() {
+		final List<Class<?>> scanned = new ArrayList<Class<?>>();
+		persistence = new Persistence(new Reflection(null) {
+			@Override
+			public List<Property> findSerializableProperties(Class<?> cls) {
+				scanned.add(cls);
+				return super.findSerializableProperties(cls);
+			}
+		});
+		
+		Assert.assertFalse(persistence.isEntity(Document.class));
+		Assert.assertNull(persistence.getEntityDescriptor(Document.class));
+		Assert.assertTrue(persistence.isInitialized(new Document()));
+		Assert.assertTrue("No descriptor built for " + scanned, scanned.isEmpty());
+		
+		// Property accessors still work on non entities, without caching.
+		Document document = new Document();
+		document.setName("doc");
+		Assert.assertEquals("doc", persistence.getPropertyValues(document, true, true, true, true).get("name"));
+		Assert.assertEquals(reflection.findSerializableProperties(Document.class), persistence.getProperties(Document.class));
+	}
+	
+	@Test
+	public void testPropertyValues() {
+		Person person = new Person();
+		person.setFirstName("John");
+		persistence.setId(person, 12);
+		persistence.setUid(person, "P12");
+		
+		Map<String, Object> values = persistence.getPropertyValues(person, true, false, true, false);
+		Assert.assertEquals(12, values.get("id"));
+		Assert.assertEquals("P12", values.get("uid"));
+		Assert.assertEquals("John", values.get("firstName"));
+		Assert.assertFalse(values.containsKey("version"));
+		
+		values = persistence.getPropertyValues(person, true, true, false, false);
+		Assert.assertFalse(values.containsKey("id"));
+		Assert.assertFalse(values.containsKey("uid"));
+		Assert.assertTrue(values.containsKey("version"));
+		
+		Assert.assertEquals(Integer.valueOf(12), persistence.getId(person));
+		Assert.assertEquals("P12", persistence.getUid(person));
+		Assert.assertTrue(persistence.isInitialized(person));
+	}
+	
+	@Test
+	public void testCachedPropertyValuesMatchReflection() throws Exception {
+		Person person = new Person();
+		person.setFirstName("John");
+		person.setLastName("Doe");
+		persistence.setId(person, 12);
+		persistence.setUid(person, "P12");
+		
+		for (int flags = 0; flags < 8; flags++) {
+			boolean excludeIdUid = (flags & 1) != 0;
+			boolean excludeVersion = (flags & 2) != 0;
+			boolean includeReadOnly = (flags & 4) != 0;
+			
+			Assert.assertEquals(
+				"Flags " + flags,
+				uncachedPropertyValues(person, excludeIdUid, excludeVersion, includeReadOnly),
+				persistence.getPropertyValues(person, true, excludeIdUid, excludeVersion, includeReadOnly)
+			);
+		}
+	}
+	
+	// Per call lookups, as done before descriptors were cached.
+	private Map<String, Object> uncachedPropertyValues(Object entity, boolean excludeIdUid, boolean excludeVersion, boolean includeReadOnly) throws Exception {
+		Class<?> cls = entity.getClass();
+		
+		List<Property> excluded = new ArrayList<Property>();
+		excluded.add(reflection.findProperty(cls, "__initialized__", Boolean.TYPE));
+		excluded.add(reflection.findProperty(cls, "__detachedState__", String.class));
+		if (excludeIdUid) {
+			excluded.add(reflection.findProperty(cls, Id.class));
+			excluded.add(reflection.findProperty(cls, Uid.class));
+		}
+		if (excludeVersion)
+			excluded.add(reflection.findProperty(cls, Version.class));
+		
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		for (Property property : reflection.findSerializableProperties(cls)) {
+			if (excluded.contains(property) || (!includeReadOnly && !property.isWritable()))
+				continue;
+			values.put(property.getName(), property.getRawObject(entity));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,255 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.platform;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.granite.client.platform.reflect.GeneratedMethodProperty;
+import org.granite.client.platform.reflect.PropertyAccessorFactory;
+import org.granite.client.platform.reflect.UnsafeFieldProperty;
+import org.granite.messaging.reflect.FieldProperty;
+import org.granite.messaging.reflect.MethodProperty;
+import org.granite.messaging.reflect.Property;
+import org.granite.messaging.reflect.SimpleFieldProperty;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPropertyAccessors {
+	
+	public static class Bean {
+		
+		private int count;
+		private long total;
+		private boolean active;
+		private String name;
+		private final Object lock = new Object();
+		
+		public int getCount() {
+			return count;
+		}
+		public void setCount(int count) {
+			this.count = count;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		public void setName(String name) {
+			this.name = name;
+		}
+		
+		public Object getLock() {
+			return lock;
+		}
+	}
+	
+	public static class Primitives {
+		
+		private boolean z;
+		private char c;
+		private byte b;
+		private short s;
+		private int i;
+		private long j;
+		private float f;
+		private double d;
+	}
+	
+	private final PropertyAccessorFactory factory = new PropertyAccessorFactory();
+	
+	private FieldProperty field(String name) throws Exception {
+		return factory.newFieldProperty(Bean.class.getDeclaredField(name));
+	}
+	
+	private MethodProperty method(String name, Class<?> type) throws Exception {
+		String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		Method setter = null;
+		try {
+			setter = Bean.class.getMethod("set" + suffix, type);
+		}
+		catch (NoSuchMethodException e) {
+		}
+		return factory.newMethodProperty(Bean.class.getMethod("get" + suffix), setter, name);
+	}
+	
+	@Test
+	public void testFieldProperties() throws Exception {
+		Assert.assertTrue(UnsafeFieldProperty.isAvailable());
+		
+		Bean bean = new Bean();
+		
+		Property count = field("count");
+		Assert.assertTrue(count instanceof UnsafeFieldProperty);
+		count.setInt(bean, 12);
+		Assert.assertEquals(12, bean.count);
+		Assert.assertEquals(12, count.getInt(bean));
+		Assert.assertEquals(12L, count.getLong(bean));
+		Assert.assertEquals(Integer.valueOf(12), count.getObject(bean));
+		count.setObject(bean, Integer.valueOf(13));
+		Assert.assertEquals(13, bean.count);
+		count.setObject(bean, Short.valueOf((short)14));
+		Assert.assertEquals(14, bean.count);
+		
+		Property total = field("total");
+		total.setInt(bean, 15);
+		Assert.assertEquals(15L, total.getLong(bean));
+		
+		Property active = field("active");
+		active.setBoolean(bean, true);
+		Assert.assertTrue(bean.active);
+		Assert.assertEquals(Boolean.TRUE, active.getObject(bean));
+		
+		Property name = field("name");
+		name.setObject(bean, "abc");
+		Assert.assertEquals("abc", name.getObject(bean));
+		name.setObject(bean, null);
+		Assert.assertNull(bean.name);
+		try {
+			name.setObject(bean, Integer.valueOf(1));
+			Assert.fail("Should have thrown an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e) {
+		}
+		Assert.assertNull(bean.name);
+		try {
+			name.getObject("not a bean");
+			Assert.fail("Should have thrown an IllegalArgumentException");
+		}
+		catch (IllegalArgumentException e) {
+		}
+		
+		Property lock = field("lock");
+		Assert.assertSame(bean.lock, lock.getObject(bean));
+		
+		Assert.assertTrue(count.equals(new SimpleFieldProperty(Bean.class.getDeclaredField("count"))));
+		Assert.assertEquals(count, field("count"));
+	}
+	
+	@Test
+	public void testPrimitiveFieldProperties() throws Exception {
+		Primitives bean = new Primitives();
+		Object[] values = {
+			Boolean.TRUE, Character.valueOf('x'), Byte.valueOf((byte)-2), Short.valueOf((short)-300), Integer.valueOf(-70000),
+			Long.valueOf(-5000000000L), Float.valueOf(1.5F), Double.valueOf(-2.25)
+		};
+		String[] names = { "z", "c", "b", "s", "i", "j", "f", "d" };
+		
+		for (int i = 0; i < names.length; i++) {
+			Field field = Primitives.class.getDeclaredField(names[i]);
+			Property property = factory.newFieldProperty(field);
+			Assert.assertTrue(property instanceof UnsafeFieldProperty);
+			property.setObject(bean, values[i]);
+			Assert.assertEquals(values[i], field.get(bean));
+			Assert.assertEquals(values[i], property.getObject(bean));
+		}
+		
+		Property c = factory.newFieldProperty(Primitives.class.getDeclaredField("c"));
+		c.setChar(bean, 'y');
+		Assert.assertEquals('y', c.getChar(bean));
+		Property j = factory.newFieldProperty(Primitives.class.getDeclaredField("j"));
+		j.setLong(bean, Long.MIN_VALUE);
+		Assert.assertEquals(Long.MIN_VALUE, j.getLong(bean));
+		Property d = factory.newFieldProperty(Primitives.class.getDeclaredField("d"));
+		d.setDouble(bean, Double.MAX_VALUE);
+		Assert.assertEquals(Double.MAX_VALUE, d.getDouble(bean), 0.0);
+	}
+	
+	@Test
+	public void testMethodProperties() throws Exception {
+		Bean bean = new Bean();
+		
+		Property count = method("count", Integer.TYPE);
+		Assert.assertTrue(count instanceof GeneratedMethodProperty);
+		count.setInt(bean, 12);
+		Assert.assertEquals(12, bean.count);
+		Assert.assertEquals(12, count.getInt(bean));
+		Assert.assertEquals(Integer.valueOf(12), count.getObject(bean));
+		count.setObject(bean, Integer.valueOf(13));
+		Assert.assertEquals(13, count.getInt(bean));
+		
+		Property name = method("name", String.class);
+		Assert.assertTrue(name instanceof GeneratedMethodProperty);
+		name.setObject(bean, "abc");
+		Assert.assertEquals("abc", name.getObject(bean));
+		Assert.assertEquals("abc", name.getRawObject(bean));
+		
+		Property lock = method("lock", Object.class);
+		Assert.assertSame(bean.lock, lock.getObject(bean));
+		Assert.assertNull(((MethodProperty)lock).getSetter());
+	}
+	
+	@Test
+	public void testFallback() throws Exception {
+		factory.setBindFields(false);
+		factory.setGenerateMethods(false);
+		
+		Assert.assertFalse(field("count") instanceof UnsafeFieldProperty);
+		Assert.assertFalse(method("count", Integer.TYPE) instanceof GeneratedMethodProperty);
+	}
+	
+	@Test
+	public void testGeneratedPropertiesShareClassLoader() throws Exception {
+		Property count = method("count", Integer.TYPE);
+		Property name = method("name", String.class);
+		Assert.assertTrue(count instanceof GeneratedMethodProperty);
+		Assert.assertTrue(name instanceof GeneratedMethodProperty);
+		
+		ClassLoader loader = count.getClass().getClassLoader();
+		Assert.assertNotSame(Bean.class.getClassLoader(), loader);
+		Assert.assertSame(Bean.class.getClassLoader(), loader.getParent());
+		Assert.assertSame(loader, name.getClass().getClassLoader());
+		Assert.assertNotSame(count.getClass(), method("count", Integer.TYPE).getClass());
+	}
+	
+	@Test
+	public void testAccessorsAgree() throws Exception {
+		Field field = Bean.class.getDeclaredField("count");
+		Property[] properties = {
+			new SimpleFieldProperty(field),
+			factory.newFieldProperty(field),
+			method("count", Integer.TYPE)
+		};
+		
+		for (Property property : properties) {
+			Bean[] beans = new Bean[10];
+			for (int i = 0; i < beans.length; i++)
+				beans[i] = new Bean();
+			
+			int sum = 0;
+			for (int i = 0; i < 100; i++)
+				sum = run(property, beans);
+			
+			Assert.assertEquals(property.getClass().getName(), 100 * beans.length, sum);
+			for (Bean bean : beans)
+				Assert.assertEquals(Integer.valueOf(100), property.getObject(bean));
+		}
+	}
+	
+	private static int run(Property property, Bean[] beans) throws Exception {
+		int sum = 0;
+		for (Bean bean : beans) {
+			property.setInt(bean, property.getInt(bean) + 1);
+			sum += property.getInt(bean);
+		}
+		return sum;
+	}
+}
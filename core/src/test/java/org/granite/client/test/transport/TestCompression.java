@@ -0,0 +1,105 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.granite.client.messaging.transport.CompressingOutputStream;
+import org.granite.client.messaging.transport.Compression;
+import org.granite.client.messaging.transport.CompressionStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCompression {
+
+	@Test
+	public void testBelowThresholdIsNotCompressed() throws Exception {
+		CompressionStats stats = new CompressionStats();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		CompressingOutputStream cos = new CompressingOutputStream(out, 100, stats);
+		cos.write(repeated(60));
+		cos.write(repeated(40));
+		cos.finish();
+		
+		Assert.assertFalse(cos.isCompressed());
+		Assert.assertArrayEquals(concat(repeated(60), repeated(40)), out.toByteArray());
+		Assert.assertEquals(0, stats.getCompressedMessages());
+	}
+
+	@Test
+	public void testAboveThresholdRoundTrip() throws Exception {
+		CompressionStats stats = new CompressionStats();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] content = repeated(10000);
+		
+		CompressingOutputStream cos = new CompressingOutputStream(out, 100, stats);
+		cos.write(content, 0, 50);
+		cos.write(content, 50, content.length - 50);
+		cos.finish();
+		
+		byte[] compressed = out.toByteArray();
+		Assert.assertTrue(cos.isCompressed());
+		Assert.assertTrue(Compression.isGzip(compressed, 0, compressed.length));
+		Assert.assertEquals(1, stats.getCompressedMessages());
+		Assert.assertTrue("Ratio: " + stats.getCompressionRatio(), stats.getCompressionRatio() > 4.0);
+		
+		InputStream is = Compression.decompress(new ByteArrayInputStream(compressed), "gzip", stats);
+		Assert.assertArrayEquals(content, readAll(is));
+		is.close();
+		Assert.assertEquals(1, stats.getDecompressedMessages());
+		Assert.assertEquals(stats.getCompressionRatio(), stats.getDecompressionRatio(), 0.0001);
+	}
+
+	@Test
+	public void testUnknownEncodingIsUntouched() throws Exception {
+		InputStream is = new ByteArrayInputStream(new byte[]{0, 3});
+		Assert.assertSame(is, Compression.decompress(is, null, null));
+		Assert.assertSame(is, Compression.decompress(is, "identity", null));
+		Assert.assertFalse(Compression.isGzip(new byte[]{0, 3}, 0, 2));
+	}
+	
+	private static byte[] repeated(int length) {
+		byte[] bytes = new byte[length];
+		byte[] pattern = "org.granite.example.Person".getBytes();
+		for (int i = 0; i < length; i++)
+			bytes[i] = pattern[i % pattern.length];
+		return bytes;
+	}
+	
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] bytes = new byte[a.length + b.length];
+		System.arraycopy(a, 0, bytes, 0, a.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		return bytes;
+	}
+	
+	private static byte[] readAll(InputStream is) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int length;
+		while ((length = is.read(buffer)) != -1)
+			os.write(buffer, 0, length);
+		return os.toByteArray();
+	}
+}
@@ -0,0 +1,279 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.messaging.channel.Channel;
+import org.granite.client.messaging.codec.MessagingCodec.ClientType;
+import org.granite.client.messaging.transport.MessageStream;
+import org.granite.client.messaging.transport.TransportMessage;
+import org.granite.client.messaging.transport.apache.ApacheAsyncTransport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestMessageStream {
+
+	@Test
+	public void testFramesAndHeartbeats() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		MessageStream.writeMagic(os);
+		writeFrame(os, "first");
+		writeFrame(os, "");
+		writeFrame(os, "second");
+		
+		PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(os.toByteArray()), 4);
+		Assert.assertTrue(MessageStream.readMagic(in));
+		
+		MessageStream stream = new MessageStream(in);
+		Assert.assertEquals("first", read(stream.nextFrame()));
+		Assert.assertEquals("Heartbeat skipped", "second", read(stream.nextFrame()));
+		Assert.assertNull(stream.nextFrame());
+	}
+
+	@Test
+	public void testPlainResponseIsPushedBack() throws Exception {
+		PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(new byte[]{0, 3, 0}), 4);
+		Assert.assertFalse(MessageStream.readMagic(in));
+		Assert.assertEquals(0, in.read());
+		Assert.assertEquals(3, in.read());
+		Assert.assertEquals(0, in.read());
+		Assert.assertEquals(-1, in.read());
+		
+		PushbackInputStream empty = new PushbackInputStream(new ByteArrayInputStream(new byte[0]), 4);
+		Assert.assertFalse(MessageStream.readMagic(empty));
+		Assert.assertEquals(-1, empty.read());
+	}
+
+	@Test(expected=EOFException.class)
+	public void testTruncatedFrame() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		writeFrame(os, "truncated");
+		byte[] bytes = os.toByteArray();
+		
+		new MessageStream(new ByteArrayInputStream(bytes, 0, bytes.length - 2)).nextFrame();
+	}
+
+	@Test
+	public void testFramesArriveBeforeEndOfResponse() throws Exception {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				readAll(exchange.getRequestBody());
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream os = exchange.getResponseBody();
+				MessageStream.writeMagic(os);
+				for (int i = 0; i < 3; i++) {
+					writeFrame(os, "batch" + i);
+					os.flush();
+					try {
+						Thread.sleep(300L);
+					}
+					catch (InterruptedException e) {
+					}
+				}
+				os.close();
+			}
+		});
+		server.start();
+		
+		ApacheAsyncTransport transport = new ApacheAsyncTransport();
+		transport.setStreaming(true);
+		Assert.assertTrue(transport.start());
+		try {
+			final URI uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/gravityamf/amf");
+			final List<String> frames = new CopyOnWriteArrayList<String>();
+			final List<Long> arrivals = new CopyOnWriteArrayList<Long>();
+			final CountDownLatch closed = new CountDownLatch(1);
+			
+			Channel channel = (Channel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("getUri".equals(method.getName()))
+						return uri;
+					if ("onMessage".equals(method.getName())) {
+						PushbackInputStream in = new PushbackInputStream((InputStream)args[1], 4);
+						Assert.assertTrue(MessageStream.readMagic(in));
+						MessageStream stream = new MessageStream(in);
+						InputStream frame;
+						while ((frame = stream.nextFrame()) != null) {
+							frames.add(read(frame));
+							arrivals.add(System.currentTimeMillis());
+						}
+						closed.countDown();
+					}
+					return null;
+				}
+			});
+			
+			transport.send(channel, newConnectMessage());
+			
+			Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(3, frames.size());
+			Assert.assertEquals("batch2", frames.get(2));
+			Assert.assertTrue("Frames decoded as they arrive", arrivals.get(2) - arrivals.get(0) >= 400L);
+		}
+		finally {
+			transport.stop();
+			server.stop(0);
+		}
+	}
+	
+	@Test
+	public void testOpenStreamDoesNotHoldDispatchThread() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				boolean connect = readAll(exchange.getRequestBody()).length == 2;
+				exchange.sendResponseHeaders(200, 0);
+				OutputStream os = exchange.getResponseBody();
+				if (connect) {
+					MessageStream.writeMagic(os);
+					writeFrame(os, "pushed");
+					os.flush();
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					}
+					catch (InterruptedException e) {
+					}
+				}
+				else
+					os.write("result".getBytes("UTF-8"));
+				os.close();
+			}
+		});
+		server.start();
+		
+		ApacheAsyncTransport transport = new ApacheAsyncTransport();
+		transport.setStreaming(true);
+		transport.setDispatchThreads(1);
+		Assert.assertTrue(transport.start());
+		try {
+			final URI uri = new URI("http://127.0.0.1:" + server.getAddress().getPort() + "/gravityamf/amf");
+			final CountDownLatch pushed = new CountDownLatch(1);
+			final CountDownLatch answered = new CountDownLatch(1);
+			
+			Channel channel = (Channel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class}, new InvocationHandler() {
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if ("getUri".equals(method.getName()))
+						return uri;
+					if ("onMessage".equals(method.getName())) {
+						if (((TransportMessage)args[0]).isConnect()) {
+							PushbackInputStream in = new PushbackInputStream((InputStream)args[1], 4);
+							Assert.assertTrue(MessageStream.readMagic(in));
+							MessageStream stream = new MessageStream(in);
+							InputStream frame;
+							while ((frame = stream.nextFrame()) != null) {
+								read(frame);
+								pushed.countDown();
+							}
+						}
+						else if ("result".equals(read((InputStream)args[1])))
+							answered.countDown();
+					}
+					return null;
+				}
+			});
+			
+			transport.send(channel, newConnectMessage());
+			Assert.assertTrue(pushed.await(10, TimeUnit.SECONDS));
+			
+			transport.send(channel, newMessage("call", false, new byte[]{0, 3, 1}));
+			Assert.assertTrue("Remoting call answered while the stream is open", answered.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals(1, release.getCount());
+		}
+		finally {
+			release.countDown();
+			transport.stop();
+			server.stop(0);
+		}
+	}
+	
+	private static TransportMessage newConnectMessage() {
+		return newMessage("connect", true, new byte[]{0, 3});
+	}
+	
+	private static TransportMessage newMessage(final String id, final boolean connect, final byte[] content) {
+		return (TransportMessage)Proxy.newProxyInstance(TestMessageStream.class.getClassLoader(), new Class<?>[]{TransportMessage.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if ("encode".equals(name)) {
+					((OutputStream)args[0]).write(content);
+					return null;
+				}
+				if ("getId".equals(name))
+					return id;
+				if ("getContentType".equals(name))
+					return "application/x-amf";
+				if ("getClientType".equals(name))
+					return ClientType.JAVA;
+				if ("isConnect".equals(name))
+					return Boolean.valueOf(connect);
+				return null;
+			}
+		});
+	}
+	
+	private static void writeFrame(OutputStream os, String content) throws IOException {
+		byte[] bytes = content.getBytes("UTF-8");
+		MessageStream.writeFrame(os, bytes, 0, bytes.length);
+	}
+	
+	private static String read(InputStream is) throws IOException {
+		return new String(readAll(is), "UTF-8");
+	}
+	
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int length;
+		while ((length = is.read(buffer)) != -1)
+			os.write(buffer, 0, length);
+		return os.toByteArray();
+	}
+}
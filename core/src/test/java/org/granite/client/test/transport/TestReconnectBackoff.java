@@ -0,0 +1,70 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.transport;
+
+import org.granite.client.messaging.transport.jetty.JettyWebSocketTransport;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestReconnectBackoff {
+
+	@Test
+	public void testDelayGrowsExponentiallyUpToMaximum() {
+		BackoffTransport transport = new BackoffTransport();
+		transport.setReconnectIntervalMillis(1000L);
+		transport.setReconnectMaxIntervalMillis(30000L);
+		
+		for (int attempt = 0; attempt < 10; attempt++) {
+			long max = Math.min(30000L, 1000L << attempt);
+			for (int i = 0; i < 100; i++) {
+				long delay = transport.delay(attempt);
+				Assert.assertTrue("Attempt " + attempt + ": " + delay, delay >= 0L && delay <= max);
+			}
+		}
+	}
+
+	@Test
+	public void testDelaysAreSpread() {
+		BackoffTransport transport = new BackoffTransport();
+		transport.setReconnectIntervalMillis(1000L);
+		transport.setReconnectMaxIntervalMillis(60000L);
+		
+		// Simulates many clients dropped at the same time: their retries must not all fire together.
+		for (int attempt = 0; attempt < 7; attempt++) {
+			long window = Math.min(60000L, 1000L << attempt);
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			for (int i = 0; i < 1000; i++) {
+				long delay = transport.delay(attempt);
+				min = Math.min(min, delay);
+				max = Math.max(max, delay);
+			}
+			Assert.assertTrue("Attempt " + attempt + " spread: " + (max - min), max - min > window * 9L / 10L);
+		}
+	}
+	
+	private static class BackoffTransport extends JettyWebSocketTransport {
+		
+		public long delay(int attempts) {
+			return getReconnectDelay(attempts);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.granite.client.messaging.transport.WebSocketEnvelope;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWebSocketEnvelope {
+
+	@Test
+	public void testPackAndSplit() throws Exception {
+		byte[] envelope = pack("first", "", "third message");
+		
+		Assert.assertTrue(WebSocketEnvelope.isEnvelope(envelope, 0, envelope.length));
+		int[] messages = WebSocketEnvelope.split(envelope, 0, envelope.length);
+		Assert.assertEquals(6, messages.length);
+		Assert.assertEquals("first", new String(envelope, messages[0], messages[1], "UTF-8"));
+		Assert.assertEquals("", new String(envelope, messages[2], messages[3], "UTF-8"));
+		Assert.assertEquals("third message", new String(envelope, messages[4], messages[5], "UTF-8"));
+	}
+
+	@Test
+	public void testPlainMessageIsNotEnvelope() throws Exception {
+		byte[] amf = new byte[]{0x00, 0x03, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00};
+		Assert.assertFalse(WebSocketEnvelope.isEnvelope(amf, 0, amf.length));
+	}
+
+	@Test(expected=IOException.class)
+	public void testTruncatedEnvelope() throws Exception {
+		byte[] envelope = pack("first", "second");
+		WebSocketEnvelope.split(envelope, 0, envelope.length - 1);
+	}
+	
+	private static byte[] pack(String... messages) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		WebSocketEnvelope.writeHeader(os);
+		for (String message : messages) {
+			byte[] bytes = message.getBytes("UTF-8");
+			WebSocketEnvelope.writeInt(os, bytes.length);
+			os.write(bytes);
+		}
+		byte[] envelope = os.toByteArray();
+		WebSocketEnvelope.setInt(envelope, 4, messages.length);
+		return envelope;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.granite.client.util.BufferPool;
+import org.granite.client.util.ChunkedOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestChunkedOutputStream {
+
+	@Test
+	public void testWriteAcrossChunks() throws Exception {
+		BufferPool pool = new BufferPool(16, 4);
+		ChunkedOutputStream os = new ChunkedOutputStream(pool);
+		
+		byte[] data = new byte[40];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte)i;
+		os.write(data, 0, 30);
+		os.write(data[30]);
+		os.write(data, 31, 9);
+		
+		Assert.assertEquals(40, os.size());
+		Assert.assertEquals(3, os.getChunkCount());
+		Assert.assertArrayEquals(data, os.toByteArray());
+		
+		ByteBuffer last = os.getChunk(2);
+		Assert.assertEquals(8, last.remaining());
+		Assert.assertEquals((byte)32, last.get());
+		
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		os.writeTo(copy);
+		Assert.assertArrayEquals(data, copy.toByteArray());
+	}
+
+	@Test
+	public void testReleaseReusesChunks() throws Exception {
+		BufferPool pool = new BufferPool(16, 2);
+		ChunkedOutputStream os = new ChunkedOutputStream(pool);
+		
+		os.write(new byte[48]);
+		os.release();
+		Assert.assertEquals(0, os.size());
+		Assert.assertEquals("Pool is bounded", 2, pool.getPooled());
+		
+		os.write(new byte[20]);
+		Assert.assertEquals(0, pool.getPooled());
+		
+		pool.release(new byte[8]);
+		Assert.assertEquals("Wrong size buffers are dropped", 0, pool.getPooled());
+	}
+}
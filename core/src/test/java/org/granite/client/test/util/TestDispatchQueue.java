@@ -0,0 +1,154 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.granite.client.util.DispatchQueue;
+import org.granite.client.util.DispatchQueue.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestDispatchQueue {
+	
+	@Test
+	public void testConflationKeepsLatestValueInPlace() {
+		ManualExecutor executor = new ManualExecutor();
+		TestQueue queue = new TestQueue(executor, 10, OverflowPolicy.CONFLATE);
+		
+		queue.offer("a1");
+		queue.offer("b1");
+		queue.offer("a2");
+		queue.offer("-1");
+		queue.offer("c1");
+		queue.offer("-2");
+		queue.offer("a3");
+		
+		Assert.assertEquals(5, queue.size());
+		Assert.assertEquals(2, queue.getConflated());
+		
+		executor.runAll();
+		Assert.assertEquals(Arrays.asList("a3", "b1", "-1", "c1", "-2"), queue.dispatched);
+	}
+	
+	@Test
+	public void testDropOldest() {
+		ManualExecutor executor = new ManualExecutor();
+		TestQueue queue = new TestQueue(executor, 2, OverflowPolicy.DROP_OLDEST);
+		
+		queue.offer("a1");
+		queue.offer("a2");
+		queue.offer("a3");
+		
+		Assert.assertEquals(1, queue.getDropped());
+		
+		executor.runAll();
+		Assert.assertEquals(Arrays.asList("a2", "a3"), queue.dispatched);
+	}
+	
+	@Test
+	public void testBlockWaitsForListeners() throws Exception {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch started = new CountDownLatch(1);
+			final TestQueue queue = new TestQueue(pool, 1, OverflowPolicy.BLOCK) {
+				@Override
+				protected void dispatch(String item) {
+					started.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+					}
+					super.dispatch(item);
+				}
+			};
+			
+			queue.offer("a1");
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+			queue.offer("a2");
+			
+			final CountDownLatch offered = new CountDownLatch(1);
+			new Thread() {
+				@Override
+				public void run() {
+					queue.offer("a3");
+					offered.countDown();
+				}
+			}.start();
+			
+			Assert.assertFalse("Offer should block while the queue is full", offered.await(200, TimeUnit.MILLISECONDS));
+			release.countDown();
+			Assert.assertTrue(offered.await(5, TimeUnit.SECONDS));
+			
+			pool.shutdown();
+			Assert.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+			Assert.assertEquals(Arrays.asList("a1", "a2", "a3"), queue.dispatched);
+			Assert.assertEquals(0, queue.getDropped());
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private static class TestQueue extends DispatchQueue<String> {
+		
+		final List<String> dispatched = Collections.synchronizedList(new ArrayList<String>());
+
+		public TestQueue(Executor executor, int capacity, OverflowPolicy overflowPolicy) {
+			super(executor, capacity, overflowPolicy);
+		}
+
+		@Override
+		protected Object getKey(String item) {
+			return (item.startsWith("-") ? null : item.substring(0, 1));
+		}
+
+		@Override
+		protected void dispatch(String item) {
+			dispatched.add(item);
+		}
+	}
+	
+	private static class ManualExecutor implements Executor {
+		
+		private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+		
+		public void runAll() {
+			while (!tasks.isEmpty())
+				tasks.remove(0).run();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.client.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestHashedWheelTimer {
+	
+	private HashedWheelTimer timer;
+	
+	@Before
+	public void setUp() {
+		// Small wheel, so tasks need several rounds.
+		timer = new HashedWheelTimer("test-timer", 10L, 8);
+	}
+	
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	@Test
+	public void testTasksExpireInOrder() throws Exception {
+		final StringBuffer order = new StringBuffer();
+		final CountDownLatch latch = new CountDownLatch(3);
+		
+		long start = System.currentTimeMillis();
+		timer.schedule(new LatchTask(latch, order, "c"), 300L);
+		timer.schedule(new LatchTask(latch, order, "a"), 50L);
+		timer.schedule(new LatchTask(latch, order, "b"), 150L);
+		
+		Assert.assertTrue("All tasks expired", latch.await(2, TimeUnit.SECONDS));
+		Assert.assertEquals("abc", order.toString());
+		Assert.assertTrue("Not expired too early", System.currentTimeMillis() - start >= 300L);
+	}
+
+	@Test
+	public void testCancelledTaskNeverRuns() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		
+		HashedWheelTimer.Task task = new HashedWheelTimer.Task() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		timer.schedule(task, 50L);
+		Assert.assertTrue("Cancelled", task.cancel());
+		Assert.assertFalse("Already cancelled", task.cancel());
+		
+		CountDownLatch latch = new CountDownLatch(1);
+		timer.schedule(new LatchTask(latch, new StringBuffer(), "x"), 100L);
+		Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Assert.assertEquals("Cancelled task run", 0, runs.get());
+		
+		try {
+			timer.schedule(task, 10L);
+			Assert.fail("Cancelled task can't be scheduled");
+		}
+		catch (IllegalStateException e) {
+		}
+	}
+	
+	private static class LatchTask extends HashedWheelTimer.Task {
+		
+		private final CountDownLatch latch;
+		private final StringBuffer order;
+		private final String name;
+		
+		public LatchTask(CountDownLatch latch, StringBuffer order, String name) {
+			this.latch = latch;
+			this.order = order;
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			order.append(name);
+			latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.granite.client.test.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.granite.client.util.KeyedSerialExecutor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestKeyedSerialExecutor {
+	
+	private ExecutorService pool;
+	private KeyedSerialExecutor executor;
+	
+	@Before
+	public void setUp() {
+		pool = Executors.newFixedThreadPool(4);
+		executor = new KeyedSerialExecutor(pool);
+	}
+	
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testSameKeyRunsInOrder() throws Exception {
+		final int count = 200;
+		final List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> b = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch latch = new CountDownLatch(count * 2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		
+		for (int i = 0; i < count; i++) {
+			executor.execute("a", new Record(a, i, latch, running, overlaps));
+			executor.execute("b", new Record(b, i, latch, null, null));
+		}
+		
+		Assert.assertTrue("All tasks run", latch.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals(Integer.valueOf(i), a.get(i));
+			Assert.assertEquals(Integer.valueOf(i), b.get(i));
+		}
+		Assert.assertEquals("Same key tasks overlapped", 0, overlaps.get());
+		Assert.assertEquals(0, executor.getQueueDepth());
+	}
+
+	@Test
+	public void testDifferentKeysRunInParallel() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		Runnable blocking = new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		};
+		executor.execute("a", blocking);
+		executor.execute("b", blocking);
+		
+		Assert.assertTrue("Both keys running", started.await(2, TimeUnit.SECONDS));
+		
+		// A third task with a busy key waits for its predecessor.
+		final CountDownLatch third = new CountDownLatch(1);
+		executor.execute("a", new Runnable() {
+			@Override
+			public void run() {
+				third.countDown();
+			}
+		});
+		Assert.assertFalse(third.await(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, executor.getQueueDepth());
+		
+		release.countDown();
+		Assert.assertTrue(third.await(2, TimeUnit.SECONDS));
+	}
+	
+	private static class Record implements Runnable {
+		
+		private final List<Integer> list;
+		private final int value;
+		private final CountDownLatch latch;
+		private final AtomicInteger running;
+		private final AtomicInteger overlaps;
+		
+		public Record(List<Integer> list, int value, CountDownLatch latch, AtomicInteger running, AtomicInteger overlaps) {
+			this.list = list;
+			this.value = value;
+			this.latch = latch;
+			this.running = running;
+			this.overlaps = overlaps;
+		}
+
+		@Override
+		public void run() {
+			if (running != null && running.incrementAndGet() > 1)
+				overlaps.incrementAndGet();
+			list.add(value);
+			if (running != null)
+				running.decrementAndGet();
+			latch.countDown();
+		}
+	}
+}
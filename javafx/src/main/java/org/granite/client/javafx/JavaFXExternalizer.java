@@ -34,6 +34,8 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javafx.beans.value.ObservableValue;
 
@@ -58,6 +60,7 @@ public class JavaFXExternalizer extends DefaultExternalizer {
 
 	private static final Logger log = Logger.getLogger(JavaFXExternalizer.class);
 	
+	private final ConcurrentMap<Class<?>, ExternalizationPlan> plans = new ConcurrentHashMap<Class<?>, ExternalizationPlan>();
 
     public List<Property> findOrderedFields(final Class<?> clazz, boolean returnSettersWhenAvailable) {
         List<Property> fields = orderedFields.get(clazz);
@@ -148,101 +151,62 @@ public class JavaFXExternalizer extends DefaultExternalizer {
         return fields;
     }    
     
+    private ExternalizationPlan getExternalizationPlan(Class<?> clazz) {
+    	ExternalizationPlan plan = plans.get(clazz);
+    	if (plan == null) {
+    		plan = new ExternalizationPlan(clazz, findOrderedFields(clazz, false));
+    		log.debug("Externalization plan for entity %s with fields %s", clazz.getName(), Arrays.asList(plan.fields));
+    		
+    		ExternalizationPlan previous = plans.putIfAbsent(clazz, plan);
+    		if (previous != null)
+    			plan = previous;
+    	}
+    	return plan;
+    }
+    
     @Override
     public void readExternal(Object o, ObjectInput in) throws IOException, ClassNotFoundException, IllegalAccessException {
     	
-    	Field initializedField = null;
-    	Field detachedStateField = null;
-    	Class<?> clazz = o.getClass();
-    	while (clazz != null && clazz != Object.class) {
-    		try {
-    			initializedField = clazz.getDeclaredField("__initialized__");
-    		}
-    		catch (NoSuchFieldException e) {
-    		}
-    		try {
-    			detachedStateField = clazz.getDeclaredField("__detachedState__");
-    		}
-    		catch (NoSuchFieldException e) {
-    		}
-    		clazz = clazz.getSuperclass();
-    	}
+    	ExternalizationPlan plan = getExternalizationPlan(o.getClass());
     	
     	boolean initialized = true;
     	
-    	if (initializedField != null && detachedStateField != null) {
+    	if (plan.initializedField != null) {
 	        // Read initialized flag.
 	        initialized = ((Boolean)in.readObject()).booleanValue();
 	
 	        // Read detachedState.
 	        String detachedState = (String)in.readObject();
 	        
-	        initializedField.setAccessible(true);
-	        initializedField.set(o, initialized);
-	        detachedStateField.setAccessible(true);
-	        detachedStateField.set(o, detachedState);
+	        plan.initializedField.setBoolean(o, initialized);
+	        plan.detachedStateField.set(o, detachedState);
     	}
         
-    	if (initialized) {
-            List<Property> fields = findOrderedFields(o.getClass(), false);
-            log.debug("Reading entity %s with fields %s", o.getClass().getName(), fields);
-            for (Property field : fields) {
-                Object value = in.readObject();
-                field.setProperty(o, value, true);
-            }
+    	Property[] fields = (initialized ? plan.fields : plan.idFields);
+    	for (Property field : fields) {
+            Object value = in.readObject();
+            field.setProperty(o, value, true);
         }
-    	else {
-            List<Property> fields = findOrderedFields(o.getClass(), false);
-            log.debug("Reading entity %s with fields %s", o.getClass().getName(), fields);
-            for (Property field : fields) {
-            	if (!field.isAnnotationPresent(Id.class))
-            		continue;
-                Object value = in.readObject();
-                field.setProperty(o, value, true);
-            }    		
-    	}
     }
 
     @Override
     public void writeExternal(Object o, ObjectOutput out) throws IOException, IllegalAccessException {
     	
-    	boolean initialized = true;
-    	String detachedState = null;
-
-    	Field initializedField = null;
-    	Field detachedStateField = null;
-    	Class<?> clazz = o.getClass();
-    	while (clazz != null && clazz != Object.class) {
-    		try {
-    			initializedField = clazz.getDeclaredField("__initialized__");
-    			initializedField.setAccessible(true);
-    			initialized = initializedField.getBoolean(o);
-    		}
-    		catch (NoSuchFieldException e) {
-    		}
-    		try {
-    			detachedStateField = clazz.getDeclaredField("__detachedState__");
-    			detachedStateField.setAccessible(true);
-    			detachedState = (String)detachedStateField.get(o);
-    		}
-    		catch (NoSuchFieldException e) {
-    		}
-    		clazz = clazz.getSuperclass();
-    	}
+    	ExternalizationPlan plan = getExternalizationPlan(o.getClass());
     	
-    	if (initializedField != null && detachedStateField != null) {
+    	if (plan.initializedField != null) {
+    		boolean initialized = plan.initializedField.getBoolean(o);
+    		String detachedState = (String)plan.detachedStateField.get(o);
+    		
     		if (!initialized) {
 	        	// Write initialized flag.
 	        	out.writeObject(Boolean.FALSE);
 	        	// Write detachedState.
 	        	out.writeObject(detachedState);
 	        	
-	        	for (Property field : findOrderedFields(o.getClass(), false)) {
-	        		if (field.isAnnotationPresent(Id.class)) {
-		            	// Write entity id.
-		                out.writeObject(field.getProperty(o));
-		                break;
-	        		}
+	        	if (plan.idFields.length > 0) {
+	            	// Write entity id.
+	                out.writeObject(plan.idFields[0].getProperty(o));
 	        	}
 	            return;
     		}
@@ -254,12 +218,10 @@ public class JavaFXExternalizer extends DefaultExternalizer {
     	}
     	
         // Externalize entity fields.
-        List<Property> fields = findOrderedFields(o.getClass(), false);
-        log.debug("Writing entity %s with fields %s", o.getClass().getName(), fields);
-        for (Property field : fields) {
+        for (Property field : plan.fields) {
             Object value = field.getProperty(o);
             
-            if (value != null && value instanceof PropertyHolder)
+            if (value instanceof PropertyHolder)
             	value = ((PropertyHolder)value).getObject();
             
             if (isValueIgnored(value))
@@ -268,4 +230,51 @@ public class JavaFXExternalizer extends DefaultExternalizer {
             	out.writeObject(value);
         }
     }
+    
+    /**
+     * Everything needed to (de)serialize instances of a given class, resolved once.
+     */
+    private static final class ExternalizationPlan {
+    	
+    	// Internal state fields (both null unless the class has both fields).
+    	public final Field initializedField;
+    	public final Field detachedStateField;
+    	
+    	// Ordered fields, and @Id fields (the only ones serialized for uninitialized entities).
+    	public final Property[] fields;
+    	public final Property[] idFields;
+    	
+    	public ExternalizationPlan(Class<?> clazz, List<Property> fields) {
+    		Field initializedField = null;
+    		Field detachedStateField = null;
+    		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+    			for (Field field : c.getDeclaredFields()) {
+    				if (field.getName().equals("__initialized__"))
+    					initializedField = field;
+    				else if (field.getName().equals("__detachedState__"))
+    					detachedStateField = field;
+    			}
+    		}
+    		
+    		if (initializedField != null && detachedStateField != null) {
+    			initializedField.setAccessible(true);
+    			detachedStateField.setAccessible(true);
+    			this.initializedField = initializedField;
+    			this.detachedStateField = detachedStateField;
+    		}
+    		else {
+    			this.initializedField = null;
+    			this.detachedStateField = null;
+    		}
+    		
+    		List<Property> idFields = new ArrayList<Property>();
+    		for (Property field : fields) {
+    			if (field.isAnnotationPresent(Id.class))
+    				idFields.add(field);
+    		}
+    		
+    		this.fields = fields.toArray(new Property[fields.size()]);
+    		this.idFields = idFields.toArray(new Property[idFields.size()]);
+    	}
+    }
 }
@@ -98,9 +98,52 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 	}
 	
 	protected final Property property;
+	
+	// Resolved once: value type, and primitive type of ObservableXValue / WritableXValue fields
+	// (Object.class for other observable / writable values, null if not observable / writable).
+	private final Class<?> type;
+	private final Class<?> observableType;
+	private final Class<?> writableType;
 
 	public AbstractJavaFXProperty(Property property) {
 		this.property = property;
+		
+		Class<?> fieldType = property.getType();
+		this.observableType = observableType(fieldType);
+		this.writableType = writableType(fieldType);
+		this.type = (observableType == null ? fieldType : (ObservableStringValue.class.isAssignableFrom(fieldType) ? String.class : observableType));
+	}
+	
+	private static Class<?> observableType(Class<?> type) {
+		if (!ObservableValue.class.isAssignableFrom(type))
+			return null;
+		if (ObservableBooleanValue.class.isAssignableFrom(type))
+			return Boolean.TYPE;
+		if (ObservableIntegerValue.class.isAssignableFrom(type))
+			return Integer.TYPE;
+		if (ObservableLongValue.class.isAssignableFrom(type))
+			return Long.TYPE;
+		if (ObservableDoubleValue.class.isAssignableFrom(type))
+			return Double.TYPE;
+		if (ObservableFloatValue.class.isAssignableFrom(type))
+			return Float.TYPE;
+		return Object.class;
+	}
+	
+	private static Class<?> writableType(Class<?> type) {
+		if (!WritableValue.class.isAssignableFrom(type))
+			return null;
+		if (WritableBooleanValue.class.isAssignableFrom(type))
+			return Boolean.TYPE;
+		if (WritableIntegerValue.class.isAssignableFrom(type))
+			return Integer.TYPE;
+		if (WritableLongValue.class.isAssignableFrom(type))
+			return Long.TYPE;
+		if (WritableDoubleValue.class.isAssignableFrom(type))
+			return Double.TYPE;
+		if (WritableFloatValue.class.isAssignableFrom(type))
+			return Float.TYPE;
+		return Object.class;
 	}
 
 	@Override
@@ -125,81 +168,61 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 
 	@Override
 	public Class<?> getType() {
-		Class<?> type = property.getType();
-		
-		if (ObservableValue.class.isAssignableFrom(type)) {
-			
-			if (ObservableBooleanValue.class.isAssignableFrom(type))
-				return Boolean.TYPE;
-			if (ObservableIntegerValue.class.isAssignableFrom(type))
-				return Integer.TYPE;
-			if (ObservableLongValue.class.isAssignableFrom(type))
-				return Long.TYPE;
-			if (ObservableDoubleValue.class.isAssignableFrom(type))
-				return Double.TYPE;
-			if (ObservableFloatValue.class.isAssignableFrom(type))
-				return Float.TYPE;
-			if (ObservableStringValue.class.isAssignableFrom(type))
-			    return String.class;
-			
-			return Object.class;
-		}
-			
 		return type;
 	}
 
 	@Override
 	public boolean getBoolean(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableBooleanValue.class.isAssignableFrom(property.getType()))
+		if (observableType == Boolean.TYPE)
 			return ((ObservableBooleanValue)property.getObject(holder)).get();
 		return property.getBoolean(holder);
 	}
 
 	@Override
 	public char getChar(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableValue.class.isAssignableFrom(property.getType()))
+		if (observableType != null)
 			throw new UnsupportedOperationException("JavaFX doesn't support char properties");
 		return property.getChar(holder);
 	}
 
 	@Override
 	public byte getByte(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableValue.class.isAssignableFrom(property.getType()))
+		if (observableType != null)
 			throw new UnsupportedOperationException("JavaFX doesn't support byte properties");
 		return property.getByte(holder);
 	}
 
 	@Override
 	public short getShort(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableValue.class.isAssignableFrom(property.getType()))
+		if (observableType != null)
 			throw new UnsupportedOperationException("JavaFX doesn't support short properties");
 		return property.getShort(holder);
 	}
 
 	@Override
 	public int getInt(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableIntegerValue.class.isAssignableFrom(property.getType()))
+		if (observableType == Integer.TYPE)
 			return ((ObservableIntegerValue)property.getObject(holder)).get();
 		return property.getInt(holder);
 	}
 
 	@Override
 	public long getLong(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableLongValue.class.isAssignableFrom(property.getType()))
+		if (observableType == Long.TYPE)
 			return ((ObservableLongValue)property.getObject(holder)).get();
 		return property.getLong(holder);
 	}
 
 	@Override
 	public float getFloat(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableFloatValue.class.isAssignableFrom(property.getType()))
+		if (observableType == Float.TYPE)
 			return ((ObservableFloatValue)property.getObject(holder)).get();
 		return property.getFloat(holder);
 	}
 
 	@Override
 	public double getDouble(Object holder) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (ObservableDoubleValue.class.isAssignableFrom(property.getType()))
+		if (observableType == Double.TYPE)
 			return ((ObservableDoubleValue)property.getObject(holder)).get();
 		return property.getDouble(holder);
 	}
@@ -238,7 +261,7 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 
 	@Override
 	public void setBoolean(Object holder, boolean value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableBooleanValue.class.isAssignableFrom(property.getType()))
+		if (writableType == Boolean.TYPE)
 			((WritableBooleanValue)property.getObject(holder)).set(value);
 		else
 			property.setBoolean(holder, value);
@@ -246,28 +269,28 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 
 	@Override
 	public void setChar(Object holder, char value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableValue.class.isAssignableFrom(property.getType()))
+		if (writableType != null)
 			throw new UnsupportedOperationException("JavaFX doesn't support char properties");
 		property.setChar(holder, value);
 	}
 
 	@Override
 	public void setByte(Object holder, byte value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableValue.class.isAssignableFrom(property.getType()))
+		if (writableType != null)
 			throw new UnsupportedOperationException("JavaFX doesn't support byte properties");
 		property.setByte(holder, value);
 	}
 
 	@Override
 	public void setShort(Object holder, short value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableValue.class.isAssignableFrom(property.getType()))
+		if (writableType != null)
 			throw new UnsupportedOperationException("JavaFX doesn't support short properties");
 		property.setShort(holder, value);
 	}
 
 	@Override
 	public void setInt(Object holder, int value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableIntegerValue.class.isAssignableFrom(property.getType()))
+		if (writableType == Integer.TYPE)
 			((WritableIntegerValue)property.getObject(holder)).set(value);
 		else
 			property.setInt(holder, value);
@@ -275,7 +298,7 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 
 	@Override
 	public void setLong(Object holder, long value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableLongValue.class.isAssignableFrom(property.getType()))
+		if (writableType == Long.TYPE)
 			((WritableLongValue)property.getObject(holder)).set(value);
 		else
 			property.setLong(holder, value);
@@ -283,7 +306,7 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 
 	@Override
 	public void setFloat(Object holder, float value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableFloatValue.class.isAssignableFrom(property.getType()))
+		if (writableType == Float.TYPE)
 			((WritableFloatValue)property.getObject(holder)).set(value);
 		else
 			property.setFloat(holder, value);
@@ -291,7 +314,7 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 
 	@Override
 	public void setDouble(Object holder, double value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		if (WritableDoubleValue.class.isAssignableFrom(property.getType()))
+		if (writableType == Double.TYPE)
 			((WritableDoubleValue)property.getObject(holder)).set(value);
 		else
 			property.setDouble(holder, value);
@@ -300,9 +323,7 @@ public abstract class AbstractJavaFXProperty implements JavaFXProperty {
 	@Override
 	@SuppressWarnings("unchecked")
 	public void setObject(Object holder, Object value) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-		Class<?> fieldType = property.getType();
-		
-		if (WritableValue.class.isAssignableFrom(fieldType)) {
+		if (writableType != null) {
 			WritableValue<Object> writableValue = (WritableValue<Object>)property.getObject(holder);
 			
 			if (writableValue instanceof WritableListValue) {
@@ -31,7 +31,11 @@ import org.granite.messaging.reflect.SimpleFieldProperty;
 public class JavaFXFieldProperty extends AbstractJavaFXProperty implements FieldProperty {
 
 	public JavaFXFieldProperty(Field field) {
-		super(new SimpleFieldProperty(field));
+		this(new SimpleFieldProperty(field));
+	}
+
+	public JavaFXFieldProperty(FieldProperty property) {
+		super(property);
 	}
 
 	@Override
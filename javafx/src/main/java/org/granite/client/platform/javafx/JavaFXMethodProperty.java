@@ -31,7 +31,11 @@ import org.granite.messaging.reflect.SimpleMethodProperty;
 public class JavaFXMethodProperty extends AbstractJavaFXProperty implements MethodProperty {
 
 	public JavaFXMethodProperty(Method getter, Method setter, String name) {
-		super(new SimpleMethodProperty(getter, setter, name));
+		this(new SimpleMethodProperty(getter, setter, name));
+	}
+
+	public JavaFXMethodProperty(MethodProperty property) {
+		super(property);
 	}
 
 	@Override
@@ -23,26 +23,31 @@ package org.granite.client.platform.javafx;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 
+import org.granite.client.platform.reflect.ClientReflection;
+import org.granite.client.platform.reflect.PropertyAccessorFactory;
 import org.granite.messaging.reflect.FieldProperty;
 import org.granite.messaging.reflect.MethodProperty;
-import org.granite.messaging.reflect.Reflection;
 
 /**
  * @author Franck WOLFF
  */
-public class JavaFXReflection extends Reflection {
+public class JavaFXReflection extends ClientReflection {
 
 	public JavaFXReflection(ClassLoader classLoader) {
 		super(classLoader);
 	}
 
+	public JavaFXReflection(ClassLoader classLoader, PropertyAccessorFactory accessorFactory) {
+		super(classLoader, accessorFactory);
+	}
+
 	@Override
 	protected FieldProperty newFieldProperty(Field field) {
-		return new JavaFXFieldProperty(field);
+		return new JavaFXFieldProperty(super.newFieldProperty(field));
 	}
 
 	@Override
 	protected MethodProperty newMethodProperty(Method getter, Method setter, String name) {
-		return new JavaFXMethodProperty(getter, setter, name);
+		return new JavaFXMethodProperty(super.newMethodProperty(getter, setter, name));
 	}
 }
@@ -0,0 +1,134 @@
+package org.granite.client.test.javafx;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+
+@Entity
+public class Entity4 implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+	@Basic
+	private String name;
+	
+	@Basic
+	private String description;
+	
+	@Basic
+	private String code;
+	
+	@Basic
+	private String category;
+	
+	@Basic
+	private Integer count;
+	
+	@Basic
+	private Long amount;
+	
+	@Basic
+	private Double rate;
+	
+	@Basic
+	private Boolean active;
+	
+	@Basic
+	private BigDecimal value;
+	
+	@Basic
+	private BigDecimal value2;
+	
+	@Basic
+	private Date created;
+	
+	@Basic
+	private Date updated;
+	
+	public String getName() {
+		return name;
+	}
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	public String getDescription() {
+		return description;
+	}
+	public void setDescription(String description) {
+		this.description = description;
+	}
+	
+	public String getCode() {
+		return code;
+	}
+	public void setCode(String code) {
+		this.code = code;
+	}
+	
+	public String getCategory() {
+		return category;
+	}
+	public void setCategory(String category) {
+		this.category = category;
+	}
+	
+	public Integer getCount() {
+		return count;
+	}
+	public void setCount(Integer count) {
+		this.count = count;
+	}
+	
+	public Long getAmount() {
+		return amount;
+	}
+	public void setAmount(Long amount) {
+		this.amount = amount;
+	}
+	
+	public Double getRate() {
+		return rate;
+	}
+	public void setRate(Double rate) {
+		this.rate = rate;
+	}
+	
+	public Boolean getActive() {
+		return active;
+	}
+	public void setActive(Boolean active) {
+		this.active = active;
+	}
+	
+	public BigDecimal getValue() {
+		return value;
+	}
+	public void setValue(BigDecimal value) {
+		this.value = value;
+	}
+	
+	public BigDecimal getValue2() {
+		return value2;
+	}
+	public void setValue2(BigDecimal value2) {
+		this.value2 = value2;
+	}
+	
+	public Date getCreated() {
+		return created;
+	}
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+	
+	public Date getUpdated() {
+		return updated;
+	}
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+}
@@ -0,0 +1,159 @@
+package org.granite.client.test.javafx;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+import org.granite.client.messaging.RemoteAlias;
+import org.granite.messaging.annotations.Serialized;
+
+
+@Serialized
+@RemoteAlias("org.granite.client.test.javafx.Entity4")
+public class FXEntity4 implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+    @SuppressWarnings("unused")
+    private boolean __initialized__ = true;
+    @SuppressWarnings("unused")
+	private String __detachedState__ = null;
+    
+	private StringProperty name = new SimpleStringProperty(this, "name", null);
+	private StringProperty description = new SimpleStringProperty(this, "description", null);
+	private StringProperty code = new SimpleStringProperty(this, "code", null);
+	private StringProperty category = new SimpleStringProperty(this, "category", null);
+	private ObjectProperty<Integer> count = new SimpleObjectProperty<Integer>(this, "count", null);
+	private ObjectProperty<Long> amount = new SimpleObjectProperty<Long>(this, "amount", null);
+	private ObjectProperty<Double> rate = new SimpleObjectProperty<Double>(this, "rate", null);
+	private ObjectProperty<Boolean> active = new SimpleObjectProperty<Boolean>(this, "active", null);
+	private ObjectProperty<BigDecimal> value = new SimpleObjectProperty<BigDecimal>(this, "value", null);
+	private ObjectProperty<BigDecimal> value2 = new SimpleObjectProperty<BigDecimal>(this, "value2", null);
+	private ObjectProperty<Date> created = new SimpleObjectProperty<Date>(this, "created", null);
+	private ObjectProperty<Date> updated = new SimpleObjectProperty<Date>(this, "updated", null);
+	
+	public StringProperty nameProperty() {
+		return name;
+	}
+	public String getName() {
+		return this.name.get();
+	}
+	public void setName(String name) {
+		this.name.set(name);
+	}
+	
+	public StringProperty descriptionProperty() {
+		return description;
+	}
+	public String getDescription() {
+		return this.description.get();
+	}
+	public void setDescription(String description) {
+		this.description.set(description);
+	}
+	
+	public StringProperty codeProperty() {
+		return code;
+	}
+	public String getCode() {
+		return this.code.get();
+	}
+	public void setCode(String code) {
+		this.code.set(code);
+	}
+	
+	public StringProperty categoryProperty() {
+		return category;
+	}
+	public String getCategory() {
+		return this.category.get();
+	}
+	public void setCategory(String category) {
+		this.category.set(category);
+	}
+	
+	public ObjectProperty<Integer> countProperty() {
+		return count;
+	}
+	public Integer getCount() {
+		return this.count.get();
+	}
+	public void setCount(Integer count) {
+		this.count.set(count);
+	}
+	
+	public ObjectProperty<Long> amountProperty() {
+		return amount;
+	}
+	public Long getAmount() {
+		return this.amount.get();
+	}
+	public void setAmount(Long amount) {
+		this.amount.set(amount);
+	}
+	
+	public ObjectProperty<Double> rateProperty() {
+		return rate;
+	}
+	public Double getRate() {
+		return this.rate.get();
+	}
+	public void setRate(Double rate) {
+		this.rate.set(rate);
+	}
+	
+	public ObjectProperty<Boolean> activeProperty() {
+		return active;
+	}
+	public Boolean getActive() {
+		return this.active.get();
+	}
+	public void setActive(Boolean active) {
+		this.active.set(active);
+	}
+	
+	public ObjectProperty<BigDecimal> valueProperty() {
+		return value;
+	}
+	public BigDecimal getValue() {
+		return this.value.get();
+	}
+	public void setValue(BigDecimal value) {
+		this.value.set(value);
+	}
+	
+	public ObjectProperty<BigDecimal> value2Property() {
+		return value2;
+	}
+	public BigDecimal getValue2() {
+		return this.value2.get();
+	}
+	public void setValue2(BigDecimal value2) {
+		this.value2.set(value2);
+	}
+	
+	public ObjectProperty<Date> createdProperty() {
+		return created;
+	}
+	public Date getCreated() {
+		return this.created.get();
+	}
+	public void setCreated(Date created) {
+		this.created.set(created);
+	}
+	
+	public ObjectProperty<Date> updatedProperty() {
+		return updated;
+	}
+	public Date getUpdated() {
+		return this.updated.get();
+	}
+	public void setUpdated(Date updated) {
+		this.updated.set(updated);
+	}
+}
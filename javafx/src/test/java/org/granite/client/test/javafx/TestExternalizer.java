@@ -7,6 +7,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -44,6 +45,7 @@ public class TestExternalizer {
 		aliasRegistry.registerAlias(FXEntity2b.class);
 		aliasRegistry.registerAlias(FXEntity1c.class);
 		aliasRegistry.registerAlias(FXEntity2c.class);
+		aliasRegistry.registerAlias(FXEntity4.class);
 		InputStream is = getClass().getClassLoader().getResourceAsStream("org/granite/client/test/javafx/granite-config-hibernate.xml");
 		graniteConfigHibernate = new GraniteConfig(null, is, null, null);
 	}
@@ -289,4 +291,50 @@ public class TestExternalizer {
 			Assert.assertTrue("Result type", read instanceof List<?>);
 		}
 	}
+
+	@Test
+	public void testExternalizationPerfWideServerToClient() throws Exception {
+		List<Entity4> list = new ArrayList<Entity4>(10000);
+		for (int i = 0; i < 10000; i++) {
+			Entity4 entity = new Entity4();
+			entity.setName("Test" + i);
+			entity.setDescription("Description" + i);
+			entity.setCode("C" + i);
+			entity.setCategory("Category" + (i % 10));
+			entity.setCount(i);
+			entity.setAmount(i * 1000L);
+			entity.setRate(i / 100.0);
+			entity.setActive(i % 2 == 0);
+			entity.setValue(new BigDecimal((i+1)*67.89));
+			entity.setValue2(new BigDecimal((i+1)*23.78));
+			entity.setCreated(new Date());
+			entity.setUpdated(new Date());
+			list.add(entity);
+		}
+		
+		SimpleGraniteContext.createThreadInstance(graniteConfigHibernate, servicesConfig, new HashMap<String, Object>(), ClientType.JAVA.toString());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(5000000);
+		ObjectOutput out = graniteConfigHibernate.newAMF3Serializer(baos);
+		out.writeObject(list);
+		byte[] buf = baos.toByteArray();
+		System.out.println("Buf size: " + buf.length);
+		
+		for (int test = 0; test < 5; test++) {
+			long time = System.nanoTime();
+			
+			SimpleGraniteContext.createThreadInstance(graniteConfigJavaFX, servicesConfig, new HashMap<String, Object>(), ClientType.JAVA.toString());
+			ByteArrayInputStream bais = new ByteArrayInputStream(buf);
+			ObjectInput in = graniteConfigJavaFX.newAMF3Deserializer(bais);
+			Object read = in.readObject();
+			
+			long elapsedTime = System.nanoTime()-time;
+			System.out.println("Decoded " + list.size() + " entities in " + (elapsedTime/1000000) + "ms (" + (list.size()*1000000000L/elapsedTime) + " entities/s)");
+			
+			Assert.assertTrue("Result type", read instanceof List<?>);
+			FXEntity4 entity = (FXEntity4)((List<?>)read).get(10);
+			Assert.assertEquals("Name", "Test10", entity.getName());
+			Assert.assertEquals("Count", Integer.valueOf(10), entity.getCount());
+			Assert.assertEquals("Active", Boolean.TRUE, entity.getActive());
+		}
+	}
 }
@@ -194,6 +194,7 @@ public class DataObserver implements ContextAware, NameAware {
 				        	upds.add(new EntityManager.Update(UpdateKind.forName(((Object[])update)[0].toString().toUpperCase()), ((Object[])update)[1]));
 				        
 			        	entityManager.handleUpdates(mergeContext, receivedSessionId, upds);
+			        	serverSession.invalidateResultCache(upds);
 			        	entityManager.raiseUpdateEvents(context, upds);
 			        }
 			        catch (Exception e) {
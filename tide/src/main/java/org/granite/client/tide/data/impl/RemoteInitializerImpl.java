@@ -32,6 +32,7 @@ import org.granite.client.messaging.ResultFaultIssuesResponseListener;
 import org.granite.client.messaging.events.FaultEvent;
 import org.granite.client.messaging.events.IssueEvent;
 import org.granite.client.messaging.events.ResultEvent;
+import org.granite.client.messaging.messages.RequestMessage.Priority;
 import org.granite.client.tide.Context;
 import org.granite.client.tide.data.EntityManager;
 import org.granite.client.tide.data.PersistenceManager;
@@ -128,7 +129,8 @@ public class RemoteInitializerImpl implements RemoteInitializer {
 	    	RemoteService rs = serverSession.getRemoteService();
 			for (Object entity : initMap.keySet()) {
 				rs.newInvocation("initializeObject", entity, initMap.get(entity).toArray(), new InvocationCall())
-					.addListener(new InitializerListener(serverSession, entity)).invoke();
+					.addListener(new InitializerListener(serverSession, entity))
+					.setPriority(Priority.BACKGROUND).invoke();
 				
 			}
     	}
@@ -69,7 +69,8 @@ public class FutureResult<T> implements Future<T> {
 	
     @Override
     public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-		throw new UnsupportedOperationException("Cannot use timeout on get(), set timeout on request");
+		responseMessageFuture.get(timeout, unit);
+		return componentListener.getResult();
     }
 
 }
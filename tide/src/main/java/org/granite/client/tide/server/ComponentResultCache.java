@@ -0,0 +1,75 @@
+/*
+  GRANITE DATA SERVICES
+  Copyright (C) 2012 GRANITE DATA SERVICES S.A.S.
+
+  This file is part of Granite Data Services.
+
+  Granite Data Services is free software; you can redistribute it and/or modify
+  it under the terms of the GNU Library General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or (at your
+  option) any later version.
+
+  Granite Data Services is distributed in the hope that it will be useful, but
+  WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+  FITNESS FOR A PARTICULAR PURPOSE. See the GNU Library General Public License
+  for more details.
+
+  You should have received a copy of the GNU Library General Public License
+  along with this library; if not, see <http://www.gnu.org/licenses/>.
+*/
+package org.granite.client.tide.server;
+
+import java.util.Set;
+
+import org.granite.client.messaging.ResultCache;
+import org.granite.client.messaging.messages.requests.InvocationMessage;
+import org.granite.client.messaging.messages.responses.ResultMessage;
+import org.granite.tide.invocation.InvocationResult;
+
+/**
+ * Result cache for Tide component calls: results are cached by component and operation name
+ * (eg. <code>countryService.findAll</code>), and results holding data updates or context updates
+ * are never cached.
+ */
+public class ComponentResultCache extends ResultCache {
+	
+	private static final String INVOKE_COMPONENT = "invokeComponent";
+
+	public ComponentResultCache(int maxEntries) {
+		super(maxEntries);
+	}
+
+	@Override
+	protected String getName(InvocationMessage request) {
+		if (!INVOKE_COMPONENT.equals(request.getMethod()))
+			return super.getName(request);
+		
+		Object[] call = request.getParameters();
+		return call[0] + "." + call[2];
+	}
+
+	@Override
+	protected Object[] getParameters(InvocationMessage request) {
+		if (!INVOKE_COMPONENT.equals(request.getMethod()))
+			return super.getParameters(request);
+		
+		return (Object[])request.getParameters()[3];
+	}
+
+	@Override
+	protected boolean isCacheable(ResultMessage result) {
+		if (!(result.getData() instanceof InvocationResult))
+			return true;
+		
+		InvocationResult invocationResult = (InvocationResult)result.getData();
+		return (invocationResult.getUpdates() == null || invocationResult.getUpdates().length == 0) &&
+			(invocationResult.getResults() == null || invocationResult.getResults().isEmpty());
+	}
+
+	@Override
+	protected void collectDependencies(Object data, Set<Class<?>> dependencies) {
+		if (data instanceof InvocationResult)
+			data = ((InvocationResult)data).getResult();
+		super.collectDependencies(data, dependencies);
+	}
+}
@@ -51,10 +51,14 @@ import org.granite.client.messaging.ClientAliasRegistry;
 import org.granite.client.messaging.Consumer;
 import org.granite.client.messaging.Producer;
 import org.granite.client.messaging.RemoteService;
+import org.granite.client.messaging.ResultCache;
 import org.granite.client.messaging.ResultFaultIssuesResponseListener;
+import org.granite.client.messaging.SubscriptionManager;
 import org.granite.client.messaging.TopicAgent;
 import org.granite.client.messaging.channel.AMFChannelFactory;
+import org.granite.client.messaging.channel.AbstractHTTPChannel;
 import org.granite.client.messaging.channel.ChannelFactory;
+import org.granite.client.messaging.channel.ConcurrencyLimit;
 import org.granite.client.messaging.channel.JMFChannelFactory;
 import org.granite.client.messaging.channel.MessagingChannel;
 import org.granite.client.messaging.channel.RemotingChannel;
@@ -80,6 +84,7 @@ import org.granite.client.tide.Identity;
 import org.granite.client.tide.PropertyHolder;
 import org.granite.client.tide.data.EntityManager;
 import org.granite.client.tide.data.EntityManager.Update;
+import org.granite.client.tide.data.EntityManager.UpdateKind;
 import org.granite.client.tide.data.spi.DataManager;
 import org.granite.client.tide.data.spi.MergeContext;
 import org.granite.client.validation.InvalidValue;
@@ -131,6 +136,9 @@ public class ServerSession implements ContextAware {
 	private boolean useWebSocket = true; // TODO remove...
     private Transport remotingTransport = null;
     private Transport messagingTransport = null;
+    private int maxConcurrentRequests = 1;
+    private ConcurrencyLimit concurrencyLimit = null;
+    private volatile ResultCache resultCache = null;
     private String protocol = "http";
     private String contextRoot = "";
     private String serverName = null;
@@ -156,6 +164,7 @@ public class ServerSession implements ContextAware {
 	private ChannelFactory channelFactory;
     private RemotingChannel remotingChannel;
 	private MessagingChannel messagingChannel;
+	private SubscriptionManager subscriptionManager;
 	protected Map<String, RemoteService> remoteServices = new HashMap<String, RemoteService>();
 	protected Map<String, TopicAgent> topicAgents = new HashMap<String, TopicAgent>();
 	private Set<String> packageNames = new HashSet<String>();
@@ -280,6 +289,56 @@ public class ServerSession implements ContextAware {
 		this.messagingTransport = transport;
 	}
 	
+	/**
+	 * Maximum number of concurrent remoting calls (default is 1: calls are serialized).
+	 */
+	public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests < 1)
+			throw new IllegalArgumentException("maxConcurrentRequests must be greater or equal to 1");
+		this.maxConcurrentRequests = maxConcurrentRequests;
+	}
+	
+	/**
+	 * Adaptive concurrency limit of the remoting channel (overrides <code>maxConcurrentRequests</code>).
+	 */
+	public void setConcurrencyLimit(ConcurrencyLimit concurrencyLimit) {
+		this.concurrencyLimit = concurrencyLimit;
+	}
+	
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	/**
+	 * Cache of results of idempotent remote calls (see {@link ComponentResultCache}), invalidated by
+	 * data updates received from the server and cleared when the user logs in or out.
+	 */
+	public synchronized void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+		for (RemoteService remoteService : remoteServices.values())
+			remoteService.setResultCache(resultCache);
+	}
+	
+	/**
+	 * Invalidates the cached results depending on the classes of the updated entities.
+	 */
+	public void invalidateResultCache(List<Update> updates) {
+		ResultCache resultCache = this.resultCache;
+		if (resultCache == null || updates == null)
+			return;
+		
+		for (Update update : updates) {
+			if (update.getEntity() != null && (update.getKind() == UpdateKind.PERSIST || update.getKind() == UpdateKind.UPDATE || update.getKind() == UpdateKind.REMOVE))
+				resultCache.invalidate(update.getEntity().getClass());
+		}
+	}
+	
+	private void clearResultCache() {
+		ResultCache resultCache = this.resultCache;
+		if (resultCache != null)
+			resultCache.clear();
+	}
+	
 	public void addRemoteAliasPackage(String packageName) {		
 		this.packageNames.add(packageName);
 	}
@@ -347,13 +406,20 @@ public class ServerSession implements ContextAware {
 		channelFactory.getMessagingTransport().setStatusHandler(statusHandler);
 		
 		graniteURI = new URI(protocol + "://" + this.serverName + (this.serverPort > 0 ? ":" + this.serverPort : "") + this.contextRoot + this.graniteUrlMapping);
-		remotingChannel = channelFactory.newRemotingChannel("graniteamf", graniteURI, 1);
+		remotingChannel = channelFactory.newRemotingChannel("graniteamf", graniteURI, maxConcurrentRequests);
+		if (concurrencyLimit != null) {
+			if (remotingChannel instanceof AbstractHTTPChannel)
+				((AbstractHTTPChannel)remotingChannel).setConcurrencyLimit(concurrencyLimit);
+			else
+				log.warn("Remoting channel %s doesn't support concurrency limits", remotingChannel);
+		}
 		
 		if (useWebSocket)
 			gravityURI = new URI(protocol.replace("http", "ws") + "://" + this.serverName + (this.serverPort > 0 ? ":" + this.serverPort : "") + this.contextRoot + this.gravityUrlMapping);
 		else
 			gravityURI = new URI(protocol + "://" + this.serverName + (this.serverPort > 0 ? ":" + this.serverPort : "") + this.contextRoot + this.gravityUrlMapping);
 		messagingChannel = channelFactory.newMessagingChannel("gravityamf", gravityURI);
+		subscriptionManager = new SubscriptionManager(messagingChannel);
 		
 		sessionExpirationTimer = Executors.newSingleThreadScheduledExecutor();
 	}
@@ -378,6 +444,7 @@ public class ServerSession implements ContextAware {
 	            
             remotingChannel = null;
 			messagingChannel = null;
+			subscriptionManager = null;
 		}
 	}
 	
@@ -425,11 +492,20 @@ public class ServerSession implements ContextAware {
 		RemoteService remoteService = remoteServices.get(destination);
 		if (remoteService == null) {
 			remoteService = serviceFactory.newRemoteService(remotingChannel, destination);
+			remoteService.setResultCache(resultCache);
 			remoteServices.put(destination, remoteService);
 		}
 		return remoteService;
 	}
 
+	/**
+	 * Returns the manager sharing server subscriptions between consumers of the messaging channel
+	 * (consumers returned by {@link #getConsumer(String, String)} use it).
+	 */
+	public SubscriptionManager getSubscriptionManager() {
+		return subscriptionManager;
+	}
+
 	public synchronized Consumer getConsumer(String destination, String topic) {
 		if (messagingChannel == null)
 			throw new IllegalStateException("Channel not defined for server session");
@@ -437,7 +513,9 @@ public class ServerSession implements ContextAware {
 		String key = destination + '@' + topic;
 		TopicAgent consumer = topicAgents.get(key);
 		if (consumer == null) {
-			consumer = serviceFactory.newConsumer(messagingChannel, destination, topic);
+			Consumer newConsumer = serviceFactory.newConsumer(messagingChannel, destination, topic);
+			newConsumer.setSubscriptionManager(subscriptionManager);
+			consumer = newConsumer;
 			topicAgents.put(key, consumer);
 		}
 		return consumer instanceof Consumer ? (Consumer)consumer : null;
@@ -576,6 +654,7 @@ public class ServerSession implements ContextAware {
 	 *  @param password password
 	 */
     public void login(String username, String password) {
+    	clearResultCache();
     	remotingChannel.setCredentials(new UsernamePasswordCredentials(username, password));
     	messagingChannel.setCredentials(new UsernamePasswordCredentials(username, password));
     }
@@ -588,6 +667,7 @@ public class ServerSession implements ContextAware {
 	 *  @param charset charset used for encoding
 	 */
     public void login(String username, String password, Charset charset) {
+    	clearResultCache();
     	remotingChannel.setCredentials(new UsernamePasswordCredentials(username, password, charset));
     	messagingChannel.setCredentials(new UsernamePasswordCredentials(username, password, charset));
     }
@@ -601,6 +681,8 @@ public class ServerSession implements ContextAware {
     public void sessionExpired() {
 		log.info("Application session expired");
 		
+		clearResultCache();
+		
 		sessionId = null;
 		if (remotingChannel instanceof SessionAwareChannel)
 		    ((SessionAwareChannel)remotingChannel).setSessionId(null);
@@ -616,6 +698,8 @@ public class ServerSession implements ContextAware {
     public void loggedOut(TideRpcEvent event) {
     	log.info("User logged out");
     	
+    	clearResultCache();
+    	
         sessionId = null;
         if (remotingChannel instanceof SessionAwareChannel)
             ((SessionAwareChannel)remotingChannel).setSessionId(null);
@@ -631,6 +715,8 @@ public class ServerSession implements ContextAware {
 	 * 	@param logoutObserver observer that will be notified of logout result
 	 */
 	public void logout(final Observer logoutObserver) {
+		clearResultCache();
+		
 		if (sessionExpirationFuture != null) {
 			sessionExpirationFuture.cancel(false);
 			sessionExpirationFuture = null;
@@ -768,6 +854,7 @@ public class ServerSession implements ContextAware {
                     for (Object[] u : invocationResult.getUpdates())
                         updates.add(Update.forUpdate((String)u[0], u[1]));
                     entityManager.handleUpdates(mergeContext, null, updates);
+                    invalidateResultCache(updates);
                 }
                 
                 // Handle scope changes